@@ -28,7 +28,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.Arrays;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Vector;
@@ -164,15 +163,7 @@ public class LcevcEncoder extends Encoder {
         mKeepInterval = mReferenceFrameRate / mFrameRate;
         mRefFrameTime = calculateFrameTimingUsec(mReferenceFrameRate);
 
-        synchronized (this) {
-            Log.d(TAG, "Wait for synchronized start");
-            try {
-                mInitDone = true;
-                wait(WAIT_TIME_MS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        waitForSynchronizedStart();
         mStats.start();
 
         try {
@@ -560,7 +551,6 @@ class EncoderEIL {
      */
     private void pumpOutput() throws IOException {
         final int timeSteppings = 2; // align with MediaCodec timing
-        final ArrayList<FrameInfo> encodedFramesStats = mStats.getEncodedFrames();
         final int encodedCount = mStats.getEncodedFrameCount();
 
         EIL.OutputBuffer output;
@@ -583,9 +573,12 @@ class EncoderEIL {
 
             // Update app statistics.
             if (mReceivedOutputBuffer < encodedCount) {
-                FrameInfo fi = encodedFramesStats.get(mReceivedOutputBuffer++);
-                fi.isIFrame(isKeyFrame);
-                fi.setSize(size);
+                FrameInfo fi = mStats.getEncodedFrame(mReceivedOutputBuffer++);
+                // null if the frame was already flushed
+                if (fi != null) {
+                    fi.isIFrame(isKeyFrame);
+                    fi.setSize(size);
+                }
             }
 
             // Write packets to chosen muxer.
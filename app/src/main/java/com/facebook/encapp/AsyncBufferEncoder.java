@@ -6,6 +6,7 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 import android.util.Size;
 
@@ -13,19 +14,25 @@ import androidx.annotation.NonNull;
 
 import com.facebook.encapp.proto.PixFmt;
 import com.facebook.encapp.proto.Test;
+import com.facebook.encapp.utils.ClockTimes;
+import com.facebook.encapp.utils.Codec;
+import com.facebook.encapp.utils.CodecCache;
 import com.facebook.encapp.utils.FakeInputReader;
 import com.facebook.encapp.utils.FileReader;
 import com.facebook.encapp.utils.FrameInfo;
+import com.facebook.encapp.utils.IndexQueue;
+import com.facebook.encapp.utils.MediaCodecAdapter;
 import com.facebook.encapp.utils.MediaCodecInfoHelper;
 import com.facebook.encapp.utils.SizeUtils;
 import com.facebook.encapp.utils.Statistics;
 import com.facebook.encapp.utils.TestDefinitionHelper;
+import com.facebook.encapp.utils.ThreadCpuSampler;
+import com.facebook.encapp.utils.TraceEvents;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Dictionary;
 import java.util.Locale;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -34,10 +41,13 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * Unlike BufferEncoder which uses synchronous polling, this encoder:
  * - Uses callbacks for output buffer handling (like SurfaceEncoder)
  * - Uses a separate input feeder thread for realtime pacing
- * - Tracks available input buffers in a queue
+ * - Hands available input buffers to the feeder through a blocking index queue
  * 
  * This allows copying data to an encoder buffer while another is in the encoding pipeline,
  * achieving better throughput while maintaining realtime pacing.
+ *
+ * The codec is only used through the Codec interface. It comes from the CodecCache,
+ * or is given to the constructor, e.g. a SimulatedCodec to run the pipeline off device.
  */
 public class AsyncBufferEncoder extends Encoder {
     private static final String TAG = "encapp.async_buffer_encoder";
@@ -45,9 +55,13 @@ public class AsyncBufferEncoder extends Encoder {
     private Size mSourceResolution;
     private int mFrameSizeBytes;
     private boolean mUseImage = false;
+    private Codec mEncoderCodec;
     
-    // Available input buffer indices
-    private final ConcurrentLinkedQueue<Integer> mAvailableInputBuffers = new ConcurrentLinkedQueue<>();
+    // Available input buffer indices, from the codec callback to the feeder
+    private static final int MAX_INPUT_BUFFERS = 64;
+    // How often a waiting feeder checks for stop
+    private static final long FEEDER_WAIT_NS = 100000000L;
+    private final IndexQueue mAvailableInputBuffers = new IndexQueue(MAX_INPUT_BUFFERS);
     
     // Synchronization for completion
     private final Object mCompletionLock = new Object();
@@ -62,13 +76,21 @@ public class AsyncBufferEncoder extends Encoder {
         mStats = new Statistics("async buffer encoder", mTest);
     }
 
+    /**
+     * Encodes on codec instead of one from the CodecCache, the caller releases it.
+     */
+    public AsyncBufferEncoder(Test test, Codec codec) {
+        this(test);
+        mEncoderCodec = codec;
+    }
+
     @Override
     public String start() {
         Log.d(TAG, "** AsyncBufferEncoder - " + mTest.getCommon().getDescription() + " **");
         
         mTest = TestDefinitionHelper.updateBasicSettings(mTest);
         if (mTest.hasRuntime())
-            mRuntimeParams = mTest.getRuntime();
+            setRuntimeParams(mTest.getRuntime());
         if (mTest.getInput().hasRealtime())
             mRealtime = mTest.getInput().getRealtime();
 
@@ -115,10 +137,13 @@ public class AsyncBufferEncoder extends Encoder {
                 }
             }
             
-            Log.d(TAG, "Create codec by name: " + mTest.getConfigure().getCodec());
-            mStats.pushTimestamp("encoder.create");
-            mCodec = MediaCodec.createByCodecName(mTest.getConfigure().getCodec());
-            mStats.pushTimestamp("encoder.create");
+            if (mEncoderCodec == null) {
+                Log.d(TAG, "Create codec by name: " + mTest.getConfigure().getCodec());
+                mStats.pushTimestamp("encoder.create");
+                mCodec = CodecCache.getCache().getEncoder(mTest, false);
+                mEncoderCodec = new MediaCodecAdapter(mCodec);
+                mStats.pushTimestamp("encoder.create");
+            }
 
             mediaFormat = TestDefinitionHelper.buildMediaFormat(mTest);
             logMediaFormat(mediaFormat);
@@ -130,24 +155,16 @@ public class AsyncBufferEncoder extends Encoder {
             Log.d(TAG, "useImage: " + mUseImage + ", colorFormat=" + colorFormat);
 
             // Set async callback handler BEFORE configure
-            mCodec.setCallback(new AsyncEncoderCallbackHandler());
+            mEncoderCodec.setCallback(new AsyncEncoderCallbackHandler());
             
             mStats.pushTimestamp("encoder.configure");
-            mCodec.configure(
-                    mediaFormat,
-                    null /* surface */,
-                    null /* crypto */,
-                    MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mEncoderCodec.configure(mediaFormat, true);
             mStats.pushTimestamp("encoder.configure");
             
-            logMediaFormat(mCodec.getInputFormat());
-            mStats.setEncoderMediaFormat(mCodec.getInputFormat());
+            logMediaFormat(mEncoderCodec.getInputFormat());
+            mStats.setEncoderMediaFormat(mEncoderCodec.getInputFormat());
             
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                mStats.setCodec(mCodec.getCanonicalName());
-            } else {
-                mStats.setCodec(mCodec.getName());
-            }
+            mStats.setCodec(mEncoderCodec.getCanonicalName());
         } catch (IOException iox) {
             Log.e(TAG, "Failed to create codec: " + iox.getMessage());
             return "Failed to create codec";
@@ -164,31 +181,23 @@ public class AsyncBufferEncoder extends Encoder {
 
         // Create muxer
         Log.d(TAG, "Create muxer");
-        MediaFormat outputFormat = mCodec.getOutputFormat();
-        mMuxerWrapper = createMuxerWrapper(mCodec, outputFormat);
+        MediaFormat outputFormat = mEncoderCodec.getOutputFormat();
+        mMuxerWrapper = createMuxerWrapper(mEncoderCodec, outputFormat);
         
-        boolean isVP = mCodec.getCodecInfo().getName().toLowerCase(Locale.US).contains(".vp");
+        boolean isVP = mEncoderCodec.getName().toLowerCase(Locale.US).contains(".vp");
         if (isVP) {
             mVideoTrack = mMuxerWrapper.addTrack(outputFormat);
             mMuxerWrapper.start();
         }
 
         // Wait for synchronized start
-        synchronized (this) {
-            Log.d(TAG, "Wait for synchronized start");
-            try {
-                mInitDone = true;
-                wait(WAIT_TIME_MS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        waitForSynchronizedStart();
 
         // Start encoding
         try {
             Log.d(TAG, "Start encoder (async mode)");
             mStats.pushTimestamp("encoder.start");
-            mCodec.start();
+            mEncoderCodec.start();
             mStats.pushTimestamp("encoder.start");
         } catch (Exception ex) {
             Log.e(TAG, "Start failed: " + ex.getMessage());
@@ -245,10 +254,12 @@ public class AsyncBufferEncoder extends Encoder {
         mStats.stop();
 
         // Cleanup
-        if (mCodec != null) {
+        if (mEncoderCodec != null) {
             try {
-                mCodec.stop();
-                mCodec.release();
+                mEncoderCodec.stop();
+                if (mCodec != null) {
+                    CodecCache.getCache().release(mCodec);
+                }
             } catch (IllegalStateException e) {
                 Log.e(TAG, "Error stopping codec: " + e.getMessage());
             }
@@ -288,24 +299,25 @@ public class AsyncBufferEncoder extends Encoder {
         @Override
         public void run() {
             Log.d(TAG, "InputFeeder started, realtime=" + mRealtime);
+            ThreadCpuSampler.registerThread("input_feeder", mTest.getCommon().getId());
             
+            // A buffer that was not queued (dropped frame, end of file) is kept for the next frame
+            int bufferIndex = -1;
+            long availableNs = 0;
             while (!mStopRequested && !mInputDone.get()) {
                 // Check if we're done
                 if (doneReading(mTest, mYuvReader, mInFramesCount, mCurrentTimeSec, false)) {
-                    sendEndOfStream();
+                    sendEndOfStream(bufferIndex);
                     break;
                 }
 
                 // Wait for an available input buffer
-                Integer bufferIndex = mAvailableInputBuffers.poll();
-                if (bufferIndex == null) {
-                    // No buffer available, wait a bit
-                    try {
-                        Thread.sleep(1);
-                    } catch (InterruptedException e) {
-                        if (mStopRequested) break;
+                if (bufferIndex < 0) {
+                    bufferIndex = mAvailableInputBuffers.poll(FEEDER_WAIT_NS);
+                    if (bufferIndex < 0) {
+                        continue;
                     }
-                    continue;
+                    availableNs = mAvailableInputBuffers.getLastOfferTimeNs();
                 }
 
                 // Realtime pacing - wait until it's time for the next frame
@@ -314,9 +326,10 @@ public class AsyncBufferEncoder extends Encoder {
                 }
 
                 // Fill and queue the buffer
-                int size = fillAndQueueBuffer(bufferIndex);
-                
-                if (size <= 0 && size != -2) {
+                int size = fillAndQueueBuffer(bufferIndex, availableNs);
+                if (size > 0) {
+                    bufferIndex = -1;
+                } else if (size != -2) {
                     // End of file or error - handle looping
                     if (mIsFakeInput) {
                         mFakeInputReader.closeFile();
@@ -331,51 +344,38 @@ public class AsyncBufferEncoder extends Encoder {
                     Log.d(TAG, "*** Loop ended start " + mCurrentLoop + " ***");
                     
                     if (doneReading(mTest, mYuvReader, mInFramesCount, mCurrentTimeSec, true)) {
-                        sendEndOfStream();
+                        sendEndOfStream(bufferIndex);
                         break;
                     }
-                    
-                    // Return buffer to queue for retry
-                    mAvailableInputBuffers.add(bufferIndex);
                 }
             }
             
             Log.d(TAG, "InputFeeder stopped");
         }
 
-        private void sendEndOfStream() {
+        private void sendEndOfStream(int bufferIndex) {
             if (mInputDone.getAndSet(true)) {
                 return; // Already sent EOS
             }
             
             // Wait for a buffer to send EOS - with timeout
-            Integer bufferIndex = null;
-            long startTime = System.currentTimeMillis();
-            final long EOS_TIMEOUT_MS = 5000;
-            
-            while (!mStopRequested && bufferIndex == null) {
-                bufferIndex = mAvailableInputBuffers.poll();
-                if (bufferIndex == null) {
-                    if (System.currentTimeMillis() - startTime > EOS_TIMEOUT_MS) {
-                        Log.e(TAG, "Timeout waiting for input buffer to send EOS - forcing completion");
-                        mOutputDone.set(true);
-                        synchronized (mCompletionLock) {
-                            mCompletionLock.notifyAll();
-                        }
-                        return;
-                    }
-                    try {
-                        Thread.sleep(1);
-                    } catch (InterruptedException e) {
-                        return;
+            final long EOS_TIMEOUT_NS = 5000000000L;
+            if (bufferIndex < 0 && !mStopRequested) {
+                bufferIndex = mAvailableInputBuffers.poll(EOS_TIMEOUT_NS);
+                if (bufferIndex < 0 && !mStopRequested) {
+                    Log.e(TAG, "Timeout waiting for input buffer to send EOS - forcing completion");
+                    mOutputDone.set(true);
+                    synchronized (mCompletionLock) {
+                        mCompletionLock.notifyAll();
                     }
+                    return;
                 }
             }
             
-            if (bufferIndex != null) {
+            if (bufferIndex >= 0) {
                 long pts = computePresentationTimeUs(mPts, mInFramesCount, mRefFrameTime);
                 try {
-                    mCodec.queueInputBuffer(bufferIndex, 0, 0, pts, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    mEncoderCodec.queueInputBuffer(bufferIndex, 0, 0, pts, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
                     Log.d(TAG, "Queued EOS at frame " + mInFramesCount);
                 } catch (IllegalStateException e) {
                     Log.e(TAG, "Error queueing EOS: " + e.getMessage());
@@ -390,14 +390,15 @@ public class AsyncBufferEncoder extends Encoder {
 
     /**
      * Fill a buffer and queue it to the encoder.
+     * availableNs is when the codec made the buffer available.
      * @return size of data queued, -1 on error, -2 on skip
      */
-    private int fillAndQueueBuffer(int index) {
+    private int fillAndQueueBuffer(int index, long availableNs) {
         int read = 0;
         
         try {
             if (mUseImage) {
-                android.media.Image image = mCodec.getInputImage(index);
+                android.media.Image image = mEncoderCodec.getInputImage(index);
                 if (image != null) {
                     if (mIsFakeInput) {
                         read = mFakeInputReader.fillImage(image);
@@ -409,7 +410,7 @@ public class AsyncBufferEncoder extends Encoder {
                     return -1;
                 }
             } else {
-                ByteBuffer buffer = mCodec.getInputBuffer(index);
+                ByteBuffer buffer = mEncoderCodec.getInputBuffer(index);
                 if (buffer != null) {
                     buffer.clear();
                     if (mIsFakeInput) {
@@ -426,6 +427,7 @@ public class AsyncBufferEncoder extends Encoder {
             if (read <= 0) {
                 return read;
             }
+            long readDoneNs = ClockTimes.currentTimeNs();
 
             long pts = computePresentationTimeUs(mPts, mInFramesCount, mRefFrameTime);
             mCurrentTimeSec = pts / 1000000.0f;
@@ -442,16 +444,20 @@ public class AsyncBufferEncoder extends Encoder {
                 mSkipped++;
                 mDropNext = false;
                 mInFramesCount++;
-                // Return buffer to queue
-                mAvailableInputBuffers.add(index);
                 return -2;
             }
             
             // Start encoding measurement
-            mStats.startEncodingFrame(pts, mInFramesCount);
+            FrameInfo frame = mStats.startEncodingFrame(pts, mInFramesCount);
             
             // Queue the buffer
-            mCodec.queueInputBuffer(index, 0, read, pts, 0);
+            long traceStart = TraceEvents.begin();
+            mEncoderCodec.queueInputBuffer(index, 0, read, pts, 0);
+            TraceEvents.end(TraceEvents.QUEUE, traceStart, pts);
+            frame.setStageTime(FrameInfo.STAGE_READ_DONE, readDoneNs);
+            long queuedNs = ClockTimes.currentTimeNs();
+            frame.setStageTime(FrameInfo.STAGE_QUEUED, queuedNs);
+            mStats.recordFeedLatency(queuedNs - availableNs);
             mFramesAdded++;
             mInFramesCount++;
             
@@ -466,19 +472,22 @@ public class AsyncBufferEncoder extends Encoder {
     /**
      * Async callback handler for the encoder.
      */
-    private class AsyncEncoderCallbackHandler extends MediaCodec.Callback {
+    private class AsyncEncoderCallbackHandler implements Codec.Callback {
         private MediaFormat mCurrentOutputFormat = null;
         private Dictionary<String, Object> mLatestFrameChanges = null;
 
         @Override
-        public void onInputBufferAvailable(@NonNull MediaCodec codec, int index) {
+        public void onInputBufferAvailable(Codec codec, int index) {
             // Always add buffers to the queue - InputFeeder needs them for EOS signaling
             // even after we stop adding frames
-            mAvailableInputBuffers.add(index);
+            if (!mAvailableInputBuffers.offer(index)) {
+                Log.e(TAG, "More than " + MAX_INPUT_BUFFERS + " input buffers, dropping " + index);
+            }
         }
 
         @Override
-        public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+        public void onOutputBufferAvailable(Codec codec, int index, MediaCodec.BufferInfo info) {
+            TraceEvents.instant(TraceEvents.CODEC_OUT, info.presentationTimeUs);
             try {
                 if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
                     // Codec config buffer
@@ -515,6 +524,9 @@ public class AsyncBufferEncoder extends Encoder {
                         ByteBuffer data = codec.getOutputBuffer(index);
                         if (data != null) {
                             mMuxerWrapper.writeSampleData(mVideoTrack, data, info);
+                            if (frameInfo != null) {
+                                frameInfo.setStageTime(FrameInfo.STAGE_MUXED, ClockTimes.currentTimeNs());
+                            }
                         }
                     }
                     codec.releaseOutputBuffer(index, false);
@@ -529,7 +541,7 @@ public class AsyncBufferEncoder extends Encoder {
         }
 
         @Override
-        public void onError(@NonNull MediaCodec codec, @NonNull MediaCodec.CodecException e) {
+        public void onError(Codec codec, Exception e) {
             Log.e(TAG, "Codec error: " + e.getMessage());
             mInputDone.set(true);
             mOutputDone.set(true);
@@ -539,7 +551,7 @@ public class AsyncBufferEncoder extends Encoder {
         }
 
         @Override
-        public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+        public void onOutputFormatChanged(Codec codec, MediaFormat format) {
             Log.d(TAG, "Output format changed: " + format);
             
             if (mWriteFile && mMuxerWrapper != null && mVideoTrack == -1) {
@@ -555,6 +567,11 @@ public class AsyncBufferEncoder extends Encoder {
         }
     }
 
+    @Override
+    protected void setParameters(Bundle bundle) {
+        mEncoderCodec.setParameters(bundle);
+    }
+
     @Override
     public void writeToBuffer(@NonNull MediaCodec codec, int index, boolean encoder) {
         // Not used - we handle input via InputFeederThread
@@ -13,9 +13,12 @@ import android.util.Size;
 import androidx.annotation.NonNull;
 
 import com.facebook.encapp.proto.Test;
-import com.facebook.encapp.utils.ClockTimes;
+import com.facebook.encapp.utils.Codec;
+import com.facebook.encapp.utils.CodecCache;
 import com.facebook.encapp.utils.Demuxer;
 import com.facebook.encapp.utils.FrameInfo;
+import com.facebook.encapp.utils.FramePacer;
+import com.facebook.encapp.utils.MediaCodecAdapter;
 import com.facebook.encapp.utils.OutputMultiplier;
 import com.facebook.encapp.utils.SizeUtils;
 import com.facebook.encapp.utils.Statistics;
@@ -35,6 +38,7 @@ class BufferDecoder extends Encoder {
     MediaExtractor mExtractor;
     Demuxer mDemuxer;
     MediaCodec mDecoder;
+    private Codec mDecoderCodec;
     // Flag to dump decoded YUV
     boolean mDecodeDump = false;
     boolean mUseInternalDemux = false;
@@ -44,6 +48,14 @@ class BufferDecoder extends Encoder {
         mStats = new Statistics("decoder", mTest);
     }
 
+    /**
+     * Decodes on codec instead of one from the CodecCache, the caller releases it.
+     */
+    public BufferDecoder(Test test, Codec codec) {
+        this(test);
+        mDecoderCodec = codec;
+    }
+
     public String start(OutputMultiplier multiplier) {
         return start();
     }
@@ -141,37 +153,26 @@ class BufferDecoder extends Encoder {
                 return "no input format";
             }
 
-            Log.d(TAG, "Create decoder)");
-            if (mTest.getDecoderConfigure().hasCodec()) {
-                Log.d(TAG, "Create decoder by name: " + mTest.getDecoderConfigure().getCodec());
-                mStats.pushTimestamp("decoder.create");
-                mDecoder = MediaCodec.createByCodecName(mTest.getDecoderConfigure().getCodec());
+            if (mDecoderCodec == null) {
+                Log.d(TAG, "Create decoder)");
                 mStats.pushTimestamp("decoder.create");
-            } else {
-                Log.d(TAG, "Create decoder by mime: " + inputFormat.getString(MediaFormat.KEY_MIME));
+                mDecoder = CodecCache.getCache().getDecoder(mTest, inputFormat, false);
+                mDecoderCodec = new MediaCodecAdapter(mDecoder);
                 mStats.pushTimestamp("decoder.create");
-                mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
-                mStats.pushTimestamp("decoder.create");
-            }
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                mStats.setDecoderIsHardwareAccelerated(mDecoder.getCodecInfo().isHardwareAccelerated());
             }
+            mStats.setDecoderIsHardwareAccelerated(mDecoderCodec.isHardwareAccelerated());
             Log.d(TAG, "MediaFormat (test)");
             logMediaFormat(inputFormat);
 
             TestDefinitionHelper.setDecoderConfigureParams(mTest, inputFormat);
-            Log.d(TAG, "Configure: " + mDecoder.getName());
+            Log.d(TAG, "Configure: " + mDecoderCodec.getName());
             mStats.pushTimestamp("decoder.configure");
-            mDecoder.configure(inputFormat, null, null, 0);
+            mDecoderCodec.configure(inputFormat, false);
             mStats.pushTimestamp("decoder.configure");
             Log.d(TAG, "MediaFormat (post-test)");
-            logMediaFormat(mDecoder.getInputFormat());
-            mStats.setDecoderMediaFormat(mDecoder.getInputFormat());
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                mStats.setDecoder(mDecoder.getCodecInfo().getCanonicalName());
-            } else {
-                mStats.setDecoder(mDecoder.getCodecInfo().getName());
-            }
+            logMediaFormat(mDecoderCodec.getInputFormat());
+            mStats.setDecoderMediaFormat(mDecoderCodec.getInputFormat());
+            mStats.setDecoder(mDecoderCodec.getCanonicalName());
         } catch (IOException iox) {
             mExtractor.release();
             Log.e(TAG, "Failed to create decoder: " + iox.getMessage());
@@ -184,7 +185,7 @@ class BufferDecoder extends Encoder {
         try {
             Log.d(TAG, "Start decoder");
             mStats.pushTimestamp("decoder.start");
-            mDecoder.start();
+            mDecoderCodec.start();
             mStats.pushTimestamp("decoder.start");
         } catch (Exception ex) {
             Log.e(TAG, "Start failed: " + ex.getMessage());
@@ -208,16 +209,7 @@ class BufferDecoder extends Encoder {
         }
         mKeepInterval = mReferenceFrameRate / mFrameRate;
 
-        //mInitDone = true;
-        synchronized (this) {
-            Log.d(TAG, "Wait for synchronized start");
-            try {
-                mInitDone = true;
-                wait(WAIT_TIME_MS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        waitForSynchronizedStart();
         mFrameTimeUsec = calculateFrameTimingUsec(mFrameRate);
         mStats.start();
         try {
@@ -234,10 +226,12 @@ class BufferDecoder extends Encoder {
                 mCodec.stop();
                 mCodec.release();
             }
-            if (mDecoder != null) {
-                mDecoder.flush();
-                mDecoder.stop();
-                mDecoder.release();
+            if (mDecoderCodec != null) {
+                mDecoderCodec.flush();
+                mDecoderCodec.stop();
+                if (mDecoder != null) {
+                    CodecCache.getCache().release(mDecoder);
+                }
             }
         } catch (IllegalStateException iex) {
             Log.e(TAG, "Failed to shut down:" + iex.getLocalizedMessage());
@@ -260,14 +254,7 @@ class BufferDecoder extends Encoder {
     }
 
     protected boolean timeForNextFrame(double frameTimeUsec) {
-        long now = ClockTimes.currentTimeMs();
-        long sleepTimeMs = (long)(frameTimeUsec/1000 - (now - mLastTimeMs)); //To ms
-        boolean timeForNext = false;
-        if (sleepTimeMs <= 0) {
-            timeForNext = true;
-        }
-        mLastTimeMs = ClockTimes.currentTimeMs();
-        return timeForNext;
+        return mFramePacer.isFrameDue((long) (frameTimeUsec * 1000));
     }
 
     void decodeFrames(int trackIndex) throws IOException {
@@ -287,9 +274,9 @@ class BufferDecoder extends Encoder {
         boolean outputDone = false;
         boolean inputDone = false;
         int currentLoop = 1;
-        MediaFormat currentOutputFormat = mDecoder.getOutputFormat();
+        MediaFormat currentOutputFormat = mDecoderCodec.getOutputFormat();
         Dictionary<String, Object> latestFrameChanges = null;
-        mLastTimeMs = ClockTimes.currentTimeMs();
+        mFramePacer = new FramePacer(mStats);
         while (!outputDone) {
             int index;
             long presentationTimeUs = 0L;
@@ -304,9 +291,9 @@ class BufferDecoder extends Encoder {
             if (!inputDone) {
                 // Sleep before data is pushed
                 if (!mRealtime || (mRealtime && timeForNextFrame(mFrameTimeUsec))) {
-                    index = mDecoder.dequeueInputBuffer(VIDEO_CODEC_WAIT_TIME_US);
+                    index = mDecoderCodec.dequeueInputBuffer(VIDEO_CODEC_WAIT_TIME_US);
                     if (index >= 0) {
-                        ByteBuffer inputBuffer = mDecoder.getInputBuffer(index);
+                        ByteBuffer inputBuffer = mDecoderCodec.getInputBuffer(index);
                         int chunkSize = -1;
 
                         if (mUseInternalDemux) {
@@ -341,7 +328,7 @@ class BufferDecoder extends Encoder {
 
                                 flags += MediaCodec.BUFFER_FLAG_END_OF_STREAM;
                                 // End of stream -- send empty frame with EOS flag set.
-                                mDecoder.queueInputBuffer(index, 0, 0, 0L,
+                                mDecoderCodec.queueInputBuffer(index, 0, 0, 0L,
                                         flags);
                                 inputDone = true;
                             }
@@ -363,7 +350,7 @@ class BufferDecoder extends Encoder {
                             mCurrentTimeSec = presentationTimeUs / 1000000.0;
                             mStats.startDecodingFrame(presentationTimeUs, chunkSize, flags);
 
-                            mDecoder.queueInputBuffer(index, 0, chunkSize,
+                            mDecoderCodec.queueInputBuffer(index, 0, chunkSize,
                                     presentationTimeUs, flags /*flags*/);
 
                             mInFramesCount++;
@@ -379,18 +366,18 @@ class BufferDecoder extends Encoder {
             }
 
             if (!outputDone) {
-                index = mDecoder.dequeueOutputBuffer(info, (long) mFrameTimeUsec);
+                index = mDecoderCodec.dequeueOutputBuffer(info, (long) mFrameTimeUsec);
                 byte[] outData = new byte[info.size];
                 if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
                     // no output available yet
                 } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
                     if (Build.VERSION.SDK_INT >= 29) {
-                        MediaFormat oformat = mDecoder.getOutputFormat();
+                        MediaFormat oformat = mDecoderCodec.getOutputFormat();
                         latestFrameChanges = mediaFormatComparison(currentOutputFormat, oformat);
                         currentOutputFormat = oformat;
                     }
                 } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    MediaFormat newFormat = mDecoder.getOutputFormat();
+                    MediaFormat newFormat = mDecoderCodec.getOutputFormat();
                 } else if(index >= 0) {
                     FrameInfo frameInfo = mStats.stopDecodingFrame(info.presentationTimeUs);
                     if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
@@ -398,7 +385,7 @@ class BufferDecoder extends Encoder {
                         Log.d(TAG, "Output EOS");
                     }
 
-                    ByteBuffer outputBuf = mDecoder.getOutputBuffer(index);
+                    ByteBuffer outputBuf = mDecoderCodec.getOutputBuffer(index);
                     if (outputBuf != null) {
                         int limit = outputBuf.limit();
                         if(limit != 0) {
@@ -416,7 +403,7 @@ class BufferDecoder extends Encoder {
                         }
                     }
                     try {
-                        mDecoder.releaseOutputBuffer(index, 0);
+                        mDecoderCodec.releaseOutputBuffer(index, false);
                     } catch (IllegalStateException isx) {
                         Log.e(TAG, "Illegal state exception when trying to release output buffers");
                     }
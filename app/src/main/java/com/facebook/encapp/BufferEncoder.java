@@ -8,6 +8,7 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaFormat;
 import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 import android.util.Size;
 
@@ -15,13 +16,18 @@ import androidx.annotation.NonNull;
 
 import com.facebook.encapp.proto.PixFmt;
 import com.facebook.encapp.proto.Test;
+import com.facebook.encapp.utils.ClockTimes;
+import com.facebook.encapp.utils.Codec;
+import com.facebook.encapp.utils.CodecCache;
 import com.facebook.encapp.utils.FakeInputReader;
 import com.facebook.encapp.utils.FileReader;
 import com.facebook.encapp.utils.FrameInfo;
+import com.facebook.encapp.utils.MediaCodecAdapter;
 import com.facebook.encapp.utils.MediaCodecInfoHelper;
 import com.facebook.encapp.utils.SizeUtils;
 import com.facebook.encapp.utils.Statistics;
 import com.facebook.encapp.utils.TestDefinitionHelper;
+import com.facebook.encapp.utils.TraceEvents;
 import com.facebook.encapp.utils.YuvSplitter;
 
 import java.io.IOException;
@@ -38,19 +44,28 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  * Created by jobl on 2018-02-27.
  */
 
-class BufferEncoder extends Encoder {
+public class BufferEncoder extends Encoder {
     private static final String TAG = "encapp.buffer_encoder";
+    private Codec mEncoderCodec;
 
     public BufferEncoder(Test test) {
         super(test);
         mStats = new Statistics("raw encoder", mTest);
     }
 
+    /**
+     * Encodes on codec instead of one from the CodecCache, the caller releases it.
+     */
+    public BufferEncoder(Test test, Codec codec) {
+        this(test);
+        mEncoderCodec = codec;
+    }
+
     public String start() {
         Log.d(TAG, "** Raw buffer encoding - " + mTest.getCommon().getDescription() + " **");
         mTest = TestDefinitionHelper.updateBasicSettings(mTest);
         if (mTest.hasRuntime())
-            mRuntimeParams = mTest.getRuntime();
+            setRuntimeParams(mTest.getRuntime());
         if (mTest.getInput().hasRealtime())
             mRealtime = mTest.getInput().getRealtime();
 
@@ -133,10 +148,13 @@ class BufferEncoder extends Encoder {
                 }
                 Log.d(TAG, "codec: " + mTest.getConfigure().getCodec() + " mime: " + mTest.getConfigure().getMime());
             }
-            Log.d(TAG, "Create codec by name: " + mTest.getConfigure().getCodec());
-            mStats.pushTimestamp("encoder.create");
-            mCodec = MediaCodec.createByCodecName(mTest.getConfigure().getCodec());
-            mStats.pushTimestamp("encoder.create");
+            if (mEncoderCodec == null) {
+                Log.d(TAG, "Create codec by name: " + mTest.getConfigure().getCodec());
+                mStats.pushTimestamp("encoder.create");
+                mCodec = CodecCache.getCache().getEncoder(mTest, false);
+                mEncoderCodec = new MediaCodecAdapter(mCodec);
+                mStats.pushTimestamp("encoder.create");
+            }
 
             mediaFormat = TestDefinitionHelper.buildMediaFormat(mTest);
             Log.d(TAG, "MediaFormat (mTest)");
@@ -218,22 +236,14 @@ class BufferEncoder extends Encoder {
             }
 
             Log.d(TAG, "useImage (for input buffers): " + useImage + ", colorFormat=" + colorFormat);
-            Log.d(TAG, "Configure: " + mCodec.getName());
+            Log.d(TAG, "Configure: " + mEncoderCodec.getName());
             mStats.pushTimestamp("encoder.configure");
-            mCodec.configure(
-                    mediaFormat,
-                    null /* surface */,
-                    null /* crypto */,
-                    MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mEncoderCodec.configure(mediaFormat, true);
             mStats.pushTimestamp("encoder.configure");
             Log.d(TAG, "MediaFormat (post-mTest)");
-            logMediaFormat(mCodec.getInputFormat());
-            mStats.setEncoderMediaFormat(mCodec.getInputFormat());
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                mStats.setCodec(mCodec.getCanonicalName());
-            } else {
-                mStats.setCodec(mCodec.getName());
-            }
+            logMediaFormat(mEncoderCodec.getInputFormat());
+            mStats.setEncoderMediaFormat(mEncoderCodec.getInputFormat());
+            mStats.setCodec(mEncoderCodec.getCanonicalName());
         } catch (IOException iox) {
             Log.e(TAG, "Failed to create codec: " + iox.getMessage());
             return "Failed to create codec";
@@ -245,7 +255,7 @@ class BufferEncoder extends Encoder {
         try {
             Log.d(TAG, "Start encoder");
             mStats.pushTimestamp("encoder.start");
-            mCodec.start();
+            mEncoderCodec.start();
             mStats.pushTimestamp("encoder.start");
         } catch (Exception ex) {
             Log.e(TAG, "Start failed: " + ex.getMessage());
@@ -258,13 +268,13 @@ class BufferEncoder extends Encoder {
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
 
         Log.d(TAG, "Create muxer");
-        MediaFormat outputFormat = mCodec.getOutputFormat();
+        MediaFormat outputFormat = mEncoderCodec.getOutputFormat();
         // Log format
         Log.d(TAG, "Actual check of some formats after first mediaformat update.");
         Log.d(TAG, MediaCodecInfoHelper.mediaFormatToString(outputFormat));
-        mMuxerWrapper = createMuxerWrapper(mCodec, outputFormat);
+        mMuxerWrapper = createMuxerWrapper(mEncoderCodec, outputFormat);
         // This is needed for VP codecs
-        boolean isVP = mCodec.getCodecInfo().getName().toLowerCase(Locale.US).contains(".vp");
+        boolean isVP = mEncoderCodec.getName().toLowerCase(Locale.US).contains(".vp");
         if (isVP) {
             mVideoTrack = mMuxerWrapper.addTrack(outputFormat);
             mMuxerWrapper.start();
@@ -295,18 +305,10 @@ class BufferEncoder extends Encoder {
         int current_loop = 1;
         boolean input_done = false;
         boolean output_done = false;
-        synchronized (this) {
-            Log.d(TAG, "Wait for synchronized start");
-            try {
-                mInitDone = true;
-                wait(WAIT_TIME_MS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        waitForSynchronizedStart();
         mStats.start();
         int failures = 0;
-        MediaFormat currentOutputFormat = mCodec.getOutputFormat();
+        MediaFormat currentOutputFormat = mEncoderCodec.getOutputFormat();
         Dictionary<String, Object> latestFrameChanges = null;
         while (!input_done || !output_done) {
             int index;
@@ -319,7 +321,7 @@ class BufferEncoder extends Encoder {
             // 1. process the encoder input
             try {
                 long timeoutUs = VIDEO_CODEC_WAIT_TIME_US;
-                index = mCodec.dequeueInputBuffer(timeoutUs);
+                index = mEncoderCodec.dequeueInputBuffer(timeoutUs);
                 int flags = 0;
 
                 if (doneReading(mTest, mYuvReader, mInFramesCount, mCurrentTimeSec, false)) {
@@ -330,14 +332,14 @@ class BufferEncoder extends Encoder {
                     failures = 0;
                     int size = -1;
                     // get the ByteBuffer where we will write the image to encode
-                    ByteBuffer byteBuffer = mCodec.getInputBuffer(index);
+                    ByteBuffer byteBuffer = mEncoderCodec.getInputBuffer(index);
                     Log.d(TAG, "Set runtime");
                     setRuntimeParameters(mInFramesCount);
                     while (size < 0 && !input_done) {
                         try {
                             size = queueInputBufferEncoder(
                                     mYuvReader,
-                                    mCodec,
+                                    mEncoderCodec,
                                     byteBuffer,
                                     index,
                                     mInFramesCount,
@@ -362,7 +364,7 @@ class BufferEncoder extends Encoder {
                                 flags += MediaCodec.BUFFER_FLAG_END_OF_STREAM;
                                 size = queueInputBufferEncoder(
                                      mYuvReader,
-                                     mCodec,
+                                     mEncoderCodec,
                                      byteBuffer,
                                      index,
                                      mInFramesCount,
@@ -404,10 +406,10 @@ class BufferEncoder extends Encoder {
             // 2. process the encoder output
             while (!output_done) {
                 try {
-                    int outIndex = mCodec.dequeueOutputBuffer(info, VIDEO_CODEC_WAIT_TIME_US);
+                    int outIndex = mEncoderCodec.dequeueOutputBuffer(info, VIDEO_CODEC_WAIT_TIME_US);
                     if (outIndex >= 0) {
                         if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                            MediaFormat oformat = mCodec.getOutputFormat();
+                            MediaFormat oformat = mEncoderCodec.getOutputFormat();
                             Log.d(TAG, "Output format from codec config: " + oformat);
 
                             // Only start muxer if not already started
@@ -419,13 +421,14 @@ class BufferEncoder extends Encoder {
                             } else {
                                 Log.d(TAG, "Muxer already started, skipping codec config initialization");
                             }
-                            mCodec.releaseOutputBuffer(outIndex, false);
+                            mEncoderCodec.releaseOutputBuffer(outIndex, false);
                         } else if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                             Log.d(TAG, "BUFFER_FLAG_END_OF_STREAM");
                             output_done = true;
-                            mCodec.releaseOutputBuffer(outIndex, false);
+                            mEncoderCodec.releaseOutputBuffer(outIndex, false);
                         } else {
                             // Regular frame
+                            TraceEvents.instant(TraceEvents.CODEC_OUT, info.presentationTimeUs);
                             FrameInfo frameInfo = mStats.stopEncodingFrame(info.presentationTimeUs, info.size,
                                     (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
                             ++mOutFramesCount;
@@ -433,10 +436,11 @@ class BufferEncoder extends Encoder {
                             latestFrameChanges = null;
 
                             if (mMuxerWrapper != null && mVideoTrack != -1) {
-                                ByteBuffer data = mCodec.getOutputBuffer(outIndex);
+                                ByteBuffer data = mEncoderCodec.getOutputBuffer(outIndex);
                                 mMuxerWrapper.writeSampleData(mVideoTrack, data, info);
+                                frameInfo.setStageTime(FrameInfo.STAGE_MUXED, ClockTimes.currentTimeNs());
                             }
-                            mCodec.releaseOutputBuffer(outIndex, false);
+                            mEncoderCodec.releaseOutputBuffer(outIndex, false);
                         }
                     } else if (outIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
                         // No output available yet - go back to input processing
@@ -446,7 +450,7 @@ class BufferEncoder extends Encoder {
                         }
                         break; // Exit output loop, go back to input processing
                     } else if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                        MediaFormat oformat = mCodec.getOutputFormat();
+                        MediaFormat oformat = mEncoderCodec.getOutputFormat();
                         Log.d(TAG, "Output format: " + oformat);
 
                         // Start muxer if not already started
@@ -481,9 +485,11 @@ class BufferEncoder extends Encoder {
         mStats.stop();
 
         Log.d(TAG, "Close muxer and streams");
-        if (mCodec != null) {
-            mCodec.stop();
-            mCodec.release();
+        if (mEncoderCodec != null) {
+            mEncoderCodec.stop();
+            if (mCodec != null) {
+                CodecCache.getCache().release(mCodec);
+            }
         }
         if (mMuxerWrapper != null) {
             try {
@@ -511,15 +517,7 @@ class BufferEncoder extends Encoder {
         int frameSize = (int) (sourceResolution.getWidth() * sourceResolution.getHeight() * 1.5);
         byte[] frameBuffer = new byte[frameSize];
 
-        synchronized (this) {
-            Log.d(TAG, "Wait for synchronized start (tiled)");
-            try {
-                mInitDone = true;
-                wait(WAIT_TIME_MS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        waitForSynchronizedStart();
         mStats.start();
 
         boolean input_done = false;
@@ -531,7 +529,7 @@ class BufferEncoder extends Encoder {
         ConcurrentLinkedQueue<YuvSplitter.Tile> pendingTiles = new ConcurrentLinkedQueue<>();
 
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        MediaFormat currentOutputFormat = mCodec.getOutputFormat();
+        MediaFormat currentOutputFormat = mEncoderCodec.getOutputFormat();
         Dictionary<String, Object> latestFrameChanges = null;
 
         while (!input_done || !output_done || !pendingTiles.isEmpty()) {
@@ -564,7 +562,7 @@ class BufferEncoder extends Encoder {
             // Process encoder input - queue tiles
             if (!pendingTiles.isEmpty() || input_done) {
                 try {
-                    int index = mCodec.dequeueInputBuffer(VIDEO_CODEC_WAIT_TIME_US);
+                    int index = mEncoderCodec.dequeueInputBuffer(VIDEO_CODEC_WAIT_TIME_US);
                     if (index >= 0) {
                         failures = 0;
 
@@ -574,7 +572,7 @@ class BufferEncoder extends Encoder {
                             tilesEncodedCount++;
                         } else if (input_done) {
                             long pts = computePresentationTimeUs(mPts, tilesEncodedCount, mRefFrameTime);
-                            mCodec.queueInputBuffer(index, 0, 0, pts, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            mEncoderCodec.queueInputBuffer(index, 0, 0, pts, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
                             Log.d(TAG, "Queued EOS after " + tilesEncodedCount + " tiles");
                             pendingTiles.clear();
                         }
@@ -592,20 +590,21 @@ class BufferEncoder extends Encoder {
 
             // Process encoder output
             try {
-                int outIndex = mCodec.dequeueOutputBuffer(info, VIDEO_CODEC_WAIT_TIME_US);
+                int outIndex = mEncoderCodec.dequeueOutputBuffer(info, VIDEO_CODEC_WAIT_TIME_US);
                 if (outIndex >= 0) {
                     if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        MediaFormat oformat = mCodec.getOutputFormat();
+                        MediaFormat oformat = mEncoderCodec.getOutputFormat();
                         if (mWriteFile && mMuxerWrapper != null && mVideoTrack == -1) {
                             mVideoTrack = mMuxerWrapper.addTrack(oformat);
                             mMuxerWrapper.start();
                         }
-                        mCodec.releaseOutputBuffer(outIndex, false);
+                        mEncoderCodec.releaseOutputBuffer(outIndex, false);
                     } else if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
                         Log.d(TAG, "BUFFER_FLAG_END_OF_STREAM");
                         output_done = true;
-                        mCodec.releaseOutputBuffer(outIndex, false);
+                        mEncoderCodec.releaseOutputBuffer(outIndex, false);
                     } else {
+                        TraceEvents.instant(TraceEvents.CODEC_OUT, info.presentationTimeUs);
                         FrameInfo frameInfo = mStats.stopEncodingFrame(info.presentationTimeUs, info.size,
                                 (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
                         ++mOutFramesCount;
@@ -613,17 +612,18 @@ class BufferEncoder extends Encoder {
                         latestFrameChanges = null;
 
                         if (mMuxerWrapper != null && mVideoTrack != -1) {
-                            ByteBuffer data = mCodec.getOutputBuffer(outIndex);
+                            ByteBuffer data = mEncoderCodec.getOutputBuffer(outIndex);
                             mMuxerWrapper.writeSampleData(mVideoTrack, data, info);
+                            frameInfo.setStageTime(FrameInfo.STAGE_MUXED, ClockTimes.currentTimeNs());
                         }
-                        mCodec.releaseOutputBuffer(outIndex, false);
+                        mEncoderCodec.releaseOutputBuffer(outIndex, false);
                     }
                 } else if (outIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
                     if (input_done && pendingTiles.isEmpty()) {
                         try { Thread.sleep(10); } catch (InterruptedException ignored) {}
                     }
                 } else if (outIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    MediaFormat oformat = mCodec.getOutputFormat();
+                    MediaFormat oformat = mEncoderCodec.getOutputFormat();
                     if (mWriteFile && mMuxerWrapper != null && mVideoTrack == -1) {
                         mVideoTrack = mMuxerWrapper.addTrack(oformat);
                         mMuxerWrapper.start();
@@ -643,9 +643,11 @@ class BufferEncoder extends Encoder {
         Log.d(TAG, String.format("Tiled encoding complete: %d frames, %d tiles, %d output",
                 mInFramesCount, tilesEncodedCount, mOutFramesCount));
 
-        if (mCodec != null) {
-            mCodec.stop();
-            mCodec.release();
+        if (mEncoderCodec != null) {
+            mEncoderCodec.stop();
+            if (mCodec != null) {
+                CodecCache.getCache().release(mCodec);
+            }
         }
         if (mMuxerWrapper != null) {
             try {
@@ -672,6 +674,11 @@ class BufferEncoder extends Encoder {
         return (read == size) ? read : -1;
     }
 
+    @Override
+    protected void setParameters(Bundle bundle) {
+        mEncoderCodec.setParameters(bundle);
+    }
+
     public void writeToBuffer(@NonNull MediaCodec codec, int index, boolean encoder) {
     }
 
@@ -689,14 +696,14 @@ class BufferEncoder extends Encoder {
         mStats.startEncodingFrame(pts, tileCount);
 
         if (useImage) {
-            Image image = mCodec.getInputImage(index);
+            Image image = mEncoderCodec.getInputImage(index);
             if (image != null) {
                 tile.fillImage(image);
             } else {
                 Log.e(TAG, "Failed to get input image for index " + index);
             }
         } else {
-            ByteBuffer byteBuffer = mCodec.getInputBuffer(index);
+            ByteBuffer byteBuffer = mEncoderCodec.getInputBuffer(index);
             if (byteBuffer != null) {
                 tile.writeToBuffer(byteBuffer, inputFmt);
             } else {
@@ -704,7 +711,7 @@ class BufferEncoder extends Encoder {
             }
         }
 
-        mCodec.queueInputBuffer(index, 0, tile.getSizeInBytes(), pts, 0);
+        mEncoderCodec.queueInputBuffer(index, 0, tile.getSizeInBytes(), pts, 0);
         mFramesAdded++;
     }
 
@@ -2,6 +2,7 @@ package com.facebook.encapp;
 
 import static com.facebook.encapp.utils.MediaCodecInfoHelper.mediaFormatComparison;
 
+import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
@@ -13,28 +14,27 @@ import android.util.Size;
 
 import androidx.annotation.NonNull;
 
-import com.facebook.encapp.proto.DataValueType;
-import com.facebook.encapp.proto.DecoderRuntime;
-import com.facebook.encapp.proto.Parameter;
 import com.facebook.encapp.proto.Test;
 import com.facebook.encapp.utils.ClockTimes;
 import com.facebook.encapp.utils.CodecCache;
 import com.facebook.encapp.utils.Demuxer;
 import com.facebook.encapp.utils.FileReader;
-import com.facebook.encapp.utils.FrameBuffer;
 import com.facebook.encapp.utils.FrameInfo;
 import com.facebook.encapp.utils.FrameswapControl;
+import com.facebook.encapp.utils.IndexQueue;
 import com.facebook.encapp.utils.MediaCodecInfoHelper;
+import com.facebook.encapp.utils.PlaneCopy;
+import com.facebook.encapp.utils.RuntimeSchedule;
 import com.facebook.encapp.utils.SizeUtils;
 import com.facebook.encapp.utils.Statistics;
 import com.facebook.encapp.utils.TestDefinitionHelper;
+import com.facebook.encapp.utils.ThreadCpuSampler;
 import com.facebook.encapp.utils.VsyncHandler;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Dictionary;
 import java.util.Locale;
-import java.util.Stack;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class BufferTranscoder extends Encoder  {
@@ -42,12 +42,12 @@ public class BufferTranscoder extends Encoder  {
 
     private final SourceReader mSourceReader;
     private final EncoderWriter mEncoderWriter;
-    private final Stack<Integer> mEncoderInputBuffers = new Stack<>();
+    private final IndexQueue mEncoderInputBuffers = new IndexQueue(MAX_OUTPUT_BUFFERS);
     MediaExtractor mExtractor;
     Demuxer mDemuxer;
     MediaCodec mDecoder;
     boolean mUseInternalDemux = false;
-    DecoderRuntime mDecoderRuntimeParams;
+    RuntimeSchedule mDecoderRuntimeSchedule;
     double mLoopTime = 0;
     int mCurrentLoop = 1;
     long mPtsOffset = 0;
@@ -66,6 +66,10 @@ public class BufferTranscoder extends Encoder  {
     int mInputHeight = -1;
     int mXStride = -1;
     int mYStride = -1; // Plane alignment
+    // Decoder output layout, updated on format changes
+    volatile int mDecoderStride = -1;
+    volatile int mDecoderSliceHeight = -1;
+    volatile int mDecoderColorFormat = -1;
 
     public BufferTranscoder(Test test) {
         super(test);
@@ -80,9 +84,9 @@ public class BufferTranscoder extends Encoder  {
         Log.d(TAG, "**** Buffer Transcode - " + mTest.getCommon().getDescription() + " ***");
 
         if (mTest.hasRuntime())
-            mRuntimeParams = mTest.getRuntime();
+            setRuntimeParams(mTest.getRuntime());
         if (mTest.hasDecoderRuntime())
-            mDecoderRuntimeParams = mTest.getDecoderRuntime();
+            mDecoderRuntimeSchedule = RuntimeSchedule.compile(mTest.getDecoderRuntime());
 
         mFrameRate = mTest.getConfigure().getFramerate();
         mWriteFile = true; // No point in being here unless we write...
@@ -174,17 +178,8 @@ public class BufferTranscoder extends Encoder  {
                 Log.e(TAG, "no input format");
                 return "no input format";
             }
-            // Allow explicit decoder only for non encoding tests (!?)
-            String description = inputFormat.getString(MediaFormat.KEY_MIME);
-            if (mTest.getDecoderConfigure().hasCodec()) {
-                description = mTest.getDecoderConfigure().getCodec();
-            }
             mStats.pushTimestamp("decoder.create");
-            // TODO: check decoder settings
-            mDecoder = CodecCache.getCache().getDecoder(description);
-            if (mDecoder == null) {
-                mDecoder = CodecCache.getCache().createDecoder(mTest, inputFormat);
-            }
+            mDecoder = CodecCache.getCache().getDecoder(mTest, inputFormat, false);
             mStats.pushTimestamp("decoder.create");
 
         } catch (IOException e) {
@@ -249,7 +244,7 @@ public class BufferTranscoder extends Encoder  {
         Log.d(TAG, "Create encoder by name: " + mTest.getConfigure().getCodec());
         try {
             mStats.pushTimestamp("encoder.create");
-            mCodec = MediaCodec.createByCodecName(mTest.getConfigure().getCodec());
+            mCodec = CodecCache.getCache().getEncoder(mTest, false);
             mStats.pushTimestamp("encoder.create");
         } catch (IOException e) {
             throw new RuntimeException(e);
@@ -270,6 +265,7 @@ public class BufferTranscoder extends Encoder  {
         String mime = inputFormat.getString(MediaFormat.KEY_MIME);
         int matchingColor = getMatchingColor(mCodec, mDecoder, defaultColor);
         inputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, matchingColor);
+        mDecoderColorFormat = matchingColor;
         Log.d(TAG, "Check input format before config decoder");
         TestDefinitionHelper.setDecoderConfigureParams(mTest, inputFormat);
         mCodec.setCallback(new EncoderCallbackHandler());
@@ -332,15 +328,7 @@ public class BufferTranscoder extends Encoder  {
         }
         mFrameTimeUsec = calculateFrameTimingUsec(mFrameRate);
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        synchronized (this) {
-            Log.d(TAG, "Wait for synchronized start");
-            try {
-                mInitDone = true;
-                wait(WAIT_TIME_MS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        waitForSynchronizedStart();
         Log.d(TAG, mTest.getCommon().getId() + " - Start source reader");
         mEncoderWriter.start();
         mSourceReader.start();
@@ -360,35 +348,9 @@ public class BufferTranscoder extends Encoder  {
 
 
     public void setDecoderRuntimeParameters(Test mTest, int frame) {
-        // go through all runtime settings and see which are due
-        if (mDecoderRuntimeParams == null) return;
-        Bundle bundle = new Bundle();
-
-        for (Parameter param : mDecoderRuntimeParams.getParameterList()) {
-            if (param.getFramenum() == frame) {
-                switch (param.getType().getNumber()) {
-                    case DataValueType.floatType_VALUE:
-                        float fval = Float.parseFloat(param.getValue());
-                        bundle.putFloat(param.getKey(), fval);
-                        break;
-                    case DataValueType.intType_VALUE:
-                        int ival = TestDefinitionHelper.magnitudeToInt(param.getValue());
-                        bundle.putInt(param.getKey(), ival);
-                        break;
-                    case DataValueType.longType_VALUE:
-                        long lval = Long.parseLong(param.getValue());
-                        bundle.putLong(param.getKey(), lval);
-                        break;
-                    case DataValueType.stringType_VALUE:
-                        bundle.putString(param.getKey(), param.getValue());
-                        break;
-                    default:
-                        ///Should not be here
-                }
-            }
-        }
-
-        if (bundle.keySet().size() > 0 && mDecoder != null) {
+        if (mDecoderRuntimeSchedule == null) return;
+        Bundle bundle = mDecoderRuntimeSchedule.getParameters(frame);
+        if (bundle != null && mDecoder != null) {
             mDecoder.setParameters(bundle);
         }
     }
@@ -425,9 +387,8 @@ public class BufferTranscoder extends Encoder  {
     public void writeToBuffer(@NonNull MediaCodec codec, int index, boolean encoder) {
         try {
             if (encoder) {
-                mEncoderInputBuffers.push(index);
-                synchronized (mEncoderInputBuffers) {
-                    mEncoderInputBuffers.notifyAll();
+                if (!mEncoderInputBuffers.offer(index)) {
+                    Log.e(TAG, "Encoder input queue full");
                 }
             } else {
                 mSourceReader.addBuffer(index);
@@ -458,6 +419,7 @@ public class BufferTranscoder extends Encoder  {
                 if (frameInfo != null) {
                     frameInfo.addInfo(mediaFormatInfo);
                 }
+                updateDecoderLayout(newFormat);
                 currentMediaFormat = newFormat;
                 mInFramesCount++;
                 long diffUsec = ClockTimes.currentTimeUs() - mFirstFrameSystemTimeUsec;
@@ -482,15 +444,9 @@ public class BufferTranscoder extends Encoder  {
                     mDropNext = false;
                     codec.releaseOutputBuffer(index, false);
                 } else {
-                    mStats.startEncodingFrame(ptsUsec, mInFramesCount);
+                    FrameInfo frame = mStats.startEncodingFrame(ptsUsec, mInFramesCount);
                     mFramesAdded++;
-
-                    ByteBuffer outputBuf = mDecoder.getOutputBuffer(index);
-                    if (index >= 0 && outputBuf != null) {
-
-                        // add buffer to encoderwriter
-                        mEncoderWriter.addBuffer(new FrameBuffer(mDecoder, index, info));
-                    }
+                    mEncoderWriter.addBuffer(index, info, frame);
                 }
             } else {
                 codec.releaseOutputBuffer(index, false);
@@ -504,6 +460,7 @@ public class BufferTranscoder extends Encoder  {
 
         @Override
         public void run() {
+            ThreadCpuSampler.registerThread("source_reader", mTest.getCommon().getId());
             Dictionary<String, Object> latestFrameChanges;
             while (!mDone) {
                 while (mDecoderBuffers.size() > 0 && !mDone) {
@@ -615,79 +572,156 @@ public class BufferTranscoder extends Encoder  {
     }
 
 
+    private void updateDecoderLayout(MediaFormat format) {
+        mDecoderStride = format.containsKey(MediaFormat.KEY_STRIDE) ?
+                format.getInteger(MediaFormat.KEY_STRIDE) : mWidth;
+        mDecoderSliceHeight = format.containsKey(MediaFormat.KEY_SLICE_HEIGHT) ?
+                format.getInteger(MediaFormat.KEY_SLICE_HEIGHT) : mHeight;
+        if (format.containsKey(MediaFormat.KEY_COLOR_FORMAT)) {
+            mDecoderColorFormat = format.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+        }
+    }
+
+    /**
+     * Copies decoded frames to the encoder. Same layout on both sides is one bulk put, a
+     * different plane height one put per plane, anything else, or a color format with an
+     * unknown chroma layout, goes through the Image planes.
+     * Buffer indices are handed over in lock free queues.
+     */
     private class EncoderWriter extends Thread {
-        ConcurrentLinkedQueue<FrameBuffer> mDecoderBuffers = new ConcurrentLinkedQueue<>();
-        boolean mDone = false;
+        private final IndexQueue mDecoderBuffers = new IndexQueue(MAX_OUTPUT_BUFFERS);
+        // By decoder output index, set before the index is queued
+        private final MediaCodec.BufferInfo[] mInfos = new MediaCodec.BufferInfo[MAX_OUTPUT_BUFFERS];
+        private final FrameInfo[] mFrames = new FrameInfo[MAX_OUTPUT_BUFFERS];
+        volatile boolean mDone = false;
+        int mEncoderStride = -1;
+        int mEncoderSliceHeight = -1;
+        int mBulkCopies = 0;
+        int mPlaneCopies = 0;
+        int mImageCopies = 0;
 
         @Override
         public void run() {
+            ThreadCpuSampler.registerThread("encoder_writer", mTest.getCommon().getId());
+            MediaFormat encoderFormat = mCodec.getInputFormat();
+            mEncoderStride = encoderFormat.containsKey(MediaFormat.KEY_STRIDE) ?
+                    encoderFormat.getInteger(MediaFormat.KEY_STRIDE) : mXStride;
+            mEncoderSliceHeight = encoderFormat.containsKey(MediaFormat.KEY_SLICE_HEIGHT) ?
+                    encoderFormat.getInteger(MediaFormat.KEY_SLICE_HEIGHT) : mYStride;
             while (!mDone) {
-                if (mDecoderBuffers.size() == 0) {
-                    synchronized (mDecoderBuffers) {
-                        try {
-                            mDecoderBuffers.wait();
-                        } catch (InterruptedException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
+                int decIndex = mDecoderBuffers.poll(WAIT_TIME_SHORT_MS * 1000000L);
+                if (decIndex < 0) {
+                    continue;
                 }
-                FrameBuffer frameBuffer = mDecoderBuffers.remove();
-                Integer encBufferIndex = -1;
-                synchronized (mEncoderInputBuffers) {
-                    if (mEncoderInputBuffers.size() == 0) {
-                        try {
-                            mEncoderInputBuffers.wait();
-                        } catch (InterruptedException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                    if (mEncoderInputBuffers.size() > 0) {
-                        encBufferIndex = mEncoderInputBuffers.pop();
+                int encIndex = -1;
+                while (encIndex < 0 && !mDone) {
+                    encIndex = mEncoderInputBuffers.poll(WAIT_TIME_SHORT_MS * 1000000L);
+                }
+                try {
+                    if (encIndex >= 0) {
+                        transfer(decIndex, encIndex);
                     } else {
-                        encBufferIndex = -1;
+                        mDecoder.releaseOutputBuffer(decIndex, false);
                     }
+                } catch (IllegalStateException ise) {
+                    // Stopped while copying
+                    Log.e(TAG, "Failed to transfer frame: " + ise.getMessage());
+                }
+            }
+            Log.d(TAG, mTest.getCommon().getId() + " - copies, bulk: " + mBulkCopies +
+                    " per plane: " + mPlaneCopies + " image: " + mImageCopies);
+        }
 
-                    if (encBufferIndex >= 0) {
-                        ByteBuffer inputBuffer = mCodec.getInputBuffer(encBufferIndex);
+        private void transfer(int decIndex, int encIndex) {
+            MediaCodec.BufferInfo info = mInfos[decIndex];
+            FrameInfo frame = mFrames[decIndex];
+            long copyStartNs = ClockTimes.currentTimeNs();
+            int size = -1;
+            int decStride = (mDecoderStride > 0) ? mDecoderStride : mWidth;
+            int decSliceHeight = (mDecoderSliceHeight > 0) ? mDecoderSliceHeight : mHeight;
+            if (decStride == mEncoderStride) {
+                ByteBuffer decoderBuffer = mDecoder.getOutputBuffer(decIndex);
+                ByteBuffer inputBuffer = mCodec.getInputBuffer(encIndex);
+                inputBuffer.clear();
+                if (decSliceHeight == mEncoderSliceHeight && decoderBuffer.remaining() <= inputBuffer.remaining()) {
+                    inputBuffer.put(decoderBuffer);
+                    size = inputBuffer.position();
+                    mBulkCopies++;
+                } else {
+                    size = PlaneCopy.copyPlanes(decoderBuffer, inputBuffer, mDecoderColorFormat,
+                            decStride, mHeight, decSliceHeight, mEncoderSliceHeight);
+                    if (size >= 0) {
+                        mPlaneCopies++;
+                    }
+                }
+            }
+            if (size < 0) {
+                size = copyImage(decIndex, encIndex);
+                mImageCopies++;
+            }
+            long copyDoneNs = ClockTimes.currentTimeNs();
+            mDecoder.releaseOutputBuffer(decIndex, false);
+            mStats.recordCopyTime(copyDoneNs - copyStartNs);
+            mCodec.queueInputBuffer(encIndex, 0 /* offset */, size, info.presentationTimeUs, info.flags);
+            if (frame != null) {
+                frame.setStageTime(FrameInfo.STAGE_READ_DONE, copyDoneNs);
+                frame.setStageTime(FrameInfo.STAGE_QUEUED, ClockTimes.currentTimeNs());
+            }
+        }
 
-                        // We proably cannot change the size if it is wrong (needs to be done when configuring the encoder
-                        ByteBuffer decoderBuffer = mDecoder.getOutputBuffer(frameBuffer.mBufferId);
-                        if ( decoderBuffer.limit() == inputBuffer.limit()) {
-                            inputBuffer.put(decoderBuffer);
-                        } else {
-                            // We need to align the planes if Qualcomm, worst case copy line by line
-                            //inputBuffer.put(decoderBuffer);
-                            if (mXStride != mWidth) {
-                                // Copy per line
-                                Log.d(TAG, "X stride not implemented (yet)");
-                            }
-
-                            // If the buffer sizes are the same stringin is taken car of elsewhere
-                            if (mYStride != mHeight) {
-                                // Align luma plane
-                                int lumaAlignedSize = mXStride * mYStride;
-                                int lumaSize = mWidth * mHeight;
-                                int limit = decoderBuffer.limit();
-                                decoderBuffer.limit(lumaSize);
-                                inputBuffer.put(decoderBuffer);
-                                decoderBuffer.position(lumaSize);
-                                decoderBuffer.limit(limit);
-                                inputBuffer.position(lumaAlignedSize);
-                                inputBuffer.put(decoderBuffer);
-                            }
-                        }
-                        mCodec.queueInputBuffer(encBufferIndex, 0 /* offset */, decoderBuffer.limit(), frameBuffer.getTimestampUs() /* timeUs */, frameBuffer.mInfo.flags);
+        private int copyImage(int decIndex, int encIndex) {
+            Image src = mDecoder.getOutputImage(decIndex);
+            Image dst = mCodec.getInputImage(encIndex);
+            if (src == null || dst == null) {
+                Log.e(TAG, "No image for the decoded frame");
+                return 0;
+            }
+            Image.Plane[] srcPlanes = src.getPlanes();
+            Image.Plane[] dstPlanes = dst.getPlanes();
+            for (int plane = 0; plane < 3; plane++) {
+                int width = (plane == 0) ? mWidth : mWidth / 2;
+                int height = (plane == 0) ? mHeight : mHeight / 2;
+                copyPlane(srcPlanes[plane], dstPlanes[plane], width, height);
+            }
+            return mWidth * mHeight * 3 / 2;
+        }
 
-                        mDecoder.releaseOutputBuffer(frameBuffer.mBufferId, false);
+        private void copyPlane(Image.Plane src, Image.Plane dst, int width, int height) {
+            ByteBuffer srcBuffer = src.getBuffer();
+            ByteBuffer dstBuffer = dst.getBuffer();
+            int pixelStride = src.getPixelStride();
+            if (pixelStride == dst.getPixelStride()) {
+                // A row at a time, interleaved chroma is copied with the other plane's samples
+                int rowLength = (width - 1) * pixelStride + 1;
+                for (int row = 0; row < height; row++) {
+                    int srcPos = row * src.getRowStride();
+                    srcBuffer.limit(srcPos + rowLength);
+                    srcBuffer.position(srcPos);
+                    dstBuffer.position(row * dst.getRowStride());
+                    dstBuffer.put(srcBuffer);
+                }
+            } else {
+                for (int row = 0; row < height; row++) {
+                    int srcPos = row * src.getRowStride();
+                    int dstPos = row * dst.getRowStride();
+                    for (int col = 0; col < width; col++) {
+                        dstBuffer.put(dstPos + col * dst.getPixelStride(), srcBuffer.get(srcPos + col * pixelStride));
                     }
                 }
             }
         }
 
-        public void addBuffer(FrameBuffer frameBuffer) {
-            synchronized (mDecoderBuffers) {
-                mDecoderBuffers.add(frameBuffer);
-                mDecoderBuffers.notifyAll();
+        public void addBuffer(int index, MediaCodec.BufferInfo info, FrameInfo frame) {
+            if (index >= MAX_OUTPUT_BUFFERS) {
+                Log.e(TAG, "Decoder buffer index out of range: " + index);
+                mDecoder.releaseOutputBuffer(index, false);
+                return;
+            }
+            mInfos[index] = info;
+            mFrames[index] = frame;
+            if (!mDecoderBuffers.offer(index)) {
+                Log.e(TAG, "Decoder output queue full");
+                mDecoder.releaseOutputBuffer(index, false);
             }
         }
 
@@ -717,7 +751,6 @@ public class BufferTranscoder extends Encoder  {
                         mSyncLock.wait(WAIT_TIME_MS);
                         videoDiffMs = (long) (mLastPtsUs - mCurrentTimeSec * 1000000)/1000;
                     }
-                    mLastTimeMs = mVsyncTimeUs;
 
                 } catch (InterruptedException e) {
                     e.printStackTrace();
@@ -765,7 +798,7 @@ public class BufferTranscoder extends Encoder  {
                         }
                     }
                     mCodec.stop();
-                    mCodec.release();
+                    CodecCache.getCache().release(mCodec);
                     mCodec = null;
                 }
                 if (mDecoder != null) {
@@ -780,7 +813,7 @@ public class BufferTranscoder extends Encoder  {
                         }
                     }
                     mDecoder.stop();
-                    mDecoder.release();
+                    CodecCache.getCache().release(mDecoder);
                     mDecoder = null;
                 }
             } catch (IllegalStateException iex) {
@@ -15,7 +15,7 @@ import com.facebook.encapp.proto.Parameter;
 import com.facebook.encapp.proto.PixFmt;
 import com.facebook.encapp.proto.Runtime;
 import com.facebook.encapp.proto.Test;
-import com.facebook.encapp.utils.FileReader;
+import com.facebook.encapp.utils.Codec;
 import com.facebook.encapp.utils.FrameInfo;
 import com.facebook.encapp.utils.MediaCodecInfoHelper;
 import com.facebook.encapp.utils.SizeUtils;
@@ -41,6 +41,15 @@ import java.util.Vector;
 
 class CustomEncoder extends Encoder {
     protected static final String TAG = "encapp.buffer_x264_encoder";
+    private static final int RESULT_PTS = 0;
+    private static final int RESULT_DTS = 1;
+    private static final int RESULT_KEY_FRAME = 2;
+
+    FileChannel mInputChannel;
+    // Libraries built before the direct buffer calls only have the array ones
+    boolean mDirectBuffers = true;
+    byte[] mInputArray;
+    byte[] mOutputArray;
 
     public static native int initEncoder(Parameter[] parameters, int width, int height, int colorFormat, int bitDepth);
     public static native byte[] getHeader();
@@ -48,6 +57,9 @@ class CustomEncoder extends Encoder {
     public static native int encode(byte[] input, byte[] output, FrameInfo info);
     // Flush buffered frames. Call until returns 0.
     public static native int flushEncoder(byte[] output, FrameInfo info);
+    // Same as above on direct buffers, result gets the output pts, dts and key frame flag
+    public static native int encode(ByteBuffer input, ByteBuffer output, long pts, long[] result);
+    public static native int flushEncoder(ByteBuffer output, long[] result);
     // Get number of frames currently buffered in encoder
     public static native int getDelayedFrames();
 
@@ -94,18 +106,54 @@ class CustomEncoder extends Encoder {
     }
 
 
-    public static byte[] readYUVFromFile(String filePath, int size, int framePosition) throws IOException {
-        byte[] inputBuffer = new byte[size];
-        try (FileInputStream fis = new FileInputStream(filePath);
-             FileChannel channel = fis.getChannel()) {
-            channel.position(framePosition);
-            ByteBuffer buffer = ByteBuffer.wrap(inputBuffer);
-            int bytesRead = channel.read(buffer);
-            if (bytesRead < size) {
-                return null;
+    /**
+     * Reads the next frame into buffer, returns false at the end of the file.
+     */
+    boolean readFrame(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (mInputChannel.read(buffer) < 0) {
+                return false;
+            }
+        }
+        buffer.flip();
+        return true;
+    }
+
+    /**
+     * Encodes one frame (or flushes if input is null) into output and returns the size,
+     * result gets the output pts, dts and key frame flag.
+     */
+    int encodeFrame(ByteBuffer input, ByteBuffer output, long pts, long[] result) {
+        if (mDirectBuffers) {
+            try {
+                return (input != null) ? encode(input, output, pts, result) : flushEncoder(output, result);
+            } catch (UnsatisfiedLinkError e) {
+                Log.w(TAG, "No direct buffer encode in the library, copying frames: " + e.getMessage());
+                mDirectBuffers = false;
+                mInputArray = new byte[input != null ? input.capacity() : 0];
+                mOutputArray = new byte[output.capacity()];
+            }
+        }
+        int size;
+        FrameInfo info = new FrameInfo(pts);
+        if (input != null) {
+            if (mInputArray.length < input.remaining()) {
+                mInputArray = new byte[input.remaining()];
             }
+            input.get(mInputArray, 0, input.remaining());
+            size = encode(mInputArray, mOutputArray, info);
+        } else {
+            size = flushEncoder(mOutputArray, info);
+        }
+        if (size > 0) {
+            output.clear();
+            output.put(mOutputArray, 0, size);
         }
-        return inputBuffer;
+        result[RESULT_PTS] = info.getPts();
+        result[RESULT_DTS] = 0;
+        result[RESULT_KEY_FRAME] = (size > 0 && checkIfKeyFrame(mOutputArray, size)) ? 1 : 0;
+        return size;
     }
 
 
@@ -142,9 +190,9 @@ class CustomEncoder extends Encoder {
         return new byte[][]{spsBuffer, ppsBuffer};
     }
 
-    public boolean checkIfKeyFrame(byte[] bitstream) {
+    public boolean checkIfKeyFrame(byte[] bitstream, int length) {
         int nalUnitType;
-        for (int i = 0; i < bitstream.length - 4; i++) {
+        for (int i = 0; i < length - 4; i++) {
             // Check for the start code 0x00000001 or 0x000001
             if ((bitstream[i] == 0x00 && bitstream[i+1] == 0x00 && bitstream[i+2] == 0x00 && bitstream[i+3] == 0x01) ||
                     (bitstream[i] == 0x00 && bitstream[i+1] == 0x00 && bitstream[i+2] == 0x01)) {
@@ -163,7 +211,7 @@ class CustomEncoder extends Encoder {
 
     public void setRuntimeParameters(int frame) {
         // go through all runtime settings and see which are due
-        if (mRuntimeParams == null) return;
+        if (mRuntimeSchedule == null || !mRuntimeSchedule.isDue(frame)) return;
         Vector<Parameter> params = new Vector();
 
         for (Runtime.VideoBitrateParameter bitrate : mRuntimeParams.getVideoBitrateList()) {
@@ -196,7 +244,7 @@ class CustomEncoder extends Encoder {
         Log.d(TAG, "** Raw buffer encoding - " + mTest.getCommon().getDescription() + " **");
         mTest = TestDefinitionHelper.updateBasicSettings(mTest);
         if (mTest.hasRuntime())
-            mRuntimeParams = mTest.getRuntime();
+            setRuntimeParams(mTest.getRuntime());
         if (mTest.getInput().hasRealtime())
             mRealtime = mTest.getInput().getRealtime();
 
@@ -206,7 +254,6 @@ class CustomEncoder extends Encoder {
         mFramesAdded = 0;
         Size sourceResolution = SizeUtils.parseXString(mTest.getInput().getResolution());
         mRefFramesizeInBytes = (int) (sourceResolution.getWidth() * sourceResolution.getHeight() * 1.5);
-        mYuvReader = new FileReader();
         //TODO: fix looping
         int playoutframes = mTest.getInput().getPlayoutFrames();
 
@@ -232,7 +279,10 @@ class CustomEncoder extends Encoder {
         } catch (Exception ex) {
             Log.d(TAG, "Exception: " + ex);
         }
-        if (!mYuvReader.openFile(checkFilePath(mTest.getInput().getFilepath()), mTest.getInput().getPixFmt())) {
+        try {
+            mInputChannel = new FileInputStream(checkFilePath(mTest.getInput().getFilepath())).getChannel();
+        } catch (FileNotFoundException e) {
+            Log.e(TAG, "Failed to open file: " + e.getMessage());
             return "Could not open file";
         }
 
@@ -245,20 +295,11 @@ class CustomEncoder extends Encoder {
         mKeepInterval = mReferenceFrameRate / mFrameRate;
         mRefFrameTime = calculateFrameTimingUsec(mReferenceFrameRate);
 
-        synchronized (this) {
-            Log.d(TAG, "Wait for synchronized start");
-            try {
-                mInitDone = true;
-                wait(WAIT_TIME_MS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        waitForSynchronizedStart();
         mStats.start();
 
-        mMuxerWrapper = createMuxerWrapper(null, mediaFormat);
+        mMuxerWrapper = createMuxerWrapper((Codec) null, mediaFormat);
         try {
-            int currentFramePosition = 0;
             boolean input_done = false;
             boolean output_done = false;
             MediaCodec.BufferInfo bufferInfo = null;
@@ -266,7 +307,9 @@ class CustomEncoder extends Encoder {
             int videoTrackIndex = -1;
             boolean muxerStarted = false;
             int frameSize = width * height * 3 / 2;
-            byte[] outputBuffer = new byte[frameSize];
+            ByteBuffer inputBuffer = ByteBuffer.allocateDirect(frameSize);
+            ByteBuffer outputBuffer = ByteBuffer.allocateDirect(frameSize);
+            long[] result = new long[3];
             int estimatedSize = 2048; // Adjust this size as needed
             byte[] headerArray = new byte[estimatedSize];
             int outputBufferSize;
@@ -290,21 +333,14 @@ class CustomEncoder extends Encoder {
                 return "";
             }
             headerArray = getHeader();
-            FrameInfo encodeInfo = null;
             while (!input_done || !output_done) {
                 try {
-                    long timeoutUs = VIDEO_CODEC_WAIT_TIME_US;
-                    int flags = 0;
-                    String filePath = mTest.getInput().getFilepath();
-
                     if (mRealtime) {
                         sleepUntilNextFrame();
                     }
 
                     try {
-                        byte[] yuvData = readYUVFromFile(filePath, frameSize, currentFramePosition);
-
-                        if (yuvData == null) {
+                        if (!readFrame(inputBuffer)) {
                             input_done = true;
                             output_done = true;
                             continue;
@@ -312,10 +348,7 @@ class CustomEncoder extends Encoder {
 
                         long pts = computePresentationTimeUs(mPts, mFramesAdded, mRefFrameTime);
                         mStats.startEncodingFrame(pts, mFramesAdded);
-
-                        // Create a separate FrameInfo for the encode call to avoid modifying the stored one
-                        encodeInfo = new FrameInfo(pts);
-                        outputBufferSize = encode(yuvData, outputBuffer, encodeInfo);
+                        outputBufferSize = encodeFrame(inputBuffer, outputBuffer, pts, result);
 
                         if (outputBufferSize < 0) {
                             return "Encoder not started or error occurred";
@@ -323,11 +356,8 @@ class CustomEncoder extends Encoder {
                         // outputBufferSize == 0 means frame was buffered (B-frame reordering)
                         // When output is produced, use the OUTPUT PTS to find the matching input frame
                         if (outputBufferSize > 0) {
-                            // encodeInfo.getPts() now contains the OUTPUT pts (set by native code)
-                            // This matches the original input frame that produced this output
-                            mStats.stopEncodingFrame(encodeInfo.getPts(), encodeInfo.getSize(), encodeInfo.isIFrame());
+                            mStats.stopEncodingFrame(result[RESULT_PTS], outputBufferSize, result[RESULT_KEY_FRAME] != 0);
                         }
-                        currentFramePosition += frameSize;
                         mFramesAdded++;
                     } catch (IOException e) {
                         e.printStackTrace();
@@ -364,19 +394,7 @@ class CustomEncoder extends Encoder {
 
                     // Only write to muxer if we have actual output
                     if (outputBufferSize > 0 && mMuxerWrapper != null) {
-                        ByteBuffer buffer = ByteBuffer.wrap(outputBuffer);
-                        bufferInfo.offset = 0;
-                        bufferInfo.size = outputBufferSize;
-                        bufferInfo.presentationTimeUs = encodeInfo.getPts();
-
-                        boolean isKeyFrame = checkIfKeyFrame(outputBuffer);
-                        if (isKeyFrame) bufferInfo.flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
-                        else bufferInfo.flags = 0;
-
-                        buffer.position(bufferInfo.offset);
-                        buffer.limit(bufferInfo.offset + bufferInfo.size);
-
-                        mMuxerWrapper.writeSampleData(videoTrackIndex, buffer, bufferInfo);
+                        writeSample(videoTrackIndex, outputBuffer, outputBufferSize, result, bufferInfo);
                     }
                 } catch (MediaCodec.CodecException ex) {
                     Log.e(TAG, "dequeueOutputBuffer: MediaCodec.CodecException error");
@@ -390,29 +408,18 @@ class CustomEncoder extends Encoder {
             int delayedFrames = getDelayedFrames();
             Log.d(TAG, "Flushing " + delayedFrames + " delayed frames from encoder");
             while (delayedFrames > 0) {
-                FrameInfo flushInfo = new FrameInfo(0);
-                outputBufferSize = flushEncoder(outputBuffer, flushInfo);
+                outputBufferSize = encodeFrame(null, outputBuffer, 0, result);
                 if (outputBufferSize <= 0) {
                     break;  // No more frames or error
                 }
-                Log.d(TAG, "Flushed frame: pts=" + flushInfo.getPts() + ", size=" + outputBufferSize);
+                Log.d(TAG, "Flushed frame: pts=" + result[RESULT_PTS] + ", size=" + outputBufferSize);
 
                 // Stop the encoding frame using the output PTS to find the matching input frame
-                mStats.stopEncodingFrame(flushInfo.getPts(), flushInfo.getSize(), flushInfo.isIFrame());
+                mStats.stopEncodingFrame(result[RESULT_PTS], outputBufferSize, result[RESULT_KEY_FRAME] != 0);
 
                 // Write flushed frame to muxer
                 if (mMuxerWrapper != null && muxerStarted) {
-                    ByteBuffer buffer = ByteBuffer.wrap(outputBuffer);
-                    bufferInfo.offset = 0;
-                    bufferInfo.size = outputBufferSize;
-                    bufferInfo.presentationTimeUs = flushInfo.getPts();
-
-                    boolean isKeyFrame = checkIfKeyFrame(outputBuffer);
-                    bufferInfo.flags = isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
-
-                    buffer.position(bufferInfo.offset);
-                    buffer.limit(bufferInfo.offset + bufferInfo.size);
-                    mMuxerWrapper.writeSampleData(videoTrackIndex, buffer, bufferInfo);
+                    writeSample(videoTrackIndex, outputBuffer, outputBufferSize, result, bufferInfo);
                 }
                 delayedFrames = getDelayedFrames();
             }
@@ -431,10 +438,25 @@ class CustomEncoder extends Encoder {
         } catch (Exception ex) {
             return ex.getMessage();
         }
-        mYuvReader.closeFile();
+        try {
+            mInputChannel.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close input: " + e.getMessage());
+        }
         return "";
     }
 
+    private void writeSample(int track, ByteBuffer output, int size, long[] result, MediaCodec.BufferInfo bufferInfo) {
+        bufferInfo.offset = 0;
+        bufferInfo.size = size;
+        bufferInfo.presentationTimeUs = result[RESULT_PTS];
+        bufferInfo.flags = (result[RESULT_KEY_FRAME] != 0) ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+
+        output.position(0);
+        output.limit(size);
+        mMuxerWrapper.writeSampleData(track, output, bufferInfo);
+    }
+
     public void writeToBuffer(@NonNull MediaCodec codec, int index, boolean encoder) {
         // Not needed
     }
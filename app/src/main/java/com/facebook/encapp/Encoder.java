@@ -20,15 +20,20 @@ import com.facebook.encapp.proto.Runtime;
 import com.facebook.encapp.proto.Test;
 import com.facebook.encapp.utils.CliSettings;
 import com.facebook.encapp.utils.ClockTimes;
+import com.facebook.encapp.utils.Codec;
 import com.facebook.encapp.utils.FakeInputReader;
 import com.facebook.encapp.utils.FileReader;
 import com.facebook.encapp.utils.FpsMeasure;
-import com.facebook.encapp.utils.FrameBuffer;
+import com.facebook.encapp.utils.FramePacer;
 import com.facebook.encapp.utils.FrameInfo;
+import com.facebook.encapp.utils.MediaCodecAdapter;
 import com.facebook.encapp.utils.MediaCodecInfoHelper;
 import com.facebook.encapp.utils.MuxerWrapper;
+import com.facebook.encapp.utils.OutputRing;
+import com.facebook.encapp.utils.RuntimeSchedule;
 import com.facebook.encapp.utils.Statistics;
-import com.facebook.encapp.utils.TestDefinitionHelper;
+import com.facebook.encapp.utils.TraceEvents;
+import com.facebook.encapp.utils.ThreadCpuSampler;
 
 import java.io.File;
 import java.io.IOException;
@@ -37,7 +42,8 @@ import java.util.Dictionary;
 import java.util.List;
 import java.util.Locale;
 import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public abstract class Encoder {
     protected static final String TAG = "encapp.encoder";
@@ -45,13 +51,15 @@ public abstract class Encoder {
     protected static final int VIDEO_CODEC_MAX_INPUT_SEC = 5;
     final static int WAIT_TIME_MS = 30000;  // 30 secs
     final static int WAIT_TIME_SHORT_MS = 1000;  // 1 sec
+    // More than any codec has in flight
+    final static int MAX_OUTPUT_BUFFERS = 64;
     protected float mFrameRate = 30;
     float mReferenceFrameRate = 30;
     protected double mFrameTimeUsec = 0;
     protected double mRefFrameTime = 0;
     double mCurrentTimeSec;
     double mFirstFrameTimestampUsec = -1;
-    long mLastTimeMs = -1;
+    FramePacer mFramePacer;
     protected float mKeepInterval = 1.0f;
     protected MediaCodec mCodec;
     protected MediaMuxer mMuxer;  // Deprecated: Use mMuxerWrapper instead
@@ -66,6 +74,7 @@ public abstract class Encoder {
     protected Test mTest;
     protected boolean mDropNext;
     protected Runtime mRuntimeParams;
+    protected RuntimeSchedule mRuntimeSchedule;
     protected FileReader mYuvReader;
     protected FakeInputReader mFakeInputReader;
     protected boolean mIsFakeInput = false;
@@ -76,9 +85,14 @@ public abstract class Encoder {
     int mOutFramesCount = 0;
     int mInFramesCount = 0;
     boolean mInitDone = false;
+    // Counted down when set up and waiting for the start, or when start() returns
+    private final CountDownLatch mReady = new CountDownLatch(1);
+    private final CountDownLatch mStartSignal = new CountDownLatch(1);
+    private volatile long mStartTimeNs = 0;
+    private final Object mStableLock = new Object();
     DataWriter mDataWriter;
     FpsMeasure mFpsMeasure;
-    boolean mStable = true;
+    volatile boolean mStable = true;
 
     public static final String BITRATE = "bitrate";
     public static final String BITRATE_MODE = "bitrate_mode";
@@ -156,37 +170,14 @@ public abstract class Encoder {
     }
 
     protected void sleepUntilNextFrame(double frameTimeUsec) {
-        long now = ClockTimes.currentTimeMs();
-        long sleepTimeMs = (long)(frameTimeUsec/1000 - (now - mLastTimeMs)); //To ms
-        if (sleepTimeMs < 0) {
-            // We have been delayed. Run forward.
-            sleepTimeMs = 0;
-        }
-        if (sleepTimeMs > 0) {
-            try {
-                Thread.sleep(sleepTimeMs);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
+        if (mFramePacer == null) {
+            mFramePacer = new FramePacer(mStats);
         }
-        mLastTimeMs = ClockTimes.currentTimeMs();
+        mFramePacer.awaitNextFrame((long) (frameTimeUsec * 1000));
     }
 
     protected void sleepUntilNextFrame() {
-        long now = ClockTimes.currentTimeMs();
-        long sleepTimeMs = (long)(mFrameTimeUsec/1000 - (now - mLastTimeMs)); //To ms
-        if (sleepTimeMs < 0) {
-            // We have been delayed. Run forward.
-            sleepTimeMs = 0;
-        }
-        if (sleepTimeMs > 0) {
-            try {
-                Thread.sleep(sleepTimeMs);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-        mLastTimeMs = ClockTimes.currentTimeMs();
+        sleepUntilNextFrame(mFrameTimeUsec);
     }
 
 
@@ -205,6 +196,71 @@ public abstract class Encoder {
         return mInitDone;
     }
 
+    /**
+     * Called by start() once set up, returns when the test is started together with its
+     * parallel tests, or after WAIT_TIME_MS.
+     */
+    protected void waitForSynchronizedStart() {
+        Log.d(TAG, "Wait for synchronized start");
+        mInitDone = true;
+        mReady.countDown();
+        try {
+            mStartSignal.await(WAIT_TIME_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        mStartTimeNs = ClockTimes.currentTimeNs();
+        if (mStats != null) {
+            mStats.pushTimestamp("test.start");
+        }
+    }
+
+    /**
+     * Returns true when the test waits for the start, false on timeout or if it ended before that.
+     */
+    public boolean awaitInit(long timeoutMs) throws InterruptedException {
+        return mReady.await(timeoutMs, TimeUnit.MILLISECONDS) && mInitDone;
+    }
+
+    public void signalStart() {
+        mStartSignal.countDown();
+    }
+
+    /**
+     * Releases anyone waiting in awaitInit(), called when start() returns.
+     */
+    public void signalDone() {
+        mReady.countDown();
+    }
+
+    /**
+     * When the test left the synchronized start, 0 if it has not.
+     */
+    public long getStartTimeNs() {
+        return mStartTimeNs;
+    }
+
+    protected void setStable() {
+        synchronized (mStableLock) {
+            mStable = true;
+            mStableLock.notifyAll();
+        }
+    }
+
+    public boolean awaitStable(long timeoutMs) throws InterruptedException {
+        long deadline = ClockTimes.currentTimeNs() + timeoutMs * 1000000L;
+        synchronized (mStableLock) {
+            while (!mStable) {
+                long left = (deadline - ClockTimes.currentTimeNs()) / 1000000L;
+                if (left <= 0) {
+                    return false;
+                }
+                mStableLock.wait(left);
+            }
+        }
+        return true;
+    }
+
     protected MediaMuxer createMuxer(MediaCodec encoder, MediaFormat format) {
         int type = MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4;
         mFilename = mStats.getId() + ".mp4";
@@ -236,6 +292,11 @@ public abstract class Encoder {
      * This is the preferred method for creating muxers.
      */
     protected MuxerWrapper createMuxerWrapper(MediaCodec encoder, MediaFormat format) {
+        return createMuxerWrapper((encoder != null) ? new MediaCodecAdapter(encoder) : null, format);
+    }
+
+    protected MuxerWrapper createMuxerWrapper(Codec encoder, MediaFormat format) {
+        String codecName = (encoder != null) ? encoder.getName() : null;
         // Determine output format and filename
         // Initialize codec detection flags (legacy - ignored by internal muxer)
         boolean isHEVC = false;
@@ -250,15 +311,15 @@ public abstract class Encoder {
             if (configMime.startsWith("image/")) {
                 isImageOutput = true;
                 // Determine correct extension based on codec
-                mFilename = mStats.getId() + getImageFileExtension(encoder, format);
+                mFilename = mStats.getId() + getImageFileExtension(codecName, format);
                 Log.d(TAG, "Image output detected from configure.mime: " + configMime);
             }
         }
 
         // Note: isHEVC flag is IGNORED by internal muxer (which detects codec from MediaFormat)
         // Only set it for logging/legacy purposes
-        if (encoder != null) {
-            String codecName = encoder.getCodecInfo().getName().toLowerCase(Locale.US);
+        if (codecName != null) {
+            codecName = codecName.toLowerCase(Locale.US);
             isHEVC = codecName.contains("hevc") || codecName.contains("h265");
 
             if (codecName.contains("vp") && !isImageOutput) {
@@ -315,7 +376,7 @@ public abstract class Encoder {
 
         mStats.setEncodedfile(mFilename);
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q && encoder != null) {
-            mStats.setEncoderIsHardwareAccelerated(encoder.getCodecInfo().isHardwareAccelerated());
+            mStats.setEncoderIsHardwareAccelerated(encoder.isHardwareAccelerated());
         }
 
         return mMuxerWrapper;
@@ -324,17 +385,23 @@ public abstract class Encoder {
     protected void stopAllEncoders() {
     }
 
+    /**
+     * Called by the data writer for every encoded frame.
+     */
+    protected void onFrameEncoded() {
+    }
+
     /**
      * Determine the correct file extension for image output based on codec type.
      *
-     * @param encoder MediaCodec encoder instance
+     * @param codecName name of the encoder, null if unknown
      * @param format MediaFormat from the encoder
      * @return File extension including the dot (e.g., ".heic", ".avif", ".avci")
      */
-    private String getImageFileExtension(MediaCodec encoder, MediaFormat format) {
+    private String getImageFileExtension(String codecName, MediaFormat format) {
         // Try to determine from encoder codec name first
-        if (encoder != null) {
-            String codecName = encoder.getCodecInfo().getName().toLowerCase(Locale.US);
+        if (codecName != null) {
+            codecName = codecName.toLowerCase(Locale.US);
 
             if (codecName.contains("hevc") || codecName.contains("h265")) {
                 Log.d(TAG, "Detected HEVC codec, using .heic extension");
@@ -435,74 +502,39 @@ public abstract class Encoder {
         return false;
     }
 
-    public void setRuntimeParameters(int frame) {
-        // go through all runtime settings and see which are due
-        if (mRuntimeParams == null) return;
-        Bundle bundle = new Bundle();
-        for (Runtime.VideoBitrateParameter bitrate : mRuntimeParams.getVideoBitrateList()) {
-            if (bitrate.getFramenum() == frame) {
-                bundle.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE,
-                        TestDefinitionHelper.magnitudeToInt(bitrate.getBitrate()));
-                break;
-            }
-        }
-
-        for (Long sync : mRuntimeParams.getRequestSyncList()) {
-            if (sync == frame) {
-                bundle.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, frame);
-                break;
-            }
-        }
+    protected void setRuntimeParams(Runtime runtime) {
+        mRuntimeParams = runtime;
+        mRuntimeSchedule = RuntimeSchedule.compile(runtime);
+    }
 
-        for (Parameter param : mRuntimeParams.getParameterList()) {
-            if (param.getFramenum() == frame) {
-                Log.d(TAG, "Set runtime parameter @ " + frame + " key: " + param.getKey() + ", " + param.getType() + ", " + param.getValue());
-                switch (param.getType().getNumber()) {
-                    case DataValueType.floatType_VALUE:
-                        float fval = Float.parseFloat(param.getValue());
-                        bundle.putFloat(param.getKey(), fval);
-                        break;
-                    case DataValueType.intType_VALUE:
-                        int ival = TestDefinitionHelper.magnitudeToInt(param.getValue());
-                        bundle.putInt(param.getKey(), ival);
-                        break;
-                    case DataValueType.longType_VALUE:
-                        long lval = Long.parseLong(param.getValue());
-                        bundle.putLong(param.getKey(), lval);
-                        break;
-                    case DataValueType.stringType_VALUE:
-                        bundle.putString(param.getKey(), param.getValue());
-                        break;
-                    default:
-                        ///Should not be here
-                }
-            }
+    public void setRuntimeParameters(int frame) {
+        if (mRuntimeSchedule == null) return;
+        Bundle bundle = mRuntimeSchedule.getParameters(frame);
+        if (bundle != null) {
+            Log.d(TAG, "Set runtime parameters @ " + frame + ": " + bundle);
+            setParameters(bundle);
         }
+    }
 
-        if (bundle.keySet().size() > 0 && mCodec != null) {
+    /**
+     * Applies runtime parameters to the encoder.
+     */
+    protected void setParameters(Bundle bundle) {
+        if (mCodec != null) {
             mCodec.setParameters(bundle);
         }
     }
 
     boolean dropFrame(long frame) {
-        if (mRuntimeParams == null) return false;
-        for (Long drop : mRuntimeParams.getDropList()) {
-            if (drop.longValue() == frame) {
-                return true;
-            }
-        }
-
-        return false;
+        return mRuntimeSchedule != null && mRuntimeSchedule.isDropped(frame);
     }
 
     void updateDynamicFramerate(long frame) {
-        if (mRuntimeParams == null) return;
-        for (Runtime.DynamicFramerateParameter rate : mRuntimeParams.getDynamicFramerateList()) {
-            if (rate.getFramenum() == frame) {
-                mKeepInterval = mFrameRate / rate.getFramerate();
-                mFrameTimeUsec = calculateFrameTimingUsec(rate.getFramerate());
-                return;
-            }
+        if (mRuntimeSchedule == null) return;
+        float framerate = mRuntimeSchedule.getFramerate(frame);
+        if (framerate > 0) {
+            mKeepInterval = mFrameRate / framerate;
+            mFrameTimeUsec = calculateFrameTimingUsec(framerate);
         }
     }
 
@@ -520,11 +552,12 @@ public abstract class Encoder {
      * @return size of enqueued data.
      */
     protected int queueInputBufferEncoder(
-            FileReader fileReader, MediaCodec codec, ByteBuffer byteBuffer, int index, int frameCount, int flags, int size, boolean useImage) {
+            FileReader fileReader, Codec codec, ByteBuffer byteBuffer, int index, int frameCount, int flags, int size, boolean useImage) {
         int read = 0;
+        long traceStart = TraceEvents.begin();
         if (useImage) {
             // copy a frame to the Image
-            Image image = mCodec.getInputImage(index);
+            Image image = codec.getInputImage(index);
             //Log.i(TAG, "-----> [" + index + " / " + frameCount + "] copying data to Image.ByteBuffer");
             if (mIsFakeInput) {
                 read = mFakeInputReader.fillImage(image);
@@ -541,7 +574,9 @@ public abstract class Encoder {
                 read = fileReader.fillBuffer(byteBuffer, size);
             }
         }
+        long readDoneNs = ClockTimes.currentTimeNs();
         long ptsUsec = computePresentationTimeUs(mPts, frameCount, mRefFrameTime);
+        TraceEvents.end(TraceEvents.READ, traceStart, ptsUsec);
         mCurrentTimeSec =  ptsUsec / 1000000.0f;
         // set any runtime parameters for this frame
         setRuntimeParameters(mInFramesCount);
@@ -561,8 +596,12 @@ public abstract class Encoder {
             if (mRealtime) {
                 sleepUntilNextFrame();
             }
-            mStats.startEncodingFrame(ptsUsec, frameCount);
+            FrameInfo frame = mStats.startEncodingFrame(ptsUsec, frameCount);
+            traceStart = TraceEvents.begin();
             codec.queueInputBuffer(index, 0 /* offset */, read, ptsUsec /* timeUs */, flags);
+            TraceEvents.end(TraceEvents.QUEUE, traceStart, ptsUsec);
+            frame.setStageTime(FrameInfo.STAGE_READ_DONE, readDoneNs);
+            frame.setStageTime(FrameInfo.STAGE_QUEUED, ClockTimes.currentTimeNs());
         } else if ((flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
             codec.queueInputBuffer(index, 0 /* offset */, 0, ptsUsec /* timeUs */, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
         } else {
@@ -579,112 +618,129 @@ public abstract class Encoder {
     public abstract void readFromBuffer(@NonNull MediaCodec codec, int index, boolean encoder, MediaCodec.BufferInfo info);
 
     protected class DataWriter extends Thread {
-        ConcurrentLinkedQueue<FrameBuffer> mEncodeBuffers = new ConcurrentLinkedQueue<>();
-        boolean mDone = false;
+        final OutputRing mEncodeBuffers = new OutputRing(MAX_OUTPUT_BUFFERS, CliSettings.getOutputWaitStrategy());
+        final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        volatile boolean mDone = false;
 
         public void stopWriter() {
             mDone = true;
+            mEncodeBuffers.wakeUp();
         }
 
         @Override
         public void run() {
+            ThreadCpuSampler.registerThread("data_writer", mTest.getCommon().getId());
             MediaFormat currentOutputFormat = null;
             Dictionary<String, Object> latestFrameChanges;
             while (!mDone) {
-                while (mEncodeBuffers.size() > 0) {
-                    FrameBuffer frameBuffer = mEncodeBuffers.poll();
-                    if (frameBuffer == null) {
-                        Log.e(TAG, "Buffer empty");
-                        continue;
-                    }
+                int bufferId = mEncodeBuffers.poll(WAIT_TIME_SHORT_MS * 1000000L);
+                if (bufferId < 0) {
+                    continue;
+                }
+                mInfo.set(mEncodeBuffers.getOffset(), mEncodeBuffers.getSize(),
+                        mEncodeBuffers.getPresentationTimeUs(), mEncodeBuffers.getFlags());
+
+                if (mCodec == null || mStats == null) {
+                    Log.e(TAG, "Codec or Stats not initialized, skipping buffer");
+                    continue;
+                }
 
-                    if (mCodec == null || mStats == null) {
-                        Log.e(TAG, "Codec or Stats not initialized, skipping buffer");
-                        continue;
+                if ((mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    MediaFormat oformat = mCodec.getOutputFormat();
+                    mStats.setEncoderMediaFormat(mCodec.getInputFormat());
+
+                    // Use MuxerWrapper if available, otherwise fall back to MediaMuxer
+                    if (mWriteFile && mMuxerWrapper != null) {
+                        Log.d(TAG, "Start MuxerWrapper");
+                        mVideoTrack = mMuxerWrapper.addTrack(oformat);
+                        mMuxerWrapper.start();
+                    } else if (mWriteFile && mMuxer != null) {
+                        Log.d(TAG, "Start MediaMuxer (legacy): " + mMuxer);
+                        mVideoTrack = mMuxer.addTrack(oformat);
+                        mMuxer.start();
                     }
 
-                    if ((frameBuffer.mInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                        MediaFormat oformat = mCodec.getOutputFormat();
-                        mStats.setEncoderMediaFormat(mCodec.getInputFormat());
-
-                        // Use MuxerWrapper if available, otherwise fall back to MediaMuxer
-                        if (mWriteFile && mMuxerWrapper != null) {
-                            Log.d(TAG, "Start MuxerWrapper");
-                            mVideoTrack = mMuxerWrapper.addTrack(oformat);
-                            mMuxerWrapper.start();
-                        } else if (mWriteFile && mMuxer != null) {
-                            Log.d(TAG, "Start MediaMuxer (legacy): " + mMuxer);
-                            mVideoTrack = mMuxer.addTrack(oformat);
-                            mMuxer.start();
+                    mCodec.releaseOutputBuffer(bufferId, false);
+                    if (currentOutputFormat == null) {
+                       currentOutputFormat =  mCodec.getOutputFormat();
+                    }
+                } else {
+                    if ((mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                        Log.d(TAG, "End of stream: ");
+                        mDone = true;
+                    }
+                    if (mFirstFrameTimestampUsec != -1) {
+                        long timestampUsec = mPts + (long) (mInfo.presentationTimeUs - mFirstFrameTimestampUsec);
+                        if (timestampUsec < 0) {
+                            Log.w(TAG, "Timestamp < 0");
+                            mCodec.releaseOutputBuffer(bufferId, false);
+                            continue;
                         }
+                        try {
+                            FrameInfo info =  mStats.stopEncodingFrame(timestampUsec, mInfo.size,
+                                    (mInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+                            // Offered in the output callback
+                            if (info != null) {
+                                info.setStageTime(FrameInfo.STAGE_DEQUEUED, mEncodeBuffers.getLastOfferTimeNs());
+                            }
 
-                        mCodec.releaseOutputBuffer(frameBuffer.mBufferId, false);
-                        if (currentOutputFormat == null) {
-                           currentOutputFormat =  mCodec.getOutputFormat();
-                        }
-                    } else {
-                        if ((frameBuffer.mInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                            Log.d(TAG, "End of stream: ");
-                            mDone = true;
-                        }
-                        if (mFirstFrameTimestampUsec != -1) {
-                            long timestampUsec = mPts + (long) (frameBuffer.mInfo.presentationTimeUs - mFirstFrameTimestampUsec);
-                            if (timestampUsec < 0) {
-                                Log.w(TAG, "Timestamp < 0");
-                                mCodec.releaseOutputBuffer(frameBuffer.mBufferId, false);
-                                continue;
+                            ++mOutFramesCount;
+                            onFrameEncoded();
+                            if (Build.VERSION.SDK_INT >= 29) {
+                                MediaFormat oformat = mCodec.getOutputFormat();
+                            latestFrameChanges = mediaFormatComparison(currentOutputFormat, oformat);
+                                currentOutputFormat = oformat;
+                                info.addInfo(latestFrameChanges);
                             }
-                            try {
-                                FrameInfo info =  mStats.stopEncodingFrame(timestampUsec, frameBuffer.mInfo.size,
-                                        (frameBuffer.mInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
-
-                                ++mOutFramesCount;
-                                if (Build.VERSION.SDK_INT >= 29) {
-                                    MediaFormat oformat = mCodec.getOutputFormat();
-                                latestFrameChanges = mediaFormatComparison(currentOutputFormat, oformat);
-                                    currentOutputFormat = oformat;
-                                    info.addInfo(latestFrameChanges);
-                                }
 
-                                // Write sample data using MuxerWrapper if available, otherwise MediaMuxer
-                                if (mVideoTrack != -1) {
-                                    ByteBuffer data = mCodec.getOutputBuffer(frameBuffer.mBufferId);
+                            // Write sample data using MuxerWrapper if available, otherwise MediaMuxer
+                            if (mVideoTrack != -1) {
+                                ByteBuffer data = mCodec.getOutputBuffer(bufferId);
 
-                                    if (mMuxerWrapper != null) {
-                                        mMuxerWrapper.writeSampleData(mVideoTrack, data, frameBuffer.mInfo);
-                                    } else if (mMuxer != null) {
-                                        mMuxer.writeSampleData(mVideoTrack, data, frameBuffer.mInfo);
-                                    }
+                                if (mMuxerWrapper != null) {
+                                    mMuxerWrapper.writeSampleData(mVideoTrack, data, mInfo);
+                                } else if (mMuxer != null) {
+                                    mMuxer.writeSampleData(mVideoTrack, data, mInfo);
+                                }
+                                if (info != null) {
+                                    info.setStageTime(FrameInfo.STAGE_MUXED, ClockTimes.currentTimeNs());
                                 }
-
-                                mCodec.releaseOutputBuffer(frameBuffer.mBufferId, false);
-                            } catch (Exception ise) {
-                                Log.e(TAG, "Writing failed: " + ise.getMessage());
                             }
-                            mCurrentTimeSec = timestampUsec / 1000000.0;
-                        } else {
-                            mCodec.releaseOutputBuffer(frameBuffer.mBufferId, false);
-                        }
-                    }
-                }
 
-                synchronized (mEncodeBuffers) {
-                    if (mEncodeBuffers.size() == 0 && !mDone) {
-                        try {
-                            mEncodeBuffers.wait(WAIT_TIME_SHORT_MS);
-                        } catch (InterruptedException e) {
-                            e.printStackTrace();
+                            mCodec.releaseOutputBuffer(bufferId, false);
+                        } catch (Exception ise) {
+                            Log.e(TAG, "Writing failed: " + ise.getMessage());
                         }
+                        mCurrentTimeSec = timestampUsec / 1000000.0;
+                    } else {
+                        mCodec.releaseOutputBuffer(bufferId, false);
                     }
                 }
             }
         }
 
+        /**
+         * Never drops a buffer while the writer runs, with more codec output buffers than
+         * ring slots the codec callback waits for the writer.
+         */
         public void addBuffer(MediaCodec codec, int id, MediaCodec.BufferInfo info) {
-            mEncodeBuffers.add(new FrameBuffer(codec, id, info));
-            synchronized (mEncodeBuffers) {
-                mEncodeBuffers.notifyAll();
+            if (mEncodeBuffers.offer(id, info.offset, info.size, info.presentationTimeUs, info.flags)) {
+                return;
+            }
+            if (mStats != null) {
+                mStats.countOutputRingFull();
+            }
+            while (!mDone) {
+                if (mEncodeBuffers.offer(id, info.offset, info.size, info.presentationTimeUs, info.flags,
+                        WAIT_TIME_SHORT_MS * 1000000L)) {
+                    return;
+                }
+            }
+            Log.e(TAG, "Writer stopped, dropping buffer " + id + " flags: " + info.flags);
+            if (mStats != null) {
+                mStats.countDroppedOutput();
             }
+            codec.releaseOutputBuffer(id, false);
         }
     }
 
@@ -734,6 +790,7 @@ public abstract class Encoder {
 
         @Override
         public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            TraceEvents.instant(TraceEvents.CODEC_OUT, info.presentationTimeUs);
             mDataWriter.addBuffer(codec, index, info);
         }
     }
@@ -750,6 +807,7 @@ public abstract class Encoder {
 
         @Override
         public void onOutputBufferAvailable(@NonNull MediaCodec codec, int index, @NonNull MediaCodec.BufferInfo info) {
+            TraceEvents.instant(TraceEvents.CODEC_OUT, info.presentationTimeUs);
             readFromBuffer(codec, index, mIsEncoder, info);
         }
     }
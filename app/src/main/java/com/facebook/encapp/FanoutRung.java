@@ -0,0 +1,389 @@
+package com.facebook.encapp;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Log;
+import android.util.Size;
+
+import androidx.annotation.NonNull;
+
+import com.facebook.encapp.proto.Test;
+import com.facebook.encapp.utils.ClockTimes;
+import com.facebook.encapp.utils.CodecCache;
+import com.facebook.encapp.utils.FrameInfo;
+import com.facebook.encapp.utils.FrameswapControl;
+import com.facebook.encapp.utils.IndexQueue;
+import com.facebook.encapp.utils.MediaCodecInfoHelper;
+import com.facebook.encapp.utils.OutputMultiplier;
+import com.facebook.encapp.utils.PlaneCopy;
+import com.facebook.encapp.utils.SharedFrame;
+import com.facebook.encapp.utils.SizeUtils;
+import com.facebook.encapp.utils.Statistics;
+import com.facebook.encapp.utils.TestDefinitionHelper;
+import com.facebook.encapp.utils.ThreadCpuSampler;
+
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One encoder of a FanoutTranscoder ladder, with its own statistics and output file.
+ * In buffer mode the shared decoded frames are copied to the encoder by a writer thread,
+ * in surface mode they are rendered to the encoder input surface.
+ */
+class FanoutRung extends Encoder {
+    private static final String TAG = "encapp.fanout_rung";
+
+    private final int mIndex;
+    // Notified when a frame is encoded
+    private final Object mBacklogLock;
+    private final IndexQueue mInputBuffers = new IndexQueue(MAX_OUTPUT_BUFFERS);
+    private final LinkedBlockingQueue<Pending> mPending = new LinkedBlockingQueue<>();
+    private InputWriter mInputWriter;
+    private FrameswapControl mFrameSwapSurface;
+    private OutputMultiplier mOutputMult;
+    private volatile int mQueuedCount = 0;
+    // Frames the writer could not copy to the encoder
+    private volatile int mCopyFailed = 0;
+    int mWidth = -1;
+    int mHeight = -1;
+    int mEncoderStride = -1;
+    int mEncoderSliceHeight = -1;
+
+    private static class Pending {
+        final SharedFrame mFrame;
+        final FrameInfo mInfo;
+        final long mPtsUsec;
+        // Decoder output layout of the frame
+        final int mStride;
+        final int mSliceHeight;
+        final int mColorFormat;
+
+        Pending(SharedFrame frame, FrameInfo info, long ptsUsec, int stride, int sliceHeight, int colorFormat) {
+            mFrame = frame;
+            mInfo = info;
+            mPtsUsec = ptsUsec;
+            mStride = stride;
+            mSliceHeight = sliceHeight;
+            mColorFormat = colorFormat;
+        }
+    }
+
+    FanoutRung(Test test, int index, Object backlogLock) {
+        super(test);
+        mIndex = index;
+        mBacklogLock = backlogLock;
+        mStats = new Statistics("fanout rung " + index, mTest);
+    }
+
+    String create(boolean surface) {
+        if (mTest.getConfigure().getMime().length() == 0) {
+            try {
+                mTest = MediaCodecInfoHelper.setCodecNameAndIdentifier(mTest);
+            } catch (Exception e) {
+                return e.getMessage();
+            }
+        }
+        Log.d(TAG, "Rung " + mIndex + ": create encoder " + mTest.getConfigure().getCodec() +
+                " " + mTest.getConfigure().getResolution() + " @ " + mTest.getConfigure().getBitrate());
+        try {
+            mStats.pushTimestamp("encoder.create");
+            mCodec = CodecCache.getCache().getEncoder(mTest, surface);
+            mStats.pushTimestamp("encoder.create");
+        } catch (IOException e) {
+            return "Failed to create encoder for rung " + mIndex;
+        }
+        Size res = SizeUtils.parseXString(mTest.getConfigure().getResolution());
+        mWidth = res.getWidth();
+        mHeight = res.getHeight();
+        mFrameRate = mTest.getConfigure().getFramerate();
+        mReferenceFrameRate = mTest.getInput().getFramerate();
+        if (mFrameRate <= 0) {
+            mFrameRate = mReferenceFrameRate;
+        }
+        mKeepInterval = mReferenceFrameRate / mFrameRate;
+        if (mTest.hasRuntime()) {
+            setRuntimeParams(mTest.getRuntime());
+        }
+        return "";
+    }
+
+    /**
+     * Buffer mode, the encoder takes the decoder output format and color. Frames are not
+     * scaled, MainActivity runs ladders with several resolutions in surface mode.
+     */
+    String configure(MediaFormat inputFormat, MediaFormat decoderOutput, int colorFormat) {
+        Size input = SizeUtils.parseXString(mTest.getInput().getResolution());
+        if (input.getWidth() != mWidth || input.getHeight() != mHeight) {
+            return "Rung " + mIndex + " " + mWidth + "x" + mHeight + " differs from the input " +
+                    input.getWidth() + "x" + input.getHeight() + ", scaling needs surface mode";
+        }
+
+        MediaFormat format = TestDefinitionHelper.buildMediaFormat(mTest);
+        format = TestDefinitionHelper.maybeUpdateBitrateFromDecoder(format, inputFormat);
+        MediaFormat mediaFormat = TestDefinitionHelper.mergeEncoderSettings(mTest, decoderOutput);
+        setConfigureParams(mTest, mediaFormat);
+        mediaFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
+        mCodec.setCallback(new EncoderCallbackHandler());
+        try {
+            mStats.pushTimestamp("encoder.configure");
+            mCodec.configure(mediaFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mStats.pushTimestamp("encoder.configure");
+        } catch (MediaCodec.CodecException cex) {
+            Log.e(TAG, "Rung " + mIndex + " configure failed: " + cex.getMessage());
+            return "Failed to configure rung " + mIndex;
+        }
+        int align = 32;
+        MediaFormat encoderFormat = mCodec.getInputFormat();
+        mEncoderStride = encoderFormat.containsKey(MediaFormat.KEY_STRIDE) ?
+                encoderFormat.getInteger(MediaFormat.KEY_STRIDE) : mWidth;
+        mEncoderSliceHeight = encoderFormat.containsKey(MediaFormat.KEY_SLICE_HEIGHT) ?
+                encoderFormat.getInteger(MediaFormat.KEY_SLICE_HEIGHT) :
+                (mHeight % align != 0) ? (mHeight / align + 1) * align : mHeight;
+        mMuxerWrapper = createMuxerWrapper(mCodec, format);
+        mInputWriter = new InputWriter();
+        return "";
+    }
+
+    /**
+     * Surface mode, the encoder input surface is added to the multiplier.
+     */
+    String configure(MediaFormat inputFormat, OutputMultiplier mult) {
+        MediaFormat format = TestDefinitionHelper.buildMediaFormat(mTest);
+        format = TestDefinitionHelper.maybeUpdateBitrateFromDecoder(format, inputFormat);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        setConfigureParams(mTest, format);
+        mCodec.setCallback(new EncoderCallbackHandler());
+        try {
+            mStats.pushTimestamp("encoder.configure");
+            mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mStats.pushTimestamp("encoder.configure");
+        } catch (MediaCodec.CodecException cex) {
+            Log.e(TAG, "Rung " + mIndex + " configure failed: " + cex.getMessage());
+            return "Failed to configure rung " + mIndex;
+        }
+        mOutputMult = mult;
+        mFrameSwapSurface = mult.addSurface(mCodec.createInputSurface());
+        mult.setSurfaceStatistics(mFrameSwapSurface, mStats);
+        mMuxerWrapper = createMuxerWrapper(mCodec, format);
+        if (mCodec.getCodecInfo().getName().toLowerCase(Locale.US).contains(".vp")) {
+            mVideoTrack = mMuxerWrapper.addTrack(mCodec.getOutputFormat());
+            mMuxerWrapper.start();
+        }
+        return "";
+    }
+
+    String startCodec(MediaCodec decoder) {
+        try {
+            mStats.pushTimestamp("encoder.start");
+            mCodec.start();
+            mStats.pushTimestamp("encoder.start");
+        } catch (Exception ex) {
+            Log.e(TAG, "Rung " + mIndex + " start failed: " + ex.getMessage());
+            return "Start encoding failed for rung " + mIndex;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            mStats.setCodec(mCodec.getCanonicalName());
+            mStats.setDecoder(decoder.getCodecInfo().getCanonicalName());
+        } else {
+            mStats.setCodec(mCodec.getName());
+            mStats.setDecoder(decoder.getCodecInfo().getName());
+        }
+        mStats.setDecoderMediaFormat(decoder.getInputFormat());
+        if (mInputWriter != null) {
+            mInputWriter.start();
+        }
+        mStats.start();
+        return "";
+    }
+
+    /**
+     * Called for every decoded frame, false if the rung drops it to reach its own framerate.
+     */
+    boolean keepFrame(int frame, long firstTimestampUsec) {
+        if (mFirstFrameTimestampUsec < 0) {
+            mFirstFrameTimestampUsec = firstTimestampUsec;
+        }
+        setRuntimeParameters(frame);
+        if (dropFrame(frame) || dropFromDynamicFramerate(frame)) {
+            mSkipped++;
+            return false;
+        }
+        mFramesAdded++;
+        return true;
+    }
+
+    /**
+     * Buffer mode, the rung holds a reference to the frame until it is copied to the encoder.
+     */
+    void queueFrame(SharedFrame frame, long ptsUsec, int frameCount, int stride, int sliceHeight,
+                    int colorFormat) {
+        FrameInfo info = mStats.startEncodingFrame(ptsUsec, frameCount);
+        mPending.add(new Pending(frame, info, ptsUsec, stride, sliceHeight, colorFormat));
+    }
+
+    /**
+     * Surface mode, frames are rendered to this rung unless dropped.
+     */
+    void dropNext(boolean drop) {
+        if (mFrameSwapSurface != null) {
+            mFrameSwapSurface.dropNext(drop);
+        }
+    }
+
+    /**
+     * Frames given to the rung and not encoded yet.
+     */
+    int getBacklog() {
+        return mFramesAdded - mOutFramesCount - mCopyFailed;
+    }
+
+    int getIndex() {
+        return mIndex;
+    }
+
+    MediaCodec getCodec() {
+        return mCodec;
+    }
+
+    @Override
+    protected void onFrameEncoded() {
+        synchronized (mBacklogLock) {
+            mBacklogLock.notifyAll();
+        }
+    }
+
+    @Override
+    public String start() {
+        // Driven by the FanoutTranscoder
+        return "";
+    }
+
+    @Override
+    public void writeToBuffer(@NonNull MediaCodec codec, int index, boolean encoder) {
+        if (!mInputBuffers.offer(index)) {
+            Log.e(TAG, "Rung " + mIndex + " input queue full");
+        }
+    }
+
+    @Override
+    public void readFromBuffer(@NonNull MediaCodec codec, int index, boolean encoder, MediaCodec.BufferInfo info) {
+        // Encoder output is handled by the data writer
+    }
+
+    private int copyFrame(Pending pending, ByteBuffer input) {
+        ByteBuffer decoded = pending.mFrame.getBuffer();
+        if (decoded == null) {
+            return -1;
+        }
+        return PlaneCopy.copy(decoded, input, pending.mColorFormat, mWidth, mHeight,
+                pending.mStride, pending.mSliceHeight, mEncoderStride, mEncoderSliceHeight);
+    }
+
+    private class InputWriter extends Thread {
+        volatile boolean mDone = false;
+
+        @Override
+        public void run() {
+            ThreadCpuSampler.registerThread("fanout_writer_" + mIndex, mTest.getCommon().getId());
+            // An encoder buffer left over by a frame that could not be copied
+            int spare = -1;
+            while (!mDone) {
+                Pending pending;
+                try {
+                    pending = mPending.poll(WAIT_TIME_SHORT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (pending == null) {
+                    continue;
+                }
+                int index = spare;
+                spare = -1;
+                while (index < 0 && !mDone) {
+                    index = mInputBuffers.poll(WAIT_TIME_SHORT_MS * 1000000L);
+                }
+                if (index < 0) {
+                    pending.mFrame.release();
+                    break;
+                }
+                try {
+                    int size = copyFrame(pending, mCodec.getInputBuffer(index));
+                    if (size < 0) {
+                        Log.e(TAG, "Rung " + mIndex + " cannot copy frame " + pending.mFrame.getTimestampUs() +
+                                ", stride: " + pending.mStride + " slice height: " + pending.mSliceHeight +
+                                " color format: " + pending.mColorFormat);
+                        mStats.dropEncodingFrame(pending.mPtsUsec);
+                        mCopyFailed++;
+                        spare = index;
+                        continue;
+                    }
+                    mCodec.queueInputBuffer(index, 0, size, pending.mFrame.getTimestampUs(), pending.mFrame.mInfo.flags);
+                    mQueuedCount++;
+                    if (pending.mInfo != null) {
+                        pending.mInfo.setStageTime(FrameInfo.STAGE_QUEUED, ClockTimes.currentTimeNs());
+                    }
+                } catch (IllegalStateException | BufferOverflowException e) {
+                    // Stopped or reconfigured while copying
+                    Log.e(TAG, "Rung " + mIndex + " failed to queue frame: " + e.getMessage());
+                } finally {
+                    pending.mFrame.release();
+                }
+            }
+            Pending pending;
+            while ((pending = mPending.poll()) != null) {
+                pending.mFrame.release();
+            }
+        }
+
+        void stopWriter() {
+            mDone = true;
+        }
+    }
+
+    @Override
+    public void stopAllActivity() {
+        if (mInputWriter != null) {
+            mInputWriter.stopWriter();
+            try {
+                mInputWriter.join(WAIT_TIME_SHORT_MS * 2);
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        mStats.stop();
+        Log.d(TAG, "Rung " + mIndex + " done, queued: " + mQueuedCount + " encoded: " + mOutFramesCount +
+                " skipped: " + mSkipped + " not copied: " + mCopyFailed + " - " + mStats.getId());
+        if (mMuxerWrapper != null) {
+            try {
+                mMuxerWrapper.release();
+            } catch (IllegalStateException ise) {
+                Log.e(TAG, "Illegal state exception when trying to release the muxer: " + ise.getMessage());
+            }
+            mMuxerWrapper = null;
+        }
+        if (mFrameSwapSurface != null && mOutputMult != null) {
+            mOutputMult.removeFrameSwapControl(mFrameSwapSurface);
+        }
+        try {
+            if (mCodec != null) {
+                mCodec.flush();
+                mCodec.stop();
+                CodecCache.getCache().release(mCodec);
+                mCodec = null;
+            }
+        } catch (IllegalStateException iex) {
+            Log.e(TAG, "Rung " + mIndex + " failed to shut down: " + iex.getMessage());
+        }
+        mDataWriter.stopWriter();
+    }
+
+    @Override
+    public void release() {
+    }
+}
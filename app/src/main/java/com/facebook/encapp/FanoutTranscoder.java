@@ -0,0 +1,618 @@
+package com.facebook.encapp;
+
+import android.graphics.SurfaceTexture;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.util.Log;
+import android.view.Surface;
+
+import androidx.annotation.NonNull;
+
+import com.facebook.encapp.proto.Test;
+import com.facebook.encapp.utils.ClockTimes;
+import com.facebook.encapp.utils.CodecCache;
+import com.facebook.encapp.utils.Demuxer;
+import com.facebook.encapp.utils.IndexQueue;
+import com.facebook.encapp.utils.OutputMultiplier;
+import com.facebook.encapp.utils.RuntimeSchedule;
+import com.facebook.encapp.utils.SharedFrame;
+import com.facebook.encapp.utils.Statistics;
+import com.facebook.encapp.utils.TestDefinitionHelper;
+import com.facebook.encapp.utils.ThreadCpuSampler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Decodes the input once and encodes every frame with each configuration of the test ladder.
+ * Without a surface the decoded buffers are shared by the rungs and released when all have
+ * copied them, with a surface the decoder renders to an OutputMultiplier with one encoder
+ * surface per rung.
+ *
+ * The source is read no faster than the slowest rung: reading waits while any rung has more
+ * than MAX_BACKLOG_FRAMES frames queued or in its encoder.
+ */
+public class FanoutTranscoder extends Encoder {
+    private static final String TAG = "encapp.fanout_transcoder";
+    static final int MAX_BACKLOG_FRAMES = 8;
+
+    private final SourceReader mSourceReader;
+    private final OutputMultiplier mOutputMult;
+    private final List<FanoutRung> mRungs = new ArrayList<>();
+    private final Object mBacklogLock = new Object();
+    MediaExtractor mExtractor;
+    Demuxer mDemuxer;
+    MediaCodec mDecoder;
+    boolean mUseInternalDemux = false;
+    RuntimeSchedule mDecoderRuntimeSchedule;
+    int mCurrentLoop = 1;
+    long mPtsOffset = 0;
+    long mLastPtsUs = -1;
+    volatile boolean mDone = false;
+    boolean mStopped = false;
+    Object mStopLock = new Object();
+    Surface mSurface = null;
+    SurfaceTexture mSurfaceTexture = null;
+    // Reads that waited for a rung, and for how long
+    int mStalls = 0;
+    long mStallTimeNs = 0;
+    int[] mStallsByRung;
+    // Decoder output layout in buffer mode, updated on format changes
+    volatile int mDecoderStride = -1;
+    volatile int mDecoderSliceHeight = -1;
+    volatile int mDecoderColorFormat = -1;
+
+    /**
+     * Surface mode if multiplier is set, buffer mode otherwise.
+     */
+    public FanoutTranscoder(Test test, OutputMultiplier multiplier) {
+        super(test);
+        mOutputMult = multiplier;
+        mSourceReader = new SourceReader();
+        mRealtime = mTest.getInput().getRealtime();
+    }
+
+    // Every rung writes its own output
+    static Test rungTest(Test test, int index) {
+        Test.Builder builder = test.toBuilder().clearLadder();
+        builder.getConfigureBuilder().mergeFrom(test.getLadder(index));
+        if (test.getCommon().hasOutputFilename()) {
+            builder.getCommonBuilder().setOutputFilename(test.getCommon().getOutputFilename() + "_rung" + index);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Statistics of all rungs, the first is also returned by getStatistics() and holds the decoding.
+     */
+    public List<Statistics> getRungStatistics() {
+        List<Statistics> stats = new ArrayList<>();
+        for (FanoutRung rung : mRungs) {
+            stats.add(rung.getStatistics());
+        }
+        return stats;
+    }
+
+    public String start() {
+        mStats = new Statistics("fanout transcoder", mTest);
+        boolean surface = mOutputMult != null;
+        Log.d(TAG, "**** Fan-out Transcode (" + (surface ? "surface" : "buffer") + ", " +
+                mTest.getLadderCount() + " rungs) - " + mTest.getCommon().getDescription() + " ***");
+        if (mTest.getLadderCount() == 0) {
+            return "No ladder";
+        }
+        if (mTest.hasDecoderRuntime())
+            mDecoderRuntimeSchedule = RuntimeSchedule.compile(mTest.getDecoderRuntime());
+
+        MediaFormat inputFormat = openInput();
+        if (inputFormat == null) {
+            return "Failed to open input";
+        }
+        mTest = TestDefinitionHelper.updateInputSettings(mTest, inputFormat);
+        mStallsByRung = new int[mTest.getLadderCount()];
+        for (int index = 0; index < mTest.getLadderCount(); index++) {
+            try {
+                Test test = TestDefinitionHelper.updateBasicSettings(rungTest(mTest, index));
+                mRungs.add(new FanoutRung(test, index, mBacklogLock));
+            } catch (RuntimeException e) {
+                return "Rung " + index + ": " + e.getMessage();
+            }
+        }
+        // The first rung also records the decoding
+        mStats = mRungs.get(0).getStatistics();
+
+        try {
+            mStats.pushTimestamp("decoder.create");
+            mDecoder = CodecCache.getCache().getDecoder(mTest, inputFormat, surface);
+            mStats.pushTimestamp("decoder.create");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return "Failed to create decoder";
+        }
+        for (FanoutRung rung : mRungs) {
+            String status = rung.create(surface);
+            if (status.length() > 0) {
+                return status;
+            }
+        }
+
+        mReferenceFrameRate = mTest.getInput().getFramerate();
+        mFrameRate = mReferenceFrameRate;
+        mFrameTimeUsec = calculateFrameTimingUsec(mReferenceFrameRate);
+
+        TestDefinitionHelper.setDecoderConfigureParams(mTest, inputFormat);
+        mDecoder.setCallback(new DecoderCallbackHandler() {
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec codec, @NonNull MediaFormat format) {
+                super.onOutputFormatChanged(codec, format);
+                updateDecoderLayout(format);
+            }
+        });
+        try {
+            if (surface) {
+                int width = inputFormat.getInteger(MediaFormat.KEY_WIDTH);
+                int height = inputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+                mOutputMult.setRealtime(mRealtime);
+                mOutputMult.confirmSize(width, height);
+                mOutputMult.setName("FT_" + mTest.getInput().getFilepath() + "_rungs-" + mRungs.size());
+                for (FanoutRung rung : mRungs) {
+                    String status = rung.configure(inputFormat, mOutputMult);
+                    if (status.length() > 0) {
+                        return status;
+                    }
+                }
+                mSurface = mOutputMult.getInputSurface();
+                if (mSurface == null) {
+                    mSurfaceTexture = new SurfaceTexture(false);
+                    mSurface = new Surface(mSurfaceTexture);
+                }
+            } else {
+                int defaultColor = TestDefinitionHelper.buildMediaFormat(mRungs.get(0).mTest)
+                        .getInteger(MediaFormat.KEY_COLOR_FORMAT);
+                int color = getMatchingColor(defaultColor);
+                if (color == -1) {
+                    return "No color format shared by the decoder and all rungs";
+                }
+                inputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT, color);
+                mDecoderColorFormat = color;
+            }
+            mStats.pushTimestamp("decoder.configure");
+            mDecoder.configure(inputFormat, mSurface, null, 0);
+            mStats.pushTimestamp("decoder.configure");
+            mStats.pushTimestamp("decoder.start");
+            mDecoder.start();
+            mStats.pushTimestamp("decoder.start");
+
+            if (!surface) {
+                updateDecoderLayout(mDecoder.getOutputFormat());
+                int color = inputFormat.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+                for (FanoutRung rung : mRungs) {
+                    String status = rung.configure(inputFormat, mDecoder.getOutputFormat(), color);
+                    if (status.length() > 0) {
+                        return status;
+                    }
+                }
+            }
+            for (FanoutRung rung : mRungs) {
+                String status = rung.startCodec(mDecoder);
+                if (status.length() > 0) {
+                    return status;
+                }
+            }
+        } catch (MediaCodec.CodecException cex) {
+            Log.e(TAG, "Configure failed: " + cex.getMessage());
+            return "Failed to create codec";
+        }
+
+        waitForSynchronizedStart();
+        Log.d(TAG, mTest.getCommon().getId() + " - Start source reader");
+        mSourceReader.start();
+        try {
+            mSourceReader.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            return "Interrupted exception.";
+        } finally {
+            Log.d(TAG, mTest.getCommon().getId() + " - Stop activity before ending");
+            stopAllActivity();
+        }
+        return "";
+    }
+
+    private MediaFormat openInput() {
+        mUseInternalDemux = mTest.hasTestSetup() && mTest.getTestSetup().hasInternalDemuxer() &&
+                mTest.getTestSetup().getInternalDemuxer();
+        MediaFormat inputFormat = null;
+        if (mUseInternalDemux) {
+            mDemuxer = new Demuxer(mTest.getInput().getFilepath());
+            try {
+                if (!mDemuxer.initialize()) {
+                    Log.e(TAG, "Failed to initialize internal demuxer");
+                    return null;
+                }
+                inputFormat = MediaFormat.createVideoFormat(
+                        mDemuxer.isHEVC() ? MediaFormat.MIMETYPE_VIDEO_HEVC : MediaFormat.MIMETYPE_VIDEO_AVC,
+                        mDemuxer.getWidth(),
+                        mDemuxer.getHeight());
+                byte[] csd = mDemuxer.getCodecSpecificData();
+                if (csd != null && csd.length > 0) {
+                    inputFormat.setByteBuffer("csd-0", ByteBuffer.wrap(csd));
+                }
+                if (mDemuxer.getFrameRate() > 0) {
+                    inputFormat.setFloat(MediaFormat.KEY_FRAME_RATE, mDemuxer.getFrameRate());
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to initialize internal demuxer: " + e.getMessage());
+                mDemuxer.close();
+                mDemuxer = null;
+                return null;
+            }
+        } else {
+            mExtractor = new MediaExtractor();
+            try {
+                mExtractor.setDataSource(mTest.getInput().getFilepath());
+                int sourceTrack = 0;
+                for (int track = 0; track < mExtractor.getTrackCount(); track++) {
+                    MediaFormat format = mExtractor.getTrackFormat(track);
+                    if (format.containsKey(MediaFormat.KEY_MIME) &&
+                            format.getString(MediaFormat.KEY_MIME).toLowerCase(Locale.US).contains("video")) {
+                        sourceTrack = track;
+                    }
+                }
+                mExtractor.selectTrack(sourceTrack);
+                inputFormat = mExtractor.getTrackFormat(sourceTrack);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to initialize extractor: " + e.getMessage());
+                mExtractor.release();
+                mExtractor = null;
+                return null;
+            }
+        }
+        Log.d(TAG, "Check parsed input format:");
+        logMediaFormat(inputFormat);
+        return inputFormat;
+    }
+
+    /**
+     * Ladders with rungs of several resolutions, or of another resolution than the input,
+     * need surface mode where the frames are scaled when rendered.
+     */
+    static boolean needsScaling(Test test) {
+        String resolution = test.getInput().getResolution();
+        for (int index = 0; index < test.getLadderCount(); index++) {
+            String rung = rungTest(test, index).getConfigure().getResolution();
+            if (rung.length() == 0) {
+                continue;
+            }
+            if (resolution.length() == 0) {
+                resolution = rung;
+            } else if (!rung.equals(resolution)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // In buffer mode all rungs have the input resolution
+    private void updateDecoderLayout(MediaFormat format) {
+        FanoutRung first = mRungs.get(0);
+        mDecoderStride = format.containsKey(MediaFormat.KEY_STRIDE) ?
+                format.getInteger(MediaFormat.KEY_STRIDE) : first.mWidth;
+        mDecoderSliceHeight = format.containsKey(MediaFormat.KEY_SLICE_HEIGHT) ?
+                format.getInteger(MediaFormat.KEY_SLICE_HEIGHT) : first.mHeight;
+        if (format.containsKey(MediaFormat.KEY_COLOR_FORMAT)) {
+            mDecoderColorFormat = format.getInteger(MediaFormat.KEY_COLOR_FORMAT);
+        }
+    }
+
+    /**
+     * A color format the decoder can output and all rungs can encode, preferred if possible.
+     */
+    private int getMatchingColor(int preferred) {
+        MediaCodecInfo decInfo = mDecoder.getCodecInfo();
+        int[] decColors = decInfo.getCapabilitiesForType(decInfo.getSupportedTypes()[0]).colorFormats;
+        int match = -1;
+        for (int color : decColors) {
+            boolean shared = true;
+            for (FanoutRung rung : mRungs) {
+                MediaCodecInfo encInfo = rung.getCodec().getCodecInfo();
+                boolean found = false;
+                for (int encColor : encInfo.getCapabilitiesForType(encInfo.getSupportedTypes()[0]).colorFormats) {
+                    found |= (encColor == color);
+                }
+                shared &= found;
+            }
+            if (shared) {
+                if (color == preferred) {
+                    return color;
+                }
+                if (match == -1) {
+                    match = color;
+                }
+            }
+        }
+        if (match == -1)
+            Log.e(TAG, "Failed to find a matching pixel format");
+        return match;
+    }
+
+    public void setDecoderRuntimeParameters(int frame) {
+        if (mDecoderRuntimeSchedule == null) return;
+        Bundle bundle = mDecoderRuntimeSchedule.getParameters(frame);
+        if (bundle != null && mDecoder != null) {
+            mDecoder.setParameters(bundle);
+        }
+    }
+
+    public void writeToBuffer(@NonNull MediaCodec codec, int index, boolean encoder) {
+        // Only the decoder, the rungs handle their encoders
+        mSourceReader.addBuffer(index);
+    }
+
+    public void readFromBuffer(@NonNull MediaCodec codec, int index, boolean encoder, MediaCodec.BufferInfo info) {
+        if (!MainActivity.isStable()) {
+            codec.releaseOutputBuffer(index, false);
+            return;
+        }
+        long timestamp = info.presentationTimeUs;
+        mStats.stopDecodingFrame(timestamp);
+        if (mFirstFrameTimestampUsec < 0) {
+            mFirstFrameTimestampUsec = timestamp;
+        }
+        mInFramesCount++;
+        long first = (long) mFirstFrameTimestampUsec;
+        long ptsUsec = mPts + (timestamp - first);
+        mCurrentTimeSec = (timestamp - first) / 1000000.0;
+
+        if (mOutputMult != null) {
+            for (FanoutRung rung : mRungs) {
+                rung.dropNext(!rung.keepFrame(mInFramesCount, first));
+            }
+            mFramesAdded++;
+            mOutputMult.newFrameAvailableInBuffer(codec, index, info, mInFramesCount, null);
+            return;
+        }
+
+        List<FanoutRung> keeping = new ArrayList<>(mRungs.size());
+        for (FanoutRung rung : mRungs) {
+            if (rung.keepFrame(mInFramesCount, first)) {
+                keeping.add(rung);
+            }
+        }
+        // Released right away if no rung keeps it
+        SharedFrame frame = new SharedFrame(codec, index, info, keeping.size());
+        if (keeping.isEmpty()) {
+            mSkipped++;
+            return;
+        }
+        mFramesAdded++;
+        for (FanoutRung rung : keeping) {
+            rung.queueFrame(frame, ptsUsec, mInFramesCount, mDecoderStride, mDecoderSliceHeight,
+                    mDecoderColorFormat);
+        }
+    }
+
+    /**
+     * Waits while any rung is behind, at most WAIT_TIME_SHORT_MS so an encoder holding
+     * frames back cannot stop the test.
+     */
+    private void awaitRungs() {
+        long startNs = 0;
+        synchronized (mBacklogLock) {
+            while (!mDone) {
+                FanoutRung slowest = null;
+                for (FanoutRung rung : mRungs) {
+                    if (rung.getBacklog() >= MAX_BACKLOG_FRAMES &&
+                            (slowest == null || rung.getBacklog() > slowest.getBacklog())) {
+                        slowest = rung;
+                    }
+                }
+                if (slowest == null) {
+                    break;
+                }
+                long now = ClockTimes.currentTimeNs();
+                if (startNs == 0) {
+                    startNs = now;
+                    mStallsByRung[slowest.getIndex()]++;
+                } else if (now - startNs > WAIT_TIME_SHORT_MS * 1000000L) {
+                    Log.w(TAG, "Rung " + slowest.getIndex() + " not draining, backlog: " + slowest.getBacklog());
+                    break;
+                }
+                try {
+                    mBacklogLock.wait(WAIT_TIME_SHORT_MS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        if (startNs > 0) {
+            mStalls++;
+            mStallTimeNs += ClockTimes.currentTimeNs() - startNs;
+        }
+    }
+
+    /**
+     * Waits at most WAIT_TIME_SHORT_MS for the rungs to encode the frames they were given,
+     * the rungs notify mBacklogLock for every encoded frame.
+     */
+    private void awaitRungsDrained() {
+        long deadlineNs = ClockTimes.currentTimeNs() + WAIT_TIME_SHORT_MS * 1000000L;
+        synchronized (mBacklogLock) {
+            while (true) {
+                int backlog = 0;
+                for (FanoutRung rung : mRungs) {
+                    backlog = Math.max(backlog, rung.getBacklog());
+                }
+                long waitMs = (deadlineNs - ClockTimes.currentTimeNs()) / 1000000L;
+                if (backlog <= 0 || waitMs <= 0) {
+                    break;
+                }
+                try {
+                    mBacklogLock.wait(waitMs);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private class SourceReader extends Thread {
+        private final IndexQueue mDecoderBuffers = new IndexQueue(MAX_OUTPUT_BUFFERS);
+
+        @Override
+        public void run() {
+            ThreadCpuSampler.registerThread("source_reader", mTest.getCommon().getId());
+            // A decoder buffer left empty, kept since only the callback offers to the queue
+            int spare = -1;
+            while (!mDone) {
+                int index = spare;
+                spare = -1;
+                if (index < 0) {
+                    index = mDecoderBuffers.poll(WAIT_TIME_SHORT_MS * 1000000L);
+                }
+                if (index < 0) {
+                    continue;
+                }
+                if (mInFramesCount % 100 == 0 && MainActivity.isStable()) {
+                    Log.d(TAG, mTest.getCommon().getId() + " frames: " + mFramesAdded +
+                            " inframes: " + mInFramesCount +
+                            " current_loop: " + mCurrentLoop +
+                            " current_time: " + mCurrentTimeSec +
+                            " stalls: " + mStalls);
+                }
+                ByteBuffer buffer = mDecoder.getInputBuffer(index);
+                int size;
+                int flags = 0;
+                long ptsUsec = 0;
+                if (mUseInternalDemux) {
+                    Demuxer.Frame frame = new Demuxer.Frame();
+                    if (mDemuxer.getNextFrame(frame)) {
+                        buffer.clear();
+                        buffer.put(frame.data);
+                        size = frame.size;
+                        ptsUsec = frame.timestamp + mPtsOffset;
+                        flags = frame.isKeyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                    } else {
+                        size = -1;
+                    }
+                } else {
+                    size = mExtractor.readSampleData(buffer, 0);
+                    flags = mExtractor.getSampleFlags();
+                    ptsUsec = mExtractor.getSampleTime() + mPtsOffset;
+                }
+
+                if (doneReading(mTest, null, mInFramesCount, mCurrentTimeSec, false)) {
+                    mDone = true;
+                    continue;
+                }
+                setDecoderRuntimeParameters(mInFramesCount);
+                awaitRungs();
+                if (mRealtime) {
+                    sleepUntilNextFrame();
+                }
+                if (size > 0) {
+                    mStats.startDecodingFrame(ptsUsec, size, flags);
+                    try {
+                        mDecoder.queueInputBuffer(index, 0, size, ptsUsec, flags);
+                    } catch (IllegalStateException ise) {
+                        // Ignore this
+                    }
+                } else {
+                    spare = index;
+                }
+
+                boolean eof;
+                if (mUseInternalDemux) {
+                    eof = mDemuxer.isEOS();
+                } else {
+                    eof = !mExtractor.advance();
+                }
+                if (eof) {
+                    if (mUseInternalDemux) {
+                        mDemuxer.reset();
+                    } else {
+                        mExtractor.seekTo(0, MediaExtractor.SEEK_TO_CLOSEST_SYNC);
+                    }
+                    mCurrentLoop++;
+                    if (ptsUsec > mLastPtsUs) {
+                        mPtsOffset = ptsUsec;
+                    } else {
+                        mPtsOffset = mLastPtsUs;
+                        ptsUsec = mPtsOffset;
+                    }
+                    Log.d(TAG, "*** Loop ended starting " + mCurrentLoop + " - currentTime " + mCurrentTimeSec + " ***");
+                    if (doneReading(mTest, null, mInFramesCount, mCurrentTimeSec, true)) {
+                        mDone = true;
+                    }
+                }
+                mLastPtsUs = ptsUsec;
+            }
+        }
+
+        public void addBuffer(int id) {
+            if (!mDecoderBuffers.offer(id)) {
+                Log.e(TAG, "Decoder input queue full");
+            }
+        }
+    }
+
+    public void stopAllActivity() {
+        synchronized (mStopLock) {
+            if (mStopped) {
+                return;
+            }
+            mStopped = true;
+            if (mStats != null && mStats.getDecodedFrameCount() > mStats.getEncodedFrameCount()) {
+                Log.d(TAG, "Give me a sec, waiting for last encodings dec: " + mStats.getDecodedFrameCount() + " > enc: " + mStats.getEncodedFrameCount());
+                awaitRungsDrained();
+            }
+            mDone = true;
+            synchronized (mBacklogLock) {
+                mBacklogLock.notifyAll();
+            }
+            StringBuilder stalls = new StringBuilder();
+            for (FanoutRung rung : mRungs) {
+                rung.stopAllActivity();
+                stalls.append(" ").append(mStallsByRung[rung.getIndex()]);
+            }
+            Log.d(TAG, String.format(Locale.US, "%s - Fan-out done, %d rungs, read stalls: %d (%.1f ms), by rung:%s",
+                    mTest.getCommon().getId(), mRungs.size(), mStalls, mStallTimeNs / 1e6, stalls));
+
+            try {
+                if (mDecoder != null) {
+                    mDecoder.flush();
+                    mDecoder.stop();
+                    CodecCache.getCache().release(mDecoder);
+                    mDecoder = null;
+                }
+            } catch (IllegalStateException iex) {
+                Log.e(TAG, "Illegal state Failed to shut down decoder: " + iex.getMessage());
+            }
+            if (mOutputMult != null) {
+                mOutputMult.stopAndRelease();
+            }
+            if (mSurfaceTexture != null) {
+                mSurfaceTexture.release();
+            }
+            if (mExtractor != null)
+                mExtractor.release();
+            if (mDemuxer != null)
+                mDemuxer.close();
+            mDataWriter.stopWriter();
+        }
+    }
+
+    public void release() {
+        Log.d(TAG, "Release output for " + mTest.getCommon().getId() +
+                " frames: " + mFramesAdded +
+                " inframes: " + mInFramesCount +
+                " current_loop: " + mCurrentLoop +
+                " current_time: " + mCurrentTimeSec);
+    }
+}
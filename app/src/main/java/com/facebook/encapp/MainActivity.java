@@ -29,19 +29,25 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
+import com.facebook.encapp.proto.Capacity;
 import com.facebook.encapp.proto.Test;
 import com.facebook.encapp.proto.TestSuite;
 import com.facebook.encapp.proto.TestSetup;
 import com.facebook.encapp.utils.BatteryStatusListener;
 import com.facebook.encapp.utils.CameraSource;
+import com.facebook.encapp.utils.CapacitySearch;
 import com.facebook.encapp.utils.CliSettings;
 import com.facebook.encapp.utils.CodecCache;
 import com.facebook.encapp.utils.MediaCodecInfoHelper;
 import com.facebook.encapp.utils.MemoryLoad;
 import com.facebook.encapp.utils.OutputMultiplier;
 import com.facebook.encapp.utils.PowerLoad;
+import com.facebook.encapp.utils.RepetitionStats;
 import com.facebook.encapp.utils.SizeUtils;
 import com.facebook.encapp.utils.Statistics;
+import com.facebook.encapp.utils.TestScheduler;
+import com.facebook.encapp.utils.ThreadCpuSampler;
+import com.facebook.encapp.utils.TraceEvents;
 import com.facebook.encapp.utils.VsyncHandler;
 import com.facebook.encapp.utils.grafika.Texture2dProgram;
 import com.google.protobuf.TextFormat;
@@ -58,36 +64,45 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Stack;
 import java.util.Vector;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class MainActivity extends AppCompatActivity implements BatteryStatusListener {
     private final static String TAG = "encapp.main";
-    private static boolean mStable = false;
+    private static volatile boolean mStable = false;
     private final Object mTestLockObject = new Object();
     int mUIHoldtimeSec = 0;
-    boolean mPursuitOver = false;
+    volatile boolean mPursuitOver = false;
 
     // TODO: make these to run when configured to capture and always
     MemoryLoad mMemLoad;
     PowerLoad mPowerLoad;
 
     Stack<Encoder> mEncoderList = new Stack<>();
+    // Repeated tests by id
+    final HashMap<String, RepetitionStats> mRepetitions = new HashMap<>();
     CameraSource mCameraSource = null;
     OutputMultiplier mCameraSourceMultiplier;
     Vector<OutputAndTexture> mViewsToDraw = new Vector<>();
     int mCameraMaxWidth = -1;
     int mCameraMaxHeight = -1;
-    boolean mLayoutDone = false;
+    final CountDownLatch mLayoutDone = new CountDownLatch(1);
     TableLayout mTable;
     TextView mLogText = null;
     int mCameraCount = 0;
+    boolean mCameraStarted = false;
     private Bundle mExtraData;
     private int mInstancesRunning = 0;
     VsyncHandler mVsyncHandler;
     final static int WAIT_TIME_MS = 5000;
+    // Tests are aborted after this, or four times their length if it is known
+    final static long TEST_TIMEOUT_MS = 30 * 60 * 1000;
+    final static long TEST_TIMEOUT_MIN_MS = 60 * 1000;
     final static long CHARGE_WAIT_TIME_MS = 1 * 60 * 1000;// X minutes
     private static List<String> VIDEO_ENCODED_EXTENSIONS = Arrays.asList("mp4", "webm", "mkv");
     private boolean  mPowerLow = false;
@@ -183,6 +198,12 @@ public class MainActivity extends AppCompatActivity implements BatteryStatusList
         if (mExtraData != null && mExtraData.containsKey(CliSettings.ENABLE_TRACING)) {
             CliSettings.setEnableTracing(mExtraData.getBoolean(CliSettings.ENABLE_TRACING, false));
         }
+        if (mExtraData != null && mExtraData.containsKey(CliSettings.OUTPUT_WAIT)) {
+            CliSettings.setOutputWaitStrategy(mExtraData.getString(CliSettings.OUTPUT_WAIT));
+        }
+        if (mExtraData != null && mExtraData.containsKey(CliSettings.CODEC_POOL)) {
+            CodecCache.getCache().setMaxIdle(mExtraData.getInt(CliSettings.CODEC_POOL));
+        }
 
         boolean useNewMethod = true;
         if (mExtraData != null && mExtraData.size() > 0) {
@@ -277,8 +298,8 @@ public class MainActivity extends AppCompatActivity implements BatteryStatusList
         mMemLoad.stop();
         mPowerLoad.stop();
         finishAndRemoveTask();
-        Process.killProcess(Process.myPid());
         CodecCache.getCache().clearCodecs();
+        Process.killProcess(Process.myPid());
         Log.d(TAG, "EXIT");
     }
 
@@ -403,6 +424,7 @@ public class MainActivity extends AppCompatActivity implements BatteryStatusList
                     Log.d(TAG, "No test case");
                     return;
                 }
+                CodecCache.getCache().prewarm(test_suite);
 
                 // Get test setup params
                 // cli have preference
@@ -445,167 +467,9 @@ public class MainActivity extends AppCompatActivity implements BatteryStatusList
                         }
                     }
                 }
-                boolean cameraStarted = false;
-                int pursuit = -1;// TODO: pursuit
-                while (!mPursuitOver) {
-                    Log.d(TAG, "** Starting tests, " + test_suite.getTestCount() +
-                            " number of combinations (parallels not counted) **");
-                    for (Test test : test_suite.getTestList()) {
-                        // Do not start if power level is low
-                        if (test.hasTestSetup() && test.getTestSetup().getIgnorePowerStatus()) {
-                            Log.w(TAG, "Power level checks are overridden. Measurements will run regardless of power status.");
-                        } else {
-                            synchronized (mPowerMonitor) {
-                                while (mPowerLow) {
-                                    try {
-                                        Log.d(TAG, "Power is low wait");
-                                        mPowerMonitor.wait(CHARGE_WAIT_TIME_MS);
-                                    } catch (InterruptedException e) {
-                                        Log.e(TAG, "Wait failed: " + e.getMessage());
-                                        return;
-                                    }
-                                }
-                            }
-                        }
-
-                        Log.d(TAG, test.getCommon().getId() + " starting, current power percentage: " + mPowerLoad.getCurrentPowerPercentage() + " %, mWh: " + mPowerLoad.getSnapshot().getCapacitynWh());
-                        mCameraCount = 0; // All used should have been closed already
-                        if (pursuit > 0) pursuit -= 1;
-                        pursuit = test.getInput().getPursuit();
-                        mPursuitOver = false;
-                        Log.d(TAG, "pursuit: " + pursuit);
-                        while (!mPursuitOver) {
-                            if (pursuit > 0) pursuit -= 1;
-
-
-                            if (pursuit == 0) {
-                                mPursuitOver = true;
-                            }
-
-                            Stack<Thread> threads = new Stack<>();
-                            Thread currentRunningThread = startTest(test, threads);
-
-                            Log.d(TAG, "Started the test, check camera: " + mCameraCount);
-                            if (mCameraCount > 0 && !cameraStarted) {
-                                Log.d(TAG, "Start cameras");
-                                Surface outputSurface = null;
-                                while (outputSurface == null) {
-                                    Log.d(TAG, "Wait for input surface");
-
-                                    outputSurface = mCameraSourceMultiplier.getInputSurface();
-                                    try {
-                                        Thread.sleep(50);
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
-                                    }
-                                }
-                                //Use max size, get from camera or test
-                                mCameraSource.registerSurface(outputSurface, 1280, 720);
-                                if (test.getInput().hasFramerate())
-                                    mCameraSource.setFps(test.getInput().getFramerate());
-                                Log.d(TAG, "Start camera source");
-                                CameraSource.start();
-                                cameraStarted = true;
-                            }
-                            // Start them all
-                            for (Encoder enc : mEncoderList) {
-                                synchronized (enc) {
-                                    Log.d(TAG, "Start codec: " + enc);
-                                    enc.notifyAll();
-                                }
-                            }
-                            Log.d(TAG, "Start codecs");
-                            // Start them all
-                            // Wait for stable conditions
-                            int stableCounter = 0;
-                            while (stableCounter < mEncoderList.size()) {
-                                int count = 0;
-
-                                for (Encoder enc : mEncoderList) {
-                                    if (enc.isStable() || !enc.mTest.getInput().getShow()) {
-                                        count++;
-                                    }
-                                }
-                                stableCounter = count;
-                            }
-                            Log.d(TAG, "Check views and layout done: " + mViewsToDraw.size() + " - " + mLayoutDone);
-                            while (mViewsToDraw.size() > 0 && !mLayoutDone) {
-                                try {
-                                    Log.d(TAG, "Wait for layout to be made");
-                                    Thread.sleep(100);
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-
-                            mStable = true;
-                            Log.d(TAG, "\n\n*** All inputs stable - go on!   ***\n\n");
-                            Log.d(TAG, "pursuit = " + pursuit);
-                            if (pursuit != 0) {
-                                Log.d(TAG, "pursuit sleep, instances: " + mInstancesRunning);
-                                try {
-                                    Thread.sleep(100);
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                            } else {
-                                try {
-                                    // Run next test serially so wait for this test
-                                    // and all parallels to be finished first
-                                    if (currentRunningThread != null) {
-                                        Log.d(TAG, "Join " + currentRunningThread.getName() + ", state = " + currentRunningThread.getState());
-                                        currentRunningThread.join();
-                                    }
-                                    while (!threads.empty()) {
-                                        try {
-                                            for (Thread t_: threads) {
-                                                Log.d(TAG, "Thread: " + t_.getName() + " - state: " + t_.getState());
-                                            }
-                                            Thread p = threads.pop();
-                                            Log.d(TAG, "Join " + p.getName() + ", state = " + p.getState() + ", threads: " + threads.size());
-                                            // Most of the time all parallel tests are run the same time length, assuming this we can catch
-                                            // some errors here
-                                            p.join(WAIT_TIME_MS);
-                                            if (p.getState() == Thread.State.WAITING ||
-                                                p.getState() == Thread.State.TIMED_WAITING ||
-                                                p.getState() == Thread.State.BLOCKED) {
-                                                Log.d(TAG, p.getName() + " is still waiting (" + p.getState() + ").\nThis is probably not correct.\nTry to release");
-                                                for (Encoder coder: mEncoderList) {
-                                                    Log.d(TAG, "Force release");
-                                                    coder.stopAllActivity();
-                                                    coder.release();
-                                                }
-                                                if (p.getState() == Thread.State.WAITING ||
-                                                        p.getState() == Thread.State.TIMED_WAITING ||
-                                                        p.getState() == Thread.State.BLOCKED) {
-                                                    Log.d(TAG, p.getName() + " is still stuck");
-                                                    p.interrupt();
-                                                }
-
-                                                decreaseTestsInflight(); //????
-                                            }
-                                        } catch (InterruptedException e) {
-                                            e.printStackTrace();
-                                        }
-                                    }
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                }
-                            }
-
-                        }
-                    }
-                }
-                Log.d(TAG, "All tests queued up, wait for finish");
-                do {
-                    try {
-                        Thread.sleep(2000);
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
-                    }
-                    Log.d(TAG, "number of instances running:" + mInstancesRunning);
-
-                } while (mInstancesRunning > 0);
+                Log.d(TAG, "** Starting tests, " + test_suite.getTestCount() +
+                        " number of combinations (parallels not counted) **");
+                runSuite(test_suite);
                 Log.d(TAG, "Done with tests, instances: " + mInstancesRunning);
                 for (Encoder coder: mEncoderList) {
                     coder.release();
@@ -658,52 +522,290 @@ public class MainActivity extends AppCompatActivity implements BatteryStatusList
 
 
     /**
-     * Traverse list of test cases below this and starts them keeping
-     * track of all threads.
-     *
-     * @param test
-     * @param threads a lit of started test case, each has its own thread
-     * @return the thread that belong to the Test test
+     * Runs the tests on the scheduler, tests with a capacity setting are searched on their own
+     * between the others.
      */
-    public Thread startTest(Test test, Stack<Thread> threads) {
-        Log.d(TAG, "Start test: " + test.getCommon().getDescription());
+    private void runSuite(TestSuite suite) {
+        TestSuite.Builder batch = TestSuite.newBuilder();
+        for (Test test : suite.getTestList()) {
+            if (!test.hasCapacity()) {
+                int repeat = test.getCommon().getRepeat();
+                if (repeat <= 1) {
+                    batch.addTest(test);
+                    continue;
+                }
+                // Serial copies, the codecs come from the pool after the first run
+                addRepetitions(test, repeat);
+                for (int i = 0; i < repeat; i++) {
+                    batch.addTest(repetition(test, i));
+                }
+                continue;
+            }
+            if (batch.getTestCount() > 0) {
+                new TestScheduler(new SchedulerListener(null)).run(batch.build());
+                batch.clearTest();
+            }
+            runCapacitySearch(test);
+        }
+        if (batch.getTestCount() > 0) {
+            new TestScheduler(new SchedulerListener(null)).run(batch.build());
+        }
+    }
 
-        increaseTestsInflight();
-        Thread t = PerformTest(test);
+    private void addRepetitions(Test test, int repeat) {
+        synchronized (mRepetitions) {
+            mRepetitions.put(test.getCommon().getId(), new RepetitionStats(repeat));
+        }
+        for (Test parallel : test.getParallel().getTestList()) {
+            addRepetitions(parallel, repeat);
+        }
+    }
 
-        if (test.hasParallel()) {
-            for (Test parallell : test.getParallel().getTestList()) {
-                Log.d(TAG, "Sleep before other parallel");
+    // Every run writes its own output
+    private static Test repetition(Test test, int index) {
+        if (!test.getCommon().hasOutputFilename() && test.getParallel().getTestCount() == 0) {
+            return test;
+        }
+        Test.Builder builder = test.toBuilder();
+        if (test.getCommon().hasOutputFilename()) {
+            builder.getCommonBuilder().setOutputFilename(test.getCommon().getOutputFilename() + "_" + (index + 1));
+        }
+        builder.getParallelBuilder().clearTest();
+        for (Test parallel : test.getParallel().getTestList()) {
+            builder.getParallelBuilder().addTest(repetition(parallel, index));
+        }
+        return builder.build();
+    }
+
+    private void runCapacitySearch(Test test) {
+        int limit = 0;
+        if (test.getCapacity().getDimension() == Capacity.Dimension.instances) {
+            // Instances beyond the codec limit would wait for each other
+            limit = MediaCodecInfoHelper.getMaxSupportedInstances(test.getConfigure().getCodec());
+        }
+        CapacitySearch search = new CapacitySearch(test, limit);
+        search.run(probe -> {
+            List<TestTask> tasks = new ArrayList<>();
+            new TestScheduler(new SchedulerListener(tasks)).run(TestSuite.newBuilder().addTest(probe).build());
+            List<Statistics> stats = new ArrayList<>();
+            for (TestTask task : tasks) {
+                stats.add(task.mStatus.length() == 0 ? task.mCoder.getStatistics() : null);
+            }
+            return stats;
+        });
+        String filename = CliSettings.getWorkDir() + "/encapp_" + test.getCommon().getId() + CapacitySearch.REPORT_EXTENSION;
+        try (FileWriter fw = new FileWriter(filename, false)) {
+            search.writeReport(fw);
+            report_result(test.getCommon().getId(), "capacity", "ok", "");
+        } catch (IOException e) {
+            report_result(test.getCommon().getId(), "capacity", "error", e.getMessage());
+        }
+    }
+
+    /**
+     * Runs one test on the scheduler's executor, the coder is created when its group is set up.
+     */
+    private class TestTask implements TestScheduler.Task {
+        final Test mTest;
+        final Encoder mCoder;
+        volatile String mStatus = "";
+        volatile Thread mThread;
+        volatile boolean mAborted = false;
+
+        TestTask(Test test, Encoder coder) {
+            mTest = test;
+            mCoder = coder;
+        }
+
+        @Override
+        public void run() {
+            mThread = Thread.currentThread();
+            mThread.setName("TestRunner_" + mTest.getCommon().getId());
+            try {
+                String status = runTest(mTest, mCoder);
+                if (!mAborted) {
+                    mStatus = status;
+                }
+            } finally {
+                mCoder.signalDone();
+            }
+        }
+
+        @Override
+        public boolean awaitReady(long timeoutMs) throws InterruptedException {
+            return mCoder.awaitInit(timeoutMs);
+        }
+
+        @Override
+        public void start() {
+            Log.d(TAG, "Start codec: " + mCoder);
+            mCoder.signalStart();
+        }
+
+        @Override
+        public long getStartTimeNs() {
+            return mCoder.getStartTimeNs();
+        }
+
+        @Override
+        public void abort() {
+            mAborted = true;
+            mStatus = "timeout";
+            report_result(mTest.getCommon().getId(), "unknown", "error", "timeout");
+            Log.d(TAG, "Force release " + mTest.getCommon().getId());
+            mCoder.stopAllActivity();
+            mCoder.release();
+            Thread thread = mThread;
+            if (thread != null) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    private class SchedulerListener implements TestScheduler.Listener {
+        // Collects the tasks if set
+        final List<TestTask> mTasks;
+
+        SchedulerListener(List<TestTask> tasks) {
+            mTasks = tasks;
+        }
+
+        @Override
+        public TestScheduler.Task createTask(Test test) {
+            Log.d(TAG, "Start test: " + test.getCommon().getDescription());
+            Encoder coder = createCoder(test);
+            if (coder == null) {
+                return null;
+            }
+            increaseTestsInflight();
+            if (test.getInput().getFilepath().equalsIgnoreCase("camera")) {
+                mCameraCount += 1;
+            }
+            TestTask task = new TestTask(test, coder);
+            if (mTasks != null) {
+                synchronized (mTasks) {
+                    mTasks.add(task);
+                }
+            }
+            return task;
+        }
+
+        @Override
+        public void beforeGroup(Test test) {
+            // Do not start if power level is low
+            if (test.hasTestSetup() && test.getTestSetup().getIgnorePowerStatus()) {
+                Log.w(TAG, "Power level checks are overridden. Measurements will run regardless of power status.");
+            } else {
+                synchronized (mPowerMonitor) {
+                    while (mPowerLow) {
+                        try {
+                            Log.d(TAG, "Power is low wait");
+                            mPowerMonitor.wait(CHARGE_WAIT_TIME_MS);
+                        } catch (InterruptedException e) {
+                            Log.e(TAG, "Wait failed: " + e.getMessage());
+                            return;
+                        }
+                    }
+                }
+            }
+            Log.d(TAG, test.getCommon().getId() + " starting, current power percentage: " + mPowerLoad.getCurrentPowerPercentage() + " %, mWh: " + mPowerLoad.getSnapshot().getCapacitynWh());
+            RepetitionStats repetitions;
+            synchronized (mRepetitions) {
+                repetitions = mRepetitions.get(test.getCommon().getId());
+            }
+            float cooldownSec = test.getCommon().getCooldownSec();
+            if (repetitions != null && repetitions.getRuns() > 0 && cooldownSec > 0) {
+                Log.d(TAG, "Cool down for " + cooldownSec + " sec");
                 try {
-                    Thread.sleep(200);
+                    Thread.sleep((long) (cooldownSec * 1000));
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    Log.e(TAG, "Cool down interrupted");
                 }
-                Log.d(TAG, "Start parallel");
-                threads.push(startTest(parallell, threads));
             }
+            mCameraCount = 0; // All used should have been closed already
+            mPursuitOver = false;
+            Log.d(TAG, "pursuit: " + test.getInput().getPursuit());
         }
 
-        if (test.getInput().getFilepath().equalsIgnoreCase("camera")) {
-            mCameraCount += 1;
+        @Override
+        public void onGroupReady(Test test) {
+            Log.d(TAG, "Started the test, check camera: " + mCameraCount);
+            if (mCameraCount > 0 && !mCameraStarted) {
+                Log.d(TAG, "Start cameras");
+                Surface outputSurface = null;
+                while (outputSurface == null) {
+                    Log.d(TAG, "Wait for input surface");
+
+                    outputSurface = mCameraSourceMultiplier.getInputSurface();
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }
+                //Use max size, get from camera or test
+                mCameraSource.registerSurface(outputSurface, 1280, 720);
+                if (test.getInput().hasFramerate())
+                    mCameraSource.setFps(test.getInput().getFramerate());
+                Log.d(TAG, "Start camera source");
+                CameraSource.start();
+                mCameraStarted = true;
+            }
         }
-        return t;
-    }
 
-    public Thread skipTest(Test test, String logMessage) {
-        // Create a tiny thread that records the skip and finishes cleanly.
-        Thread t = new Thread(() -> {
+        @Override
+        public void onGroupStarted(Test test, List<TestScheduler.Task> tasks) {
+            // Wait for stable conditions
             try {
-                report_result(test.getCommon().getId(),
-                        "unknown",
-                        "skipped",
-                        (logMessage != null ? logMessage : "skipped"));
-            } finally {
-                decreaseTestsInflight();
+                for (TestScheduler.Task task : tasks) {
+                    Encoder coder = ((TestTask) task).mCoder;
+                    if (coder.mTest.getInput().getShow() && !coder.awaitStable(WAIT_TIME_MS)) {
+                        Log.w(TAG, coder.mTest.getCommon().getId() + " not stable");
+                    }
+                }
+                if (mViewsToDraw.size() > 0) {
+                    Log.d(TAG, "Wait for layout to be made");
+                    mLayoutDone.await(WAIT_TIME_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+
+            mStable = true;
+            Log.d(TAG, "\n\n*** All inputs stable - go on!   ***\n\n");
+        }
+
+        @Override
+        public boolean launchAgain(Test test, int launched) {
+            // Keep adding instances until one fails or the pursuit count is reached
+            int pursuit = test.getInput().getPursuit();
+            if (mPursuitOver || pursuit == 0 || (pursuit > 0 && launched >= pursuit)) {
+                mPursuitOver = true;
+                return false;
+            }
+            Log.d(TAG, "pursuit, instances: " + mInstancesRunning);
+            return true;
+        }
+
+        @Override
+        public long getTimeoutMs(Test test) {
+            // Generous, only a test that is clearly stuck is aborted
+            float durationSec = test.getInput().getStoptimeSec();
+            if (durationSec <= 0 && test.getInput().getPlayoutFrames() > 0 && test.getInput().getFramerate() > 0) {
+                durationSec = test.getInput().getPlayoutFrames() / test.getInput().getFramerate();
+            }
+            if (durationSec <= 0) {
+                return TEST_TIMEOUT_MS;
             }
-        }, "Skip " + test.getCommon().getId());
-        t.start();
-        return t;
+            return Math.max((long) (durationSec * 4000) + WAIT_TIME_MS, TEST_TIMEOUT_MIN_MS);
+        }
+
+        @Override
+        public int getCodecLimit(String codec) {
+            int limit = MediaCodecInfoHelper.getMaxSupportedInstances(codec);
+            Log.d(TAG, "Max instances of " + codec + ": " + limit);
+            return limit;
+        }
     }
 
     public void report_result(String test_name, String run_id, String result, String error_code) {
@@ -720,13 +822,12 @@ public class MainActivity extends AppCompatActivity implements BatteryStatusList
      * and if needed a surface/surfacetexture is attached
      *
      * @param test
-     * @return the thread belonging to Test test
+     * @return the coder for Test test, null if it cannot run
      */
-    private Thread PerformTest(Test test) {
+    private Encoder createCoder(Test test) {
         String filePath = test.getInput().getFilepath();
         Log.d(TAG, "Run test case, source : " + filePath);
         Log.d(TAG, "test" + test.toString());
-        Thread t;
 
         final String description = test.getCommon().getDescription();
 
@@ -738,6 +839,13 @@ public class MainActivity extends AppCompatActivity implements BatteryStatusList
         }
 
 
+        if (test.getLadderCount() > 0 && !test.getConfigure().getSurface() && FanoutTranscoder.needsScaling(test)) {
+            // Buffer mode cannot scale the shared frames
+            Log.d(TAG, "[" + test.getCommon().getId() + "] ladder with several resolutions, using surface mode");
+            Test.Builder builder = test.toBuilder();
+            builder.getConfigureBuilder().setSurface(true);
+            test = builder.build();
+        }
         Encoder coder = null;
         synchronized (mEncoderList) {
             Log.d(TAG, "[" + test.getCommon().getId() + "] input.filepath: " + filePath.toLowerCase(Locale.US));
@@ -804,9 +912,12 @@ public class MainActivity extends AppCompatActivity implements BatteryStatusList
                 Log.d(TAG, "1. LCEVC encoder");
                 coder = LcevcFactory.createEncoderOrNull(test);
                 if (coder == null) {
-                    skipTest(test, "LCEVC not available in this build");
+                    report_result(test.getCommon().getId(), "unknown", "skipped", "LCEVC not available in this build");
                     return null;
                 }
+            } else if (deviceDecode && deviceEncode && test.getLadderCount() > 0) {
+                Log.d(TAG, "8. Fan-out transcode, " + test.getLadderCount() + " rungs");
+                coder = new FanoutTranscoder(test, surface ? mult : null);
             } else if (!surface && deviceDecode && !deviceEncode) {
 
                 Log.d(TAG, "2. Simple buffer decode");
@@ -850,79 +961,95 @@ public class MainActivity extends AppCompatActivity implements BatteryStatusList
             mEncoderList.add(coder);
         }
 
-        final Encoder coder_ = coder;
-        t = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    Log.d(TAG, "Start test id: \"" + test.getCommon().getId() + "\"");
-                    final String status = coder_.start();
-                    if (status.length() == 0) {
-                        // test was ok
-                        report_result(coder_.mTest.getCommon().getId(), coder_.getStatistics().getId(), "ok", "");
-                    } else if (status.length() > 0) {
-                        report_result(coder_.mTest.getCommon().getId(), coder_.getStatistics().getId(), "error", status);
-                        //    if (test.getPursuit() == 0) { TODO: pursuit
-                        Log.d(TAG, "Pursuit over");
-                        mPursuitOver = true;
-                        //  } else {
-                        //      Assert.assertTrue(false, status);
-                        //   }
-                    }
-                    Log.d(TAG, "Instances running: " + mInstancesRunning);
-                } finally {
-                    // dump statistics
-                    final Statistics stats = coder_.getStatistics();
-                    if (stats != null) {
-                        stats.setAppVersion(getCurrentAppVersion());
-                        try {
-                            String fullFilename = CliSettings.getWorkDir() + "/" + stats.getId() + ".json";
-                            Log.d(TAG, "Write stats for " + stats.getId() + " to " + fullFilename);
-                            FileWriter fw = new FileWriter(fullFilename, false);
-                            stats.writeJSON(fw);
-                            fw.close();
-                        } catch (IOException e) {
-                            Log.e(TAG, test.getCommon().getId() + " - Error when writing stats");
-                            e.printStackTrace();
-                        }
-                    } else {
-                        Log.d(TAG, "No stats available");
-                    }
-                    decreaseTestsInflight();
-                    log("\nDone test: " + test.getCommon().getId());
-                    if (stats != null) {
-                        Log.d(TAG, "Done test: " + test.getCommon().getId() + " with stats: " + stats.getId() + ", to go: " + mInstancesRunning);
+        return coder;
+    }
 
-                    } else {
-                        Log.d(TAG, "Done test, stats failed, to go: " + mInstancesRunning);
+    private String runTest(Test test, Encoder coder) {
+        String status = "error";
+        try {
+            Log.d(TAG, "Start test id: \"" + test.getCommon().getId() + "\"");
+            ThreadCpuSampler.registerThread("test", test.getCommon().getId());
+            status = coder.start();
+            if (status.length() == 0) {
+                // test was ok
+                report_result(coder.mTest.getCommon().getId(), coder.getStatistics().getId(), "ok", "");
+            } else if (status.length() > 0) {
+                report_result(coder.mTest.getCommon().getId(), coder.getStatistics().getId(), "error", status);
+                //    if (test.getPursuit() == 0) { TODO: pursuit
+                Log.d(TAG, "Pursuit over");
+                mPursuitOver = true;
+                //  } else {
+                //      Assert.assertTrue(false, status);
+                //   }
+            }
+            Log.d(TAG, "Instances running: " + mInstancesRunning);
+        } finally {
+            // dump statistics
+            final Statistics stats = coder.getStatistics();
+            if (stats != null) {
+                stats.setAppVersion(getCurrentAppVersion());
+                RepetitionStats repetitions;
+                synchronized (mRepetitions) {
+                    repetitions = mRepetitions.get(test.getCommon().getId());
+                }
+                if (repetitions != null) {
+                    repetitions.add(stats);
+                    if (repetitions.isComplete()) {
+                        stats.setRepetitions(repetitions);
+                    }
+                }
+                writeStatistics(test, stats);
+                if (coder instanceof FanoutTranscoder) {
+                    // The first rung is the coder's own statistics
+                    List<Statistics> rungs = ((FanoutTranscoder) coder).getRungStatistics();
+                    for (int index = 1; index < rungs.size(); index++) {
+                        Statistics rung = rungs.get(index);
+                        rung.setAppVersion(getCurrentAppVersion());
+                        report_result(test.getCommon().getId(), rung.getId(), status.length() == 0 ? "ok" : "error", status);
+                        writeStatistics(test, rung);
                     }
                 }
+            } else {
+                Log.d(TAG, "No stats available");
             }
-        }, "TestRunner_" + coder_.mTest.getCommon().getId());
-        t.start();
+            decreaseTestsInflight();
+            // The next test on this thread registers it again
+            ThreadCpuSampler.unregisterThread();
+            log("\nDone test: " + test.getCommon().getId());
+            if (stats != null) {
+                Log.d(TAG, "Done test: " + test.getCommon().getId() + " with stats: " + stats.getId() + ", to go: " + mInstancesRunning);
 
-        int waitTime = 10000; //ms
-        int waitForPrevious = 50; //todo: make configurable
-        while (!coder_.initDone() && t.isAlive()) {
-            try {
-                // If we do not wait for the init to de done before starting next
-                // transcoder_ there may be issue in the surface handling on lower levels
-                // on certain hw (not thread safe)
-                Log.d(TAG, "Sleep while waiting for init to be done");
-                Thread.sleep(waitForPrevious);
-                waitTime -= waitForPrevious;
-                if (waitTime < 0) {
-                    Log.e(TAG, "Init not ready within " + waitTime + " ms, probably failure");
-                }
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            } else {
+                Log.d(TAG, "Done test, stats failed, to go: " + mInstancesRunning);
             }
         }
-
-        return t;
+        return status;
     }
 
 
+    private void writeStatistics(Test test, Statistics stats) {
+        try {
+            if (stats.isBinaryOutput()) {
+                stats.finishBinaryOutput();
+            } else {
+                String fullFilename = CliSettings.getWorkDir() + "/" + stats.getId() + ".json";
+                Log.d(TAG, "Write stats for " + stats.getId() + " to " + fullFilename);
+                FileWriter fw = new FileWriter(fullFilename, false);
+                stats.writeJSON(fw);
+                fw.close();
+            }
+            if (CliSettings.isTracingEnabled()) {
+                String traceFilename = CliSettings.getWorkDir() + "/" + stats.getId() + TraceEvents.TRACE_EXTENSION;
+                FileWriter tw = new FileWriter(traceFilename, false);
+                stats.writeTrace(tw);
+                tw.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, test.getCommon().getId() + " - Error when writing stats");
+            e.printStackTrace();
+        }
+    }
+
     public void createTable(int nbrViews, TableLayout layout) {
         //int count = nbrViews;/mViewsToDraw.size();
         int cols = 1;
@@ -963,7 +1090,7 @@ public class MainActivity extends AppCompatActivity implements BatteryStatusList
             @Override
             public void onGlobalLayout() {
                 Log.d(TAG, "Table layed out.");
-                mLayoutDone = true;
+                mLayoutDone.countDown();
             }
         });
     }
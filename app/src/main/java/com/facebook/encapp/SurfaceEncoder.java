@@ -23,6 +23,7 @@ import com.facebook.encapp.proto.PixFmt;
 import com.facebook.encapp.proto.Test;
 import com.facebook.encapp.utils.CliSettings;
 import com.facebook.encapp.utils.ClockTimes;
+import com.facebook.encapp.utils.CodecCache;
 import com.facebook.encapp.utils.FakeGLRenderer;
 import com.facebook.encapp.utils.FileReader;
 import com.facebook.encapp.utils.FpsMeasure;
@@ -101,7 +102,7 @@ class SurfaceEncoder extends Encoder implements VsyncListener {
             Log.e(TAG, "Error: " + e.getMessage());
         }
         if (mTest.hasRuntime())
-            mRuntimeParams = mTest.getRuntime();
+            setRuntimeParams(mTest.getRuntime());
 
         mFrameRate = mTest.getConfigure().getFramerate();
         mWriteFile = !mTest.getConfigure().hasEncode() || mTest.getConfigure().getEncode();
@@ -201,7 +202,7 @@ class SurfaceEncoder extends Encoder implements VsyncListener {
             }
             Log.d(TAG, "Create codec by name: " + mTest.getConfigure().getCodec());
             mStats.pushTimestamp("encoder.create");
-            mCodec = MediaCodec.createByCodecName(mTest.getConfigure().getCodec());
+            mCodec = CodecCache.getCache().getEncoder(mTest, true);
             mStats.pushTimestamp("encoder.create");
 
             format = TestDefinitionHelper.buildMediaFormat(mTest);
@@ -265,7 +266,6 @@ class SurfaceEncoder extends Encoder implements VsyncListener {
         mFpsMeasure = new FpsMeasure(mFrameRate, this.toString());
 
         mStats.pushTimestamp("encoder.start");
-        mFpsMeasure.start();
         mStats.pushTimestamp("encoder.start");
         mFrameTimeUsec = calculateFrameTimingUsec(mFrameRate);
         int current_loop = 1;
@@ -275,22 +275,14 @@ class SurfaceEncoder extends Encoder implements VsyncListener {
         // For file input, we're immediately stable (no warmup needed)
         // For fake input with GL, initialization will happen on first frame render
         if (!mIsCameraSource && mYuvReader != null) {
-            mStable = true;
+            setStable();
         } else if (mIsFakeInput && mFakeGLRenderer != null) {
             // GL renderer will be initialized on first frame (on GL thread)
-            mStable = true;
+            setStable();
             Log.i(TAG, "FakeGLRenderer ready (will init on GL thread)");
         }
 
-        synchronized (this) {
-            Log.d(TAG, "Wait for synchronized start");
-            try {
-                mInitDone = true;
-                wait(WAIT_TIME_MS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        waitForSynchronizedStart();
         mStats.start();
 
         int errorCounter = 0;
@@ -328,7 +320,7 @@ class SurfaceEncoder extends Encoder implements VsyncListener {
                                 Log.d(TAG, "Not stable, current fps: " + mFpsMeasure.getFps() + "( " +
                                         mFpsMeasure.getAverageFps() + ")");
                             } else {
-                                mStable = true;
+                                setStable();
                             }
                         } else {
                             if (mFirstFrameTimestampUsec < 0) {
@@ -411,7 +403,7 @@ class SurfaceEncoder extends Encoder implements VsyncListener {
                         }
                     }
                 }
-                mStable = true;
+                setStable();
             } catch (Exception ex) {
                 ex.printStackTrace();
             }
@@ -474,7 +466,7 @@ class SurfaceEncoder extends Encoder implements VsyncListener {
                 Log.e(TAG, "stop: IllegalStateException error");
                 ex.printStackTrace();
             }
-            mCodec.release();
+            CodecCache.getCache().release(mCodec);
         }
 
         if (mFrameSwapSurface != null) {
@@ -64,10 +64,10 @@ public class SurfaceNoEncoder extends SurfaceEncoder implements VsyncListener {
 
         mNoEncoding = true;
         Log.d(TAG, "**** Surface Decode, no encode ***");
-        mStable = true;
+        setStable();
 
         if (mTest.hasRuntime())
-            mRuntimeParams = mTest.getRuntime();
+            setRuntimeParams(mTest.getRuntime());
         if (mTest.hasDecoderRuntime())
             mDecoderRuntimeParams = mTest.getDecoderRuntime();
 
@@ -107,15 +107,7 @@ public class SurfaceNoEncoder extends SurfaceEncoder implements VsyncListener {
 
         mFrameTimeUsec = calculateFrameTimingUsec(mFrameRate);
         MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        synchronized (this) {
-            Log.d(TAG, "Wait for synchronized start");
-            try {
-                mInitDone = true;
-                wait(WAIT_TIME_MS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        waitForSynchronizedStart();
         mStats.start();
         boolean done = false;
 
@@ -148,7 +140,7 @@ public class SurfaceNoEncoder extends SurfaceEncoder implements VsyncListener {
                         mStats.startDecodingFrame(time, 0, 0);
                     }
                     long timestampUsec = mOutputMult.awaitNewImage() / 1000;  //To Usec
-                    mStable = true;
+                    setStable();
                     if (lastPtsUsec >= 0)
                         mStats.stopDecodingFrame(time);
                     lastPtsUsec = timestampUsec;
@@ -16,9 +16,6 @@ import android.util.Size;
 import android.view.Surface;
 import androidx.annotation.NonNull;
 
-import com.facebook.encapp.proto.DataValueType;
-import com.facebook.encapp.proto.DecoderRuntime;
-import com.facebook.encapp.proto.Parameter;
 import com.facebook.encapp.proto.Test;
 import com.facebook.encapp.utils.ClockTimes;
 import com.facebook.encapp.utils.CodecCache;
@@ -28,9 +25,11 @@ import com.facebook.encapp.utils.FrameInfo;
 import com.facebook.encapp.utils.FrameswapControl;
 import com.facebook.encapp.utils.MediaCodecInfoHelper;
 import com.facebook.encapp.utils.OutputMultiplier;
+import com.facebook.encapp.utils.RuntimeSchedule;
 import com.facebook.encapp.utils.SizeUtils;
 import com.facebook.encapp.utils.Statistics;
 import com.facebook.encapp.utils.TestDefinitionHelper;
+import com.facebook.encapp.utils.ThreadCpuSampler;
 import com.facebook.encapp.utils.VsyncHandler;
 
 import java.io.IOException;
@@ -48,7 +47,7 @@ public class SurfaceTranscoder extends SurfaceEncoder {
     Demuxer mDemuxer;
     MediaCodec mDecoder;
     boolean mUseInternalDemux = false;
-    DecoderRuntime mDecoderRuntimeParams;
+    RuntimeSchedule mDecoderRuntimeSchedule;
     double mLoopTime = 0;
     int mCurrentLoop = 1;
     long mPtsOffset = 0;
@@ -71,15 +70,15 @@ public class SurfaceTranscoder extends SurfaceEncoder {
         }
         if (mNoEncoding) {
             Log.d(TAG, "**** Surface Decode, no encode ***");
-            mStable = true;
+            setStable();
         } else {
             Log.d(TAG, "**** Surface Transcode - " + mTest.getCommon().getDescription() + " ***");
         }
 
         if (mTest.hasRuntime())
-            mRuntimeParams = mTest.getRuntime();
+            setRuntimeParams(mTest.getRuntime());
         if (mTest.hasDecoderRuntime())
-            mDecoderRuntimeParams = mTest.getDecoderRuntime();
+            mDecoderRuntimeSchedule = RuntimeSchedule.compile(mTest.getDecoderRuntime());
         if (mTest.hasTestSetup()) {
             // Default is that we should throttle from the start. Setting this to false means that
             // we are waiting for the first frame to arrive before throttling.
@@ -176,17 +175,8 @@ public class SurfaceTranscoder extends SurfaceEncoder {
                 Log.e(TAG, "no input format");
                 return "no input format";
             }
-            // Allow explicit decoder only for non encoding tests (!?)
-            String description = inputFormat.getString(MediaFormat.KEY_MIME);
-            if (mTest.getDecoderConfigure().hasCodec()) {
-                description = mTest.getDecoderConfigure().getCodec();
-            }
             mStats.pushTimestamp("decoder.create");
-            // TODO: check decoder settings
-            mDecoder = CodecCache.getCache().getDecoder(description);
-            if (mDecoder == null) {
-                mDecoder = CodecCache.getCache().createDecoder(mTest, inputFormat);
-            }
+            mDecoder = CodecCache.getCache().getDecoder(mTest, inputFormat, true);
             mStats.pushTimestamp("decoder.create");
 
         } catch (IOException e) {
@@ -231,11 +221,7 @@ public class SurfaceTranscoder extends SurfaceEncoder {
         try {
             if (!mNoEncoding) {
                 mStats.pushTimestamp("encoder.create");
-                //TODO: check settings
-                mCodec = CodecCache.getCache().getEncoder(mTest.getConfigure().getCodec());
-                if (mCodec == null) {
-                    mCodec = CodecCache.getCache().createEncoder(mTest);
-                }
+                mCodec = CodecCache.getCache().getEncoder(mTest, true);
                 mStats.pushTimestamp("encoder.create");
             } else {
                 mStats.setCodec(Statistics.NA);
@@ -337,15 +323,7 @@ public class SurfaceTranscoder extends SurfaceEncoder {
             return "Failed to create codec";
         }
         mFrameTimeUsec = calculateFrameTimingUsec(mFrameRate);
-        synchronized (this) {
-            Log.d(TAG, "Wait for synchronized start");
-            try {
-                mInitDone = true;
-                wait(WAIT_TIME_MS);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
+        waitForSynchronizedStart();
 
         Log.d(TAG, mTest.getCommon().getId() + " - Start source reader");
         mSourceReader.start();
@@ -365,35 +343,9 @@ public class SurfaceTranscoder extends SurfaceEncoder {
 
 
     public void setDecoderRuntimeParameters(Test mTest, int frame) {
-        // go through all runtime settings and see which are due
-        if (mDecoderRuntimeParams == null) return;
-        Bundle bundle = new Bundle();
-
-        for (Parameter param : mDecoderRuntimeParams.getParameterList()) {
-            if (param.getFramenum() == frame) {
-                switch (param.getType().getNumber()) {
-                    case DataValueType.floatType_VALUE:
-                        float fval = Float.parseFloat(param.getValue());
-                        bundle.putFloat(param.getKey(), fval);
-                        break;
-                    case DataValueType.intType_VALUE:
-                        int ival = TestDefinitionHelper.magnitudeToInt(param.getValue());
-                        bundle.putInt(param.getKey(), ival);
-                        break;
-                    case DataValueType.longType_VALUE:
-                        long lval = Long.parseLong(param.getValue());
-                        bundle.putLong(param.getKey(), lval);
-                        break;
-                    case DataValueType.stringType_VALUE:
-                        bundle.putString(param.getKey(), param.getValue());
-                        break;
-                    default:
-                        ///Should not be here
-                }
-            }
-        }
-
-        if (bundle.keySet().size() > 0 && mDecoder != null) {
+        if (mDecoderRuntimeSchedule == null) return;
+        Bundle bundle = mDecoderRuntimeSchedule.getParameters(frame);
+        if (bundle != null && mDecoder != null) {
             mDecoder.setParameters(bundle);
         }
     }
@@ -524,6 +476,7 @@ public class SurfaceTranscoder extends SurfaceEncoder {
         public void run() {
             Dictionary<String, Object> latestFrameChanges;
             Log.d(TAG, "Start Source reader.");
+            ThreadCpuSampler.registerThread("source_reader", mTest.getCommon().getId());
             while (!mDone) {
                 while (mDecoderBuffers.size() > 0 && !mDone) {
                     if (mInFramesCount % 100 == 0 && MainActivity.isStable()) {
@@ -627,23 +580,6 @@ public class SurfaceTranscoder extends SurfaceEncoder {
         }
 
 
-        protected void sleepUntilNextFrame() {
-            long now = ClockTimes.currentTimeMs();
-            long sleepTimeMs = (long)(mFrameTimeUsec/1000 - (now - mLastTimeMs));
-            if (sleepTimeMs < 0) {
-                // We have been delayed. Run forward.
-                sleepTimeMs = 0;
-            }
-            if (sleepTimeMs > 0) {
-                try {
-                    Thread.sleep(sleepTimeMs);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            mLastTimeMs = ClockTimes.currentTimeMs();
-        }
-
         public void addBuffer(int id) {
             mDecoderBuffers.add(id);
             synchronized (mDecoderBuffers) {
@@ -689,8 +625,7 @@ public class SurfaceTranscoder extends SurfaceEncoder {
                     }
 
                     mCodec.stop();
-                    mCodec.reset();
-                    CodecCache.getCache().returnEncoder(mCodec);
+                    CodecCache.getCache().release(mCodec);
                     mCodec = null;
                 }
                 if (mDecoder != null) {
@@ -706,8 +641,7 @@ public class SurfaceTranscoder extends SurfaceEncoder {
                     }
 
                     mDecoder.stop();
-                    mDecoder.reset();
-                    CodecCache.getCache().returnDecoder(mDecoder);
+                    CodecCache.getCache().release(mDecoder);
                     mDecoder = null;
                 }
             } catch (IllegalStateException iex) {
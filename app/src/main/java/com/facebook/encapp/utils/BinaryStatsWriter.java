@@ -0,0 +1,136 @@
+package com.facebook.encapp.utils;
+
+import com.facebook.encapp.proto.CpuTimeInStateSample;
+import com.facebook.encapp.proto.DecodedFrameRecord;
+import com.facebook.encapp.proto.EncodedFrameRecord;
+import com.facebook.encapp.proto.FrameExtra;
+import com.facebook.encapp.proto.GpuClockSample;
+import com.facebook.encapp.proto.GpuLoadSample;
+import com.facebook.encapp.proto.StatsRecord;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Dictionary;
+import java.util.Enumeration;
+
+/**
+ * Writes statistics as length delimited StatsRecord messages, see proto/stats.proto.
+ * Records are appended as frames finish so the file is written during the test
+ * and not in one go at the end.
+ */
+public class BinaryStatsWriter {
+    public static final String EXTENSION = ".pbstats";
+    private final OutputStream mOut;
+    private final StatsRecord.Builder mRecord = StatsRecord.newBuilder();
+    private final EncodedFrameRecord.Builder mEncoded = EncodedFrameRecord.newBuilder();
+    private final DecodedFrameRecord.Builder mDecoded = DecodedFrameRecord.newBuilder();
+    private long mLastEncodedPts = 0;
+    private long mLastEncodedStart = 0;
+    private long mLastDecodedPts = 0;
+    private long mLastDecodedStart = 0;
+
+    public BinaryStatsWriter(String filename) throws IOException {
+        mOut = new BufferedOutputStream(new FileOutputStream(filename, false), 64 * 1024);
+    }
+
+    public void writeEncodedFrame(FrameRecorder frames, int row) throws IOException {
+        long pts = frames.getPts(row);
+        long start = frames.getStartTime(row);
+        mEncoded.clear()
+                .setFrame(frames.getOutputOrder(row))
+                .setOriginalFrame(frames.getOriginalFrame(row))
+                .setIframe(frames.isIFrame(row))
+                .setSize(frames.getSize(row))
+                .setPtsDelta(pts - mLastEncodedPts)
+                .setStartDelta(start - mLastEncodedStart)
+                .setStopDelta(frames.getStopTime(row) - start);
+        long time = frames.getStageTime(row, FrameInfo.STAGE_READ_DONE);
+        if (time != 0) {
+            mEncoded.setReadDelta(time - start);
+        }
+        time = frames.getStageTime(row, FrameInfo.STAGE_QUEUED);
+        if (time != 0) {
+            mEncoded.setQueuedDelta(time - start);
+        }
+        time = frames.getStageTime(row, FrameInfo.STAGE_DEQUEUED);
+        if (time != 0) {
+            mEncoded.setDequeuedDelta(time - start);
+        }
+        time = frames.getStageTime(row, FrameInfo.STAGE_MUXED);
+        if (time != 0) {
+            mEncoded.setMuxedDelta(time - start);
+        }
+        Dictionary<String, Object> info = frames.getInfo(row);
+        if (info != null) {
+            Enumeration<String> keys = info.keys();
+            while (keys.hasMoreElements()) {
+                String key = keys.nextElement();
+                mEncoded.addExtra(FrameExtra.newBuilder().setKey(key).setValue(info.get(key).toString()));
+            }
+        }
+        mLastEncodedPts = pts;
+        mLastEncodedStart = start;
+        mRecord.clear().setFrame(mEncoded).build().writeDelimitedTo(mOut);
+    }
+
+    public void writeDecodedFrame(FrameRecorder frames, int row) throws IOException {
+        long pts = frames.getPts(row);
+        long start = frames.getStartTime(row);
+        mDecoded.clear()
+                .setFlags(frames.getFlags(row))
+                .setSize(frames.getSize(row))
+                .setPtsDelta(pts - mLastDecodedPts)
+                .setStartDelta(start - mLastDecodedStart)
+                .setStopDelta(frames.getStopTime(row) - start);
+        Dictionary<String, Object> info = frames.getInfo(row);
+        if (info != null) {
+            Enumeration<String> keys = info.keys();
+            while (keys.hasMoreElements()) {
+                String key = keys.nextElement();
+                mDecoded.addExtra(FrameExtra.newBuilder().setKey(key).setValue(info.get(key).toString()));
+            }
+        }
+        mLastDecodedPts = pts;
+        mLastDecodedStart = start;
+        mRecord.clear().setDecodedFrame(mDecoded).build().writeDelimitedTo(mOut);
+    }
+
+    public void writeGpuLoad(double timeSec, int load) throws IOException {
+        mRecord.clear().setGpuLoad(GpuLoadSample.newBuilder()
+                .setTimeSec(timeSec)
+                .setLoadPercentage(load))
+                .build().writeDelimitedTo(mOut);
+    }
+
+    public void writeGpuClock(double timeSec, String clock) throws IOException {
+        mRecord.clear().setGpuClock(GpuClockSample.newBuilder()
+                .setTimeSec(timeSec)
+                .setClockMhz(clock))
+                .build().writeDelimitedTo(mOut);
+    }
+
+    public void writeCpuTimeInState(int cpu, long timestampNs, long[] freq, long[] time) throws IOException {
+        CpuTimeInStateSample.Builder sample = CpuTimeInStateSample.newBuilder()
+                .setCpu(cpu)
+                .setTimestampNs(timestampNs);
+        for (int i = 0; i < freq.length; i++) {
+            sample.addFreq(freq[i]);
+            sample.addTime(time[i]);
+        }
+        mRecord.clear().setCpuTimeInState(sample).build().writeDelimitedTo(mOut);
+    }
+
+    public void writeMetadata(String json) throws IOException {
+        mRecord.clear().setMetadataJson(json).build().writeDelimitedTo(mOut);
+    }
+
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    public void close() throws IOException {
+        mOut.close();
+    }
+}
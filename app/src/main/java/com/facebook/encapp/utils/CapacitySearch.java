@@ -0,0 +1,358 @@
+package com.facebook.encapp.utils;
+
+import android.util.Log;
+import android.util.Size;
+
+import com.facebook.encapp.proto.Capacity;
+import com.facebook.encapp.proto.Common;
+import com.facebook.encapp.proto.Input;
+import com.facebook.encapp.proto.Test;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Finds the highest level of a dimension (instances, framerate or height) a test sustains
+ * on the device, as set up in the capacity field of the test.
+ *
+ * A probe runs the test at one level with realtime input for a short warm-up plus a
+ * measurement window. It passes if every instance is stable according to FpsMeasure, keeps
+ * the target framerate within the margin and, if set, the latency limit. The level is
+ * doubled from min until a probe fails or max is reached, the last passing and the first
+ * failing level are then bisected down to the step.
+ */
+public class CapacitySearch {
+    private static final String TAG = "encapp.capacity";
+    public static final String REPORT_EXTENSION = ".capacity.json";
+    static final float DEFAULT_FPS_MARGIN = 0.05f;
+    static final float DEFAULT_WARMUP_SEC = 1;
+    static final float DEFAULT_WINDOW_SEC = 3;
+
+    public interface Probe {
+        /**
+         * Runs the test and its parallel tests, returns the stats of each, null for one
+         * that failed.
+         */
+        List<Statistics> run(Test test);
+    }
+
+    public static class Result {
+        final int mLevel;
+        final float mTargetFps;
+        boolean mPass = true;
+        boolean mStable = true;
+        // Lowest fps and highest latency of all instances
+        float mFps = Float.MAX_VALUE;
+        double mLatencyMs = 0;
+        String mReason = "";
+        long mDurationNs;
+
+        Result(int level, float targetFps) {
+            mLevel = level;
+            mTargetFps = targetFps;
+        }
+
+        void fail(String reason) {
+            if (mPass) {
+                mReason = reason;
+            }
+            mPass = false;
+        }
+
+        public boolean isPass() {
+            return mPass;
+        }
+    }
+
+    private final Test mTest;
+    private final Capacity.Dimension mDimension;
+    private final int mMin;
+    private final int mMax;
+    private final int mStep;
+    private final String mBoundedBy;
+    private final float mFpsMargin;
+    private final float mMaxLatencyMs;
+    private final float mWarmupSec;
+    private final float mWindowSec;
+    private final List<Result> mResults = new ArrayList<>();
+    private int mCapacity = 0;
+    private long mDurationNs = 0;
+
+    /**
+     * @param limit Upper bound given by the device, e.g. the max number of codec instances, 0 for none
+     */
+    public CapacitySearch(Test test, int limit) {
+        mTest = test;
+        Capacity capacity = test.getCapacity();
+        mDimension = capacity.getDimension();
+        int min;
+        int max;
+        int step;
+        switch (mDimension) {
+            case framerate:
+                min = 15;
+                max = 240;
+                step = 5;
+                break;
+            case height:
+                min = 240;
+                max = 2160;
+                step = 16;
+                break;
+            default:
+                min = 1;
+                max = 16;
+                step = 1;
+        }
+        mMin = Math.max(1, capacity.hasMin() ? capacity.getMin() : min);
+        step = Math.max(1, capacity.hasStep() ? capacity.getStep() : step);
+        max = Math.max(mMin, capacity.hasMax() ? capacity.getMax() : max);
+        if (limit > 0 && limit < max) {
+            max = Math.max(mMin, limit);
+            mBoundedBy = "device";
+        } else {
+            mBoundedBy = "max";
+        }
+        mMax = max;
+        mStep = step;
+        mFpsMargin = capacity.hasFpsMargin() ? capacity.getFpsMargin() : DEFAULT_FPS_MARGIN;
+        mMaxLatencyMs = capacity.getMaxLatencyMs();
+        mWarmupSec = capacity.hasWarmupSec() ? capacity.getWarmupSec() : DEFAULT_WARMUP_SEC;
+        mWindowSec = capacity.hasWindowSec() ? capacity.getWindowSec() : DEFAULT_WINDOW_SEC;
+    }
+
+    /**
+     * Runs the search, returns the highest passing level, 0 if even min fails.
+     */
+    public int run(Probe probe) {
+        long startNs = ClockTimes.currentTimeNs();
+        int pass = 0;
+        int fail = 0;
+        int level = mMin;
+        // Bracket
+        while (true) {
+            if (probe(probe, level)) {
+                pass = level;
+                if (level >= mMax) break;
+                level = Math.min(level * 2, mMax);
+            } else {
+                fail = level;
+                break;
+            }
+        }
+        // Bisect
+        while (pass > 0 && fail - pass > mStep) {
+            level = pass + Math.max(mStep, (fail - pass) / 2 / mStep * mStep);
+            if (level >= fail) break;
+            if (probe(probe, level)) {
+                pass = level;
+            } else {
+                fail = level;
+            }
+        }
+        mCapacity = pass;
+        mDurationNs = ClockTimes.currentTimeNs() - startNs;
+        Log.d(TAG, String.format(Locale.US, "%s: capacity %d %s after %d probes in %.1f s",
+                mTest.getCommon().getId(), mCapacity, mDimension.name(), mResults.size(), mDurationNs / 1e9));
+        return mCapacity;
+    }
+
+    private boolean probe(Probe probe, int level) {
+        Log.d(TAG, mTest.getCommon().getId() + ": probe " + mDimension.name() + " " + level);
+        long startNs = ClockTimes.currentTimeNs();
+        Test test = testAt(level);
+        List<Statistics> stats = probe.run(test);
+        Result result = evaluate(level, targetFps(test), test.getParallel().getTestCount() + 1, stats);
+        result.mDurationNs = ClockTimes.currentTimeNs() - startNs;
+        mResults.add(result);
+        Log.d(TAG, String.format(Locale.US, "%s: %s %d %s, %.2f fps (target %.2f), latency p90 %.2f ms %s",
+                mTest.getCommon().getId(), mDimension.name(), level, result.mPass ? "passed" : "failed",
+                result.mFps, result.mTargetFps, result.mLatencyMs, result.mReason));
+        return result.mPass;
+    }
+
+    /**
+     * The test at a level, with realtime input running for the warm-up and the window.
+     */
+    public Test testAt(int level) {
+        Test.Builder builder = mTest.toBuilder().clearCapacity().clearParallel();
+        String id = mTest.getCommon().getId() + "_" + mDimension.name() + level;
+        // Frames are measured from memory, nothing may be flushed
+        Common.Builder common = builder.getCommon().toBuilder()
+                .setId(id)
+                .clearStatsFlushFrames()
+                .clearStatsFlushSec();
+        Input.Builder input = builder.getInput().toBuilder()
+                .setRealtime(true)
+                .clearPursuit()
+                .clearPlayoutFrames()
+                .setStoptimeSec(mWarmupSec + mWindowSec);
+        builder.setCommon(common);
+        switch (mDimension) {
+            case framerate:
+                input.setFramerate(level);
+                builder.setConfigure(builder.getConfigure().toBuilder().setFramerate(level));
+                break;
+            case height:
+                builder.setConfigure(builder.getConfigure().toBuilder().setResolution(scaledResolution(level)));
+                break;
+            default:
+                break;
+        }
+        builder.setInput(input);
+        if (mDimension == Capacity.Dimension.instances) {
+            Test first = builder.build();
+            for (int i = 1; i < level; i++) {
+                builder.getParallelBuilder().addTest(first.toBuilder()
+                        .setCommon(common.clone().setId(id + "_" + i)));
+            }
+        }
+        return builder.build();
+    }
+
+    private String scaledResolution(int height) {
+        String resolution = mTest.getConfigure().hasResolution() ?
+                mTest.getConfigure().getResolution() : mTest.getInput().getResolution();
+        Size size = SizeUtils.parseXString(resolution);
+        int width = height * 16 / 9;
+        if (size != null && size.getHeight() > 0) {
+            width = (int) ((long) height * size.getWidth() / size.getHeight());
+        }
+        // Codecs want even sizes, most prefer a multiple of 16
+        width = Math.max(16, (width + 8) / 16 * 16);
+        return width + "x" + height;
+    }
+
+    private static float targetFps(Test test) {
+        if (test.getConfigure().hasFramerate()) {
+            return test.getConfigure().getFramerate();
+        }
+        return test.getInput().hasFramerate() ? test.getInput().getFramerate() : 30;
+    }
+
+    Result evaluate(int level, float targetFps, int instances, List<Statistics> stats) {
+        Result result = new Result(level, targetFps);
+        if (stats == null || stats.isEmpty()) {
+            result.fail("no test ran");
+            result.mFps = 0;
+            return result;
+        }
+        if (stats.size() < instances) {
+            result.fail((instances - stats.size()) + " of " + instances + " tests did not start");
+        }
+        for (Statistics instance : stats) {
+            if (instance == null) {
+                result.fail("test failed");
+                result.mFps = 0;
+                continue;
+            }
+            evaluate(result, instance);
+        }
+        if (result.mFps == Float.MAX_VALUE) {
+            result.mFps = 0;
+        }
+        return result;
+    }
+
+    private void evaluate(Result result, Statistics stats) {
+        int count = stats.getEncodedFrameCount();
+        long[] stopTimes = new long[count];
+        long[] latencies = new long[count];
+        int frames = 0;
+        for (int i = 0; i < count; i++) {
+            FrameInfo frame = stats.getEncodedFrame(i);
+            if (frame.getStopTime() > 0 && frame.getStartTime() > 0) {
+                stopTimes[frames] = frame.getStopTime();
+                latencies[frames] = frame.getStopTime() - frame.getStartTime();
+                frames++;
+            }
+        }
+        if (frames < 2) {
+            result.fail(stats.getId() + " encoded no frames");
+            result.mFps = 0;
+            return;
+        }
+        long[] sorted = Arrays.copyOf(stopTimes, frames);
+        Arrays.sort(sorted);
+        long measureFromNs = sorted[0] + (long) (mWarmupSec * 1e9);
+
+        float target = result.mTargetFps;
+        FpsMeasure fps = new FpsMeasure(target, stats.getId(),
+                Math.max(FpsMeasure.DEFAULT_FPS_TOLERANCE, target * mFpsMargin), FpsMeasure.DEFAULT_STABLE_PERIODS, 0);
+        LatencyHistogram latency = new LatencyHistogram();
+        for (long stopTime : sorted) {
+            if (stopTime >= measureFromNs) {
+                fps.addPtsNsec(stopTime);
+            }
+        }
+        for (int i = 0; i < frames; i++) {
+            if (stopTimes[i] >= measureFromNs) {
+                latency.record(latencies[i]);
+            }
+        }
+
+        float measured = fps.getOverallFps();
+        double latencyMs = latency.getValueAtPercentile(90) / 1e6;
+        result.mFps = Math.min(result.mFps, measured);
+        result.mLatencyMs = Math.max(result.mLatencyMs, latencyMs);
+        if (measured < target * (1 - mFpsMargin)) {
+            result.fail(String.format(Locale.US, "%s at %.2f fps", stats.getId(), measured));
+        }
+        // Needs two seconds of frames in the window
+        if (!fps.isStable()) {
+            result.mStable = false;
+            result.fail(stats.getId() + " not stable");
+        }
+        if (mMaxLatencyMs > 0 && latencyMs > mMaxLatencyMs) {
+            result.fail(String.format(Locale.US, "%s latency %.2f ms", stats.getId(), latencyMs));
+        }
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public void writeReport(Writer writer) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.setIndent("  ");
+        json.beginObject();
+        json.name("id").value(mTest.getCommon().getId());
+        json.name("description").value(mTest.getCommon().getDescription());
+        json.name("codec").value(mTest.getConfigure().getCodec());
+        json.name("dimension").value(mDimension.name());
+        json.name("capacity").value(mCapacity);
+        // Reached the top of the range, the real capacity may be higher
+        json.name("bounded").value(mCapacity >= mMax ? mBoundedBy : "");
+        json.name("min").value(mMin);
+        json.name("max").value(mMax);
+        json.name("step").value(mStep);
+        json.name("fps_margin").value(mFpsMargin);
+        json.name("max_latency_ms").value(mMaxLatencyMs);
+        json.name("warmup_sec").value(mWarmupSec);
+        json.name("window_sec").value(mWindowSec);
+        json.name("duration_sec").value(mDurationNs / 1e9);
+        json.name("probes");
+        json.beginArray();
+        for (Result result : mResults) {
+            json.beginObject();
+            json.name("level").value(result.mLevel);
+            json.name("pass").value(result.mPass);
+            json.name("stable").value(result.mStable);
+            json.name("fps").value(result.mFps);
+            json.name("target_fps").value(result.mTargetFps);
+            json.name("latency_p90_ms").value(result.mLatencyMs);
+            json.name("reason").value(result.mReason);
+            json.name("duration_sec").value(result.mDurationNs / 1e9);
+            json.endObject();
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+}
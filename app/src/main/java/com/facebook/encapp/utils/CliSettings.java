@@ -18,9 +18,14 @@ public class CliSettings {
     // Either /sdcard/ or /data/data/com.facebook.encapp
     public static final String CHECK_WORKDIR = "check_workdir";
     public static final String ENABLE_TRACING = "enable_tracing";
+    // "blocking" (default) or "spin", how encoder output waits for buffers
+    public static final String OUTPUT_WAIT = "output_wait";
+    // Max number of idle codecs kept for reuse between tests, 0 disables the pool
+    public static final String CODEC_POOL = "codec_pool";
 
     private static String mWorkDir = "/sdcard/";
     private static boolean mEnableTracing = false;
+    private static OutputRing.WaitStrategy mOutputWaitStrategy = OutputRing.WaitStrategy.BLOCKING;
 
     public static void setWorkDir(Context context, Bundle mExtraData) {
         if (mExtraData != null && mExtraData.containsKey(CliSettings.WORKDIR)) {
@@ -51,4 +56,14 @@ public class CliSettings {
     public static boolean isTracingEnabled() {
         return mEnableTracing;
     }
+
+    public static void setOutputWaitStrategy(String strategy) {
+        mOutputWaitStrategy = "spin".equals(strategy) ?
+                OutputRing.WaitStrategy.SPIN_THEN_PARK : OutputRing.WaitStrategy.BLOCKING;
+        Log.d(TAG, "Output wait strategy: " + mOutputWaitStrategy);
+    }
+
+    public static OutputRing.WaitStrategy getOutputWaitStrategy() {
+        return mOutputWaitStrategy;
+    }
 }
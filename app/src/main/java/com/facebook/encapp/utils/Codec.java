@@ -0,0 +1,76 @@
+package com.facebook.encapp.utils;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The part of MediaCodec the buffer pipelines (feed, output, mux, stats) use.
+ * AsyncBufferEncoder runs on any Codec, e.g. a SimulatedCodec.
+ *
+ * MediaCodecAdapter runs it on a real codec, SimulatedCodec on a model that also
+ * runs on a plain JVM, so the pipeline can be benchmarked off device.
+ * Calls and constants follow MediaCodec, e.g. dequeueOutputBuffer() returns
+ * MediaCodec.INFO_TRY_AGAIN_LATER on timeout.
+ */
+public interface Codec {
+    interface Callback {
+        void onInputBufferAvailable(Codec codec, int index);
+
+        void onOutputBufferAvailable(Codec codec, int index, MediaCodec.BufferInfo info);
+
+        void onOutputFormatChanged(Codec codec, MediaFormat format);
+
+        void onError(Codec codec, Exception e);
+    }
+
+    String getName();
+
+    /**
+     * The name without aliases where the platform knows it, for the stats.
+     */
+    String getCanonicalName();
+
+    boolean isHardwareAccelerated();
+
+    /**
+     * Selects async mode, must be called before configure().
+     */
+    void setCallback(Callback callback);
+
+    void configure(MediaFormat format, boolean encoder);
+
+    void start();
+
+    void stop();
+
+    void flush();
+
+    void release();
+
+    MediaFormat getInputFormat();
+
+    MediaFormat getOutputFormat();
+
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    /**
+     * Null if the codec has no image for the buffer.
+     */
+    Image getInputImage(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index, boolean render);
+
+    void setParameters(Bundle params);
+}
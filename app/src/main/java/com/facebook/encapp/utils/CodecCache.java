@@ -3,101 +3,102 @@ package com.facebook.encapp.utils;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
 import android.util.Log;
+import android.util.Size;
 
 import com.facebook.encapp.proto.Test;
+import com.facebook.encapp.proto.TestSuite;
 
 import java.io.IOException;
-import java.util.Vector;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
+/**
+ * Pool of codec instances, creating one costs 50-300 ms which adds up over a test suite.
+ *
+ * Returned codecs are reset and kept idle under a fingerprint of the configuration they
+ * were used with (name, mime, resolution, color format, surface or buffer input). A later
+ * test with the same fingerprint gets the same instance back, else any idle instance of
+ * the same codec is reconfigured. Idle codecs hold hardware resources so only a few are
+ * kept, the least recently used is released first.
+ */
 public class CodecCache {
     private static CodecCache me = new CodecCache();
     private static String TAG = "encapp.cc";
-    Vector<MediaCodec> mEncoders = new Vector<>();
-    Vector<MediaCodec> mDecoders = new Vector<>();
-    Vector<MediaCodec> mInUse = new Vector<>();
-
-    public MediaCodec getEncoder(String description) {
-        //TODO: check all settings, for now assume name
-        if (mEncoders.size() == 0) return null;
-        synchronized (mInUse) {
-            for(MediaCodec codec: mEncoders) {
-                if (codec.getName().equals(description)) {
-                    Log.d(TAG, "Reusing codec: " + codec.getName());
-                    mEncoders.remove(codec);
-                    mInUse.add(codec);
-                    return codec;
-                } else {
-                    String[] types = codec.getCodecInfo().getSupportedTypes();
-                    for (String typedesc: codec.getCodecInfo().getSupportedTypes()){
-                        if (typedesc.contains(description.toLowerCase())) {
-                            Log.d(TAG, "Reusing codec: " + codec.getName());
-                            mEncoders.remove(codec);
-                            mInUse.add(codec);
-                            return codec;
-                        }
-                    }
-                }
-            }
-        }
-        return null;
-    }
-
-    public MediaCodec getDecoder(String description) {
-        if (mEncoders.size() == 0) return null;
-        synchronized (mInUse) {
-            for(MediaCodec codec: mDecoders) {
-                if (codec.getName().equals(description)) {
-                    Log.d(TAG, "Reusing decoder:" +  codec.getName());
-                    mDecoders.remove(codec);
-                    mInUse.add(codec);
-                    return codec;
-                } else {
-                    String[] types = codec.getCodecInfo().getSupportedTypes();
-                    for (String typedesc: codec.getCodecInfo().getSupportedTypes()){
-                        if (typedesc.contains(description.toLowerCase())) {
-                            Log.d(TAG, "Reusing codec: " + codec.getName());
-                            mDecoders.remove(codec);
-                            mInUse.add(codec);
-                            return codec;
-                        }
-                    }
-                }
-            }
+    public static final int DEFAULT_MAX_IDLE = 2;
+
+    private static class Entry {
+        final MediaCodec mCodec;
+        final boolean mEncoder;
+        // The name asked for, null for decoders created by type
+        final String mRequested;
+        final String mMime;
+        String mFingerprint;
+
+        Entry(MediaCodec codec, boolean encoder, String requested, String mime) {
+            mCodec = codec;
+            mEncoder = encoder;
+            mRequested = requested;
+            mMime = mime;
         }
-        return null;
-    }
 
-    public void returnEncoder(MediaCodec codec) {
-        synchronized (mInUse) {
-            mInUse.remove(codec);
-            mEncoders.add(codec);
+        boolean matches(boolean encoder, String requested, String mime) {
+            if (encoder != mEncoder) return false;
+            if (requested != null) return requested.equals(mRequested);
+            return mRequested == null && mime != null && mime.equals(mMime);
         }
     }
 
-    public void returnDecoder(MediaCodec codec) {
-        synchronized (mInUse) {
-            mInUse.remove(codec);
-            mDecoders.add(codec);
-        }
+    // Least recently returned first
+    private final LinkedHashMap<MediaCodec, Entry> mIdle = new LinkedHashMap<>();
+    private final HashMap<String, ArrayDeque<Entry>> mIdleByFingerprint = new HashMap<>();
+    private final HashMap<MediaCodec, Entry> mInUse = new HashMap<>();
+    private int mMaxIdle = DEFAULT_MAX_IDLE;
+    private int mHits = 0;
+    private int mReconfigured = 0;
+    private int mMisses = 0;
+    private int mEvictions = 0;
+
+    public static CodecCache getCache() {
+        return me;
     }
 
-    public void clearCodecs() {
-        for (MediaCodec codec: mDecoders) {
-            codec.release();
+    /**
+     * Max number of idle codecs, 0 releases codecs when they are returned.
+     */
+    public void setMaxIdle(int maxIdle) {
+        List<MediaCodec> evicted;
+        synchronized (this) {
+            mMaxIdle = Math.max(0, maxIdle);
+            evicted = evict(mMaxIdle);
         }
+        releaseAll(evicted);
+        Log.d(TAG, "Max idle codecs: " + mMaxIdle);
+    }
 
-        for (MediaCodec codec: mEncoders) {
-            codec.release();
-        }
+    public static String fingerprint(String name, String mime, int width, int height, int colorFormat, boolean surface) {
+        return name + "|" + mime + "|" + width + "x" + height + "|" + colorFormat + "|" + (surface ? "surface" : "buffer");
+    }
 
-        for (MediaCodec codec: mInUse) {
-            codec.release();
+    private static String encoderFingerprint(Test test, boolean surface) {
+        String resolution = test.getConfigure().hasResolution() ?
+                test.getConfigure().getResolution() : test.getInput().getResolution();
+        int width = 0;
+        int height = 0;
+        if (resolution.length() > 0) {
+            Size size = SizeUtils.parseXString(resolution);
+            width = size.getWidth();
+            height = size.getHeight();
         }
+        return fingerprint(test.getConfigure().getCodec(), test.getConfigure().getMime(),
+                width, height, test.getConfigure().getColorFormat(), surface);
     }
 
-
-    public MediaCodec createEncoder(Test test) throws IOException{
-        MediaCodec codec = null;
+    private static Test resolveEncoder(Test test) throws IOException {
         if (test.getConfigure().getMime().length() == 0) {
             Log.d(TAG, "codec id: " + test.getConfigure().getCodec());
             try {
@@ -108,53 +109,265 @@ public class CodecCache {
             }
             Log.d(TAG, "codec: " + test.getConfigure().getCodec() + " mime: " + test.getConfigure().getMime());
         }
-        Log.d(TAG, "Create encoder by name: " + test.getConfigure().getCodec());
-        Log.d(TAG, "Create encoder by name: " + test.getConfigure().getCodec());
-        //TODO: check settings
-        try {
-            codec = MediaCodec.createByCodecName(test.getConfigure().getCodec());
-        } catch (IOException iox) {
-            Log.d(TAG, "Failed creating encoder: " + iox.getMessage());
-            throw new IOException(iox);
+        return test;
+    }
+
+    /**
+     * Returns an uninitialized encoder for the test, reused if possible.
+     */
+    public MediaCodec getEncoder(Test test, boolean surface) throws IOException {
+        test = resolveEncoder(test);
+        String name = test.getConfigure().getCodec();
+        Entry entry = take(encoderFingerprint(test, surface), true, name, test.getConfigure().getMime());
+        if (entry != null) {
+            return entry.mCodec;
         }
+        Log.d(TAG, "Create encoder by name: " + name);
+        entry = new Entry(create(name, null, true), true, name, test.getConfigure().getMime());
+        entry.mFingerprint = encoderFingerprint(test, surface);
+        synchronized (this) {
+            mInUse.put(entry.mCodec, entry);
+        }
+        return entry.mCodec;
+    }
 
-        mInUse.add(codec);
-        return codec;
+    /**
+     * Returns an uninitialized decoder for the format, by name if the test sets one, reused if possible.
+     */
+    public MediaCodec getDecoder(Test test, MediaFormat format, boolean surface) throws IOException {
+        String name = test.getDecoderConfigure().hasCodec() ? test.getDecoderConfigure().getCodec() : null;
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        String key = fingerprint(name, mime,
+                format.containsKey(MediaFormat.KEY_WIDTH) ? format.getInteger(MediaFormat.KEY_WIDTH) : 0,
+                format.containsKey(MediaFormat.KEY_HEIGHT) ? format.getInteger(MediaFormat.KEY_HEIGHT) : 0,
+                0, surface);
+        Entry entry = take(key, false, name, mime);
+        if (entry != null) {
+            return entry.mCodec;
+        }
+        if (name != null) {
+            Log.d(TAG, "Create decoder by name: " + name);
+        } else {
+            Log.d(TAG, "Create decoder by type: " + mime);
+        }
+        entry = new Entry(create(name, mime, false), false, name, mime);
+        entry.mFingerprint = key;
+        synchronized (this) {
+            mInUse.put(entry.mCodec, entry);
+        }
+        return entry.mCodec;
     }
 
-    public MediaCodec createDecoder(Test test, MediaFormat format) throws IOException {
-        MediaCodec codec = null;
+    /**
+     * Returns a stopped codec to the pool. Codecs not from the cache are released.
+     */
+    public void release(MediaCodec codec) {
+        if (codec == null) return;
+        Entry entry;
+        synchronized (this) {
+            entry = mInUse.remove(codec);
+        }
+        if (entry == null || mMaxIdle == 0) {
+            codec.release();
+            return;
+        }
         try {
-            if (test.getDecoderConfigure().hasCodec()) {
-                Log.d(TAG, "Create codec by name: " + test.getDecoderConfigure().getCodec());
-                // TODO: check decoder settings
-                codec = MediaCodec.createByCodecName(test.getDecoderConfigure().getCodec());
-            } else {
-                Log.d(TAG, "Create decoder by type: " + format.getString(MediaFormat.KEY_MIME));
-                codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            codec.reset();
+            codec.setCallback(null);
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to reset " + codec.getName() + ", releasing it: " + e.getMessage());
+            codec.release();
+            return;
+        }
+        List<MediaCodec> evicted;
+        synchronized (this) {
+            addIdle(entry);
+            evicted = evict(mMaxIdle);
+        }
+        releaseAll(evicted);
+    }
+
+    /**
+     * Creates the encoders and named decoders the tests will ask for, up to the max idle count.
+     * Parallel tests need one instance each.
+     */
+    public void prewarm(TestSuite suite) {
+        LinkedHashMap<String, Integer> needed = new LinkedHashMap<>();
+        HashMap<String, String> mimes = new HashMap<>();
+        for (Test top : suite.getTestList()) {
+            HashMap<String, Integer> count = new HashMap<>();
+            List<Test> tests = new ArrayList<>();
+            tests.add(top);
+            tests.addAll(top.getParallel().getTestList());
+            for (Test test : tests) {
+                if (test.getConfigure().hasCodec()) {
+                    try {
+                        Test resolved = resolveEncoder(test);
+                        String key = "enc|" + resolved.getConfigure().getCodec();
+                        mimes.put(key, resolved.getConfigure().getMime());
+                        count.put(key, count.containsKey(key) ? count.get(key) + 1 : 1);
+                    } catch (IOException e) {
+                        // The test reports it
+                    }
+                }
+                if (test.getDecoderConfigure().hasCodec()) {
+                    String key = "dec|" + test.getDecoderConfigure().getCodec();
+                    count.put(key, count.containsKey(key) ? count.get(key) + 1 : 1);
+                }
+            }
+            for (Map.Entry<String, Integer> entry : count.entrySet()) {
+                Integer current = needed.get(entry.getKey());
+                if (current == null || current < entry.getValue()) {
+                    needed.put(entry.getKey(), entry.getValue());
+                }
             }
-        } catch (IOException iox) {
-            Log.e(TAG, "Failed creating decoder: " + iox.getMessage());
-            throw new IOException(iox);
         }
 
-        mInUse.add(codec);
-        return codec;
+        int created = 0;
+        for (Map.Entry<String, Integer> need : needed.entrySet()) {
+            boolean encoder = need.getKey().startsWith("enc|");
+            String name = need.getKey().substring(4);
+            for (int i = 0; i < need.getValue(); i++) {
+                synchronized (this) {
+                    if (mIdle.size() >= mMaxIdle) {
+                        Log.d(TAG, "Prewarmed " + created + " codecs");
+                        return;
+                    }
+                }
+                try {
+                    long start = ClockTimes.currentTimeNs();
+                    Entry entry = new Entry(MediaCodec.createByCodecName(name), encoder, name, mimes.get(need.getKey()));
+                    // No configuration yet, matched by name
+                    entry.mFingerprint = "";
+                    synchronized (this) {
+                        addIdle(entry);
+                    }
+                    created++;
+                    Log.d(TAG, "Prewarmed " + name + " in " + (ClockTimes.currentTimeNs() - start) / 1000000 + " ms");
+                } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                    Log.w(TAG, "Failed to prewarm " + name + ": " + e.getMessage());
+                    break;
+                }
+            }
+        }
+        Log.d(TAG, "Prewarmed " + created + " codecs");
     }
 
-    public static CodecCache getCache() {
-        return me;
+    public synchronized float getHitRate() {
+        int total = mHits + mReconfigured + mMisses;
+        return (total > 0) ? (float) (mHits + mReconfigured) / total : 0;
+    }
+
+    public synchronized String getMetrics() {
+        return String.format(Locale.US, "hits: %d, reconfigured: %d, misses: %d, hit rate: %.2f, evictions: %d, idle: %d, in use: %d",
+                mHits, mReconfigured, mMisses, getHitRate(), mEvictions, mIdle.size(), mInUse.size());
+    }
+
+    public void clearCodecs() {
+        List<MediaCodec> codecs;
+        synchronized (this) {
+            Log.d(TAG, "Clear codecs, " + getMetrics());
+            codecs = new ArrayList<>(mIdle.keySet());
+            codecs.addAll(mInUse.keySet());
+            mIdle.clear();
+            mIdleByFingerprint.clear();
+            mInUse.clear();
+        }
+        releaseAll(codecs);
+    }
+
+    private synchronized Entry take(String fingerprint, boolean encoder, String requested, String mime) {
+        Entry entry = null;
+        ArrayDeque<Entry> same = mIdleByFingerprint.get(fingerprint);
+        if (same != null && !same.isEmpty()) {
+            entry = same.peekLast();
+            mHits++;
+            Log.d(TAG, "Reusing codec: " + entry.mCodec.getName());
+        } else {
+            for (Entry idle : mIdle.values()) {
+                if (idle.matches(encoder, requested, mime)) {
+                    entry = idle;
+                }
+            }
+            if (entry == null) {
+                mMisses++;
+                return null;
+            }
+            mReconfigured++;
+            Log.d(TAG, "Reusing codec with a new configuration: " + entry.mCodec.getName());
+        }
+        removeIdle(entry);
+        entry.mFingerprint = fingerprint;
+        mInUse.put(entry.mCodec, entry);
+        return entry;
     }
 
-    /* for now ignore configure and let the test do it
-    public void configureEncoder(Test test, MediaFormat inputFormat) {
+    private void addIdle(Entry entry) {
+        mIdle.put(entry.mCodec, entry);
+        ArrayDeque<Entry> same = mIdleByFingerprint.get(entry.mFingerprint);
+        if (same == null) {
+            same = new ArrayDeque<>();
+            mIdleByFingerprint.put(entry.mFingerprint, same);
+        }
+        same.addLast(entry);
+    }
 
+    private void removeIdle(Entry entry) {
+        mIdle.remove(entry.mCodec);
+        ArrayDeque<Entry> same = mIdleByFingerprint.get(entry.mFingerprint);
+        if (same != null) {
+            same.remove(entry);
+            if (same.isEmpty()) {
+                mIdleByFingerprint.remove(entry.mFingerprint);
+            }
+        }
     }
 
+    private List<MediaCodec> evict(int keep) {
+        List<MediaCodec> evicted = new ArrayList<>();
+        while (mIdle.size() > keep) {
+            Entry eldest = mIdle.values().iterator().next();
+            removeIdle(eldest);
+            evicted.add(eldest.mCodec);
+            mEvictions++;
+        }
+        return evicted;
+    }
 
-    public void configureDecoder(Test test, MediaFormat format) {
+    private static void releaseAll(List<MediaCodec> codecs) {
+        for (MediaCodec codec : codecs) {
+            try {
+                codec.release();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Failed to release codec: " + e.getMessage());
+            }
+        }
+    }
 
+    private MediaCodec create(String name, String mime, boolean encoder) throws IOException {
+        try {
+            return createCodec(name, mime);
+        } catch (IOException | IllegalStateException e) {
+            // Likely out of instances, idle codecs may be holding them
+            List<MediaCodec> evicted;
+            synchronized (this) {
+                evicted = evict(0);
+            }
+            if (evicted.isEmpty()) {
+                Log.e(TAG, "Failed creating " + (encoder ? "encoder" : "decoder") + ": " + e.getMessage());
+                throw (e instanceof IOException) ? (IOException) e : new IOException(e);
+            }
+            Log.w(TAG, "Failed creating codec, retry after releasing " + evicted.size() + " idle codecs");
+            releaseAll(evicted);
+            try {
+                return createCodec(name, mime);
+            } catch (IllegalStateException ise) {
+                throw new IOException(ise);
+            }
+        }
     }
-    */
 
+    private static MediaCodec createCodec(String name, String mime) throws IOException {
+        return (name != null) ? MediaCodec.createByCodecName(name) : MediaCodec.createDecoderByType(mime);
+    }
 }
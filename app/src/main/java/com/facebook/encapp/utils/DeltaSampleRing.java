@@ -0,0 +1,126 @@
+package com.facebook.encapp.utils;
+
+/**
+ * Bounded buffer for samples of a fixed number of long values, e.g. counters or
+ * gauges read from sysfs. Samples are stored as int deltas to the previous one,
+ * the first sample is the base and the buffer grows up to its capacity.
+ * When full the oldest sample is folded into the base and dropped.
+ * Written by the sampling thread and read by the stats writer.
+ */
+public class DeltaSampleRing {
+    private static final int INITIAL_SIZE = 64;
+
+    private final int mWidth;
+    private final int mCapacity;
+    private long[] mTime = new long[0];
+    private int[] mDelta = new int[0];
+    private int mMask = -1;
+    // Total samples added and the index of the oldest kept one
+    private long mCount = 0;
+    private long mFirst = 0;
+    private long mDropped = 0;
+    // Values before the oldest kept sample and of the newest one
+    private final long[] mBase;
+    private final long[] mLast;
+
+    /**
+     * The capacity is rounded up to a power of two.
+     */
+    public DeltaSampleRing(int capacity, int width) {
+        mCapacity = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mWidth = width;
+        mBase = new long[width];
+        mLast = new long[width];
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Adds a sample of getWidth() values, the array is not kept.
+     */
+    public synchronized void add(long timeNs, long[] values) {
+        if (mCount == 0) {
+            System.arraycopy(values, 0, mBase, 0, mWidth);
+            System.arraycopy(values, 0, mLast, 0, mWidth);
+        }
+        int size = (int) (mCount - mFirst);
+        if (size == mCapacity) {
+            int oldest = (int) (mFirst & mMask) * mWidth;
+            for (int i = 0; i < mWidth; i++) {
+                mBase[i] += mDelta[oldest + i];
+            }
+            mFirst++;
+            mDropped++;
+        } else if (size == mTime.length) {
+            grow(size);
+        }
+        int pos = (int) (mCount & mMask);
+        mTime[pos] = timeNs;
+        int offset = pos * mWidth;
+        for (int i = 0; i < mWidth; i++) {
+            mDelta[offset + i] = (int) (values[i] - mLast[i]);
+            mLast[i] = values[i];
+        }
+        mCount++;
+    }
+
+    private void grow(int size) {
+        int length = Math.min(mCapacity, Math.max(INITIAL_SIZE, mTime.length * 2));
+        long[] time = new long[length];
+        int[] delta = new int[length * mWidth];
+        // Lay the kept samples out from the start of the new arrays
+        for (int i = 0; i < size; i++) {
+            int pos = (int) ((mFirst + i) & mMask);
+            time[i] = mTime[pos];
+            System.arraycopy(mDelta, pos * mWidth, delta, i * mWidth, mWidth);
+        }
+        mTime = time;
+        mDelta = delta;
+        mMask = length - 1;
+        mCount = mCount - mFirst;
+        mFirst = 0;
+    }
+
+    public synchronized int size() {
+        return (int) (mCount - mFirst);
+    }
+
+    /**
+     * Samples lost because the ring was full.
+     */
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * The kept samples, oldest first, as rows of the time followed by the values.
+     */
+    public synchronized long[][] values() {
+        long[][] rows = new long[size()][];
+        long[] running = mBase.clone();
+        for (int row = 0; row < rows.length; row++) {
+            int pos = (int) ((mFirst + row) & mMask);
+            int offset = pos * mWidth;
+            long[] values = new long[mWidth + 1];
+            values[0] = mTime[pos];
+            for (int i = 0; i < mWidth; i++) {
+                running[i] += mDelta[offset + i];
+                values[i + 1] = running[i];
+            }
+            rows[row] = values;
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the kept samples like values() and empties the ring.
+     */
+    public synchronized long[][] take() {
+        long[][] rows = values();
+        System.arraycopy(mLast, 0, mBase, 0, mWidth);
+        mFirst = mCount;
+        return rows;
+    }
+}
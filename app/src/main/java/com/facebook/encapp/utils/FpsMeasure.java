@@ -3,103 +3,183 @@ package com.facebook.encapp.utils;
 
 import android.util.Log;
 
-import java.util.Vector;
-
-public class FpsMeasure extends Thread {
+/**
+ * Frame rate of a stream from the pts of its frames.
+ *
+ * The pts are kept in a fixed size ring written by one thread (the one calling
+ * addPts*), everything else is computed when asked for, from any thread, without
+ * locks or a thread of its own. A window is one second of frames at the target rate.
+ *
+ * The fps is measured over a window sliding one frame at a time. The stream is stable
+ * when more than stablePeriods consecutive measurements each differ by less than
+ * fpsTolerance from the one before, after a full history of one window of measurements,
+ * and, if maxJitterMs is set, the frame interval stddev of the last window is below it.
+ * The defaults are more than 4 periods within 2 fps and no jitter limit. Once stable it
+ * stays stable.
+ */
+public class FpsMeasure {
     private final String TAG = "encapp.fps";
-    double mFps = 0;
-    long[] mLatestPts;
-    boolean mStable = false;
-    float mTargetFps = 0;
-    int mPtsIndex = 0;
-    int STABLE_PERIOD_LIMIT = 4; // When we have four periods of stable fps
-    long SLEEP_PERIOD_MS = 500; //every half second
-    float STABLE_LIMIT = 2f; // +/-  fps
-    String mId = "";
-    boolean continuous = true;
-    int mHistoryLength = 30;
-    Vector<Float> mHistory = new Vector<>(mHistoryLength);
-    float mCurrentHistorySum = 0;
-    Object mLock = new Object();
+    static final float DEFAULT_FPS_TOLERANCE = 2f; // +/-  fps
+    static final int DEFAULT_STABLE_PERIODS = 4;
+
+    private final String mId;
+    private final float mTargetFps;
+    // Frame intervals per window
+    private final int mWindow;
+    private final float mFpsTolerance;
+    private final int mStablePeriods;
+    private final float mMaxJitterMs;
+    private final long[] mPts;
+    private final int mMask;
+    // Written by the adding thread only, the volatile count publishes the pts
+    private volatile long mCount = 0;
+    private volatile long mFirstPts = 0;
+    private volatile boolean mStable = false;
 
     public FpsMeasure(float targetFps, String id) {
-        // Target fps is used to set measurement length
+        this(targetFps, id, DEFAULT_FPS_TOLERANCE, DEFAULT_STABLE_PERIODS, 0);
+    }
+
+    public FpsMeasure(float targetFps, String id, float fpsTolerance, int stablePeriods, float maxJitterMs) {
         mTargetFps = targetFps;
         mId = id;
+        mWindow = Math.max(2, Math.round(targetFps));
+        mFpsTolerance = fpsTolerance;
+        mStablePeriods = Math.max(0, stablePeriods);
+        mMaxJitterMs = maxJitterMs;
+        // Twice what the readers copy, so a reader is rarely overtaken by the writer
+        int size = Integer.highestOneBit(Math.max(2 * mWindow + 1, mWindow + mStablePeriods + 2)) << 2;
+        mPts = new long[size];
+        mMask = size - 1;
     }
 
-    @Override
-    public void run() {
-        // The frame rate is calculated with a one period window
-        mLatestPts = new long[(int)(mTargetFps + 1)];
-        mHistoryLength = mLatestPts.length;
-        double lastFps = 0;
-        int stableCount = 0;
-        while (true) {
-            synchronized (mLock) {
-                try {
-                    mLock.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-            int index = mPtsIndex;
-            // points at the oldest value
-            long s1 = mLatestPts[(index + 1) % mLatestPts.length];
-            // current value
-            long s2 = mLatestPts[index];
-            if (s1 == 0) {
-                continue;
-            }
-            double diff = (double)(s2 - s1) / 1000000000.0; // to sec
+    public void addPtsUsec(long ptsU) {
+        addPtsNsec(ptsU * 1000);
+    }
 
-            mFps = mTargetFps / diff;
-            if (mHistory.size() == mHistoryLength) {
-                float old = mHistory.remove(0);
-                mCurrentHistorySum -= old;
+    public void addPtsNsec(long ptsN) {
+        long count = mCount;
+        if (count == 0) {
+            mFirstPts = ptsN;
+        }
+        mPts[(int) (count & mMask)] = ptsN;
+        mCount = count + 1;
+    }
+
+    // Copies the newest pts, oldest first, false if there are not enough yet
+    private boolean latest(long[] out) {
+        int n = out.length;
+        while (true) {
+            long count = mCount;
+            if (count < n) {
+                return false;
             }
-            mHistory.add((float)mFps);
-            mCurrentHistorySum += mFps;
-            double fpsDiff = mFps - lastFps;
-            if (Math.abs(fpsDiff) < STABLE_LIMIT && (mHistory.size() == mHistoryLength)) {
-                stableCount++;
-            } else {
-                stableCount = 0;
+            for (int i = 0; i < n; i++) {
+                out[i] = mPts[(int) ((count - n + i) & mMask)];
             }
-
-            lastFps = mFps;
-            if (stableCount > STABLE_PERIOD_LIMIT && !mStable) {
-                if ((int)mFps == 0) {
-                    Log.w(TAG, "Too low framerate!");
-                }
-                mStable = true;
-                if (!continuous)
-                    return;
+            // Read again if the writer may have overwritten what was copied
+            if (mCount - count <= mPts.length - n) {
+                return true;
             }
         }
     }
 
-    public void addPtsUsec(long ptsU) {
-        addPtsNsec(ptsU * 1000);
+    private static double fps(long[] pts, int from, int to) {
+        long diff = pts[to] - pts[from];
+        return (diff > 0) ? (to - from) * 1e9 / diff : 0;
     }
 
-    public void addPtsNsec(long ptsN) {
-        synchronized (mLock) {
-            mPtsIndex = (mPtsIndex + 1) % mLatestPts.length;
-            mLatestPts[mPtsIndex] = ptsN;
-            mLock.notifyAll();
+    /**
+     * Frame rate from the last frame interval.
+     */
+    public double getInstantaneousFps() {
+        long[] pts = new long[2];
+        return latest(pts) ? fps(pts, 0, 1) : 0;
+    }
+
+    /**
+     * Frame rate over the last window.
+     */
+    public double getFps() {
+        long[] pts = new long[(int) Math.min(mCount, mWindow + 1)];
+        return (pts.length > 1 && latest(pts)) ? fps(pts, 0, pts.length - 1) : 0;
+    }
+
+    /**
+     * Mean of the last window of sliding fps measurements.
+     */
+    public float getAverageFps() {
+        int measurements = (int) Math.min(mCount - mWindow, mWindow + 1);
+        long[] pts = new long[Math.max(0, measurements) + mWindow];
+        if (measurements < 1 || !latest(pts)) {
+            return 0;
+        }
+        double sum = 0;
+        for (int i = 0; i < measurements; i++) {
+            sum += fps(pts, i, i + mWindow);
         }
+        return (float) (sum / measurements);
     }
 
-    public boolean isStable() {
-        return mStable;
+    /**
+     * Frame rate since the first frame.
+     */
+    public float getOverallFps() {
+        long[] pts = new long[1];
+        long count = mCount;
+        if (count < 2 || !latest(pts) || pts[0] <= mFirstPts) {
+            return 0;
+        }
+        return (float) ((count - 1) * 1e9 / (pts[0] - mFirstPts));
     }
 
-    public double getFps() {
-        return mFps;
+    /**
+     * Standard deviation of the frame intervals in the last window.
+     */
+    public double getJitterMs() {
+        long[] pts = new long[(int) Math.min(mCount, mWindow + 1)];
+        return (pts.length > 2 && latest(pts)) ? jitterMs(pts, 0, pts.length - 1) : 0;
     }
 
-    public float getAverageFps() {
-        return mCurrentHistorySum / mHistory.size();
+    private static double jitterMs(long[] pts, int from, int to) {
+        int intervals = to - from;
+        double mean = (double) (pts[to] - pts[from]) / intervals;
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            double diff = (pts[i + 1] - pts[i]) - mean;
+            sum += diff * diff;
+        }
+        return Math.sqrt(sum / intervals) / 1e6;
+    }
+
+    public boolean isStable() {
+        if (mStable) {
+            return true;
+        }
+        // The first counted measurement needs a full history before it
+        if (mCount < 2L * mWindow + mStablePeriods + 1) {
+            return false;
+        }
+        long[] pts = new long[mWindow + mStablePeriods + 2];
+        if (!latest(pts)) {
+            return false;
+        }
+        double fps = fps(pts, 0, mWindow);
+        for (int i = 1; i + mWindow < pts.length; i++) {
+            double last = fps;
+            fps = fps(pts, i, i + mWindow);
+            if (Math.abs(fps - last) >= mFpsTolerance) {
+                return false;
+            }
+        }
+        if (mMaxJitterMs > 0 && jitterMs(pts, pts.length - 1 - mWindow, pts.length - 1) > mMaxJitterMs) {
+            return false;
+        }
+        if ((int) fps == 0) {
+            Log.w(TAG, "Too low framerate!");
+        }
+        Log.d(TAG, mId + " stable at " + fps + " fps, target " + mTargetFps);
+        mStable = true;
+        return true;
     }
 }
@@ -5,8 +5,20 @@ import android.util.Log;
 
 import java.util.Dictionary;
 
+/**
+ * Per frame statistics.
+ * Frames recorded by Statistics are views on a row in a FrameRecorder. A
+ * FrameInfo created without a recorder holds its own values, the native
+ * encoders read and write those fields directly.
+ */
 public class FrameInfo {
     private static String TAG = "FrameInfo";
+    // Pipeline stages, timestamps in nsec (0 if not reached)
+    public static final int STAGE_READ_DONE = 0;  // input data read into the codec buffer
+    public static final int STAGE_QUEUED = 1;     // queueInputBuffer returned
+    public static final int STAGE_DEQUEUED = 2;   // output handed over by the codec
+    public static final int STAGE_MUXED = 3;      // written to the muxer
+    public static final int STAGE_COUNT = 4;
     long mPts;
     long mDts;
     long mSize;
@@ -19,10 +31,14 @@ public class FrameInfo {
     int mUUID = -1;
     static Integer mIdCounter = 0;
     Dictionary<String, Object> mInfo;
+    final FrameRecorder mRecorder;
+    final int mRow;
 
     public FrameInfo(long pts) {
         mPts = pts;
         mOriginalFrame = -1; // When this does not make sense
+        mRecorder = null;
+        mRow = -1;
         synchronized (mIdCounter) {
             mUUID = mIdCounter++;
         }
@@ -31,36 +47,63 @@ public class FrameInfo {
     public FrameInfo(long pts, int originalFrame) {
         mPts = pts;
         mOriginalFrame = originalFrame;
+        mRecorder = null;
+        mRow = -1;
+    }
+
+    FrameInfo(FrameRecorder recorder, int row) {
+        mRecorder = recorder;
+        mRow = row;
     }
 
     public void setSize(long size) {
+        if (mRecorder != null) {
+            mRecorder.setSize(mRow, size);
+            return;
+        }
         mSize = size;
     }
 
     public long getSize() {
-        return mSize;
+        return (mRecorder != null) ? mRecorder.getSize(mRow) : mSize;
     }
 
     public long getPts(){
-        return mPts;
+        return (mRecorder != null) ? mRecorder.getPts(mRow) : mPts;
     }
 
-    public int getOriginalFrame() {return mOriginalFrame;}
+    public int getOriginalFrame() {
+        return (mRecorder != null) ? mRecorder.getOriginalFrame(mRow) : mOriginalFrame;
+    }
 
     public void isIFrame(boolean isIFrame) {
+        if (mRecorder != null) {
+            mRecorder.setIFrame(mRow, isIFrame);
+            return;
+        }
         mIsIframe = isIFrame;
     }
 
     public boolean isIFrame() {
-        return mIsIframe;
+        return (mRecorder != null) ? mRecorder.isIFrame(mRow) : mIsIframe;
     }
 
-    public int getFlags() {return mFlags;}
+    public int getFlags() {
+        return (mRecorder != null) ? mRecorder.getFlags(mRow) : mFlags;
+    }
 
     public void setFlags(int flags) {
+        if (mRecorder != null) {
+            mRecorder.setFlags(mRow, flags);
+            return;
+        }
         mFlags = flags;
     }
     public void start(){
+        if (mRecorder != null) {
+            mRecorder.start(mRow);
+            return;
+        }
         mStartTime = ClockTimes.currentTimeNs();
         // Trace disabled for performance - adds ~1-2ms overhead per frame
         // if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
@@ -69,6 +112,10 @@ public class FrameInfo {
     }
 
     public void stop(){
+        if (mRecorder != null) {
+            mRecorder.stop(mRow);
+            return;
+        }
         // Trace disabled for performance - adds ~1-2ms overhead per frame
         // if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
         //     Trace.endAsyncSection("Process frame", mUUID);
@@ -81,19 +128,50 @@ public class FrameInfo {
     }
 
     public long getProcessingTime() {
-        return mStopTime - mStartTime;
+        return getStopTime() - getStartTime();
+    }
+
+    public long getStartTime() {
+        return (mRecorder != null) ? mRecorder.getStartTime(mRow) : mStartTime;
     }
 
-    public long getStartTime() { return mStartTime;}
-    public long getStopTime() { return mStopTime;}
+    public long getStopTime() {
+        return (mRecorder != null) ? mRecorder.getStopTime(mRow) : mStopTime;
+    }
+
+    public void setOutputOrder(int order) {
+        if (mRecorder != null) {
+            mRecorder.setOutputOrder(mRow, order);
+            return;
+        }
+        mOutputOrder = order;
+    }
 
-    public void setOutputOrder(int order) { mOutputOrder = order; }
-    public int getOutputOrder() { return mOutputOrder; }
+    public int getOutputOrder() {
+        return (mRecorder != null) ? mRecorder.getOutputOrder(mRow) : mOutputOrder;
+    }
+
+    /**
+     * Stage timestamps are only kept for frames recorded by Statistics.
+     */
+    public void setStageTime(int stage, long timeNs) {
+        if (mRecorder != null) {
+            mRecorder.setStageTime(mRow, stage, timeNs);
+        }
+    }
+
+    public long getStageTime(int stage) {
+        return (mRecorder != null) ? mRecorder.getStageTime(mRow, stage) : 0;
+    }
 
     public Dictionary getInfo() {
-        return mInfo;
+        return (mRecorder != null) ? mRecorder.getInfo(mRow) : mInfo;
     }
     public void addInfo(Dictionary<String, Object> info) {
+        if (mRecorder != null) {
+            mRecorder.setInfo(mRow, info);
+            return;
+        }
         mInfo = info;
     }
 
@@ -0,0 +1,80 @@
+package com.facebook.encapp.utils;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Paces realtime input at the frame rate.
+ *
+ * Frame deadlines are absolute, first frame + n * frame time in ns, so rounding and
+ * wakeup delays do not add up over a test. The wait parks until shortly before the
+ * deadline and spins the last part, parkNanos can wake up tens of usec late.
+ * When the caller falls behind by more than a frame the schedule restarts from now
+ * instead of rushing frames to catch up.
+ *
+ * Lateness (wakeup - deadline) is recorded in Statistics for every frame, frames
+ * whose deadline had already passed when the wait started count as missed.
+ * Used from one thread.
+ */
+public class FramePacer {
+    // Spinning the last 100 usec covers the usual timer slack
+    static final long SPIN_NS = 100000;
+
+    private final Statistics mStats;
+    private long mDeadlineNs = -1;
+
+    public FramePacer(Statistics stats) {
+        mStats = stats;
+    }
+
+    /**
+     * Waits for the next frame time, frames are frameTimeNs apart. The first call
+     * starts the schedule and returns at once.
+     */
+    public void awaitNextFrame(long frameTimeNs) {
+        long now = ClockTimes.currentTimeNs();
+        if (mDeadlineNs < 0) {
+            mDeadlineNs = now;
+            return;
+        }
+        mDeadlineNs += frameTimeNs;
+        boolean missed = now > mDeadlineNs;
+        long remaining = mDeadlineNs - now;
+        while (remaining > SPIN_NS) {
+            LockSupport.parkNanos(remaining - SPIN_NS);
+            remaining = mDeadlineNs - ClockTimes.currentTimeNs();
+        }
+        while (remaining > 0) {
+            remaining = mDeadlineNs - ClockTimes.currentTimeNs();
+        }
+        frameStarted(-remaining, missed, frameTimeNs);
+    }
+
+    /**
+     * Non blocking variant for polling loops, true when the next frame time has come.
+     */
+    public boolean isFrameDue(long frameTimeNs) {
+        long now = ClockTimes.currentTimeNs();
+        if (mDeadlineNs < 0) {
+            mDeadlineNs = now;
+            return true;
+        }
+        if (now < mDeadlineNs + frameTimeNs) {
+            return false;
+        }
+        mDeadlineNs += frameTimeNs;
+        // The poll interval decides the lateness, only a whole frame late is a miss
+        long lateness = now - mDeadlineNs;
+        frameStarted(lateness, lateness > frameTimeNs, frameTimeNs);
+        return true;
+    }
+
+    private void frameStarted(long latenessNs, boolean missed, long frameTimeNs) {
+        if (mStats != null) {
+            mStats.recordFramePacing(latenessNs, missed);
+        }
+        if (latenessNs > frameTimeNs) {
+            // Drop the lost time from the schedule
+            mDeadlineNs += latenessNs;
+        }
+    }
+}
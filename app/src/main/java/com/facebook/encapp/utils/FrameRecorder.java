@@ -0,0 +1,364 @@
+package com.facebook.encapp.utils;
+
+import java.util.Arrays;
+import java.util.Dictionary;
+import java.util.HashMap;
+
+/**
+ * Column store for per frame statistics.
+ * Every frame is a row in a set of primitive columns which grow in fixed size
+ * chunks, so a long run does not keep one object per frame alive and growing
+ * never copies the data already recorded. Sparse per frame information
+ * (e.g. media format changes) is kept in a side table keyed by row.
+ * Rows that have been written out can be released, a chunk is dropped when
+ * all of its rows are released.
+ */
+public class FrameRecorder {
+    static final int CHUNK_SHIFT = 12;
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    long[][] mPts = new long[0][];
+    long[][] mStartTime = new long[0][];
+    long[][] mStopTime = new long[0][];
+    long[][] mSize = new long[0][];
+    int[][] mFlags = new int[0][];
+    int[][] mOriginalFrame = new int[0][];
+    int[][] mOutputOrder = new int[0][];
+    boolean[][] mIsIframe = new boolean[0][];
+    // FrameInfo.STAGE_COUNT pipeline timestamps per row
+    long[][] mStageTime = new long[0][];
+    boolean[][] mReleased = new boolean[0][];
+    int[] mReleasedCount = new int[0];
+    final HashMap<Integer, Dictionary<String, Object>> mExtras = new HashMap<>();
+    int mCount = 0;
+
+    public int size() {
+        return mCount;
+    }
+
+    /**
+     * Append a row and return its index.
+     */
+    public int add(long pts, int originalFrame) {
+        int row = mCount;
+        int chunk = row >>> CHUNK_SHIFT;
+        if (chunk == mPts.length) {
+            grow();
+        }
+        int pos = row & CHUNK_MASK;
+        mPts[chunk][pos] = pts;
+        mOriginalFrame[chunk][pos] = originalFrame;
+        mOutputOrder[chunk][pos] = -1;
+        mCount++;
+        return row;
+    }
+
+    /**
+     * Append a copy of a row of another recorder and return its index.
+     */
+    public int addCopy(FrameRecorder source, int row) {
+        int copy = add(source.getPts(row), source.getOriginalFrame(row));
+        int chunk = copy >>> CHUNK_SHIFT;
+        int pos = copy & CHUNK_MASK;
+        mStartTime[chunk][pos] = source.getStartTime(row);
+        mStopTime[chunk][pos] = source.getStopTime(row);
+        mSize[chunk][pos] = source.getSize(row);
+        mFlags[chunk][pos] = source.getFlags(row);
+        mOutputOrder[chunk][pos] = source.getOutputOrder(row);
+        mIsIframe[chunk][pos] = source.isIFrame(row);
+        System.arraycopy(source.mStageTime[row >>> CHUNK_SHIFT], (row & CHUNK_MASK) * FrameInfo.STAGE_COUNT,
+                mStageTime[chunk], pos * FrameInfo.STAGE_COUNT, FrameInfo.STAGE_COUNT);
+        Dictionary<String, Object> info = source.getInfo(row);
+        if (info != null) {
+            setInfo(copy, info);
+        }
+        return copy;
+    }
+
+    /**
+     * Drops all rows, the chunks are kept for reuse. Only for recorders that never
+     * released a row.
+     */
+    public void clear() {
+        int chunks = (mCount + CHUNK_MASK) >>> CHUNK_SHIFT;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            Arrays.fill(mStartTime[chunk], 0);
+            Arrays.fill(mStopTime[chunk], 0);
+            Arrays.fill(mSize[chunk], 0);
+            Arrays.fill(mFlags[chunk], 0);
+            Arrays.fill(mIsIframe[chunk], false);
+            Arrays.fill(mStageTime[chunk], 0);
+        }
+        synchronized (mExtras) {
+            mExtras.clear();
+        }
+        mCount = 0;
+    }
+
+    private void grow() {
+        int chunks = mPts.length + 1;
+        mPts = Arrays.copyOf(mPts, chunks);
+        mStartTime = Arrays.copyOf(mStartTime, chunks);
+        mStopTime = Arrays.copyOf(mStopTime, chunks);
+        mSize = Arrays.copyOf(mSize, chunks);
+        mFlags = Arrays.copyOf(mFlags, chunks);
+        mOriginalFrame = Arrays.copyOf(mOriginalFrame, chunks);
+        mOutputOrder = Arrays.copyOf(mOutputOrder, chunks);
+        mIsIframe = Arrays.copyOf(mIsIframe, chunks);
+        mStageTime = Arrays.copyOf(mStageTime, chunks);
+        mReleased = Arrays.copyOf(mReleased, chunks);
+        mReleasedCount = Arrays.copyOf(mReleasedCount, chunks);
+        int last = chunks - 1;
+        mPts[last] = new long[CHUNK_SIZE];
+        mStartTime[last] = new long[CHUNK_SIZE];
+        mStopTime[last] = new long[CHUNK_SIZE];
+        mSize[last] = new long[CHUNK_SIZE];
+        mFlags[last] = new int[CHUNK_SIZE];
+        mOriginalFrame[last] = new int[CHUNK_SIZE];
+        mOutputOrder[last] = new int[CHUNK_SIZE];
+        mIsIframe[last] = new boolean[CHUNK_SIZE];
+        mStageTime[last] = new long[CHUNK_SIZE * FrameInfo.STAGE_COUNT];
+        mReleased[last] = new boolean[CHUNK_SIZE];
+    }
+
+    /**
+     * Marks a row as written out. Its values must not be used after this, late
+     * writes to it are dropped.
+     */
+    public void release(int row) {
+        int chunk = row >>> CHUNK_SHIFT;
+        int pos = row & CHUNK_MASK;
+        if (mReleased[chunk] == null || mReleased[chunk][pos]) {
+            return;
+        }
+        mReleased[chunk][pos] = true;
+        synchronized (mExtras) {
+            mExtras.remove(row);
+        }
+        mReleasedCount[chunk]++;
+        if (mReleasedCount[chunk] == CHUNK_SIZE) {
+            mPts[chunk] = null;
+            mStartTime[chunk] = null;
+            mStopTime[chunk] = null;
+            mSize[chunk] = null;
+            mFlags[chunk] = null;
+            mOriginalFrame[chunk] = null;
+            mOutputOrder[chunk] = null;
+            mIsIframe[chunk] = null;
+            mStageTime[chunk] = null;
+            mReleased[chunk] = null;
+        }
+    }
+
+    public boolean isReleased(int row) {
+        boolean[] released = mReleased[row >>> CHUNK_SHIFT];
+        return released == null || released[row & CHUNK_MASK];
+    }
+
+    // The setters read the chunk once, a release on another thread may drop it
+
+    public void start(int row) {
+        long[] startTime = mStartTime[row >>> CHUNK_SHIFT];
+        if (startTime != null) {
+            startTime[row & CHUNK_MASK] = ClockTimes.currentTimeNs();
+        }
+    }
+
+    public void stop(int row) {
+        int chunk = row >>> CHUNK_SHIFT;
+        int pos = row & CHUNK_MASK;
+        long[] startTime = mStartTime[chunk];
+        long[] stopTime = mStopTime[chunk];
+        if (startTime == null || stopTime == null) {
+            return;
+        }
+        long stop = ClockTimes.currentTimeNs();
+        if (stop < startTime[pos]) {
+            stopTime[pos] = -1;
+            startTime[pos] = 0;
+        } else {
+            stopTime[pos] = stop;
+        }
+    }
+
+    public long getPts(int row) {
+        return mPts[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    public long getStartTime(int row) {
+        return mStartTime[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    public long getStopTime(int row) {
+        return mStopTime[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    public long getProcessingTime(int row) {
+        return getStopTime(row) - getStartTime(row);
+    }
+
+    public long getSize(int row) {
+        return mSize[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    public void setSize(int row, long size) {
+        long[] sizes = mSize[row >>> CHUNK_SHIFT];
+        if (sizes != null) {
+            sizes[row & CHUNK_MASK] = size;
+        }
+    }
+
+    public int getFlags(int row) {
+        return mFlags[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    public void setFlags(int row, int flags) {
+        int[] rowFlags = mFlags[row >>> CHUNK_SHIFT];
+        if (rowFlags != null) {
+            rowFlags[row & CHUNK_MASK] = flags;
+        }
+    }
+
+    public int getOriginalFrame(int row) {
+        return mOriginalFrame[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    public int getOutputOrder(int row) {
+        return mOutputOrder[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    public void setOutputOrder(int row, int order) {
+        int[] outputOrder = mOutputOrder[row >>> CHUNK_SHIFT];
+        if (outputOrder != null) {
+            outputOrder[row & CHUNK_MASK] = order;
+        }
+    }
+
+    public boolean isIFrame(int row) {
+        return mIsIframe[row >>> CHUNK_SHIFT][row & CHUNK_MASK];
+    }
+
+    public void setIFrame(int row, boolean isIFrame) {
+        boolean[] iframes = mIsIframe[row >>> CHUNK_SHIFT];
+        if (iframes != null) {
+            iframes[row & CHUNK_MASK] = isIFrame;
+        }
+    }
+
+    public long getStageTime(int row, int stage) {
+        return mStageTime[row >>> CHUNK_SHIFT][(row & CHUNK_MASK) * FrameInfo.STAGE_COUNT + stage];
+    }
+
+    public void setStageTime(int row, int stage, long timeNs) {
+        long[] stageTime = mStageTime[row >>> CHUNK_SHIFT];
+        if (stageTime != null) {
+            stageTime[(row & CHUNK_MASK) * FrameInfo.STAGE_COUNT + stage] = timeNs;
+        }
+    }
+
+    public Dictionary<String, Object> getInfo(int row) {
+        synchronized (mExtras) {
+            return mExtras.get(row);
+        }
+    }
+
+    public void setInfo(int row, Dictionary<String, Object> info) {
+        synchronized (mExtras) {
+            if (info == null || isReleased(row)) {
+                mExtras.remove(row);
+            } else {
+                mExtras.put(row, info);
+            }
+        }
+    }
+
+    /**
+     * Returns a view of a row, cheap enough to create and drop per frame.
+     */
+    public FrameInfo getFrame(int row) {
+        if (isReleased(row)) {
+            return null;
+        }
+        return new FrameInfo(this, row);
+    }
+
+    /**
+     * Rows not yet released, sorted by pts, keeping row order for equal pts.
+     */
+    public int[] rowsByPts() {
+        int[] rows = new int[mCount];
+        int count = 0;
+        for (int row = 0; row < mCount; row++) {
+            if (!isReleased(row)) {
+                rows[count++] = row;
+            }
+        }
+        rows = Arrays.copyOf(rows, count);
+        sortRows(rows, true);
+        return rows;
+    }
+
+    /**
+     * Rows not yet released in output order. Rows that never got an output order
+     * (unfinished frames) come first in row order.
+     */
+    public int[] rowsByOutputOrder() {
+        int[] rows = new int[mCount];
+        int unfinished = 0;
+        for (int row = 0; row < mCount; row++) {
+            if (!isReleased(row) && getOutputOrder(row) < 0) {
+                rows[unfinished++] = row;
+            }
+        }
+        int count = unfinished;
+        for (int row = 0; row < mCount; row++) {
+            if (!isReleased(row) && getOutputOrder(row) >= 0) {
+                rows[count++] = row;
+            }
+        }
+        rows = Arrays.copyOf(rows, count);
+        int[] finished = Arrays.copyOfRange(rows, unfinished, count);
+        sortRows(finished, false);
+        System.arraycopy(finished, 0, rows, unfinished, finished.length);
+        return rows;
+    }
+
+    private long sortKey(int row, boolean byPts) {
+        return byPts ? getPts(row) : getOutputOrder(row);
+    }
+
+    private void sortRows(int[] rows, boolean byPts) {
+        mergeSort(rows, new int[rows.length], 0, rows.length, byPts);
+    }
+
+    private void mergeSort(int[] rows, int[] tmp, int from, int to, boolean byPts) {
+        if (to - from < 2) {
+            return;
+        }
+        int mid = (from + to) >>> 1;
+        mergeSort(rows, tmp, from, mid, byPts);
+        mergeSort(rows, tmp, mid, to, byPts);
+        // Frames are mostly recorded in order, skip sorted halves
+        if (sortKey(rows[mid - 1], byPts) <= sortKey(rows[mid], byPts)) {
+            return;
+        }
+        int left = from;
+        int right = mid;
+        int out = from;
+        while (left < mid && right < to) {
+            if (sortKey(rows[right], byPts) < sortKey(rows[left], byPts)) {
+                tmp[out++] = rows[right++];
+            } else {
+                tmp[out++] = rows[left++];
+            }
+        }
+        while (left < mid) {
+            tmp[out++] = rows[left++];
+        }
+        while (right < to) {
+            tmp[out++] = rows[right++];
+        }
+        System.arraycopy(tmp, from, rows, from, to - from);
+    }
+}
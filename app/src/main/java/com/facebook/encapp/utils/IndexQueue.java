@@ -0,0 +1,48 @@
+package com.facebook.encapp.utils;
+
+/**
+ * Hands codec buffer indices from one thread (e.g. the codec callback) to another
+ * without locks, boxing or polling. The consumer parks while the queue is empty and
+ * is unparked by the next offer. The time each index was offered is kept so the
+ * consumer can tell how long a buffer waited.
+ *
+ * One producer and one consumer thread.
+ */
+public class IndexQueue extends SpscRing {
+    private final int[] mIndex;
+
+    /**
+     * The capacity is rounded up to a power of two, it must hold all buffers of the codec.
+     */
+    public IndexQueue(int capacity) {
+        super(capacity, WaitStrategy.BLOCKING);
+        mIndex = new int[capacity()];
+    }
+
+    /**
+     * Returns false if the queue is full.
+     */
+    public boolean offer(int index) {
+        int pos = claim();
+        if (pos < 0) {
+            return false;
+        }
+        mIndex[pos] = index;
+        publish();
+        return true;
+    }
+
+    /**
+     * Takes the oldest index, waiting up to timeoutNs for one.
+     * Returns -1 on timeout or if the thread is interrupted.
+     */
+    public int poll(long timeoutNs) {
+        int pos = await(timeoutNs);
+        if (pos < 0) {
+            return -1;
+        }
+        int index = mIndex[pos];
+        consumed();
+        return index;
+    }
+}
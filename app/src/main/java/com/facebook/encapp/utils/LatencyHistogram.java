@@ -0,0 +1,119 @@
+package com.facebook.encapp.utils;
+
+import java.util.Arrays;
+
+/**
+ * Log bucketed latency histogram in the style of HdrHistogram.
+ * Values below 2^SUB_BUCKET_BITS are counted exactly, above that every power
+ * of two range is split in 2^(SUB_BUCKET_BITS - 1) linear buckets, which keeps
+ * the relative error below 1/64 over the whole positive long range.
+ * All memory is allocated up front, record() does not allocate.
+ * Not thread safe, the caller serializes recording.
+ */
+public class LatencyHistogram {
+    static final int SUB_BUCKET_BITS = 7;
+    static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static final int SUB_BUCKET_HALF = SUB_BUCKET_COUNT >> 1;
+    // Exact buckets, then SUB_BUCKET_HALF buckets per shift 1..63 - SUB_BUCKET_BITS
+    static final int BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS) * SUB_BUCKET_HALF;
+
+    private final int[] mCounts = new int[BUCKET_COUNT];
+    private long mCount = 0;
+    private long mTotal = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+
+    /**
+     * Negative values (e.g. frames with a broken clock) are ignored.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            return;
+        }
+        mCounts[indexFor(value)]++;
+        mCount++;
+        mTotal += value;
+        if (value < mMin) {
+            mMin = value;
+        }
+        if (value > mMax) {
+            mMax = value;
+        }
+    }
+
+    static int indexFor(long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        // value >> shift is in [SUB_BUCKET_HALF, SUB_BUCKET_COUNT)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        int sub = (int) (value >>> shift) - SUB_BUCKET_HALF;
+        return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF + sub;
+    }
+
+    // Highest value counted in a bucket
+    static long highestValueFor(int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF + 1;
+        long sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF + SUB_BUCKET_HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    public long getMin() {
+        return (mCount > 0) ? mMin : 0;
+    }
+
+    public long getMax() {
+        return mMax;
+    }
+
+    public double getMean() {
+        return (mCount > 0) ? (double) mTotal / mCount : 0;
+    }
+
+    /**
+     * Value at a percentile (0-100), the top of the bucket it falls in capped at max.
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(percentile / 100.0 * mCount);
+        target = Math.max(1, Math.min(target, mCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= target) {
+                return Math.min(highestValueFor(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Adds the values recorded in another histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mCounts[i] += other.mCounts[i];
+        }
+        mCount += other.mCount;
+        mTotal += other.mTotal;
+        mMin = Math.min(mMin, other.mMin);
+        mMax = Math.max(mMax, other.mMax);
+    }
+
+    public void reset() {
+        Arrays.fill(mCounts, 0);
+        mCount = 0;
+        mTotal = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+}
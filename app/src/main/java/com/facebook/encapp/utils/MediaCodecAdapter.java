@@ -0,0 +1,149 @@
+package com.facebook.encapp.utils;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+
+import androidx.annotation.NonNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Codec on top of a MediaCodec. Anything outside the interface (surfaces) is done
+ * on getMediaCodec().
+ */
+public class MediaCodecAdapter implements Codec {
+    private final MediaCodec mCodec;
+
+    public MediaCodecAdapter(MediaCodec codec) {
+        mCodec = codec;
+    }
+
+    public MediaCodec getMediaCodec() {
+        return mCodec;
+    }
+
+    @Override
+    public String getName() {
+        return mCodec.getName();
+    }
+
+    @Override
+    public String getCanonicalName() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return mCodec.getCanonicalName();
+        }
+        return mCodec.getName();
+    }
+
+    @Override
+    public boolean isHardwareAccelerated() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return mCodec.getCodecInfo().isHardwareAccelerated();
+        }
+        return false;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        final Codec codec = this;
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(@NonNull MediaCodec mediaCodec, int index) {
+                callback.onInputBufferAvailable(codec, index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(@NonNull MediaCodec mediaCodec, int index, @NonNull MediaCodec.BufferInfo info) {
+                callback.onOutputBufferAvailable(codec, index, info);
+            }
+
+            @Override
+            public void onError(@NonNull MediaCodec mediaCodec, @NonNull MediaCodec.CodecException e) {
+                callback.onError(codec, e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(@NonNull MediaCodec mediaCodec, @NonNull MediaFormat format) {
+                callback.onOutputFormatChanged(codec, format);
+            }
+        });
+    }
+
+    @Override
+    public void configure(MediaFormat format, boolean encoder) {
+        mCodec.configure(format, null, null, encoder ? MediaCodec.CONFIGURE_FLAG_ENCODE : 0);
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void flush() {
+        mCodec.flush();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+
+    @Override
+    public MediaFormat getInputFormat() {
+        return mCodec.getInputFormat();
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mCodec.getOutputFormat();
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public Image getInputImage(int index) {
+        return mCodec.getInputImage(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        return mCodec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    @Override
+    public void setParameters(Bundle params) {
+        mCodec.setParameters(params);
+    }
+}
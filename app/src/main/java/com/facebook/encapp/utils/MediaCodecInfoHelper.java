@@ -775,6 +775,19 @@ public class MediaCodecInfoHelper {
         }
     }
 
+    /**
+     * Max number of concurrent instances of the codec, 0 if there is no codec with that exact name.
+     */
+    public static int getMaxSupportedInstances(String name) {
+        MediaCodecList codecList = new MediaCodecList(MediaCodecList.ALL_CODECS);
+        for (MediaCodecInfo info : codecList.getCodecInfos()) {
+            if (info.getName().equalsIgnoreCase(name) && info.getSupportedTypes().length > 0) {
+                return info.getCapabilitiesForType(info.getSupportedTypes()[0]).getMaxSupportedInstances();
+            }
+        }
+        return 0;
+    }
+
     @NonNull
     protected static Vector<MediaCodecInfo> getMediaCodecInfos(MediaCodecInfo[] codecInfos, String id) {
         Vector<MediaCodecInfo> matching = new Vector<>();
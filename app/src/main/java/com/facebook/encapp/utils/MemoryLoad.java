@@ -2,17 +2,13 @@ package com.facebook.encapp.utils;
 
 import android.app.ActivityManager;
 import android.content.Context;
-import android.os.Debug;
 import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.Map;
-
-public class MemoryLoad {
+public class MemoryLoad implements SamplingProbe {
     protected static final String TAG = "MemoryLoad";
     int mFrequencyHz = 1;
     Boolean started = Boolean.FALSE;
-    ArrayList<String> mUsedMemory = new ArrayList<>();
+    SampleRing<String> mUsedMemory = new SampleRing<>(1 << 12);
     Context mContext;
     public MemoryLoad(Context context) {
         mContext = context;
@@ -30,58 +26,35 @@ public class MemoryLoad {
             Log.d(TAG, "thrs: " + memInfo.threshold);
             Log.d(TAG, "total: " + memInfo.totalMem);
 
-            int pid = android.os.Process.myPid();
             started = Boolean.TRUE;
-            Thread t = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    while (started ) {
-                        String tmp;
-                        long sleeptime = (long) (1000.0 / mFrequencyHz);
-                        synchronized (started) {
-                            Runtime info = Runtime.getRuntime();
-                            long freeSize = info.freeMemory();
-                            long totalSize = info.totalMemory();
-                            long usedSize = totalSize - freeSize;
-                            long nativeHeapAlloc = Debug.getNativeHeapAllocatedSize();
-                            long nativeHeapaFree = Debug.getNativeHeapFreeSize();
-                            long nativeHeapSize = Debug.getNativeHeapSize();
-                            long pssCount = Debug.getPss();
-                            //Debug.MemoryInfo[] mi = am.getProcessMemoryInfo(new int[]{pid});
-                            Map<String, String> stats = Debug.getRuntimeStats();// mi[0].getMemoryStats();
-/*
-                            Log.d(TAG, "****");
-                            Log.d(TAG, "nativeHeapAlloc: " + nativeHeapAlloc);
-                            Log.d(TAG, "nativeHeapaFree: " + nativeHeapaFree);
-                            Log.d(TAG, "nativeHeapSize: " + nativeHeapSize);
-                            Log.d(TAG, "pssCount: " + pssCount);
+        }
+        SamplingScheduler.getScheduler().addProbe(this);
+    }
 
-                            Log.d(TAG, "free: " + freeSize);
-                            Log.d(TAG, "total: " + totalSize);
-                            Log.d(TAG, "used: " + usedSize);
-*/
-                            for (String key: stats.keySet()) {
-                                Log.d(TAG, key + ": " + stats.get(key));
-                            }
-                            Log.d(TAG, "****");
-                        }
+    @Override
+    public String getName() {
+        return "memory_load";
+    }
 
-                        try {
-                            Thread.sleep(sleeptime);
-                        } catch (Exception ex) {
-                            Log.e(TAG, "Sleep failed (" + sleeptime + " ms): " + ex.getMessage());
-                        }
-                    }
-                }
-            }, "memory_load_thread");
-            t.start();
-        }
+    @Override
+    public int getFrequencyHz() {
+        return mFrequencyHz;
+    }
+
+    @Override
+    public void sample(long tickNs) {
+        Runtime info = Runtime.getRuntime();
+        long freeSize = info.freeMemory();
+        long totalSize = info.totalMemory();
+        long usedSize = totalSize - freeSize;
+        mUsedMemory.add(Long.toString(usedSize));
     }
 
     public void stop() {
         synchronized (started) {
             started = Boolean.FALSE;
         }
+        SamplingScheduler.getScheduler().removeProbe(this);
     }
     /*
 
@@ -233,6 +233,7 @@ public class MuxerWrapper {
      * @param bufferInfo Buffer info with size, timestamp, flags
      */
     public void writeSampleData(int trackIndex, ByteBuffer encodedData, MediaCodec.BufferInfo bufferInfo) {
+        long traceStart = TraceEvents.begin();
         if (mUseInternalMuxer && mInternalMuxer != null) {
             // Extract frame data
             byte[] frameData = new byte[bufferInfo.size];
@@ -249,6 +250,7 @@ public class MuxerWrapper {
         } else {
             Log.e(TAG, "No muxer available to write sample!");
         }
+        TraceEvents.end(TraceEvents.MUX, traceStart, bufferInfo.presentationTimeUs);
     }
 
     /**
@@ -14,6 +14,7 @@ import com.facebook.encapp.utils.grafika.FullFrameRect;
 import com.facebook.encapp.utils.grafika.GlUtil;
 import com.facebook.encapp.utils.grafika.Texture2dProgram;
 
+import java.util.HashMap;
 import java.util.Vector;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -81,6 +82,8 @@ public class OutputMultiplier {
     private final float[] mTmpMatrix = new float[16];
     final private Object mLock = new Object();
     private final Vector<FrameswapControl> mOutputSurfaces = new Vector<>();
+    // Encoding measured per output, e.g. one encoder per surface
+    private final HashMap<FrameswapControl, Statistics> mSurfaceStats = new HashMap<>();
     VsyncHandler mMessageHandler;
     int LATE_LIMIT_NS = 15 * 1000000; // ms
     Texture2dProgram.ProgramType mProgramType = Texture2dProgram.ProgramType.TEXTURE_EXT;
@@ -155,6 +158,16 @@ public class OutputMultiplier {
     public void removeFrameSwapControl(FrameswapControl control) {
         synchronized (mLock) {
             mOutputSurfaces.remove(control);
+            mSurfaceStats.remove(control);
+        }
+    }
+
+    /**
+     * Starts the encoding measurement of stats when a frame is swapped to the surface.
+     */
+    public void setSurfaceStatistics(FrameswapControl surface, Statistics stats) {
+        synchronized (mLock) {
+            mSurfaceStats.put(surface, stats);
         }
     }
 
@@ -205,6 +218,7 @@ public class OutputMultiplier {
                 swap.release();
             }
             mOutputSurfaces.removeAllElements();
+            mSurfaceStats.clear();
         }
         if (mMasterSurface != null)
             mMasterSurface.release();
@@ -263,6 +277,8 @@ public class OutputMultiplier {
         @Override
         public void run() {
             Log.d(TAG, "Start rend");
+            // Shared by the tests rendering to this multiplier
+            ThreadCpuSampler.registerThread("renderer", null);
             mEglCore = new EglCore(null, EglCore.FLAG_RECORDABLE);
             FrameswapControl windowSurface = null;
             if (mSurfaceObject instanceof SurfaceTexture) {
@@ -433,6 +449,7 @@ public class OutputMultiplier {
                         }
                     }
 
+                    long traceStart = TraceEvents.begin();
                     boolean isGLPattern = false;
                     try {
                         mLatestTimestampNsec = timeNs;
@@ -477,6 +494,7 @@ public class OutputMultiplier {
                                 blitter.drawFrame(textureToUse, mTmpMatrix);
                                 surface.setPresentationTime(mLatestTimestampNsec);
                                 surface.swapBuffers();
+                                startSurfaceEncoding(surface, buffer);
                             }
                         }
 
@@ -496,6 +514,7 @@ public class OutputMultiplier {
                                 surface.makeCurrent();
                                 surface.setPresentationTime(mLatestTimestampNsec);
                                 surface.swapBuffers();
+                                startSurfaceEncoding(surface, buffer);
                             }
                         }
 
@@ -507,6 +526,7 @@ public class OutputMultiplier {
                         }
                     }
                 }
+                    TraceEvents.end(TraceEvents.RENDER, traceStart, buffer.getTimestampUs());
 
                     synchronized (mFrameDrawnLock) {
                         frameAvailable = (frameAvailable > 0) ? frameAvailable - 1 : 0;
@@ -518,12 +538,20 @@ public class OutputMultiplier {
             }
         }
 
+        private void startSurfaceEncoding(FrameswapControl surface, RenderBufferObject buffer) {
+            Statistics stats = mSurfaceStats.get(surface);
+            if (stats != null) {
+                stats.startEncodingFrame(buffer.getTimestampUs(), buffer.getFrameCount());
+            }
+        }
+
         public void drawFrameImmediateSwap() {
             try {
                 if (mEglCore == null) {
                     Log.d(TAG, "Skipping drawFrame after shutdown");
                     return;
                 }
+                long traceStart = TraceEvents.begin();
                 mMasterSurface.makeCurrent();
                 mInputTexture.updateTexImage();
                 mInputTexture.getTransformMatrix(mTmpMatrix);
@@ -547,6 +575,7 @@ public class OutputMultiplier {
                         }
                     }
                 }
+                TraceEvents.end(TraceEvents.RENDER, traceStart, mLatestTimestampNsec / 1000);
 
                 synchronized (mFrameDrawnLock) {
                     frameAvailable = (frameAvailable > 0) ? frameAvailable - 1 : 0;
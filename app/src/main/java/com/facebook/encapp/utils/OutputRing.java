@@ -0,0 +1,99 @@
+package com.facebook.encapp.utils;
+
+/**
+ * Hands codec output buffers (id, offset, size, pts, flags) from the codec callback
+ * to the writer thread. The slots are preallocated primitive arrays, so nothing is
+ * allocated per frame, and no locks are taken.
+ *
+ * The consumer either parks right away while the ring is empty (BLOCKING) or spins
+ * for a short while first (SPIN_THEN_PARK), which saves the wakeup when the next
+ * buffer is close but burns a core while waiting.
+ *
+ * One producer and one consumer thread. poll() copies the slot, the getters return
+ * the values of the buffer last returned by poll().
+ */
+public class OutputRing extends SpscRing {
+    private final int[] mBufferId;
+    private final int[] mOffset;
+    private final int[] mSize;
+    private final long[] mPts;
+    private final int[] mFlags;
+
+    // Last polled buffer, consumer only
+    private int mLastOffset;
+    private int mLastSize;
+    private long mLastPts;
+    private int mLastFlags;
+
+    /**
+     * The capacity is rounded up to a power of two. A codec with more output buffers
+     * than that makes offer(..., timeoutNs) wait for the consumer.
+     */
+    public OutputRing(int capacity, WaitStrategy waitStrategy) {
+        super(capacity, waitStrategy);
+        int size = capacity();
+        mBufferId = new int[size];
+        mOffset = new int[size];
+        mSize = new int[size];
+        mPts = new long[size];
+        mFlags = new int[size];
+    }
+
+    /**
+     * Returns false if the ring is full.
+     */
+    public boolean offer(int bufferId, int offset, int size, long ptsUs, int flags) {
+        return offer(bufferId, offset, size, ptsUs, flags, 0);
+    }
+
+    /**
+     * Waits up to timeoutNs for a free slot, returns false if there was none.
+     */
+    public boolean offer(int bufferId, int offset, int size, long ptsUs, int flags, long timeoutNs) {
+        int pos = (timeoutNs > 0) ? claim(timeoutNs) : claim();
+        if (pos < 0) {
+            return false;
+        }
+        mBufferId[pos] = bufferId;
+        mOffset[pos] = offset;
+        mSize[pos] = size;
+        mPts[pos] = ptsUs;
+        mFlags[pos] = flags;
+        publish();
+        return true;
+    }
+
+    /**
+     * Takes the oldest buffer and returns its id, waiting up to timeoutNs for one.
+     * Returns -1 on timeout or if the thread is interrupted.
+     */
+    public int poll(long timeoutNs) {
+        int pos = await(timeoutNs);
+        if (pos < 0) {
+            return -1;
+        }
+        int bufferId = mBufferId[pos];
+        mLastOffset = mOffset[pos];
+        mLastSize = mSize[pos];
+        mLastPts = mPts[pos];
+        mLastFlags = mFlags[pos];
+        consumed();
+        return bufferId;
+    }
+
+    public int getOffset() {
+        return mLastOffset;
+    }
+
+    public int getSize() {
+        return mLastSize;
+    }
+
+    public long getPresentationTimeUs() {
+        return mLastPts;
+    }
+
+    public int getFlags() {
+        return mLastFlags;
+    }
+}
@@ -0,0 +1,133 @@
+package com.facebook.encapp.utils;
+
+import android.media.MediaCodecInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Copies 4:2:0 frames between codec buffers whose row stride or plane height differ.
+ * Chroma is either interleaved (NV12) or in two planes with half the row stride (I420),
+ * by the codec color format. The source is read from its position, the destination is
+ * written from the start. All return the size written, -1 if a buffer is too small or the
+ * layout of the color format is not known.
+ */
+public class PlaneCopy {
+
+    public static boolean isPlanar(int colorFormat) {
+        return colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar ||
+                colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar;
+    }
+
+    public static boolean isSemiPlanar(int colorFormat) {
+        return colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar ||
+                colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedSemiPlanar ||
+                colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_QCOM_FormatYUV420SemiPlanar ||
+                colorFormat == MediaCodecInfo.CodecCapabilities.COLOR_TI_FormatYUV420PackedSemiPlanar;
+    }
+
+    /**
+     * One bulk put for the same layout, else one put per plane or per row.
+     */
+    public static int copy(ByteBuffer src, ByteBuffer dst, int colorFormat, int width, int height,
+                           int srcStride, int srcSliceHeight, int dstStride, int dstSliceHeight) {
+        dst.clear();
+        if (srcStride == dstStride && srcSliceHeight == dstSliceHeight && src.remaining() <= dst.remaining()) {
+            dst.put(src);
+            return dst.position();
+        }
+        if (srcStride == dstStride) {
+            return copyPlanes(src, dst, colorFormat, srcStride, height, srcSliceHeight, dstSliceHeight);
+        }
+        return copyRows(src, dst, colorFormat, width, height, srcStride, srcSliceHeight, dstStride, dstSliceHeight);
+    }
+
+    /**
+     * Same row stride, the chroma planes start at a different height.
+     */
+    public static int copyPlanes(ByteBuffer src, ByteBuffer dst, int colorFormat, int stride, int height,
+                                 int srcSliceHeight, int dstSliceHeight) {
+        boolean planar = isPlanar(colorFormat);
+        if (!planar && !isSemiPlanar(colorFormat)) {
+            return -1;
+        }
+        int start = src.position();
+        int limit = src.limit();
+        int srcChroma = start + stride * srcSliceHeight;
+        int dstChroma = stride * dstSliceHeight;
+        int chromaSize = stride * (height / 2);
+        // The second chroma plane, the same as the first for interleaved chroma
+        int srcV = srcChroma;
+        int dstV = dstChroma;
+        if (planar) {
+            chromaSize = (stride / 2) * (height / 2);
+            srcV = srcChroma + (stride / 2) * (srcSliceHeight / 2);
+            dstV = dstChroma + (stride / 2) * (dstSliceHeight / 2);
+        }
+        if (dstV + chromaSize > dst.capacity() || srcV + chromaSize > limit) {
+            return -1;
+        }
+        dst.clear();
+        copyRange(src, start, dst, 0, stride * height);
+        copyRange(src, srcChroma, dst, dstChroma, chromaSize);
+        if (planar) {
+            copyRange(src, srcV, dst, dstV, chromaSize);
+        }
+        src.limit(limit);
+        return dst.position();
+    }
+
+    /**
+     * Different row stride, width bytes of every row.
+     */
+    public static int copyRows(ByteBuffer src, ByteBuffer dst, int colorFormat, int width, int height,
+                               int srcStride, int srcSliceHeight, int dstStride, int dstSliceHeight) {
+        boolean planar = isPlanar(colorFormat);
+        if (!planar && !isSemiPlanar(colorFormat)) {
+            return -1;
+        }
+        int start = src.position();
+        int limit = src.limit();
+        int chromaRows = height / 2;
+        int srcChroma = start + srcStride * srcSliceHeight;
+        int dstChroma = dstStride * dstSliceHeight;
+        int chromaWidth = width;
+        int srcChromaStride = srcStride;
+        int dstChromaStride = dstStride;
+        int srcV = srcChroma;
+        int dstV = dstChroma;
+        if (planar) {
+            chromaWidth = width / 2;
+            srcChromaStride = srcStride / 2;
+            dstChromaStride = dstStride / 2;
+            srcV = srcChroma + srcChromaStride * (srcSliceHeight / 2);
+            dstV = dstChroma + dstChromaStride * (dstSliceHeight / 2);
+        }
+        int size = dstV + dstChromaStride * (chromaRows - 1) + chromaWidth;
+        if (width > srcStride || width > dstStride || size > dst.capacity() ||
+                srcV + srcChromaStride * (chromaRows - 1) + chromaWidth > limit) {
+            return -1;
+        }
+        dst.clear();
+        copyPlane(src, start, srcStride, dst, 0, dstStride, width, height);
+        copyPlane(src, srcChroma, srcChromaStride, dst, dstChroma, dstChromaStride, chromaWidth, chromaRows);
+        if (planar) {
+            copyPlane(src, srcV, srcChromaStride, dst, dstV, dstChromaStride, chromaWidth, chromaRows);
+        }
+        src.limit(limit);
+        return size;
+    }
+
+    private static void copyPlane(ByteBuffer src, int srcPos, int srcStride, ByteBuffer dst, int dstPos,
+                                  int dstStride, int width, int rows) {
+        for (int row = 0; row < rows; row++) {
+            copyRange(src, srcPos + row * srcStride, dst, dstPos + row * dstStride, width);
+        }
+    }
+
+    private static void copyRange(ByteBuffer src, int srcPos, ByteBuffer dst, int dstPos, int length) {
+        src.limit(srcPos + length);
+        src.position(srcPos);
+        dst.position(dstPos);
+        dst.put(src);
+    }
+}
@@ -8,12 +8,14 @@ import android.util.Log;
 
 import java.util.ArrayList;
 
-public class PowerLoad {
+public class PowerLoad implements SamplingProbe {
     protected static final String TAG = "PowerLoad";
     int mFrequencyHz = 1;
     Boolean started = Boolean.FALSE;
-    ArrayList<String> mEnergynWh = new ArrayList<>();
-    ArrayList<String> mCurrentuA = new ArrayList<>();
+    // About an hour at 1 Hz
+    static final int SAMPLE_CAPACITY = 1 << 12;
+    SampleRing<String> mEnergynWh = new SampleRing<>(SAMPLE_CAPACITY);
+    SampleRing<String> mCurrentuA = new SampleRing<>(SAMPLE_CAPACITY);
     BatteryManager mBatteryManager;
     ArrayList<BatteryStatusListener> mStatusListeners = new ArrayList<>();
     static Context mContext;
@@ -48,64 +50,62 @@ public class PowerLoad {
             Log.d(TAG, "Start power measurement");
 
             started = Boolean.TRUE;
-            Thread t = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    while (started) {
-                        String tmp;
-                        long sleeptime = (long) (1000.0 / mFrequencyHz);
-                        synchronized (started) {
-                            // Monitor power level
-                            //int overheat = mBatteryManager.getIntProperty(BatteryManager.BATTERY_HEALTH_OVERHEAT);
-                            //int overvoltage = mBatteryManager.getIntProperty(BatteryManager.BATTERY_HEALTH_OVER_VOLTAGE);
-                            int capacity = mBatteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
-
-                            // Are we charging / charged?
-                            IntentFilter ifilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
-                            Intent batteryStatus = mContext.registerReceiver(null, ifilter);
-
-                            int status = batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
-                            boolean isCharging = status == BatteryManager.BATTERY_STATUS_CHARGING ||
-                                    status == BatteryManager.BATTERY_STATUS_FULL;
-                            mCurrentVoltagemV = batteryStatus.getIntExtra(BatteryManager.EXTRA_VOLTAGE, -1);
-                            // How are we charging?
-                            // TODO: I see some strange values.
-                            //  Charging is claimed even though charging is not active in some cases...
-                            int chargePlug = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
-                            boolean usbCharge = chargePlug == BatteryManager.BATTERY_PLUGGED_USB;
-                            boolean acCharge = chargePlug == BatteryManager.BATTERY_PLUGGED_AC;
-                            if (capacity <= mLowPowerThreshold && !mLowPowerState) {
-                                mLowPowerState = true;
-                                Log.d(TAG, "Power capacity is low: " + capacity + "%");
-                                for (BatteryStatusListener listener: mStatusListeners) {
-                                    if (isCharging) {
-                                        Log.d(TAG, "Is charging but low battery. usb charge: "+ usbCharge + ", ac charge: " + acCharge);
-                                        listener.lowCapacity();
-                                    } else {
-                                        Log.d(TAG, "Is not charging with low battery.");
-                                        listener.shutdown();
-                                    }
-                                }
-                            } else if (capacity >  mHighPowerThreshold && mLowPowerState) {
-                                mLowPowerState = false;
-
-                                for(BatteryStatusListener listener: mStatusListeners) {
-                                    listener.recovered();
-                                }
-                            }
-
-
-                        }
-
-                        try {
-                            Thread.sleep(sleeptime);
-                        } catch (Exception ex) {
-                            Log.e(TAG, "Sleep failed (" + sleeptime + " ms): " + ex.getMessage());
-                        }
-                    }
+        }
+        SamplingScheduler.getScheduler().addProbe(this);
+    }
+
+    @Override
+    public String getName() {
+        return "power_load";
+    }
+
+    @Override
+    public int getFrequencyHz() {
+        return mFrequencyHz;
+    }
+
+    @Override
+    public void sample(long tickNs) {
+        // Monitor power level
+        //int overheat = mBatteryManager.getIntProperty(BatteryManager.BATTERY_HEALTH_OVERHEAT);
+        //int overvoltage = mBatteryManager.getIntProperty(BatteryManager.BATTERY_HEALTH_OVER_VOLTAGE);
+        int capacity = mBatteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY);
+
+        // Are we charging / charged?
+        IntentFilter ifilter = new IntentFilter(Intent.ACTION_BATTERY_CHANGED);
+        Intent batteryStatus = mContext.registerReceiver(null, ifilter);
+
+        int status = batteryStatus.getIntExtra(BatteryManager.EXTRA_STATUS, -1);
+        boolean isCharging = status == BatteryManager.BATTERY_STATUS_CHARGING ||
+                status == BatteryManager.BATTERY_STATUS_FULL;
+        mCurrentVoltagemV = batteryStatus.getIntExtra(BatteryManager.EXTRA_VOLTAGE, -1);
+        // How are we charging?
+        // TODO: I see some strange values.
+        //  Charging is claimed even though charging is not active in some cases...
+        int chargePlug = batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, -1);
+        boolean usbCharge = chargePlug == BatteryManager.BATTERY_PLUGGED_USB;
+        boolean acCharge = chargePlug == BatteryManager.BATTERY_PLUGGED_AC;
+        PowerSnapshot snapshot = takeSnapshot();
+        mCurrentuA.add(Integer.toString(snapshot.getCurrentuA()));
+        mEnergynWh.add(Long.toString(snapshot.getCapacitynWh()));
+        if (capacity <= mLowPowerThreshold && !mLowPowerState) {
+            mLowPowerState = true;
+            Log.d(TAG, "Power capacity is low: " + capacity + "%");
+            for (BatteryStatusListener listener: mStatusListeners) {
+                if (isCharging) {
+                    Log.d(TAG, "Is charging but low battery. usb charge: "+ usbCharge + ", ac charge: " + acCharge);
+                    listener.lowCapacity();
+                } else {
+                    Log.d(TAG, "Is not charging with low battery.");
+                    listener.shutdown();
                 }
-            }, "power_load_thread");
-            t.start();
+            }
+        } else if (capacity >  mHighPowerThreshold && mLowPowerState) {
+            mLowPowerState = false;
+
+            for(BatteryStatusListener listener: mStatusListeners) {
+                listener.recovered();
+            }
         }
     }
 
@@ -128,10 +128,11 @@ public class PowerLoad {
         synchronized (started) {
             started = Boolean.FALSE;
         }
-        for (String val: mEnergynWh) {
+        SamplingScheduler.getScheduler().removeProbe(this);
+        for (String val: mEnergynWh.take()) {
             Log.d(TAG, val);
         }
-        for (String val: mCurrentuA) {
+        for (String val: mCurrentuA.take()) {
             Log.d(TAG, val);
         }
     }
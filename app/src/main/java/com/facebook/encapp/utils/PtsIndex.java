@@ -0,0 +1,123 @@
+package com.facebook.encapp.utils;
+
+import java.util.Arrays;
+
+/**
+ * Sorted index of frames that are in flight, i.e. started but not yet stopped.
+ * Keys are pts values and the stored value is the frame's position in the
+ * owning list. Only in flight frames are kept so the size is bounded by the
+ * codec pipeline depth and not by the length of the test.
+ */
+public class PtsIndex {
+    long[] mPts;
+    int[] mIndex;
+    int mSize = 0;
+
+    public PtsIndex() {
+        this(32);
+    }
+
+    public PtsIndex(int capacity) {
+        mPts = new long[Math.max(capacity, 1)];
+        mIndex = new int[mPts.length];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    public void add(long pts, int index) {
+        if (mSize == mPts.length) {
+            mPts = Arrays.copyOf(mPts, mSize * 2);
+            mIndex = Arrays.copyOf(mIndex, mSize * 2);
+        }
+        // Input is normally in pts order so this is an append
+        int pos = mSize;
+        while (pos > 0 && (mPts[pos - 1] > pts || (mPts[pos - 1] == pts && mIndex[pos - 1] > index))) {
+            pos--;
+        }
+        if (pos < mSize) {
+            System.arraycopy(mPts, pos, mPts, pos + 1, mSize - pos);
+            System.arraycopy(mIndex, pos, mIndex, pos + 1, mSize - pos);
+        }
+        mPts[pos] = pts;
+        mIndex[pos] = index;
+        mSize++;
+    }
+
+    /**
+     * Find and remove the in flight frame with the pts closest to the one given.
+     * On equal distance the frame added first wins.
+     *
+     * @return the index of the frame or -1 if nothing is in flight
+     */
+    public int removeClosest(long pts) {
+        if (mSize == 0) {
+            return -1;
+        }
+        int pos = lowerBound(pts);
+        int best = -1;
+        long bestDist = Long.MAX_VALUE;
+        // Among equal pts the lowest index sits first, check it and the one below
+        if (pos < mSize) {
+            best = pos;
+            bestDist = mPts[pos] - pts;
+        }
+        if (pos > 0) {
+            // Walk back to the first entry with the same pts, lowest index
+            int lower = pos - 1;
+            long value = mPts[lower];
+            while (lower > 0 && mPts[lower - 1] == value) {
+                lower--;
+            }
+            long dist = pts - value;
+            if (best < 0 || dist < bestDist || (dist == bestDist && mIndex[lower] < mIndex[best])) {
+                best = lower;
+            }
+        }
+        int index = mIndex[best];
+        removeAt(best);
+        return index;
+    }
+
+    /**
+     * Remove the entry with exactly this pts.
+     *
+     * @return the index of the frame or -1 if it is not in flight
+     */
+    public int remove(long pts) {
+        int pos = lowerBound(pts);
+        if (pos < mSize && mPts[pos] == pts) {
+            int index = mIndex[pos];
+            removeAt(pos);
+            return index;
+        }
+        return -1;
+    }
+
+    private void removeAt(int pos) {
+        mSize--;
+        if (pos < mSize) {
+            System.arraycopy(mPts, pos + 1, mPts, pos, mSize - pos);
+            System.arraycopy(mIndex, pos + 1, mIndex, pos, mSize - pos);
+        }
+    }
+
+    private int lowerBound(long pts) {
+        int low = 0;
+        int high = mSize;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mPts[mid] < pts) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,95 @@
+package com.facebook.encapp.utils;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Summaries of the runs of a repeated test: mean, sample stddev and the 95% confidence
+ * interval of the mean (Student's t) of the fps and the frame latency, latencies in nsec.
+ */
+public class RepetitionStats {
+    private static final String[] METRICS = {"fps", "latency_mean", "latency_p50", "latency_p90", "latency_p99"};
+    // Two sided 95% t values for 1 - 30 degrees of freedom
+    private static final double[] T95 = {
+            12.706, 4.303, 3.182, 2.776, 2.571, 2.447, 2.365, 2.306, 2.262, 2.228,
+            2.201, 2.179, 2.160, 2.145, 2.131, 2.120, 2.110, 2.101, 2.093, 2.086,
+            2.080, 2.074, 2.069, 2.064, 2.060, 2.056, 2.052, 2.048, 2.045, 2.042};
+    private static final double Z95 = 1.960;
+
+    private final int mRepeat;
+    private final List<String> mIds = new ArrayList<>();
+    private final List<double[]> mValues = new ArrayList<>();
+
+    public RepetitionStats(int repeat) {
+        mRepeat = repeat;
+    }
+
+    public synchronized void add(Statistics stats) {
+        LatencyHistogram latency = stats.getFrameLatency();
+        mIds.add(stats.getId());
+        mValues.add(new double[]{
+                stats.getMeasuredFps(),
+                latency.getMean(),
+                latency.getValueAtPercentile(50),
+                latency.getValueAtPercentile(90),
+                latency.getValueAtPercentile(99)});
+    }
+
+    public synchronized int getRuns() {
+        return mIds.size();
+    }
+
+    public synchronized boolean isComplete() {
+        return mIds.size() >= mRepeat;
+    }
+
+    static double tValue(int degreesOfFreedom) {
+        if (degreesOfFreedom < 1) {
+            return 0;
+        }
+        return (degreesOfFreedom <= T95.length) ? T95[degreesOfFreedom - 1] : Z95;
+    }
+
+    public synchronized void writeJSON(JsonWriter json) throws IOException {
+        int runs = mValues.size();
+        json.beginObject();
+        json.name("runs").value(runs);
+        json.name("ids");
+        json.beginArray();
+        for (String id : mIds) {
+            json.value(id);
+        }
+        json.endArray();
+        for (int metric = 0; metric < METRICS.length; metric++) {
+            double sum = 0;
+            for (double[] values : mValues) {
+                sum += values[metric];
+            }
+            double mean = (runs > 0) ? sum / runs : 0;
+            double squares = 0;
+            for (double[] values : mValues) {
+                squares += (values[metric] - mean) * (values[metric] - mean);
+            }
+            double stddev = (runs > 1) ? Math.sqrt(squares / (runs - 1)) : 0;
+            double margin = (runs > 1) ? tValue(runs - 1) * stddev / Math.sqrt(runs) : 0;
+
+            json.name(METRICS[metric]);
+            json.beginObject();
+            json.name("mean").value(mean);
+            json.name("stddev").value(stddev);
+            json.name("ci95_low").value(mean - margin);
+            json.name("ci95_high").value(mean + margin);
+            json.name("values");
+            json.beginArray();
+            for (double[] values : mValues) {
+                json.value(values[metric]);
+            }
+            json.endArray();
+            json.endObject();
+        }
+        json.endObject();
+    }
+}
@@ -0,0 +1,170 @@
+package com.facebook.encapp.utils;
+
+import android.media.MediaCodec;
+import android.os.Bundle;
+
+import com.facebook.encapp.proto.DataValueType;
+import com.facebook.encapp.proto.DecoderRuntime;
+import com.facebook.encapp.proto.Parameter;
+import com.facebook.encapp.proto.Runtime;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The runtime settings of a test compiled into one event per frame, sorted by frame
+ * and with all values parsed. Checking a frame is a lookup that allocates nothing,
+ * the parameter bundles are built once and reused.
+ *
+ * Frames are expected to be checked in increasing order, checking the same frame
+ * again is fine and going back falls back to a binary search.
+ */
+public class RuntimeSchedule {
+    private static class Event {
+        Bundle mParameters;
+        boolean mDrop;
+        float mFramerate;
+
+        Bundle parameters() {
+            if (mParameters == null) {
+                mParameters = new Bundle();
+            }
+            return mParameters;
+        }
+    }
+
+    private final long[] mFrames;
+    private final Event[] mEvents;
+    private int mCursor = 0;
+
+    private RuntimeSchedule(TreeMap<Long, Event> events) {
+        mFrames = new long[events.size()];
+        mEvents = new Event[events.size()];
+        int i = 0;
+        for (Map.Entry<Long, Event> entry : events.entrySet()) {
+            mFrames[i] = entry.getKey();
+            mEvents[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    /**
+     * Returns null if there are no runtime settings.
+     * Bad values throw here rather than at the frame they are due.
+     */
+    public static RuntimeSchedule compile(Runtime runtime) {
+        if (runtime == null) return null;
+        TreeMap<Long, Event> events = new TreeMap<>();
+        // The first bitrate and framerate for a frame wins, explicit parameters come last
+        for (Runtime.VideoBitrateParameter bitrate : runtime.getVideoBitrateList()) {
+            Bundle bundle = event(events, bitrate.getFramenum()).parameters();
+            if (!bundle.containsKey(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE)) {
+                bundle.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE,
+                        TestDefinitionHelper.magnitudeToInt(bitrate.getBitrate()));
+            }
+        }
+        for (Long sync : runtime.getRequestSyncList()) {
+            event(events, sync).parameters().putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, sync.intValue());
+        }
+        addParameters(events, runtime.getParameterList());
+        for (Long drop : runtime.getDropList()) {
+            event(events, drop).mDrop = true;
+        }
+        for (Runtime.DynamicFramerateParameter rate : runtime.getDynamicFramerateList()) {
+            Event event = event(events, rate.getFramenum());
+            if (event.mFramerate == 0) {
+                event.mFramerate = rate.getFramerate();
+            }
+        }
+        return new RuntimeSchedule(events);
+    }
+
+    public static RuntimeSchedule compile(DecoderRuntime runtime) {
+        if (runtime == null) return null;
+        TreeMap<Long, Event> events = new TreeMap<>();
+        addParameters(events, runtime.getParameterList());
+        return new RuntimeSchedule(events);
+    }
+
+    private static Event event(TreeMap<Long, Event> events, long frame) {
+        Event event = events.get(frame);
+        if (event == null) {
+            event = new Event();
+            events.put(frame, event);
+        }
+        return event;
+    }
+
+    private static void addParameters(TreeMap<Long, Event> events, List<Parameter> params) {
+        for (Parameter param : params) {
+            Bundle bundle = event(events, param.getFramenum()).parameters();
+            switch (param.getType().getNumber()) {
+                case DataValueType.floatType_VALUE:
+                    bundle.putFloat(param.getKey(), Float.parseFloat(param.getValue()));
+                    break;
+                case DataValueType.intType_VALUE:
+                    bundle.putInt(param.getKey(), TestDefinitionHelper.magnitudeToInt(param.getValue()));
+                    break;
+                case DataValueType.longType_VALUE:
+                    bundle.putLong(param.getKey(), Long.parseLong(param.getValue()));
+                    break;
+                case DataValueType.stringType_VALUE:
+                    bundle.putString(param.getKey(), param.getValue());
+                    break;
+                default:
+                    ///Should not be here
+            }
+        }
+    }
+
+    private Event eventAt(long frame) {
+        if (mCursor > 0 && frame <= mFrames[mCursor - 1]) {
+            int index = Arrays.binarySearch(mFrames, frame);
+            mCursor = (index >= 0) ? index : -index - 1;
+        }
+        while (mCursor < mFrames.length && mFrames[mCursor] < frame) {
+            mCursor++;
+        }
+        if (mCursor < mFrames.length && mFrames[mCursor] == frame) {
+            return mEvents[mCursor];
+        }
+        return null;
+    }
+
+    /**
+     * True if anything is scheduled for the frame.
+     */
+    public boolean isDue(long frame) {
+        return eventAt(frame) != null;
+    }
+
+    /**
+     * The codec parameters to set at the frame, null if none. The bundle is shared, do not modify it.
+     */
+    public Bundle getParameters(long frame) {
+        Event event = eventAt(frame);
+        return (event != null) ? event.mParameters : null;
+    }
+
+    public boolean isDropped(long frame) {
+        Event event = eventAt(frame);
+        return event != null && event.mDrop;
+    }
+
+    /**
+     * The new framerate from the frame on, 0 if it does not change.
+     */
+    public float getFramerate(long frame) {
+        Event event = eventAt(frame);
+        return (event != null) ? event.mFramerate : 0;
+    }
+
+    /**
+     * Number of frames with something scheduled.
+     */
+    public int size() {
+        return mFrames.length;
+    }
+}
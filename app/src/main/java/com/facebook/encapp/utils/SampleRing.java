@@ -0,0 +1,70 @@
+package com.facebook.encapp.utils;
+
+import java.util.ArrayList;
+
+/**
+ * Bounded buffer for probe samples. When full the oldest sample is overwritten,
+ * so a probe left running in a long test keeps a fixed amount of memory.
+ * Written by the sampling thread and read by the stats writer.
+ */
+public class SampleRing<T> {
+    private final Object[] mValues;
+    private final int mMask;
+    // Total samples added and the index of the oldest kept one
+    private long mCount = 0;
+    private long mFirst = 0;
+    private long mDropped = 0;
+
+    /**
+     * The capacity is rounded up to a power of two.
+     */
+    public SampleRing(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mValues = new Object[size];
+        mMask = size - 1;
+    }
+
+    public synchronized void add(T value) {
+        if (mCount - mFirst == mValues.length) {
+            mFirst++;
+            mDropped++;
+        }
+        mValues[(int) (mCount & mMask)] = value;
+        mCount++;
+    }
+
+    public synchronized int size() {
+        return (int) (mCount - mFirst);
+    }
+
+    /**
+     * Samples lost because the ring was full.
+     */
+    public synchronized long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * Copy of the kept samples, oldest first.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized ArrayList<T> values() {
+        ArrayList<T> values = new ArrayList<>(size());
+        for (long i = mFirst; i < mCount; i++) {
+            values.add((T) mValues[(int) (i & mMask)]);
+        }
+        return values;
+    }
+
+    /**
+     * Returns the kept samples, oldest first, and empties the ring.
+     */
+    public synchronized ArrayList<T> take() {
+        ArrayList<T> values = values();
+        for (long i = mFirst; i < mCount; i++) {
+            mValues[(int) (i & mMask)] = null;
+        }
+        mFirst = mCount;
+        return values;
+    }
+}
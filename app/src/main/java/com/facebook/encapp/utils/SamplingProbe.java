@@ -0,0 +1,16 @@
+package com.facebook.encapp.utils;
+
+/**
+ * A periodic measurement run by the SamplingScheduler.
+ */
+public interface SamplingProbe {
+    // Used for logging and the sampling thread trace
+    public String getName();
+
+    // Samples per second, probes with the same frequency are sampled on the same tick
+    public int getFrequencyHz();
+
+    // Called on the sampling thread, tickNs is the scheduled time of the tick.
+    // Keep it short, all probes share the thread.
+    public void sample(long tickNs);
+}
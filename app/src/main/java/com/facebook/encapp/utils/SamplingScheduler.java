@@ -0,0 +1,201 @@
+package com.facebook.encapp.utils;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs all SamplingProbes from one thread.
+ *
+ * Ticks are fixed rate and aligned to the scheduler start, a probe at N Hz is sampled
+ * at start + k * 1/N seconds, so probes with related frequencies sample at the same
+ * time and the thread wakes up once for all of them. A late tick does not shift the
+ * following ones, ticks that passed completely are skipped and counted as missed.
+ * The time spent sampling is recorded per tick, for each test in the Window it opened.
+ */
+public class SamplingScheduler {
+    protected static final String TAG = "encapp.sampling";
+
+    private static SamplingScheduler me = null;
+
+    private final ArrayList<Entry> mEntries = new ArrayList<>();
+    private final ArrayList<Window> mWindows = new ArrayList<>();
+    private final LatencyHistogram mTickOverhead = new LatencyHistogram();
+    private long mMissedTicks = 0;
+    private long mEpochNs = 0;
+    private Thread mThread = null;
+
+    private static class Entry {
+        final SamplingProbe mProbe;
+        final long mPeriodNs;
+        long mNextTickNs;
+
+        Entry(SamplingProbe probe, long periodNs) {
+            mProbe = probe;
+            mPeriodNs = periodNs;
+        }
+    }
+
+    /**
+     * Tick overhead and missed ticks between openWindow() and closeWindow().
+     */
+    public class Window {
+        private final LatencyHistogram mTickOverhead = new LatencyHistogram();
+        private long mMissedTicks = 0;
+
+        /**
+         * Copy of the time spent per tick in ns.
+         */
+        public LatencyHistogram getTickOverhead() {
+            synchronized (SamplingScheduler.this) {
+                LatencyHistogram copy = new LatencyHistogram();
+                copy.add(mTickOverhead);
+                return copy;
+            }
+        }
+
+        public long getMissedTicks() {
+            synchronized (SamplingScheduler.this) {
+                return mMissedTicks;
+            }
+        }
+    }
+
+    public static synchronized SamplingScheduler getScheduler() {
+        if (me == null) {
+            me = new SamplingScheduler();
+        }
+        return me;
+    }
+
+    /**
+     * Starts sampling a probe on the next aligned tick for its frequency.
+     */
+    public synchronized void addProbe(SamplingProbe probe) {
+        for (Entry entry : mEntries) {
+            if (entry.mProbe == probe) {
+                return;
+            }
+        }
+        int frequencyHz = Math.max(1, probe.getFrequencyHz());
+        Entry entry = new Entry(probe, 1000000000L / frequencyHz);
+        long now = ClockTimes.currentTimeNs();
+        if (mThread == null) {
+            mEpochNs = now;
+        }
+        entry.mNextTickNs = alignedTick(entry, now);
+        mEntries.add(entry);
+        Log.d(TAG, "Add probe " + probe.getName() + " at " + frequencyHz + " Hz");
+        if (mThread == null) {
+            mThread = new Thread(this::run, "sampling_thread");
+            mThread.start();
+        } else {
+            LockSupport.unpark(mThread);
+        }
+    }
+
+    /**
+     * Stops sampling a probe. Can be called from the probe itself.
+     */
+    public synchronized void removeProbe(SamplingProbe probe) {
+        for (int i = 0; i < mEntries.size(); i++) {
+            if (mEntries.get(i).mProbe == probe) {
+                mEntries.remove(i);
+                Log.d(TAG, "Remove probe " + probe.getName());
+                break;
+            }
+        }
+        if (mEntries.isEmpty() && mThread != null) {
+            // The thread exits when it sees no probes
+            LockSupport.unpark(mThread);
+            mThread = null;
+        }
+    }
+
+    /**
+     * Starts recording the ticks, e.g. for the duration of a test. Tests running in
+     * parallel each get their own.
+     */
+    public synchronized Window openWindow() {
+        Window window = new Window();
+        mWindows.add(window);
+        return window;
+    }
+
+    public synchronized void closeWindow(Window window) {
+        mWindows.remove(window);
+    }
+
+    private long alignedTick(Entry entry, long now) {
+        long ticks = (now - mEpochNs + entry.mPeriodNs - 1) / entry.mPeriodNs;
+        return mEpochNs + ticks * entry.mPeriodNs;
+    }
+
+    private void run() {
+        Thread self = Thread.currentThread();
+        ThreadCpuSampler.registerThread("sampling", null);
+        ArrayList<Entry> due = new ArrayList<>();
+        long tick = 0;
+        while (true) {
+            long nextTickNs;
+            synchronized (this) {
+                if (mThread != self) {
+                    break;
+                }
+                nextTickNs = Long.MAX_VALUE;
+                for (Entry entry : mEntries) {
+                    nextTickNs = Math.min(nextTickNs, entry.mNextTickNs);
+                }
+            }
+            long now = ClockTimes.currentTimeNs();
+            if (now < nextTickNs) {
+                // Woken early by add/removeProbe or spuriously, look again
+                LockSupport.parkNanos(this, nextTickNs - now);
+                continue;
+            }
+
+            long traceStart = TraceEvents.begin();
+            due.clear();
+            synchronized (this) {
+                for (Entry entry : mEntries) {
+                    if (entry.mNextTickNs <= now) {
+                        due.add(entry);
+                    }
+                }
+            }
+            // Probes run outside the lock so they can remove themselves
+            for (Entry entry : due) {
+                try {
+                    entry.mProbe.sample(entry.mNextTickNs);
+                } catch (Exception ex) {
+                    Log.e(TAG, "Probe " + entry.mProbe.getName() + " failed: " + ex.getMessage());
+                }
+            }
+            long end = ClockTimes.currentTimeNs();
+            synchronized (this) {
+                mTickOverhead.record(end - now);
+                long missed = 0;
+                for (Entry entry : due) {
+                    long next = entry.mNextTickNs + entry.mPeriodNs;
+                    if (next <= end) {
+                        long aligned = alignedTick(entry, end);
+                        missed += (aligned - next) / entry.mPeriodNs;
+                        next = aligned;
+                    }
+                    entry.mNextTickNs = next;
+                }
+                mMissedTicks += missed;
+                for (Window window : mWindows) {
+                    window.mTickOverhead.record(end - now);
+                    window.mMissedTicks += missed;
+                }
+            }
+            TraceEvents.end(TraceEvents.SAMPLE, traceStart, tick++);
+        }
+        synchronized (this) {
+            Log.d(TAG, "Sampling stopped, " + mTickOverhead.getCount() + " ticks, mean "
+                    + Math.round(mTickOverhead.getMean()) + " ns, missed " + mMissedTicks);
+        }
+    }
+}
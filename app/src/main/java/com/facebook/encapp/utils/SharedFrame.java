@@ -0,0 +1,50 @@
+package com.facebook.encapp.utils;
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A decoded output buffer read by several consumers. The codec buffer is released when the
+ * last consumer releases its reference.
+ */
+public class SharedFrame extends FrameBuffer {
+    private final ByteBuffer mBuffer;
+    private final AtomicInteger mRefs;
+
+    public SharedFrame(MediaCodec codec, int id, MediaCodec.BufferInfo info, int refs) {
+        super(codec, id, info);
+        mBuffer = codec.getOutputBuffer(id);
+        mRefs = new AtomicInteger(refs);
+        if (refs <= 0) {
+            releaseBuffer();
+        }
+    }
+
+    /**
+     * A view of the decoded data with its own position and limit, null if the codec had no buffer.
+     */
+    public ByteBuffer getBuffer() {
+        return (mBuffer != null) ? mBuffer.duplicate() : null;
+    }
+
+    /**
+     * Drops one reference, returns true if that released the codec buffer.
+     */
+    public boolean release() {
+        if (mRefs.decrementAndGet() == 0) {
+            releaseBuffer();
+            return true;
+        }
+        return false;
+    }
+
+    private void releaseBuffer() {
+        try {
+            mCodec.releaseOutputBuffer(mBufferId, false);
+        } catch (IllegalStateException ise) {
+            // The codec is already stopped
+        }
+    }
+}
@@ -0,0 +1,498 @@
+package com.facebook.encapp.utils;
+
+import android.media.Image;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * A Codec that does no coding, for running and benchmarking the buffer pipelines
+ * without a device. Only pure Java is used, besides MediaFormat and BufferInfo.
+ *
+ * The model, set before configure():
+ * - latency: every frame leaves latencyUs +/- a gaussian jitter after it was queued
+ * - pipeline depth: input buffers are given back only while fewer frames are in flight
+ * - output size: the configured bitrate spread over the frames, key frames keyFrameRatio
+ *   times larger, reordered (B) frames half size and +/-10% noise on all
+ * - reordering: groups of reorderDepth + 1 frames come out last frame first, like
+ *   P frames followed by their B frames
+ * Encoders start with a format change and a codec config buffer, decoders output
+ * raw frames of width * height * 3 / 2 bytes.
+ *
+ * All coding happens on one thread, which also runs the callbacks in async mode.
+ * As with MediaCodec, one thread queues input and one releases output. Every start()
+ * gets new buffer queues, so a stopped run never touches them from the wrong side.
+ * There are no input images and runtime parameters are ignored.
+ */
+public class SimulatedCodec implements Codec {
+    protected static final String TAG = "encapp.simcodec";
+    static final int CSD_SIZE = 32;
+    // Waits of the coding thread when there is nothing to wait for
+    static final long IDLE_WAIT_NS = 10000000;
+    static final long OUTPUT_WAIT_NS = 100000;
+
+    private final String mName;
+    private int mInputBufferCount = 4;
+    private int mOutputBufferCount = 8;
+    private int mPipelineDepth = 4;
+    private long mLatencyUs = 5000;
+    private long mLatencyJitterUs = 1000;
+    private int mReorderDepth = 0;
+    private int mKeyFrameInterval = -1;
+    private float mKeyFrameRatio = 5f;
+    private long mSeed = 0;
+
+    private Callback mCallback;
+    private MediaFormat mFormat;
+    private boolean mEncoder;
+    private ByteBuffer[] mInputBuffers;
+    private ByteBuffer[] mOutputBuffers;
+    // Written by the queueing thread before the index is queued
+    private int[] mInputSize;
+    private long[] mInputPts;
+    private int[] mInputFlags;
+    // Replaced by start(), read by the threads using the codec
+    private volatile IndexQueue mFreeInputs;
+    private volatile IndexQueue mQueuedInputs;
+    private volatile IndexQueue mReleasedOutputs;
+    private volatile OutputRing mReadyOutputs;
+    private boolean mFormatReported;
+    private Worker mWorker;
+
+    // Sizes in bytes
+    private int mFrameSize;
+    private int mPFrameSize;
+    private int mMaxOutputSize;
+
+    public SimulatedCodec(String name) {
+        mName = name;
+    }
+
+    public void setBufferCount(int input, int output) {
+        mInputBufferCount = input;
+        mOutputBufferCount = output;
+    }
+
+    public void setPipelineDepth(int frames) {
+        mPipelineDepth = frames;
+    }
+
+    public void setLatency(long latencyUs, long jitterUs) {
+        mLatencyUs = latencyUs;
+        mLatencyJitterUs = jitterUs;
+    }
+
+    public void setReorderDepth(int frames) {
+        mReorderDepth = frames;
+    }
+
+    /**
+     * Frames between key frames and key frame size relative to P frames.
+     * The interval defaults to the I frame interval of the format.
+     */
+    public void setKeyFrames(int interval, float ratio) {
+        mKeyFrameInterval = interval;
+        mKeyFrameRatio = ratio;
+    }
+
+    public void setSeed(long seed) {
+        mSeed = seed;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String getCanonicalName() {
+        return mName;
+    }
+
+    @Override
+    public boolean isHardwareAccelerated() {
+        return false;
+    }
+
+    @Override
+    public void setCallback(Callback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public void configure(MediaFormat format, boolean encoder) {
+        mFormat = format;
+        mEncoder = encoder;
+        int width = getInteger(format, MediaFormat.KEY_WIDTH, 1280);
+        int height = getInteger(format, MediaFormat.KEY_HEIGHT, 720);
+        mFrameSize = width * height * 3 / 2;
+        float fps = getFloat(format, MediaFormat.KEY_FRAME_RATE, 30);
+        int bitrate = getInteger(format, MediaFormat.KEY_BIT_RATE, 10000000);
+        if (mKeyFrameInterval <= 0) {
+            mKeyFrameInterval = Math.max(1, Math.round(getFloat(format, MediaFormat.KEY_I_FRAME_INTERVAL, 1) * fps));
+        }
+        // Key and B frames included the frames of an interval average out at the bitrate
+        double averageSize = bitrate / 8.0 / fps;
+        double frameUnits = mKeyFrameInterval * (1 + 0.5 * mReorderDepth) / (mReorderDepth + 1);
+        mPFrameSize = (int) (averageSize * mKeyFrameInterval / (mKeyFrameRatio - 1 + frameUnits));
+        mMaxOutputSize = encoder ? (int) (mPFrameSize * mKeyFrameRatio * 1.2f) + CSD_SIZE : mFrameSize;
+        int inputSize = encoder ? mFrameSize : getInteger(format, MediaFormat.KEY_MAX_INPUT_SIZE, mFrameSize / 2);
+
+        // Kept when configured again with the same sizes
+        if (!hasBuffers(mInputBuffers, mInputBufferCount, inputSize)) {
+            mInputBuffers = new ByteBuffer[mInputBufferCount];
+            for (int i = 0; i < mInputBufferCount; i++) {
+                mInputBuffers[i] = ByteBuffer.allocateDirect(inputSize);
+            }
+        }
+        if (!hasBuffers(mOutputBuffers, mOutputBufferCount, mMaxOutputSize)) {
+            mOutputBuffers = new ByteBuffer[mOutputBufferCount];
+            for (int i = 0; i < mOutputBufferCount; i++) {
+                mOutputBuffers[i] = ByteBuffer.allocateDirect(mMaxOutputSize);
+                // Anything but start codes
+                while (mOutputBuffers[i].hasRemaining()) {
+                    mOutputBuffers[i].put((byte) 0x5a);
+                }
+            }
+        }
+        mInputSize = new int[mInputBufferCount];
+        mInputPts = new long[mInputBufferCount];
+        mInputFlags = new int[mInputBufferCount];
+        Log.d(TAG, mName + " configured, " + width + "x" + height + " p frame: " + mPFrameSize +
+                " bytes, key interval: " + mKeyFrameInterval);
+    }
+
+    private static boolean hasBuffers(ByteBuffer[] buffers, int count, int size) {
+        return buffers != null && buffers.length == count && buffers[0].capacity() == size;
+    }
+
+    private static int getInteger(MediaFormat format, String key, int value) {
+        if (format == null || !format.containsKey(key)) {
+            return value;
+        }
+        try {
+            return format.getInteger(key);
+        } catch (ClassCastException e) {
+            return Math.round(format.getFloat(key));
+        }
+    }
+
+    private static float getFloat(MediaFormat format, String key, float value) {
+        if (format == null || !format.containsKey(key)) {
+            return value;
+        }
+        try {
+            return format.getFloat(key);
+        } catch (ClassCastException e) {
+            return format.getInteger(key);
+        }
+    }
+
+    @Override
+    public void start() {
+        if (mFormat == null) {
+            throw new IllegalStateException("Not configured");
+        }
+        mFormatReported = false;
+        mFreeInputs = new IndexQueue(mInputBufferCount);
+        mQueuedInputs = new IndexQueue(mInputBufferCount);
+        mReleasedOutputs = new IndexQueue(mOutputBufferCount);
+        mReadyOutputs = new OutputRing(mOutputBufferCount, OutputRing.WaitStrategy.BLOCKING);
+        mWorker = new Worker();
+        mWorker.start();
+    }
+
+    @Override
+    public void stop() {
+        if (mWorker == null) {
+            return;
+        }
+        mWorker.mRunning = false;
+        mWorker.interrupt();
+        if (Thread.currentThread() != mWorker) {
+            try {
+                mWorker.join();
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Interrupted stopping " + mName);
+            }
+        }
+        mWorker = null;
+    }
+
+    @Override
+    public void flush() {
+        boolean running = mWorker != null;
+        stop();
+        // In async mode start() resumes, like MediaCodec
+        if (running && mCallback == null) {
+            start();
+        }
+    }
+
+    @Override
+    public void release() {
+        stop();
+        mFormat = null;
+    }
+
+    @Override
+    public MediaFormat getInputFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return mFormat;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        int index = mFreeInputs.poll(toTimeoutNs(timeoutUs));
+        return (index >= 0) ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer = mInputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public Image getInputImage(int index) {
+        return null;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mInputSize[index] = size;
+        mInputPts[index] = presentationTimeUs;
+        mInputFlags[index] = flags;
+        if (!mQueuedInputs.offer(index)) {
+            throw new IllegalStateException("Input buffer " + index + " queued twice");
+        }
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        if (!mFormatReported) {
+            mFormatReported = true;
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        OutputRing outputs = mReadyOutputs;
+        int index = outputs.poll(toTimeoutNs(timeoutUs));
+        if (index < 0) {
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+        info.set(outputs.getOffset(), outputs.getSize(), outputs.getPresentationTimeUs(), outputs.getFlags());
+        return index;
+    }
+
+    private static long toTimeoutNs(long timeoutUs) {
+        // Negative waits forever, like MediaCodec
+        return (timeoutUs < 0) ? Long.MAX_VALUE / 2 : timeoutUs * 1000;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        mReleasedOutputs.offer(index);
+    }
+
+    @Override
+    public void setParameters(Bundle params) {
+    }
+
+    private class Worker extends Thread {
+        volatile boolean mRunning = true;
+        private final Random mRandom = new Random(mSeed);
+        private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+        // The reorder group being filled
+        private final long[] mGroupPts = new long[mReorderDepth + 1];
+        private int mGroupCount = 0;
+        // Frames waiting to come out, in output order
+        private final long[] mPendingPts;
+        private final long[] mPendingDueNs;
+        private final int[] mPendingFlags;
+        private final int[] mPendingSize;
+        private final int mPendingMask;
+        private int mPendingHead = 0;
+        private int mPendingTail = 0;
+        private final int[] mFreeOutputs = new int[mOutputBufferCount];
+        private int mFreeOutputCount = 0;
+        private final int[] mHeldInputs = new int[mInputBufferCount];
+        private int mHeldInputCount = 0;
+        private int mInFlight = 0;
+        private int mFramesSinceKey = -1;
+        private boolean mConfigSent = false;
+        private long mLastDueNs = 0;
+
+        Worker() {
+            super("simulated_codec");
+            int size = Integer.highestOneBit(mInputBufferCount + mPipelineDepth + mReorderDepth + 2) << 1;
+            mPendingPts = new long[size];
+            mPendingDueNs = new long[size];
+            mPendingFlags = new int[size];
+            mPendingSize = new int[size];
+            mPendingMask = size - 1;
+        }
+
+        @Override
+        public void run() {
+            for (int i = 0; i < mOutputBufferCount; i++) {
+                mFreeOutputs[mFreeOutputCount++] = i;
+            }
+            if (mCallback != null && mEncoder) {
+                mCallback.onOutputFormatChanged(SimulatedCodec.this, mFormat);
+            }
+            for (int i = 0; i < mInputBufferCount; i++) {
+                giveInput(i);
+            }
+            while (mRunning) {
+                int index;
+                while ((index = mReleasedOutputs.poll(0)) >= 0) {
+                    mFreeOutputs[mFreeOutputCount++] = index;
+                }
+                while ((index = mQueuedInputs.poll(0)) >= 0) {
+                    accept(index);
+                }
+                long now = ClockTimes.currentTimeNs();
+                while (mPendingHead != mPendingTail && mFreeOutputCount > 0 &&
+                        mPendingDueNs[mPendingHead & mPendingMask] <= now) {
+                    emit();
+                }
+
+                long waitNs = IDLE_WAIT_NS;
+                if (mPendingHead != mPendingTail) {
+                    waitNs = (mFreeOutputCount > 0) ?
+                            mPendingDueNs[mPendingHead & mPendingMask] - now : OUTPUT_WAIT_NS;
+                }
+                if (waitNs > 0 && mRunning) {
+                    index = mQueuedInputs.poll(waitNs);
+                    if (index >= 0) {
+                        accept(index);
+                    }
+                }
+            }
+        }
+
+        private void giveInput(int index) {
+            if (mCallback != null) {
+                mCallback.onInputBufferAvailable(SimulatedCodec.this, index);
+            } else {
+                mFreeInputs.offer(index);
+            }
+        }
+
+        private void accept(int index) {
+            int flags = mInputFlags[index];
+            boolean eos = (flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+            if (!eos || mInputSize[index] > 0) {
+                mGroupPts[mGroupCount++] = mInputPts[index];
+                mInFlight++;
+            }
+            if (mInFlight < mPipelineDepth) {
+                giveInput(index);
+            } else {
+                mHeldInputs[mHeldInputCount++] = index;
+            }
+            if (mGroupCount == mGroupPts.length || (eos && mGroupCount > 0)) {
+                flushGroup();
+            }
+            if (eos) {
+                addPending(mInputPts[index], MediaCodec.BUFFER_FLAG_END_OF_STREAM, 0, mLastDueNs);
+            }
+        }
+
+        private void flushGroup() {
+            long now = ClockTimes.currentTimeNs();
+            // Last frame first, then the ones it was reordered before
+            int last = mGroupCount - 1;
+            int flags = 0;
+            int size = mPFrameSize;
+            if (mEncoder && (mFramesSinceKey < 0 || mFramesSinceKey >= mKeyFrameInterval)) {
+                flags = MediaCodec.BUFFER_FLAG_KEY_FRAME;
+                size = (int) (mPFrameSize * mKeyFrameRatio);
+                mFramesSinceKey = 0;
+            }
+            mFramesSinceKey += mGroupCount;
+            addPending(mGroupPts[last], flags, size, now + latencyNs());
+            for (int i = 0; i < last; i++) {
+                addPending(mGroupPts[i], 0, mPFrameSize / 2, now + latencyNs());
+            }
+            mGroupCount = 0;
+        }
+
+        private long latencyNs() {
+            double latencyUs = mLatencyUs + mRandom.nextGaussian() * mLatencyJitterUs;
+            return Math.max(0, (long) (latencyUs * 1000));
+        }
+
+        private void addPending(long pts, int flags, int size, long dueNs) {
+            // Frames come out in order, a fast frame waits for the one before it
+            mLastDueNs = Math.max(mLastDueNs, dueNs);
+            int pos = mPendingTail & mPendingMask;
+            mPendingPts[pos] = pts;
+            mPendingFlags[pos] = flags;
+            if (mEncoder && size > 0) {
+                size = (int) (size * (0.9f + 0.2f * mRandom.nextFloat()));
+                size = Math.min(Math.max(size, 8), mMaxOutputSize);
+            } else if (size > 0) {
+                size = mFrameSize;
+            }
+            mPendingSize[pos] = size;
+            mPendingDueNs[pos] = mLastDueNs;
+            mPendingTail++;
+        }
+
+        private void emit() {
+            int index = mFreeOutputs[--mFreeOutputCount];
+            if (mEncoder && !mConfigSent) {
+                mConfigSent = true;
+                output(index, 0, CSD_SIZE, MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+                return;
+            }
+            int pos = mPendingHead & mPendingMask;
+            mPendingHead++;
+            int size = mPendingSize[pos];
+            int flags = mPendingFlags[pos];
+            if (size > 0) {
+                mInFlight--;
+                if (mHeldInputCount > 0 && mInFlight < mPipelineDepth) {
+                    giveInput(mHeldInputs[--mHeldInputCount]);
+                }
+            }
+            output(index, mPendingPts[pos], size, flags);
+        }
+
+        private void output(int index, long pts, int size, int flags) {
+            ByteBuffer buffer = mOutputBuffers[index];
+            buffer.clear();
+            if (mEncoder && size >= 5) {
+                // Annex B start code and a nal header, idr or non idr slice (h.264)
+                buffer.put(0, (byte) 0);
+                buffer.put(1, (byte) 0);
+                buffer.put(2, (byte) 0);
+                buffer.put(3, (byte) 1);
+                buffer.put(4, (byte) (((flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) ? 0x67 :
+                        ((flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) ? 0x65 : 0x41));
+            }
+            buffer.limit(size);
+            if (mCallback != null) {
+                mInfo.set(0, size, pts, flags);
+                mCallback.onOutputBufferAvailable(SimulatedCodec.this, index, mInfo);
+            } else if (!mReadyOutputs.offer(index, 0, size, pts, flags)) {
+                Log.e(TAG, "Output ring full, dropping buffer " + index);
+                mFreeOutputs[mFreeOutputCount++] = index;
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.facebook.encapp.utils;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The lock free ring under IndexQueue and OutputRing: slot positions, the time each slot
+ * was offered, and parking the consumer while the ring is empty. Subclasses keep the
+ * payload in preallocated primitive arrays indexed by the slot position.
+ *
+ * The producer fills the slot returned by claim() and calls publish(), the consumer reads
+ * the slot returned by await() and calls consumed(). One producer and one consumer thread.
+ */
+public abstract class SpscRing {
+    public enum WaitStrategy {
+        BLOCKING,
+        SPIN_THEN_PARK,
+    }
+
+    static final long SPIN_NS = 50000;
+    // How long a producer waiting for a free slot sleeps between checks
+    static final long FULL_WAIT_NS = 100000;
+
+    private final WaitStrategy mWaitStrategy;
+    private final long[] mTime;
+    private final int mMask;
+    // Only written by the consumer and the producer respectively
+    private volatile long mHead = 0;
+    private volatile long mTail = 0;
+    private volatile Thread mWaiter = null;
+    private long mLastTimeNs = 0;
+
+    /**
+     * The capacity is rounded up to a power of two.
+     */
+    protected SpscRing(int capacity, WaitStrategy waitStrategy) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mTime = new long[size];
+        mMask = size - 1;
+        mWaitStrategy = waitStrategy;
+    }
+
+    public int capacity() {
+        return mTime.length;
+    }
+
+    /**
+     * Producer, the position of the next free slot or -1 if the ring is full.
+     */
+    protected final int claim() {
+        long tail = mTail;
+        if (tail - mHead == mTime.length) {
+            return -1;
+        }
+        return (int) (tail & mMask);
+    }
+
+    /**
+     * Producer, makes the claimed slot visible and wakes the consumer.
+     */
+    protected final void publish() {
+        long tail = mTail;
+        mTime[(int) (tail & mMask)] = ClockTimes.currentTimeNs();
+        mTail = tail + 1;
+        wakeUp();
+    }
+
+    /**
+     * Producer, waits up to timeoutNs for a free slot. Only for a full ring, the
+     * consumer does not wake the producer so this sleeps in short steps.
+     */
+    protected final int claim(long timeoutNs) {
+        long deadline = ClockTimes.currentTimeNs() + timeoutNs;
+        int pos;
+        while ((pos = claim()) < 0) {
+            if (ClockTimes.currentTimeNs() >= deadline || Thread.currentThread().isInterrupted()) {
+                return -1;
+            }
+            LockSupport.parkNanos(this, FULL_WAIT_NS);
+        }
+        return pos;
+    }
+
+    /**
+     * Consumer, the position of the oldest slot, waiting up to timeoutNs for one.
+     * Returns -1 on timeout or if the thread is interrupted.
+     */
+    protected final int await(long timeoutNs) {
+        long now = ClockTimes.currentTimeNs();
+        long deadline = now + timeoutNs;
+        long spinUntil = (mWaitStrategy == WaitStrategy.SPIN_THEN_PARK) ? now + SPIN_NS : now;
+        while (true) {
+            long head = mHead;
+            if (head < mTail) {
+                return (int) (head & mMask);
+            }
+            now = ClockTimes.currentTimeNs();
+            if (now < spinUntil && now < deadline) {
+                continue;
+            }
+            long remaining = deadline - now;
+            if (remaining <= 0 || Thread.currentThread().isInterrupted()) {
+                return -1;
+            }
+            mWaiter = Thread.currentThread();
+            // An offer between the check above and publishing the waiter would not unpark
+            if (mHead == mTail) {
+                LockSupport.parkNanos(this, remaining);
+            }
+            mWaiter = null;
+        }
+    }
+
+    /**
+     * Consumer, frees the slot returned by await().
+     */
+    protected final void consumed() {
+        long head = mHead;
+        mLastTimeNs = mTime[(int) (head & mMask)];
+        mHead = head + 1;
+    }
+
+    /**
+     * Wakes a consumer waiting for a slot, e.g. to have it check a stop flag.
+     */
+    public void wakeUp() {
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * When the slot last consumed was offered.
+     */
+    public long getLastOfferTimeNs() {
+        return mLastTimeNs;
+    }
+
+    public int size() {
+        return (int) (mTail - mHead);
+    }
+}
@@ -5,23 +5,40 @@ import android.os.Build;
 import android.util.Log;
 import android.util.Pair;
 
+import com.facebook.encapp.proto.Common;
+import com.facebook.encapp.proto.CpuTimeInStateSample;
+import com.facebook.encapp.proto.DecodedFrameRecord;
+import com.facebook.encapp.proto.EncodedFrameRecord;
+import com.facebook.encapp.proto.FrameExtra;
+import com.facebook.encapp.proto.GpuClockSample;
+import com.facebook.encapp.proto.GpuLoadSample;
+import com.facebook.encapp.proto.StatsRecord;
 import com.facebook.encapp.proto.Test;
+import com.google.gson.stream.JsonWriter;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 import com.google.protobuf.util.JsonFormat;
 
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
@@ -31,8 +48,11 @@ public class Statistics {
     public static String NA = "na";
     private final String mId;
     private final String mDesc;
-    private final ArrayList<FrameInfo> mEncodingFrames;
-    private final HashMap<Long, FrameInfo> mDecodingFrames;
+    private final FrameRecorder mEncodingFrames;
+    private final FrameRecorder mDecodingFrames;
+    // Frames waiting for output, keyed by pts
+    private final PtsIndex mInFlightFrames;
+    private final PtsIndex mInFlightDecodingFrames;
     private final ArrayList<Pair> mNamedTimestamps;
 
     int mEncodingProcessingFrames = 0;
@@ -40,8 +60,15 @@ public class Statistics {
     Test mTest;
     Date mStartDate;
     SystemLoad mLoad = new SystemLoad();
+    // Common.capture_system_load
+    boolean mCaptureLoad = false;
     private String mEncodedfile = "";
     private String mCodec;
+    private final long mCreatedTime = ClockTimes.currentTimeNs();
+    private ThreadCpuSampler.Snapshot mThreadCpuStart;
+    // Sampling ticks while this test ran
+    private SamplingScheduler.Window mSampling;
+    private ThreadCpuSampler.Snapshot mThreadCpuEnd;
     private long mStartTime = -1;
     private long mStopTime = -1;
     private MediaFormat mEncoderConfigFormat;
@@ -55,6 +82,86 @@ public class Statistics {
     private int START_STOP_EXTRA = 0;
     private PowerSnapshot mStartPower;
     private PowerSnapshot mEndPower;
+    // Binary output, frames are written one step behind so info added after stop is included
+    private BinaryStatsWriter mBinaryStats = null;
+    private boolean mBinaryFormat = false;
+    // Last stopped encoded frame, complete (muxed) when the next one stops
+    private int mPendingEncodedRow = -1;
+    private int mPendingDecodedRow = -1;
+    // Flushing, written frames and samples are dropped from memory. With json output they
+    // go to a spool file which is read back when the report is written.
+    private String mSpoolFilename = null;
+    private int mFlushFrames = 0;
+    private long mFlushIntervalNs = 0;
+    private int mFramesSinceFlush = 0;
+    private long mLastFlushTime = 0;
+    private int mWrittenGpuLoadSamples = 0;
+    private int mWrittenGpuClockSamples = 0;
+    private int mWrittenCpuSamples = 0;
+    // Finished frames are copied here with the frame locks held and written by the
+    // stats writer thread, so no file IO is done on the codec callback threads
+    static final int BATCH_FRAMES = 256;
+    private final Object mBatchLock = new Object();
+    private FrameRecorder mEncodedBatch = new FrameRecorder();
+    private FrameRecorder mDecodedBatch = new FrameRecorder();
+    private FrameRecorder mEncodedDrain = new FrameRecorder();
+    private FrameRecorder mDecodedDrain = new FrameRecorder();
+    // Started with the first frame, so stats that never see one start no thread
+    private StatsWriter mStatsWriter = null;
+    private boolean mStatsWriterStarted = false;
+    // Latency summaries in nsec, recorded as frames finish
+    private final LatencyHistogram mEncodeLatency = new LatencyHistogram();
+    private final LatencyHistogram mDecodeLatency = new LatencyHistogram();
+    private final LatencyHistogram mOutputInterval = new LatencyHistogram();
+    // Input buffer available -> queued
+    private final LatencyHistogram mFeedLatency = new LatencyHistogram();
+    // Copying a decoded frame to the encoder input (transcoding)
+    private final LatencyHistogram mCopyTime = new LatencyHistogram();
+    private volatile int mOutputRingFull = 0;
+    private volatile int mDroppedOutput = 0;
+    private long mLastOutputTime = -1;
+    // Time between pipeline stages, see FrameInfo.STAGE_*
+    private final LatencyHistogram mReadToQueued = new LatencyHistogram();
+    private final LatencyHistogram mQueuedToDequeued = new LatencyHistogram();
+    private final LatencyHistogram mDequeuedToMuxed = new LatencyHistogram();
+    private final LatencyHistogram mReadToMuxed = new LatencyHistogram();
+    // Realtime input pacing, guarded by itself
+    private final LatencyHistogram mPacingLateness = new LatencyHistogram();
+    private long mPacingMissed = 0;
+    // Released encoded frames, for the mean bitrate
+    private long mReleasedStartPts = Long.MAX_VALUE;
+    private long mReleasedLastPts = Long.MIN_VALUE;
+    private long mReleasedLastSize = 0;
+    private long mReleasedSize = 0;
+    // Warm-up, frames left out of the latency summaries and the measured fps
+    private int mWarmupFrames = 0;
+    private long mWarmupNs = 0;
+    private long mFirstEncodeStart = -1;
+    private long mFirstDecodeStart = -1;
+    private int mWarmupEncoded = 0;
+    private int mWarmupDecoded = 0;
+    private final Throughput mEncodeThroughput = new Throughput();
+    private final Throughput mDecodeThroughput = new Throughput();
+    private RepetitionStats mRepetitions = null;
+
+    // Frame rate from the stop times of the measured frames
+    private static class Throughput {
+        int mFrames = 0;
+        long mFirst = 0;
+        long mLast = 0;
+
+        void add(long stopTime) {
+            if (mFrames == 0) {
+                mFirst = stopTime;
+            }
+            mLast = stopTime;
+            mFrames++;
+        }
+
+        double getFps() {
+            return (mFrames > 1 && mLast > mFirst) ? (mFrames - 1) * 1e9 / (mLast - mFirst) : 0;
+        }
+    }
 
     private static List<String> MEDIAFORMAT_KEY_STRING_LIST = Arrays.asList(
         MediaFormat.KEY_FRAME_RATE,
@@ -123,8 +230,10 @@ public class Statistics {
 
     public Statistics(String desc, Test test) {
         mDesc = desc;
-        mEncodingFrames = new ArrayList<>(20);
-        mDecodingFrames = new HashMap<>(20);
+        mEncodingFrames = new FrameRecorder();
+        mDecodingFrames = new FrameRecorder();
+        mInFlightFrames = new PtsIndex();
+        mInFlightDecodingFrames = new PtsIndex();
         mNamedTimestamps = new ArrayList<>(20);
         mTest = test;
         mStartDate = new Date();
@@ -134,6 +243,33 @@ public class Statistics {
         } else {
             mId = "encapp_" + UUID.randomUUID().toString();
         }
+        if (mTest.hasCommon()) {
+            Common common = mTest.getCommon();
+            mCaptureLoad = common.getCaptureSystemLoad();
+            mWarmupFrames = common.getWarmupFrames();
+            mWarmupNs = (long) (common.getWarmupSec() * 1e9);
+            mFlushFrames = common.getStatsFlushFrames();
+            mFlushIntervalNs = (long) (common.getStatsFlushSec() * 1e9);
+            boolean flush = mFlushFrames > 0 || mFlushIntervalNs > 0;
+            String filename = null;
+            if (common.getStatsFormat() == Common.StatsFormat.binary) {
+                filename = CliSettings.getWorkDir() + "/" + mId + BinaryStatsWriter.EXTENSION;
+                mBinaryFormat = true;
+            } else if (flush) {
+                filename = CliSettings.getWorkDir() + "/" + mId + ".json.spool";
+            }
+            if (filename != null) {
+                try {
+                    mBinaryStats = new BinaryStatsWriter(filename);
+                    if (flush) {
+                        mSpoolFilename = filename;
+                    }
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to open " + filename + ", using json: " + e.getMessage());
+                    mBinaryFormat = false;
+                }
+            }
+        }
     }
 
     public void setAppVersion(String mAppVersion) {
@@ -145,130 +281,522 @@ public class Statistics {
     }
 
     public String toString() {
-        ArrayList<FrameInfo> allEncodingFrames = mEncodingFrames;
-        Comparator<FrameInfo> compareByPts = (FrameInfo o1, FrameInfo o2) -> Long.valueOf(o1.getPts()).compareTo(Long.valueOf(o2.getPts()));
-        Collections.sort(allEncodingFrames, compareByPts);
+        int[] rows = mEncodingFrames.rowsByPts();
 
         StringBuffer buffer = new StringBuffer();
         int counter = 0;
-        for (FrameInfo info : allEncodingFrames) {
+        for (int row : rows) {
             buffer.append(mId + ", " +
                     counter + ", " +
-                    info.isIFrame() + ", " +
-                    info.getSize() + ", " +
-                    info.getPts() + ", " +
-                    info.getProcessingTime() + "\n");
+                    mEncodingFrames.isIFrame(row) + ", " +
+                    mEncodingFrames.getSize(row) + ", " +
+                    mEncodingFrames.getPts(row) + ", " +
+                    mEncodingFrames.getProcessingTime(row) + "\n");
             counter++;
         }
 
         return buffer.toString();
     }
 
+    /**
+     * Writes the trace events recorded since this test was set up, see TraceEvents.
+     */
+    public void writeTrace(Writer writer) throws IOException {
+        TraceEvents.writeChromeTrace(writer, mCreatedTime, ClockTimes.currentTimeNs());
+    }
+
     public void pushTimestamp(String name) {
         mNamedTimestamps.add(new Pair(name, ClockTimes.currentTimeNs()));
     }
 
     public void start() {
-        //TODO: make this configurable
-        //mLoad.start();
+        // Sampled by the SamplingScheduler until stop()
+        if (mCaptureLoad) {
+            try {
+                mLoad.start();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to start system load sampling: " + e.getMessage());
+            }
+        }
         // Give the load stats two seconds to gather some starting
         try {
             Thread.sleep(START_STOP_EXTRA);
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
-        mStartPower = PowerLoad.getPowerLoad().getSnapshot();
+        // Not created off device
+        PowerLoad power = PowerLoad.getPowerLoad();
+        mStartPower = (power != null) ? power.getSnapshot() : null;
+        if (mThreadCpuStart == null) {
+            mThreadCpuStart = ThreadCpuSampler.getSampler().begin();
+        }
+        if (mSampling == null) {
+            mSampling = SamplingScheduler.getScheduler().openWindow();
+        }
         mStartTime = ClockTimes.currentTimeNs();
     }
 
     public void stop() {
         mStopTime = ClockTimes.currentTimeNs();
-        mEndPower = PowerLoad.getPowerLoad().getSnapshot();
+        PowerLoad power = PowerLoad.getPowerLoad();
+        mEndPower = (power != null) ? power.getSnapshot() : null;
+        if (mThreadCpuStart != null && mThreadCpuEnd == null) {
+            mThreadCpuEnd = ThreadCpuSampler.getSampler().end();
+        }
+        if (mSampling != null) {
+            SamplingScheduler.getScheduler().closeWindow(mSampling);
+        }
         // Give the load stats two seconds to gather some starting
         try {
             Thread.sleep(START_STOP_EXTRA);
         } catch (InterruptedException e) {
             throw new RuntimeException(e);
         }
-        //TODO: make this configurable
-        //mLoad.stop();
+        if (mCaptureLoad) {
+            mLoad.stop();
+        }
+    }
+
+    /**
+     * Records how long an available codec input buffer waited before it was queued.
+     */
+    public void recordFeedLatency(long latencyNs) {
+        synchronized (mInFlightFrames) {
+            mFeedLatency.record(latencyNs);
+        }
+    }
+
+    /**
+     * Records how long a decoded frame took to copy to the encoder input.
+     */
+    public void recordCopyTime(long copyNs) {
+        synchronized (mInFlightFrames) {
+            mCopyTime.record(copyNs);
+        }
+    }
+
+    /**
+     * Encoder output that found the writer ring full, and output dropped because the
+     * writer had stopped. Only called from the codec callback.
+     */
+    public void countOutputRingFull() {
+        mOutputRingFull++;
+    }
+
+    public void countDroppedOutput() {
+        mDroppedOutput++;
+    }
+
+    /**
+     * Records how late a realtime input frame was started (FramePacer).
+     */
+    public void recordFramePacing(long latenessNs, boolean missed) {
+        synchronized (mPacingLateness) {
+            mPacingLateness.record(latenessNs);
+            if (missed) {
+                mPacingMissed++;
+            }
+        }
     }
 
     public FrameInfo startEncodingFrame(long pts, int originalFrame) {
-        FrameInfo frame = new FrameInfo(pts, originalFrame);
-        frame.start();
-        mEncodingFrames.add(frame);
-        mEncodingProcessingFrames += 1;
-        return frame;
+        int row;
+        synchronized (mInFlightFrames) {
+            row = mEncodingFrames.add(pts, originalFrame);
+            mEncodingFrames.start(row);
+            if (mFirstEncodeStart < 0) {
+                mFirstEncodeStart = mEncodingFrames.getStartTime(row);
+            }
+            mInFlightFrames.add(pts, row);
+            mEncodingProcessingFrames += 1;
+        }
+        return mEncodingFrames.getFrame(row);
+    }
+
+    /**
+     * A frame from startEncodingFrame that will not reach the encoder. It is no longer
+     * matched with encoder output and is reported as not encoded.
+     */
+    public void dropEncodingFrame(long pts) {
+        synchronized (mInFlightFrames) {
+            if (mInFlightFrames.remove(pts) >= 0) {
+                mEncodingProcessingFrames -= 1;
+            }
+        }
     }
 
     public FrameInfo stopEncodingFrame(long pts, long size, boolean isIFrame) {
-        FrameInfo frame = getClosestMatch(pts);
-        if (frame != null) {
-            frame.stop();
-            frame.setSize(size);
-            frame.isIFrame(isIFrame);
-            frame.setOutputOrder(mOutputFrameCount++);  // Track DTS/output order
-        } else {
-            Log.e(TAG, "No matching pts! Error in time handling. Pts = " + pts);
+        FrameInfo frame = null;
+        synchronized (mInFlightFrames) {
+            int row = mInFlightFrames.removeClosest(pts);
+            if (row >= 0) {
+                mEncodingFrames.stop(row);
+                mEncodingFrames.setSize(row, size);
+                mEncodingFrames.setIFrame(row, isIFrame);
+                mEncodingFrames.setOutputOrder(row, mOutputFrameCount++);  // Track DTS/output order
+                long stopTime = mEncodingFrames.getStopTime(row);
+                if (stopTime > 0) {
+                    if (isWarmup(mEncodingFrames, row, mFirstEncodeStart)) {
+                        mWarmupEncoded++;
+                    } else {
+                        mEncodeLatency.record(stopTime - mEncodingFrames.getStartTime(row));
+                        if (mLastOutputTime > 0) {
+                            mOutputInterval.record(stopTime - mLastOutputTime);
+                        }
+                        mEncodeThroughput.add(stopTime);
+                    }
+                    mLastOutputTime = stopTime;
+                    // Callers with an output queue overwrite this with the time the codec returned it
+                    mEncodingFrames.setStageTime(row, FrameInfo.STAGE_DEQUEUED, stopTime);
+                }
+                frame = mEncodingFrames.getFrame(row);
+                recordStageLatency(mPendingEncodedRow);
+                writeBinaryFrame(mEncodingFrames, mPendingEncodedRow, true);
+                mPendingEncodedRow = row;
+            } else {
+                Log.e(TAG, "No matching pts! Error in time handling. Pts = " + pts);
+            }
+            mEncodingProcessingFrames -= 1;
         }
-        mEncodingProcessingFrames -= 1;
 
         return frame;
     }
 
-    private FrameInfo getClosestMatch(long pts) {
-        long minDist = Long.MAX_VALUE;
-        FrameInfo match = null;
-        for (int i = mEncodingFrames.size() - 1; i  >= 0; i--) {
-            FrameInfo info = mEncodingFrames.get(i);
-            if (info == null) {
-                Log.e(TAG, "Failed to lookup object at " + i);
-                continue;
+    public void startDecodingFrame(long pts, long size, int flags) {
+        synchronized (mInFlightDecodingFrames) {
+            // Original frame in decoding will be in read order
+            int row = mDecodingFrames.add(pts, mDecodingFrames.size());
+            mDecodingFrames.setSize(row, size);
+            mDecodingFrames.setFlags(row, flags);
+            mDecodingFrames.start(row);
+            if (mFirstDecodeStart < 0) {
+                mFirstDecodeStart = mDecodingFrames.getStartTime(row);
+            }
+            mInFlightDecodingFrames.add(pts, row);
+        }
+    }
+
+    public FrameInfo stopDecodingFrame(long pts) {
+        synchronized (mInFlightDecodingFrames) {
+            int row = mInFlightDecodingFrames.remove(pts);
+            if (row < 0) {
+                return null;
             }
-            // Skip frames that have already been stopped
-            if (info.getStopTime() != 0) {
-                continue;
+            mDecodingFrames.stop(row);
+            if (mDecodingFrames.getStopTime(row) > 0) {
+                if (isWarmup(mDecodingFrames, row, mFirstDecodeStart)) {
+                    mWarmupDecoded++;
+                } else {
+                    mDecodeLatency.record(mDecodingFrames.getProcessingTime(row));
+                    mDecodeThroughput.add(mDecodingFrames.getStopTime(row));
+                }
             }
-            long dist = Math.abs(pts - info.getPts());
-            if (dist <= minDist) {
-                minDist = dist;
-                match = info;
-            } else if (dist > minDist) {
-                return match;
+            if (mBinaryStats != null) {
+                writeBinaryFrame(mDecodingFrames, mPendingDecodedRow, false);
+                mPendingDecodedRow = row;
             }
+            return mDecodingFrames.getFrame(row);
         }
-        return match;
     }
 
-    public void startDecodingFrame(long pts, long size, int flags) {
-        // Original frame in decoding will be in read order
-        FrameInfo frame = new FrameInfo(pts, getDecodedFrameCount());
-        frame.setSize(size);
-        frame.setFlags(flags);
-        frame.start();
-        mDecodingFrames.put(Long.valueOf(pts), frame);
+    // Decoded rows are in read order, encoded ones are counted in output order
+    private boolean isWarmup(FrameRecorder frames, int row, long firstStart) {
+        int order = (frames == mEncodingFrames) ? frames.getOutputOrder(row) : row;
+        return order < mWarmupFrames || frames.getStartTime(row) - firstStart < mWarmupNs;
     }
 
-    public FrameInfo stopDecodingFrame(long pts) {
-        FrameInfo frame = mDecodingFrames.get(Long.valueOf(pts));
-        if (frame != null) {
-            frame.stop();
+    // Called with mInFlightFrames locked
+    private void recordStageLatency(int row) {
+        if (row < 0 || isWarmup(mEncodingFrames, row, mFirstEncodeStart)) {
+            return;
+        }
+        long read = mEncodingFrames.getStageTime(row, FrameInfo.STAGE_READ_DONE);
+        long queued = mEncodingFrames.getStageTime(row, FrameInfo.STAGE_QUEUED);
+        long dequeued = mEncodingFrames.getStageTime(row, FrameInfo.STAGE_DEQUEUED);
+        long muxed = mEncodingFrames.getStageTime(row, FrameInfo.STAGE_MUXED);
+        if (read > 0 && queued > 0) {
+            mReadToQueued.record(queued - read);
+        }
+        if (queued > 0 && dequeued > 0) {
+            mQueuedToDequeued.record(dequeued - queued);
         }
+        if (dequeued > 0 && muxed > 0) {
+            mDequeuedToMuxed.record(muxed - dequeued);
+        }
+        if (read > 0 && muxed > 0) {
+            mReadToMuxed.record(muxed - read);
+        }
+    }
 
-        return frame;
+    // Called with the frame lock held, the frame is written by the stats writer
+    private void writeBinaryFrame(FrameRecorder frames, int row, boolean encoded) {
+        if (mBinaryStats == null || row < 0) {
+            return;
+        }
+        synchronized (mBatchLock) {
+            if (!mStatsWriterStarted) {
+                mStatsWriterStarted = true;
+                mStatsWriter = new StatsWriter();
+                mStatsWriter.start();
+            }
+            FrameRecorder batch = encoded ? mEncodedBatch : mDecodedBatch;
+            batch.addCopy(frames, row);
+            if (mEncodedBatch.size() + mDecodedBatch.size() >= getBatchFrames()) {
+                mBatchLock.notifyAll();
+            }
+        }
+        if (mSpoolFilename != null) {
+            releaseFrame(frames, row, encoded);
+        }
+    }
+
+    private int getBatchFrames() {
+        return (mFlushFrames > 0) ? Math.min(mFlushFrames, BATCH_FRAMES) : BATCH_FRAMES;
+    }
+
+    /**
+     * Writes the batched frames, on the stats writer or once it has stopped.
+     */
+    private void writeBatch() {
+        FrameRecorder encoded;
+        FrameRecorder decoded;
+        synchronized (mBatchLock) {
+            encoded = mEncodedBatch;
+            decoded = mDecodedBatch;
+            mEncodedBatch = mEncodedDrain;
+            mDecodedBatch = mDecodedDrain;
+            mEncodedDrain = encoded;
+            mDecodedDrain = decoded;
+        }
+        BinaryStatsWriter writer = mBinaryStats;
+        if (writer != null) {
+            synchronized (writer) {
+                try {
+                    for (int row = 0; row < encoded.size(); row++) {
+                        writer.writeEncodedFrame(encoded, row);
+                    }
+                    for (int row = 0; row < decoded.size(); row++) {
+                        writer.writeDecodedFrame(decoded, row);
+                    }
+                    if (mSpoolFilename != null) {
+                        mFramesSinceFlush += encoded.size() + decoded.size();
+                        if (isFlushDue()) {
+                            flushStats(writer);
+                        }
+                    }
+                } catch (IOException e) {
+                    // Frames not yet written are still recorded, the report falls back to json
+                    if (mSpoolFilename != null) {
+                        Log.e(TAG, "Failed writing stats, flushed frames may be missing: " + e.getMessage());
+                    } else {
+                        Log.e(TAG, "Failed writing binary stats, using json: " + e.getMessage());
+                    }
+                    mBinaryStats = null;
+                    try {
+                        writer.close();
+                    } catch (IOException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+            }
+        }
+        encoded.clear();
+        decoded.clear();
+    }
+
+    /**
+     * Stops the stats writer and writes what it left, before the output is completed.
+     */
+    private void stopStatsWriter() {
+        StatsWriter thread;
+        synchronized (mBatchLock) {
+            thread = mStatsWriter;
+            mStatsWriter = null;
+            mStatsWriterStarted = true;
+            if (thread == null) {
+                return;
+            }
+            thread.mDone = true;
+            mBatchLock.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted waiting for the stats writer");
+        }
+        writeBatch();
+    }
+
+    private class StatsWriter extends Thread {
+        volatile boolean mDone = false;
+
+        @Override
+        public void run() {
+            ThreadCpuSampler.registerThread("stats_writer", mTest.getCommon().getId());
+            long waitMs = (mFlushIntervalNs > 0) ? Math.max(1, mFlushIntervalNs / 1000000) : 1000;
+            while (!mDone) {
+                synchronized (mBatchLock) {
+                    if (mEncodedBatch.size() + mDecodedBatch.size() < getBatchFrames() && !mDone) {
+                        try {
+                            mBatchLock.wait(waitMs);
+                        } catch (InterruptedException e) {
+                            break;
+                        }
+                    }
+                }
+                if (!mDone) {
+                    writeBatch();
+                }
+            }
+        }
+    }
+
+    // Called with the frame lock held
+    private void releaseFrame(FrameRecorder frames, int row, boolean encoded) {
+        if (encoded) {
+            long pts = frames.getPts(row);
+            long size = frames.getSize(row);
+            mReleasedStartPts = Math.min(mReleasedStartPts, pts);
+            if (pts >= mReleasedLastPts) {
+                mReleasedLastPts = pts;
+                mReleasedLastSize = size;
+            }
+            mReleasedSize += size;
+        }
+        frames.release(row);
+    }
+
+    private boolean isFlushDue() {
+        if (mFlushFrames > 0 && mFramesSinceFlush >= mFlushFrames) {
+            return true;
+        }
+        if (mFlushIntervalNs > 0) {
+            long now = ClockTimes.currentTimeNs();
+            if (mLastFlushTime == 0) {
+                mLastFlushTime = now;
+            }
+            return now - mLastFlushTime >= mFlushIntervalNs;
+        }
+        return false;
+    }
+
+    private void flushStats(BinaryStatsWriter writer) throws IOException {
+        writeLoadSamples(writer);
+        writer.flush();
+        mFramesSinceFlush = 0;
+        mLastFlushTime = ClockTimes.currentTimeNs();
+    }
+
+    // Moves the load samples captured so far to the writer
+    private void writeLoadSamples(BinaryStatsWriter writer) throws IOException {
+        float timer = (float) (1.0 / mLoad.getSampleFrequency());
+        for (int load : mLoad.takeGPULoadPercentagePerTimeUnit()) {
+            // load sample time counts from 1, clock from 0
+            int msec = Math.round(++mWrittenGpuLoadSamples * timer * 1000);
+            writer.writeGpuLoad(msec / 1000.0, load);
+        }
+        for (String clock : mLoad.takeGPUClockFreqPerTimeUnit()) {
+            int msec = Math.round(mWrittenGpuClockSamples++ * timer * 1000);
+            writer.writeGpuClock(msec / 1000.0, clock);
+        }
+        mWrittenCpuSamples += mLoad.takeCPUTimeInState(writer::writeCpuTimeInState);
+    }
+
+    public boolean isBinaryOutput() {
+        return mBinaryFormat && mBinaryStats != null;
+    }
+
+    /**
+     * Completes the binary output with the frames not yet written, the load samples and
+     * the test metadata, and closes it.
+     */
+    public void finishBinaryOutput() throws IOException {
+        Log.d(TAG, "Finish binary stats for " + mId);
+        synchronized (mInFlightFrames) {
+            recordStageLatency(mPendingEncodedRow);
+            writeBinaryFrame(mEncodingFrames, mPendingEncodedRow, true);
+            mPendingEncodedRow = -1;
+            // Frames that never came out of the encoder
+            for (int row = 0; row < mEncodingFrames.size(); row++) {
+                if (!mEncodingFrames.isReleased(row) && mEncodingFrames.getOutputOrder(row) < 0) {
+                    writeBinaryFrame(mEncodingFrames, row, true);
+                }
+            }
+        }
+        synchronized (mInFlightDecodingFrames) {
+            writeBinaryFrame(mDecodingFrames, mPendingDecodedRow, false);
+            mPendingDecodedRow = -1;
+        }
+        stopStatsWriter();
+        BinaryStatsWriter writer = mBinaryStats;
+        if (writer == null) {
+            throw new IOException("Binary stats output failed");
+        }
+        synchronized (writer) {
+            try {
+                writeLoadSamples(writer);
+
+                StringWriter metadata = new StringWriter();
+                JsonWriter json = new JsonWriter(metadata);
+                json.beginObject();
+                writeHeader(json);
+                json.name("gpu_data");
+                json.beginObject();
+                writeGpuInfo(json);
+                json.endObject();
+                writeCpuInfo(json);
+                writeThreadCpu(json);
+                writeNamedTimestamps(json);
+                json.endObject();
+                json.flush();
+                writer.writeMetadata(metadata.toString());
+            } catch (JSONException e) {
+                Log.e(TAG, "Failed writing stats");
+                e.printStackTrace();
+            } finally {
+                writer.close();
+                mBinaryStats = null;
+            }
+        }
+        Log.d(TAG, "Done written binary stats: " + mId);
     }
 
     public long getProcessingTime() {
         return mStopTime - mStartTime;
     }
 
+    /**
+     * Frame rate of the encoded frames after the warm-up, of the decoded ones for decoding only.
+     */
+    public double getMeasuredFps() {
+        if (mEncodingFrames.size() > 0) {
+            synchronized (mInFlightFrames) {
+                return mEncodeThroughput.getFps();
+            }
+        }
+        synchronized (mInFlightDecodingFrames) {
+            return mDecodeThroughput.getFps();
+        }
+    }
+
+    // Encode latency, decode latency for decoding only, read once the test is done
+    LatencyHistogram getFrameLatency() {
+        return (mEncodingFrames.size() > 0) ? mEncodeLatency : mDecodeLatency;
+    }
+
+    /**
+     * Written with the stats of the last run of a repeated test.
+     */
+    public void setRepetitions(RepetitionStats repetitions) {
+        mRepetitions = repetitions;
+    }
+
     public int getEncodedFrameCount() {
         return mEncodingFrames.size();
     }
 
-    public ArrayList<FrameInfo> getEncodedFrames() {
-        return mEncodingFrames;
+    public FrameInfo getEncodedFrame(int index) {
+        return mEncodingFrames.getFrame(index);
     }
 
     public int getDecodedFrameCount() {
@@ -280,20 +808,28 @@ public class Statistics {
     }
 
     public int getAverageBitrate() {
-        ArrayList<FrameInfo> allFrames = mEncodingFrames;
-        Comparator<FrameInfo> compareByPts = (FrameInfo o1, FrameInfo o2) -> Long.valueOf(o1.getPts()).compareTo(Long.valueOf(o2.getPts()));
-        Collections.sort(allFrames, compareByPts);
-        int framecount = allFrames.size();
+        int framecount = mEncodingFrames.size();
         if (framecount > 0) {
-            long startPts = allFrames.get(0).mPts;
-            //We just ignore the last frame, for the average does not mean much.
-            long lastTime = allFrames.get(allFrames.size() - 1).mPts;
-            double totalTime = ((double) (lastTime - startPts)) / 1000000.0;
-            long totalSize = 0;
-            for (FrameInfo info : allFrames) {
-                totalSize += info.getSize();
+            long startPts = mReleasedStartPts;
+            long lastTime = mReleasedLastPts;
+            long lastSize = mReleasedLastSize;
+            long totalSize = mReleasedSize;
+            for (int row = 0; row < framecount; row++) {
+                if (mEncodingFrames.isReleased(row)) {
+                    continue;
+                }
+                long pts = mEncodingFrames.getPts(row);
+                long size = mEncodingFrames.getSize(row);
+                startPts = Math.min(startPts, pts);
+                if (pts >= lastTime) {
+                    lastTime = pts;
+                    lastSize = size;
+                }
+                totalSize += size;
             }
-            totalSize -= allFrames.get(framecount - 1).mSize;
+            double totalTime = ((double) (lastTime - startPts)) / 1000000.0;
+            //We just ignore the last frame, for the average does not mean much.
+            totalSize -= lastSize;
             return (int) (Math.round(8 * totalSize / (totalTime))); // bytes/Secs -> bit/sec
         } else {
             return 0;
@@ -417,192 +953,493 @@ public class Statistics {
 
     public void writeJSON(Writer writer) throws IOException {
         Log.d(TAG, "Write stats for " + mId);
+        // Stream the report, the frame arrays are written straight from the recorders
+        // instead of building the whole document in memory first
+        JsonWriter json = new JsonWriter(writer);
+        json.setIndent("  ");
+        synchronized (mInFlightFrames) {
+            // The last frame stays in memory, it is written with the others below
+            recordStageLatency(mPendingEncodedRow);
+            mPendingEncodedRow = -1;
+        }
+        // Flushed frames and samples are read back from the spool
+        stopStatsWriter();
+        BinaryStatsWriter spool = mBinaryStats;
+        if (spool != null && mSpoolFilename != null) {
+            synchronized (spool) {
+                spool.close();
+                mBinaryStats = null;
+            }
+        }
         try {
-            JSONObject json = new JSONObject();
-
-            json.put("id", mId);
-            json.put("description", mDesc);
-            // convert the test configuration to json
-            String jsonStr = JsonFormat.printer().includingDefaultValueFields().print(mTest);
-            json.put("test", new JSONObject(jsonStr));
-            // add environment
-            json.put("environment", new JSONObject(System.getenv()));
-            // derived test configuration items
-            if (mEncodingFrames.size() > 0) {
-                json.put("codec", mCodec);
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                    json.put("encoder_hw_accelerated", mIsEncoderHw);
-                }
+            json.beginObject();
+            writeHeader(json);
+
+            json.name("frames");
+            writeEncodedFrames(json);
+            if (mDecodingFrames.size() > 0) {
+                json.name("decoded_frames");
+                writeDecodedFrames(json);
             }
-            json.put("meanbitrate", getAverageBitrate());
-            json.put("date", mStartDate.toString());
-            Log.d(TAG, "log app version: " + mAppVersion);
-            json.put("encapp_version", mAppVersion);
-            json.put("proctime", getProcessingTime());
-            // For image encoding, always report framecount as 1 for easier analysis
-            json.put("framecount", mIsImage ? 1 : getEncodedFrameCount());
-            json.put("encodedfile", mEncodedfile);
-            String[] tmp = mTest.getInput().getFilepath().split("/");
-            json.put("sourcefile", tmp[tmp.length - 1]);
 
-            json.put("encoder_media_format", getSettingsFromMediaFormat(mEncoderMediaFormat));
+            // GPU info
+            json.name("gpu_data");
+            json.beginObject();
+            writeGpuInfo(json);
+            writeGpuSamples(json);
+            json.endObject();
+
+            // CPU info
+            writeCpuInfo(json);
+            if (mWrittenCpuSamples + mLoad.getCPUTimeInStateCount() > 0) {
+                json.name("cpu_time_in_state");
+                json.beginArray();
+                writeSpooledRecords(json, StatsRecord.RecordCase.CPU_TIME_IN_STATE, 0);
+                mLoad.getCPUTimeInState((cpu, timestampNs, freq, time) -> {
+                    json.beginObject();
+                    json.name("cpu").value(String.valueOf(cpu));
+                    json.name("timestamp_ns").value(String.valueOf(timestampNs));
+                    for (int i = 0; i < freq.length; i++) {
+                        json.name(String.valueOf(freq[i])).value(String.valueOf(time[i]));
+                    }
+                    json.endObject();
+                });
+                json.endArray();
+            }
+            writeThreadCpu(json);
 
-            double powernW = 0;
+            writeNamedTimestamps(json);
 
-            if (mEndPower != null && mStartDate != null) {
-                long powernWh = mEndPower.getCapacitynWh() - mStartPower.getCapacitynWh();
-                powernW = powernWh / (getProcessingTime() / (60 * 60 * 1e9));//ns to h
+            json.endObject();
+            json.flush();
+        } catch (JSONException e) {
+            Log.e(TAG, "Failed writing stats");
+            e.printStackTrace();
+        }
+        if (mSpoolFilename != null && !mBinaryFormat) {
+            new File(mSpoolFilename).delete();
+        }
+        Log.d(TAG, "Done written stats report: " + mId);
+    }
+
+    // Test configuration and derived items, everything that is not per frame or per sample
+    private void writeHeader(JsonWriter json) throws IOException, JSONException {
+        json.name("id").value(mId);
+        json.name("description").value(mDesc);
+        // convert the test configuration to json
+        String jsonStr = JsonFormat.printer().includingDefaultValueFields().print(mTest);
+        json.name("test");
+        writeJSONValue(json, new JSONObject(jsonStr));
+        // add environment
+        json.name("environment");
+        writeJSONValue(json, new JSONObject(System.getenv()));
+        // derived test configuration items
+        if (mEncodingFrames.size() > 0) {
+            json.name("codec").value(mCodec);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                json.name("encoder_hw_accelerated").value(mIsEncoderHw);
             }
-            json.put("power_diff_in_nW", powernW);
-            if (mDecodingFrames.size() > 0) {
-                json.put("decoder", mDecoderName);
-                json.put("decoder_media_format", getSettingsFromMediaFormat(mDecoderMediaFormat));
+        }
+        json.name("meanbitrate").value(getAverageBitrate());
+        json.name("date").value(mStartDate.toString());
+        Log.d(TAG, "log app version: " + mAppVersion);
+        json.name("encapp_version").value(mAppVersion);
+        json.name("proctime").value(getProcessingTime());
+        // For image encoding, always report framecount as 1 for easier analysis
+        json.name("framecount").value(mIsImage ? 1 : getEncodedFrameCount());
+        json.name("encodedfile").value(mEncodedfile);
+        String[] tmp = mTest.getInput().getFilepath().split("/");
+        json.name("sourcefile").value(tmp[tmp.length - 1]);
 
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
-                    json.put("decoder_hw_accelerated", mIsDecoderHw);
-                }
+        json.name("encoder_media_format");
+        writeJSONValue(json, getSettingsFromMediaFormat(mEncoderMediaFormat));
+
+        double powernW = 0;
+
+        if (mStartPower != null && mEndPower != null && mStartDate != null) {
+            long powernWh = mEndPower.getCapacitynWh() - mStartPower.getCapacitynWh();
+            powernW = powernWh / (getProcessingTime() / (60 * 60 * 1e9));//ns to h
+        }
+        json.name("power_diff_in_nW").value(Double.isFinite(powernW) ? powernW : 0);
+        if (mDecodingFrames.size() > 0) {
+            json.name("decoder").value(mDecoderName);
+            json.name("decoder_media_format");
+            writeJSONValue(json, getSettingsFromMediaFormat(mDecoderMediaFormat));
+
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                json.name("decoder_hw_accelerated").value(mIsDecoderHw);
             }
-            ArrayList<FrameInfo> allFrames = mEncodingFrames;
-            // Sort by output order (DTS/decode order) to preserve the order frames came out of encoder
-            Comparator<FrameInfo> compareByOutputOrder = (FrameInfo o1, FrameInfo o2) -> 
-                Integer.valueOf(o1.getOutputOrder()).compareTo(Integer.valueOf(o2.getOutputOrder()));
-            Collections.sort(allFrames, compareByOutputOrder);
-            int counter = 0;
-            JSONArray jsonArray = new JSONArray();
-
-            JSONObject obj = null;
-            ArrayList<FrameInfo> frameCopy = (ArrayList<FrameInfo>) allFrames.clone();
-            for (FrameInfo info : frameCopy) {
-                obj = new JSONObject();
-                // frame = DTS/decode order (order frames came out of encoder)
-                obj.put("frame", info.getOutputOrder());
-                // original_frame = PTS/presentation order (order frames were input)
-                obj.put("original_frame", info.getOriginalFrame());
-                obj.put("iframe", (info.isIFrame()) ? 1 : 0);
-                obj.put("size", info.getSize());
-                obj.put("pts", info.getPts());
-                if (info.getStopTime() == 0) {
-                    Log.w(TAG, "Frame did not finish: " + (counter - 1) + ", orig: " +  info.getOriginalFrame());
-                    obj.put("proctime", 0);
-                } else {
-                    obj.put("proctime", info.getProcessingTime());
-                }
-                obj.put("starttime", info.getStartTime());
-                obj.put("stoptime", info.getStopTime());
-                Dictionary<String, Object> dict = info.getInfo();
-                if (dict != null) {
-                    Enumeration<String> keys = dict.keys();
-                    while (keys.hasMoreElements()) {
-                        String key = keys.nextElement();
-                        obj.put(key, dict.get(key).toString());
-                    }
-                }
-                jsonArray.put(obj);
-                counter++;
+        }
+        json.name("measured_fps").value(getMeasuredFps());
+        if (mOutputRingFull > 0 || mDroppedOutput > 0) {
+            json.name("output_ring_full").value(mOutputRingFull);
+            json.name("dropped_output_buffers").value(mDroppedOutput);
+        }
+        if (mWarmupFrames > 0 || mWarmupNs > 0) {
+            json.name("warmup");
+            json.beginObject();
+            json.name("frames").value(mWarmupFrames);
+            json.name("sec").value(mWarmupNs / 1e9);
+            json.name("excluded_encoded_frames").value(mWarmupEncoded);
+            json.name("excluded_decoded_frames").value(mWarmupDecoded);
+            json.endObject();
+        }
+        writeLatency(json);
+        if (mRepetitions != null) {
+            json.name("repetitions");
+            mRepetitions.writeJSON(json);
+        }
+    }
+
+    private void writeLatency(JsonWriter json) throws IOException {
+        json.name("latency");
+        json.beginObject();
+        synchronized (mInFlightFrames) {
+            writeHistogram(json, "encode", mEncodeLatency);
+            writeHistogram(json, "output_interval", mOutputInterval);
+            writeHistogram(json, "feed", mFeedLatency);
+            writeHistogram(json, "copy", mCopyTime);
+            writeHistogram(json, "read_to_queued", mReadToQueued);
+            writeHistogram(json, "queued_to_dequeued", mQueuedToDequeued);
+            writeHistogram(json, "dequeued_to_muxed", mDequeuedToMuxed);
+            writeHistogram(json, "read_to_muxed", mReadToMuxed);
+        }
+        synchronized (mInFlightDecodingFrames) {
+            writeHistogram(json, "decode", mDecodeLatency);
+        }
+        synchronized (mPacingLateness) {
+            if (mPacingLateness.getCount() > 0) {
+                writeHistogram(json, "pacing_lateness", mPacingLateness);
+                json.name("pacing_missed_deadlines").value(mPacingMissed);
+            }
+        }
+        if (mSampling != null) {
+            LatencyHistogram tickOverhead = mSampling.getTickOverhead();
+            if (tickOverhead.getCount() > 0) {
+                writeHistogram(json, "sampling_tick", tickOverhead);
+                json.name("sampling_missed_ticks").value(mSampling.getMissedTicks());
             }
-            json.put("frames", jsonArray);
+        }
+        json.endObject();
+    }
 
-            if (mDecodingFrames.size() > 0) {
-                Comparator<FrameInfo> compareByPts = (FrameInfo o1, FrameInfo o2) -> 
-                    Long.valueOf(o1.getPts()).compareTo(Long.valueOf(o2.getPts()));
-                allFrames = new ArrayList<>(mDecodingFrames.values());
-                Collections.sort(allFrames, compareByPts);
-                counter = 1;
-                jsonArray = new JSONArray();
-
-                obj = null;
-                for (FrameInfo info : allFrames) {
-                    long proc_time = info.getProcessingTime();
-                    if (proc_time > 0) {
-                        obj = new JSONObject();
-
-                        obj.put("frame", counter++);
-                        obj.put("flags", info.getFlags());
-                        obj.put("size", info.getSize());
-                        obj.put("pts", info.getPts());
-                        obj.put("proctime", info.getProcessingTime());
-                        obj.put("starttime", info.getStartTime());
-                        obj.put("stoptime", info.getStopTime());
-                        Dictionary<String, Object> dict = info.getInfo();
-                        if (dict != null) {
-                            Enumeration<String> keys = dict.keys();
-                            while (keys.hasMoreElements()) {
-                                String key = keys.nextElement();
-                                obj.put(key, dict.get(key).toString());
+    private void writeHistogram(JsonWriter json, String name, LatencyHistogram histogram) throws IOException {
+        if (histogram.getCount() == 0) {
+            return;
+        }
+        json.name(name);
+        json.beginObject();
+        json.name("count").value(histogram.getCount());
+        json.name("min").value(histogram.getMin());
+        json.name("mean").value(Math.round(histogram.getMean()));
+        json.name("p50").value(histogram.getValueAtPercentile(50));
+        json.name("p90").value(histogram.getValueAtPercentile(90));
+        json.name("p99").value(histogram.getValueAtPercentile(99));
+        json.name("p99.9").value(histogram.getValueAtPercentile(99.9));
+        json.name("max").value(histogram.getMax());
+        json.endObject();
+    }
+
+    private void writeCpuInfo(JsonWriter json) throws IOException, JSONException {
+        JSONArray cpuInfo = mLoad.getCPUInfo();
+        if (cpuInfo.length() > 0) {
+            json.name("cpu_info");
+            writeJSONValue(json, cpuInfo);
+        }
+    }
+
+    private void writeThreadCpu(JsonWriter json) throws IOException {
+        if (mThreadCpuStart != null && mThreadCpuEnd != null) {
+            ThreadCpuSampler.writeJSON(json, mThreadCpuStart, mThreadCpuEnd);
+        }
+    }
+
+    private void writeNamedTimestamps(JsonWriter json) throws IOException {
+        if (mNamedTimestamps.size() > 0) {
+            json.name("named_timestamps");
+            json.beginArray();
+            for (Pair pair: mNamedTimestamps) {
+                String name = pair.first.toString();
+                Long ts = (Long)(pair.second);
+                json.beginObject();
+                json.name(name).value(ts);
+                json.endObject();
+            }
+            json.endArray();
+        }
+    }
+
+    private void writeEncodedFrames(JsonWriter json) throws IOException {
+        // Sort by output order (DTS/decode order) to preserve the order frames came out of encoder
+        int[] rows = mEncodingFrames.rowsByOutputOrder();
+        int index = 0;
+        json.beginArray();
+        // Unfinished frames first, then flushed frames which all precede the ones in memory
+        while (index < rows.length && mEncodingFrames.getOutputOrder(rows[index]) < 0) {
+            writeEncodedFrame(json, rows[index++]);
+        }
+        writeSpooledRecords(json, StatsRecord.RecordCase.FRAME, 0);
+        while (index < rows.length) {
+            writeEncodedFrame(json, rows[index++]);
+        }
+        json.endArray();
+    }
+
+    private void writeEncodedFrame(JsonWriter json, int row) throws IOException {
+        writeEncodedFrame(json,
+                mEncodingFrames.getOutputOrder(row),
+                mEncodingFrames.getOriginalFrame(row),
+                mEncodingFrames.isIFrame(row),
+                mEncodingFrames.getSize(row),
+                mEncodingFrames.getPts(row),
+                mEncodingFrames.getStartTime(row),
+                mEncodingFrames.getStopTime(row));
+        writeStageTime(json, "readtime", mEncodingFrames.getStageTime(row, FrameInfo.STAGE_READ_DONE));
+        writeStageTime(json, "queuedtime", mEncodingFrames.getStageTime(row, FrameInfo.STAGE_QUEUED));
+        writeStageTime(json, "dequeuedtime", mEncodingFrames.getStageTime(row, FrameInfo.STAGE_DEQUEUED));
+        writeStageTime(json, "muxedtime", mEncodingFrames.getStageTime(row, FrameInfo.STAGE_MUXED));
+        writeInfo(json, mEncodingFrames.getInfo(row));
+        json.endObject();
+    }
+
+    private void writeStageTime(JsonWriter json, String name, long time) throws IOException {
+        if (time != 0) {
+            json.name(name).value(time);
+        }
+    }
+
+    // Begins the frame object, the caller adds the extra info and ends it
+    private void writeEncodedFrame(JsonWriter json, int frame, int originalFrame, boolean iframe,
+                                   long size, long pts, long start, long stop) throws IOException {
+        json.beginObject();
+        // frame = DTS/decode order (order frames came out of encoder)
+        json.name("frame").value(frame);
+        // original_frame = PTS/presentation order (order frames were input)
+        json.name("original_frame").value(originalFrame);
+        json.name("iframe").value(iframe ? 1 : 0);
+        json.name("size").value(size);
+        json.name("pts").value(pts);
+        if (stop == 0) {
+            Log.w(TAG, "Frame did not finish, orig: " + originalFrame);
+            json.name("proctime").value(0);
+        } else {
+            json.name("proctime").value(stop - start);
+        }
+        json.name("starttime").value(start);
+        json.name("stoptime").value(stop);
+    }
+
+    private void writeDecodedFrames(JsonWriter json) throws IOException {
+        json.beginArray();
+        // Flushed frames are in output order, which for a decoder is pts order
+        int counter = writeSpooledRecords(json, StatsRecord.RecordCase.DECODED_FRAME, 1);
+        int[] rows = mDecodingFrames.rowsByPts();
+        for (int row : rows) {
+            long proc_time = mDecodingFrames.getProcessingTime(row);
+            if (proc_time > 0) {
+                writeDecodedFrame(json, counter++,
+                        mDecodingFrames.getFlags(row),
+                        mDecodingFrames.getSize(row),
+                        mDecodingFrames.getPts(row),
+                        mDecodingFrames.getStartTime(row),
+                        mDecodingFrames.getStopTime(row));
+                writeInfo(json, mDecodingFrames.getInfo(row));
+                json.endObject();
+            }
+        }
+        json.endArray();
+    }
+
+    // Begins the frame object, the caller adds the extra info and ends it
+    private void writeDecodedFrame(JsonWriter json, int frame, int flags, long size,
+                                   long pts, long start, long stop) throws IOException {
+        json.beginObject();
+        json.name("frame").value(frame);
+        json.name("flags").value(flags);
+        json.name("size").value(size);
+        json.name("pts").value(pts);
+        json.name("proctime").value(stop - start);
+        json.name("starttime").value(start);
+        json.name("stoptime").value(stop);
+    }
+
+    /**
+     * Writes the flushed records of one kind as json array elements.
+     * Returns the next decoded frame number, counting from the given one.
+     */
+    private int writeSpooledRecords(JsonWriter json, StatsRecord.RecordCase kind, int counter) throws IOException {
+        if (mSpoolFilename == null) {
+            return counter;
+        }
+        long pts = 0;
+        long start = 0;
+        try (InputStream stream = new BufferedInputStream(new FileInputStream(mSpoolFilename), 64 * 1024)) {
+            CodedInputStream in = CodedInputStream.newInstance(stream);
+            while (!in.isAtEnd()) {
+                // A record is a single oneof field, other kinds are skipped without parsing
+                int limit = in.pushLimit(in.readRawVarint32());
+                if (WireFormat.getTagFieldNumber(in.readTag()) != kind.getNumber()) {
+                    in.skipRawBytes(in.getBytesUntilLimit());
+                    in.popLimit(limit);
+                    continue;
+                }
+                ByteString data = in.readBytes();
+                in.popLimit(limit);
+                switch (kind) {
+                    case FRAME: {
+                        EncodedFrameRecord frame = EncodedFrameRecord.parseFrom(data);
+                        pts += frame.getPtsDelta();
+                        start += frame.getStartDelta();
+                        writeEncodedFrame(json, frame.getFrame(), frame.getOriginalFrame(), frame.getIframe(),
+                                frame.getSize(), pts, start, start + frame.getStopDelta());
+                        if (frame.hasReadDelta()) {
+                            writeStageTime(json, "readtime", start + frame.getReadDelta());
+                        }
+                        if (frame.hasQueuedDelta()) {
+                            writeStageTime(json, "queuedtime", start + frame.getQueuedDelta());
+                        }
+                        if (frame.hasDequeuedDelta()) {
+                            writeStageTime(json, "dequeuedtime", start + frame.getDequeuedDelta());
+                        }
+                        if (frame.hasMuxedDelta()) {
+                            writeStageTime(json, "muxedtime", start + frame.getMuxedDelta());
+                        }
+                        for (FrameExtra extra : frame.getExtraList()) {
+                            json.name(extra.getKey()).value(extra.getValue());
+                        }
+                        json.endObject();
+                        break;
+                    }
+                    case DECODED_FRAME: {
+                        DecodedFrameRecord frame = DecodedFrameRecord.parseFrom(data);
+                        pts += frame.getPtsDelta();
+                        start += frame.getStartDelta();
+                        if (frame.getStopDelta() > 0) {
+                            writeDecodedFrame(json, counter++, frame.getFlags(), frame.getSize(),
+                                    pts, start, start + frame.getStopDelta());
+                            for (FrameExtra extra : frame.getExtraList()) {
+                                json.name(extra.getKey()).value(extra.getValue());
                             }
+                            json.endObject();
+                        }
+                        break;
+                    }
+                    case GPU_LOAD: {
+                        GpuLoadSample sample = GpuLoadSample.parseFrom(data);
+                        json.beginObject();
+                        json.name("time_sec").value(sample.getTimeSec());
+                        json.name("load_percentage").value(sample.getLoadPercentage());
+                        json.endObject();
+                        break;
+                    }
+                    case GPU_CLOCK: {
+                        GpuClockSample sample = GpuClockSample.parseFrom(data);
+                        json.beginObject();
+                        json.name("time_sec").value(sample.getTimeSec());
+                        json.name("clock_MHz").value(sample.getClockMhz());
+                        json.endObject();
+                        break;
+                    }
+                    case CPU_TIME_IN_STATE: {
+                        CpuTimeInStateSample sample = CpuTimeInStateSample.parseFrom(data);
+                        json.beginObject();
+                        json.name("cpu").value(String.valueOf(sample.getCpu()));
+                        json.name("timestamp_ns").value(String.valueOf(sample.getTimestampNs()));
+                        for (int i = 0; i < sample.getFreqCount(); i++) {
+                            json.name(String.valueOf(sample.getFreq(i))).value(String.valueOf(sample.getTime(i)));
                         }
-                        jsonArray.put(obj);
+                        json.endObject();
+                        break;
                     }
+                    default:
+                        break;
                 }
-                json.put("decoded_frames", jsonArray);
             }
+        } catch (InvalidProtocolBufferException e) {
+            // A failed write can leave a truncated record last
+            Log.e(TAG, "Stats spool ends early: " + e.getMessage());
+        }
+        return counter;
+    }
 
-            // GPU info
-            JSONObject gpuData = new JSONObject();
-            HashMap<String, String> gpuInfo = mLoad.getGPUInfo();
-
-            for (String key : gpuInfo.keySet()) {
-                gpuData.put(key, gpuInfo.get(key));
-            }
-
-            counter = 1;
-            jsonArray = new JSONArray();
-
-            int[] gpuload = mLoad.getGPULoadPercentagePerTimeUnit();
-            float timer = (float) (1.0 / mLoad.getSampleFrequency());
-            obj = null;
-            for (int load : gpuload) {
-                obj = new JSONObject();
-                int msec = Math.round(counter * timer * 1000);
-                obj.put("time_sec", msec / 1000.0);
-                obj.put("load_percentage", load);
-                counter++;
-                jsonArray.put(obj);
-            }
-            gpuData.put("gpu_load_percentage", jsonArray);
-            obj = null;
-            jsonArray = new JSONArray();
-            counter = 0;
-            for (String clock : mLoad.getGPUClockFreqPerTimeUnit()) {
-                obj = new JSONObject();
-
-                int msec = Math.round(counter * timer * 1000);
-                obj.put("time_sec", msec / 1000.0);
-                obj.put("clock_MHz", clock);
-                counter++;
-                jsonArray.put(obj);
-            }
-            gpuData.put("gpu_clock_freq", jsonArray);
-            json.put("gpu_data", gpuData);
-
-            // CPU info
-            JSONArray cpuInfo = mLoad.getCPUInfo();
-            JSONArray cpuTimeInState = mLoad.getCPUTimeInStateData();
-            if (cpuInfo.length() > 0) {
-                json.put("cpu_info", cpuInfo);
-            }
-            if (cpuTimeInState.length() > 0) {
-                json.put("cpu_time_in_state", cpuTimeInState);
-            }
-
-            if (mNamedTimestamps.size() > 0) {
-                JSONArray timestamps = new JSONArray();
-                for (Pair pair: mNamedTimestamps) {
-                    obj = new JSONObject();
-                    String name = pair.first.toString();
-                    Long ts = (Long)(pair.second);
-                    obj.put(name, ts);
-                    timestamps.put(obj);
-                }
-                json.put("named_timestamps", timestamps);
+    private void writeInfo(JsonWriter json, Dictionary<String, Object> dict) throws IOException {
+        if (dict != null) {
+            Enumeration<String> keys = dict.keys();
+            while (keys.hasMoreElements()) {
+                String key = keys.nextElement();
+                json.name(key).value(dict.get(key).toString());
             }
+        }
+    }
 
-            writer.write(json.toString(2));
-        } catch (JSONException e) {
-            Log.e(TAG, "Failed writing stats");
-            e.printStackTrace();
+    private void writeGpuInfo(JsonWriter json) throws IOException {
+        HashMap<String, String> gpuInfo = mLoad.getGPUInfo();
+        for (String key : gpuInfo.keySet()) {
+            json.name(key).value(gpuInfo.get(key));
+        }
+    }
+
+    private void writeGpuSamples(JsonWriter json) throws IOException {
+        // Sample times continue after the flushed samples
+        int counter = mWrittenGpuLoadSamples + 1;
+        int[] gpuload = mLoad.getGPULoadPercentagePerTimeUnit();
+        float timer = (float) (1.0 / mLoad.getSampleFrequency());
+        json.name("gpu_load_percentage");
+        json.beginArray();
+        writeSpooledRecords(json, StatsRecord.RecordCase.GPU_LOAD, 0);
+        for (int load : gpuload) {
+            int msec = Math.round(counter * timer * 1000);
+            json.beginObject();
+            json.name("time_sec").value(msec / 1000.0);
+            json.name("load_percentage").value(load);
+            json.endObject();
+            counter++;
+        }
+        json.endArray();
+
+        counter = mWrittenGpuClockSamples;
+        json.name("gpu_clock_freq");
+        json.beginArray();
+        writeSpooledRecords(json, StatsRecord.RecordCase.GPU_CLOCK, 0);
+        for (String clock : mLoad.getGPUClockFreqPerTimeUnit()) {
+            int msec = Math.round(counter * timer * 1000);
+            json.beginObject();
+            json.name("time_sec").value(msec / 1000.0);
+            json.name("clock_MHz").value(clock);
+            json.endObject();
+            counter++;
+        }
+        json.endArray();
+    }
+
+    // Writes the small org.json trees (test, environment, media formats) to the stream
+    private void writeJSONValue(JsonWriter json, Object value) throws IOException, JSONException {
+        if (value == null || value == JSONObject.NULL) {
+            json.nullValue();
+        } else if (value instanceof JSONObject) {
+            JSONObject obj = (JSONObject) value;
+            json.beginObject();
+            Iterator<String> keys = obj.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                json.name(key);
+                writeJSONValue(json, obj.get(key));
+            }
+            json.endObject();
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            json.beginArray();
+            for (int i = 0; i < array.length(); i++) {
+                writeJSONValue(json, array.get(i));
+            }
+            json.endArray();
+        } else if (value instanceof Boolean) {
+            json.value((Boolean) value);
+        } else if (value instanceof Number) {
+            json.value((Number) value);
+        } else {
+            json.value(value.toString());
         }
-        Log.d(TAG, "Done written stats report: " + mId);
     }
 
 
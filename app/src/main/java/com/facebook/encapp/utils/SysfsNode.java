@@ -0,0 +1,107 @@
+package com.facebook.encapp.utils;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A sysfs or procfs file kept open and re-read from the start for every sample.
+ * The content goes to a reused buffer and numbers are parsed from the bytes,
+ * so sampling does not allocate.
+ * Not thread safe.
+ */
+public class SysfsNode implements Closeable {
+    protected static final String TAG = "encapp.sysfs";
+
+    private final String mPath;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private ByteBuffer mBuffer = ByteBuffer.allocate(4096);
+    private int mLength = 0;
+    private int mPos = 0;
+
+    public SysfsNode(String path) throws IOException {
+        mPath = path;
+        mFile = new RandomAccessFile(path, "r");
+        mChannel = mFile.getChannel();
+    }
+
+    /**
+     * Reads the current content, returns false if the node could not be read.
+     */
+    public boolean read() {
+        mBuffer.clear();
+        try {
+            long position = 0;
+            int read;
+            while ((read = mChannel.read(mBuffer, position)) > 0) {
+                position += read;
+                if (!mBuffer.hasRemaining()) {
+                    ByteBuffer larger = ByteBuffer.allocate(mBuffer.capacity() * 2);
+                    mBuffer.flip();
+                    larger.put(mBuffer);
+                    mBuffer = larger;
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read: " + mPath + ", " + e.getMessage());
+            mLength = 0;
+            mPos = 0;
+            return false;
+        }
+        mLength = mBuffer.position();
+        mPos = 0;
+        return true;
+    }
+
+    /**
+     * The next unsigned decimal number in the content read, -1 if there is none.
+     * Anything else (spaces, units) is skipped.
+     */
+    public long nextLong() {
+        byte[] data = mBuffer.array();
+        while (mPos < mLength && (data[mPos] < '0' || data[mPos] > '9')) {
+            mPos++;
+        }
+        if (mPos == mLength) {
+            return -1;
+        }
+        long value = 0;
+        while (mPos < mLength && data[mPos] >= '0' && data[mPos] <= '9') {
+            value = value * 10 + (data[mPos] - '0');
+            mPos++;
+        }
+        return value;
+    }
+
+    /**
+     * Continues parsing after the last occurrence of c in the content read,
+     * e.g. to skip a thread name that can contain anything.
+     */
+    public void skipPastLast(char c) {
+        byte[] data = mBuffer.array();
+        for (int i = mLength - 1; i >= mPos; i--) {
+            if (data[i] == c) {
+                mPos = i + 1;
+                return;
+            }
+        }
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    @Override
+    public void close() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to close: " + mPath);
+        }
+    }
+}
@@ -3,7 +3,6 @@ package com.facebook.encapp.utils;
 import android.util.Log;
 
 import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.BufferedReader;
@@ -14,13 +13,11 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import java.util.stream.Stream;
 
-public class SystemLoad {
+public class SystemLoad implements SamplingProbe {
     protected static final String TAG = "encapp.systemload";
     protected static final String CPU_DIR = "/sys/devices/system/cpu/";
     protected static final String TIME_IN_STATE = "/cpufreq/stats/time_in_state"; // ../cpu/cpuX/cpufreq/...
@@ -40,13 +37,23 @@ public class SystemLoad {
     Boolean started = Boolean.FALSE;
     int mFrequencyHz = 10;
     HashMap<String, String> mGPUInfo = new HashMap<>();
-    ArrayList<String> mGpuLoad = new ArrayList<>();
-    ArrayList<String> mGpuClock = new ArrayList<>();
+    // About 50 minutes at 10 Hz, long tests should flush the stats
+    static final int SAMPLE_CAPACITY = 1 << 15;
+    SysfsNode mGpuLoadNode;
+    SysfsNode mGpuClockNode;
+    DeltaSampleRing mGpuLoad = new DeltaSampleRing(SAMPLE_CAPACITY, 1);
+    DeltaSampleRing mGpuClock = new DeltaSampleRing(SAMPLE_CAPACITY, 1);
+    private final long[] mGpuValue = new long[1];
     //the cpu data is captured per cpu, crate a daa table with cpu and timestamp
     // and the available frequencies will form the columns
     ArrayList<Integer> mCpuNumList = new ArrayList<>();
     ArrayList<CPUInfo> mCpuList = new ArrayList<>();
-    ArrayList<String> mCpuTimeInState = new ArrayList<>(); //cpu=X:ts=Y:data=Text
+    // time_in_state node and frequencies per cpu, a sample has the times of all of them
+    SysfsNode[] mCpuNodes = new SysfsNode[0];
+    int[] mCpuNodeNum = new int[0];
+    long[][] mCpuFreqs = new long[0][];
+    long[] mCpuTimes;
+    DeltaSampleRing mCpuTimeInState;
     public void start() {
         // check whether the directory exists
         if (! Files.exists(Paths.get(FILE_QCOM_GPU_INFO_DIR))) {
@@ -161,46 +168,130 @@ public class SystemLoad {
         } else {
             mCaptureCpu = false;
         }
+        openNodes();
         synchronized (started) {
             started = Boolean.TRUE;
-            Thread t = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    while (started & !mCannotRead) {
-                        String tmp;
-                        long sleeptime = (long) (1000.0 / mFrequencyHz);
-                        synchronized (started) {
-                            //Read cpu
-                            // Snapshot not accumulated data
-                            //tmp = readSystemData("/proc/stat");
-                            //gpu
-                            if (mCaptureGpu) {
-                                tmp = readSystemData(FILE_QCOM_GPU_BUSY_PERCENTAGE);
-                                mGpuLoad.add(tmp.trim());
-                                tmp = readSystemData(FILE_QCOM_GPU_CLOCK_MHZ);
-                                mGpuClock.add(tmp.trim());
-                            }
-                            if (mCaptureCpu) {
-                                captureCpuStats();
-                            }
-                        }
+        }
+        SamplingScheduler.getScheduler().addProbe(this);
+    }
 
-                        try {
-                            Thread.sleep(sleeptime);
-                        } catch (Exception ex) {
-                            Log.e(TAG, "Sleep failed (" + sleeptime + " ms): " + ex.getMessage());
-                        }
+    private synchronized void openNodes() {
+        if (mCaptureGpu) {
+            try {
+                mGpuLoadNode = new SysfsNode(FILE_QCOM_GPU_BUSY_PERCENTAGE);
+                mGpuClockNode = new SysfsNode(FILE_QCOM_GPU_CLOCK_MHZ);
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open gpu load: " + e.getMessage());
+                mCaptureGpu = false;
+            }
+        }
+        if (mCaptureCpu) {
+            ArrayList<SysfsNode> nodes = new ArrayList<>();
+            ArrayList<Integer> nums = new ArrayList<>();
+            ArrayList<long[]> freqs = new ArrayList<>();
+            int columns = 0;
+            for (Integer cpunum: mCpuNumList) {
+                String path = CPU_DIR + "/cpu" + cpunum + TIME_IN_STATE;
+                SysfsNode node;
+                try {
+                    node = new SysfsNode(path);
+                } catch (IOException e) {
+                    Log.w(TAG, "No time in state for cpu " + cpunum + ": " + e.getMessage());
+                    continue;
+                }
+                if (!node.read()) {
+                    node.close();
+                    continue;
+                }
+                // "freq time" per line, the frequencies do not change
+                long[] table = new long[32];
+                int count = 0;
+                long freq;
+                while ((freq = node.nextLong()) >= 0) {
+                    node.nextLong();
+                    if (count == table.length) {
+                        table = Arrays.copyOf(table, count * 2);
                     }
+                    table[count++] = freq;
                 }
-            }, "system_load_thread");
-            t.start();
+                nodes.add(node);
+                nums.add(cpunum);
+                freqs.add(Arrays.copyOf(table, count));
+                columns += count;
+            }
+            mCpuNodes = nodes.toArray(new SysfsNode[0]);
+            mCpuNodeNum = new int[nums.size()];
+            for (int i = 0; i < mCpuNodeNum.length; i++) {
+                mCpuNodeNum[i] = nums.get(i);
+            }
+            mCpuFreqs = freqs.toArray(new long[0][]);
+            mCpuTimes = new long[columns];
+            mCpuTimeInState = new DeltaSampleRing(SAMPLE_CAPACITY, columns);
+            mCaptureCpu = mCpuNodes.length > 0;
+        }
+    }
+
+    private synchronized void closeNodes() {
+        if (mGpuLoadNode != null) {
+            mGpuLoadNode.close();
+            mGpuClockNode.close();
         }
+        for (SysfsNode node: mCpuNodes) {
+            node.close();
+        }
+        mCaptureGpu = false;
+        mCaptureCpu = false;
     }
 
     public void stop() {
         synchronized (started) {
             started = Boolean.FALSE;
         }
+        SamplingScheduler.getScheduler().removeProbe(this);
+        closeNodes();
+        long dropped = mGpuLoad.getDropped() + mGpuClock.getDropped();
+        if (mCpuTimeInState != null) {
+            dropped += mCpuTimeInState.getDropped();
+        }
+        if (dropped > 0) {
+            Log.w(TAG, "Dropped " + dropped + " samples, flush the stats for long tests");
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "system_load";
+    }
+
+    @Override
+    public int getFrequencyHz() {
+        return mFrequencyHz;
+    }
+
+    @Override
+    public synchronized void sample(long tickNs) {
+        if (mCannotRead) {
+            SamplingScheduler.getScheduler().removeProbe(this);
+            return;
+        }
+        //Read cpu
+        // Snapshot not accumulated data
+        //tmp = readSystemData("/proc/stat");
+        //gpu
+        if (mCaptureGpu) {
+            if (!mGpuLoadNode.read() || !mGpuClockNode.read()) {
+                mCannotRead = true;
+                return;
+            }
+            // "2 %"
+            mGpuValue[0] = mGpuLoadNode.nextLong();
+            mGpuLoad.add(tickNs, mGpuValue);
+            mGpuValue[0] = mGpuClockNode.nextLong();
+            mGpuClock.add(tickNs, mGpuValue);
+        }
+        if (mCaptureCpu) {
+            captureCpuStats(tickNs);
+        }
     }
 
     private String readSystemData(String path) {
@@ -237,31 +328,47 @@ public class SystemLoad {
     }
 
     public int[] getGPULoadPercentagePerTimeUnit() {
-        Iterator<String> iter = mGpuLoad.iterator();
-        int[] ret = new int[mGpuLoad.size()];
-        Pattern p = Pattern.compile("([0-9]*)");
-
-        int counter = 0;
-        //2 %
-        while(iter.hasNext()) {
-            String line = iter.next();
-            Matcher m = p.matcher(line);
-
-            if (m.find()) {
-                String tmp = m.group(0);
-                if (tmp.length() > 0) {
-                    int val = Integer.parseInt(m.group(0));
-                    ret[counter++] = val;
-                }
-            } else {
-                Log.d(TAG, "Failed to parse: " + line);
-            }
+        return toIntArray(mGpuLoad.values());
+    }
+
+    // The take methods return the samples captured so far and drop them,
+    // so stats can be flushed during long tests
+    public int[] takeGPULoadPercentagePerTimeUnit() {
+        return toIntArray(mGpuLoad.take());
+    }
+
+    public ArrayList<String> takeGPUClockFreqPerTimeUnit() {
+        return toStringList(mGpuClock.take());
+    }
+
+    /**
+     * Hands the cpu time in state samples captured so far to the sink and drops them.
+     * Returns the number of entries, one per cpu and sample.
+     */
+    public int takeCPUTimeInState(CpuTimeInStateSink sink) throws IOException {
+        if (mCpuTimeInState == null) {
+            return 0;
         }
+        return writeCPUTimeInState(mCpuTimeInState.take(), sink);
+    }
+
+    private static int[] toIntArray(long[][] samples) {
+        int[] ret = new int[samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            ret[i] = (int) samples[i][1];
+        }
+        return ret;
+    }
 
+    private static ArrayList<String> toStringList(long[][] samples) {
+        ArrayList<String> ret = new ArrayList<>(samples.length);
+        for (long[] sample: samples) {
+            ret.add(Long.toString(sample[1]));
+        }
         return ret;
     }
 
-    public ArrayList<String> getGPUClockFreqPerTimeUnit() { return mGpuClock; }
+    public ArrayList<String> getGPUClockFreqPerTimeUnit() { return toStringList(mGpuClock.values()); }
 
     public HashMap<String, String> getGPUInfo() { return mGPUInfo; }
 
@@ -269,10 +376,14 @@ public class SystemLoad {
         return mFrequencyHz;
     }
 
-    private void captureCpuStats() {
-        long ts = ClockTimes.currentTimeNs();
-        for (Integer cpunum: mCpuNumList) {
-            String data = readSystemData(CPU_DIR + "/cpu"  + cpunum + TIME_IN_STATE);
+    private void captureCpuStats(long ts) {
+        int column = 0;
+        for (int i = 0; i < mCpuNodes.length; i++) {
+            SysfsNode node = mCpuNodes[i];
+            if (!node.read()) {
+                mCannotRead = true;
+                return;
+            }
             /*
             freq   time (10ms?), TODO: check that it adds up.
             "
@@ -284,8 +395,12 @@ public class SystemLoad {
             ...
             "
              */
-            mCpuTimeInState.add("cpu=" + cpunum + ":ts=" + ts + ":data=" + data);
+            for (int freq = 0; freq < mCpuFreqs[i].length; freq++) {
+                node.nextLong();
+                mCpuTimes[column++] = node.nextLong();
+            }
         }
+        mCpuTimeInState.add(ts, mCpuTimes);
     }
 
     public JSONArray getCPUInfo() throws org.json.JSONException {
@@ -306,28 +421,44 @@ public class SystemLoad {
         return root;
     }
 
-    public JSONArray getCPUTimeInStateData() throws JSONException {
-        JSONArray root = new JSONArray();
-        String reg = "cpu=(?<cpu>[0-9]+):ts=(?<ts>[0-9]*):data=(?<data>[0-9 \n]*)";
-        Pattern pattern = Pattern.compile(reg);
-
-        for (String data: mCpuTimeInState) {
-            Matcher matcher = pattern.matcher(data);
-            if (matcher.find()) {
-                JSONObject entry = new JSONObject();
-                entry.put("cpu", matcher.group("cpu"));
-                entry.put("timestamp_ns", matcher.group("ts"));
-                // Then we add the frequencies and the load as is
-                // That will make converting the json to a csv for plotting easy
-                for (String line: matcher.group("data").split("\n")) {
-                    // 324000 5023977
-                    String[] perf = line.trim().split(" ");
-                    // keep as string, we are not doing much with it anyways
-                    entry.put(perf[0], perf[1]);
-                }
-                root.put(entry);
+    /**
+     * Receives one cpu time in state entry, the time spent at each frequency of one cpu.
+     */
+    public interface CpuTimeInStateSink {
+        void write(int cpu, long timestampNs, long[] freq, long[] time) throws IOException;
+    }
+
+    public int getCPUTimeInStateCount() {
+        if (mCpuTimeInState == null) {
+            return 0;
+        }
+        return mCpuTimeInState.size() * mCpuNodeNum.length;
+    }
+
+    /**
+     * Hands the cpu time in state samples to the sink without dropping them.
+     */
+    public int getCPUTimeInState(CpuTimeInStateSink sink) throws IOException {
+        if (mCpuTimeInState == null) {
+            return 0;
+        }
+        return writeCPUTimeInState(mCpuTimeInState.values(), sink);
+    }
+
+    // The ring lock is already released, sinks may block on i/o
+    private int writeCPUTimeInState(long[][] samples, CpuTimeInStateSink sink) throws IOException {
+        long[][] times = new long[mCpuFreqs.length][];
+        for (int i = 0; i < times.length; i++) {
+            times[i] = new long[mCpuFreqs[i].length];
+        }
+        for (long[] sample: samples) {
+            int column = 1;
+            for (int i = 0; i < mCpuNodeNum.length; i++) {
+                System.arraycopy(sample, column, times[i], 0, times[i].length);
+                column += times[i].length;
+                sink.write(mCpuNodeNum[i], sample[0], mCpuFreqs[i], times[i]);
             }
         }
-        return root;
+        return samples.length * mCpuNodeNum.length;
     }
 }
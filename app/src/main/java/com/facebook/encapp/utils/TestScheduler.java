@@ -0,0 +1,354 @@
+package com.facebook.encapp.utils;
+
+import android.util.Log;
+
+import com.facebook.encapp.proto.Configure;
+import com.facebook.encapp.proto.Test;
+import com.facebook.encapp.proto.TestSuite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs a test suite as a dependency graph. Every test in the suite depends on the previous
+ * one and its parallel tests, a test and its parallel tests form a group that is set up one
+ * test at a time and then started together. Tests run on an executor and signal completion
+ * through futures, nothing is polled.
+ *
+ * The number of tests running on one codec at a time is limited, tests that do not get a
+ * codec slot when their group starts run as soon as one is free. Pursuit tests are not
+ * limited, they look for where codec creation fails. A test that has not finished within its
+ * timeout is aborted and counted as failed, which frees its codec slots for the rest of the
+ * suite. The spread of the actual start times in a group (start skew) is recorded.
+ */
+public class TestScheduler {
+    private static final String TAG = "encapp.scheduler";
+    private static final long READY_TIMEOUT_MS = 30000;
+
+    /**
+     * One test, created when its group is set up.
+     */
+    public interface Task {
+        /**
+         * Runs the test, blocks until done.
+         */
+        void run();
+
+        /**
+         * Returns true once the test is set up and waits for start(), false on timeout or
+         * if run() returned before that.
+         */
+        boolean awaitReady(long timeoutMs) throws InterruptedException;
+
+        void start();
+
+        /**
+         * When the test actually started, 0 if it did not.
+         */
+        long getStartTimeNs();
+
+        /**
+         * Stops a test that did not finish within its timeout, run() may still be blocked.
+         */
+        void abort();
+    }
+
+    public interface Listener {
+        /**
+         * Creates the task running the test, null if it cannot run.
+         */
+        Task createTask(Test test);
+
+        /**
+         * Called before a test of the suite and its parallel tests are set up, may block.
+         */
+        void beforeGroup(Test test);
+
+        /**
+         * All tests of the group are set up and about to be started.
+         */
+        void onGroupReady(Test test);
+
+        void onGroupStarted(Test test, List<Task> tasks);
+
+        /**
+         * Asked after each start of a group, true starts another instance of it right away
+         * without waiting for the running ones.
+         */
+        boolean launchAgain(Test test, int launched);
+
+        /**
+         * Max number of tests using the codec at the same time, 0 for no limit.
+         */
+        int getCodecLimit(String codec);
+
+        /**
+         * Time a test may run before it is aborted, 0 for no limit.
+         */
+        long getTimeoutMs(Test test);
+    }
+
+    private static class Node {
+        final Test mTest;
+        final List<Node> mDependsOn;
+        final List<String> mCodecs = new ArrayList<>();
+        Task mTask;
+        CompletableFuture<Void> mDone;
+
+        Node(Test test, List<Node> dependsOn) {
+            mTest = test;
+            mDependsOn = dependsOn;
+            if (test.getInput().getPursuit() != 0) {
+                // Adds instances until the codec cannot be created, no slots
+                return;
+            }
+            if (test.getConfigure().getCodec().length() > 0) {
+                mCodecs.add(test.getConfigure().getCodec());
+            }
+            if (test.getDecoderConfigure().hasCodec()) {
+                mCodecs.add(test.getDecoderConfigure().getCodec());
+            }
+            for (Configure rung : test.getLadderList()) {
+                if (rung.hasCodec() && !mCodecs.contains(rung.getCodec())) {
+                    mCodecs.add(rung.getCodec());
+                }
+            }
+            // Always in the same order so two tests cannot wait for each other
+            Collections.sort(mCodecs);
+        }
+    }
+
+    private final Listener mListener;
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+    private final ScheduledExecutorService mWatchdog = Executors.newSingleThreadScheduledExecutor();
+    private final HashMap<String, Semaphore> mCodecSlots = new HashMap<>();
+    private final LatencyHistogram mStartSkew = new LatencyHistogram();
+    // Started together, the skew is recorded once they are done
+    private final List<List<Node>> mStartedGroups = new ArrayList<>();
+    private int mDeferred = 0;
+    private volatile int mTimedOut = 0;
+
+    public TestScheduler(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Runs all tests of the suite, returns when all are done.
+     */
+    public void run(TestSuite suite) {
+        long startNs = ClockTimes.currentTimeNs();
+        List<Node> previous = Collections.emptyList();
+        for (Test test : suite.getTestList()) {
+            List<Node> launched = new ArrayList<>();
+            int count = 0;
+            do {
+                List<Node> group = buildGroup(test, previous);
+                if (count == 0) {
+                    awaitAll(group.get(0).mDependsOn);
+                    recordSkews();
+                    mListener.beforeGroup(test);
+                }
+                launch(test, group);
+                launched.addAll(group);
+                count++;
+            } while (mListener.launchAgain(test, count));
+            previous = launched;
+        }
+        awaitAll(previous);
+        recordSkews();
+        mExecutor.shutdown();
+        mWatchdog.shutdownNow();
+        Log.d(TAG, String.format(Locale.US, "Suite done in %.1f s, start skew p50 %.3f ms, max %.3f ms, deferred by codec limits: %d, timed out: %d",
+                (ClockTimes.currentTimeNs() - startNs) / 1e9, mStartSkew.getValueAtPercentile(50) / 1e6,
+                mStartSkew.getMax() / 1e6, mDeferred, mTimedOut));
+    }
+
+    private static List<Node> buildGroup(Test test, List<Node> dependsOn) {
+        List<Node> group = new ArrayList<>();
+        addNodes(test, dependsOn, group);
+        return group;
+    }
+
+    private static void addNodes(Test test, List<Node> dependsOn, List<Node> group) {
+        group.add(new Node(test, dependsOn));
+        for (Test parallel : test.getParallel().getTestList()) {
+            addNodes(parallel, dependsOn, group);
+        }
+    }
+
+    private void launch(Test test, List<Node> group) {
+        List<Node> started = new ArrayList<>();
+        List<Node> deferred = new ArrayList<>();
+        for (Node node : group) {
+            if (!tryAcquire(node)) {
+                deferred.add(node);
+                continue;
+            }
+            node.mTask = mListener.createTask(node.mTest);
+            if (node.mTask == null) {
+                releaseSlots(node);
+                node.mDone = CompletableFuture.completedFuture(null);
+                continue;
+            }
+            node.mDone = runAsync(node);
+            // One at a time, surface setup is not thread safe on some hw
+            awaitReady(node.mTask, node.mTest);
+            started.add(node);
+        }
+
+        mListener.onGroupReady(test);
+        List<Task> tasks = new ArrayList<>();
+        for (Node node : started) {
+            node.mTask.start();
+            tasks.add(node.mTask);
+        }
+        mListener.onGroupStarted(test, tasks);
+
+        for (Node node : deferred) {
+            Log.d(TAG, node.mTest.getCommon().getId() + " waits for a free codec: " + node.mCodecs);
+            mDeferred++;
+            node.mDone = CompletableFuture.runAsync(() -> runDeferred(node), mExecutor);
+        }
+        if (started.size() > 1) {
+            mStartedGroups.add(started);
+        }
+    }
+
+    private CompletableFuture<Void> runAsync(Node node) {
+        Task task = node.mTask;
+        CompletableFuture<Void> run = CompletableFuture.runAsync(task::run, mExecutor);
+        long timeoutMs = mListener.getTimeoutMs(node.mTest);
+        if (timeoutMs > 0) {
+            // Completing the future first decides, a late run() does not count
+            ScheduledFuture<?> watchdog = mWatchdog.schedule(() -> {
+                if (run.completeExceptionally(new TimeoutException("not done after " + timeoutMs + " ms"))) {
+                    mTimedOut++;
+                    task.abort();
+                }
+            }, timeoutMs, TimeUnit.MILLISECONDS);
+            run.whenComplete((result, error) -> watchdog.cancel(false));
+        }
+        return run.whenComplete((result, error) -> {
+                    if (error != null) {
+                        Log.e(TAG, node.mTest.getCommon().getId() + " failed: " + error.getMessage());
+                    }
+                    releaseSlots(node);
+                });
+    }
+
+    private void runDeferred(Node node) {
+        int acquired = 0;
+        try {
+            for (String codec : node.mCodecs) {
+                slots(codec).acquire();
+                acquired++;
+            }
+            node.mTask = mListener.createTask(node.mTest);
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted waiting for a codec");
+        } finally {
+            if (node.mTask == null) {
+                for (int i = 0; i < acquired; i++) {
+                    slots(node.mCodecs.get(i)).release();
+                }
+            }
+        }
+        if (node.mTask == null) {
+            return;
+        }
+        CompletableFuture<Void> done = runAsync(node);
+        awaitReady(node.mTask, node.mTest);
+        node.mTask.start();
+        done.join();
+    }
+
+    private static void awaitReady(Task task, Test test) {
+        try {
+            if (!task.awaitReady(READY_TIMEOUT_MS)) {
+                Log.w(TAG, test.getCommon().getId() + " not set up within " + READY_TIMEOUT_MS + " ms");
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "Interrupted waiting for " + test.getCommon().getId());
+        }
+    }
+
+    private void recordSkews() {
+        for (List<Node> started : mStartedGroups) {
+            recordSkew(started);
+        }
+        mStartedGroups.clear();
+    }
+
+    private void recordSkew(List<Node> started) {
+        long first = Long.MAX_VALUE;
+        long last = 0;
+        for (Node node : started) {
+            long startNs = node.mTask.getStartTimeNs();
+            if (startNs > 0) {
+                first = Math.min(first, startNs);
+                last = Math.max(last, startNs);
+            }
+        }
+        if (last == 0) return;
+        mStartSkew.record(last - first);
+        Log.d(TAG, String.format(Locale.US, "%s + %d parallel: start skew %.3f ms",
+                started.get(0).mTest.getCommon().getId(), started.size() - 1, (last - first) / 1e6));
+    }
+
+    private synchronized Semaphore slots(String codec) {
+        Semaphore slots = mCodecSlots.get(codec);
+        if (slots == null) {
+            int limit = mListener.getCodecLimit(codec);
+            slots = new Semaphore(limit > 0 ? limit : Integer.MAX_VALUE);
+            mCodecSlots.put(codec, slots);
+        }
+        return slots;
+    }
+
+    private boolean tryAcquire(Node node) {
+        for (int i = 0; i < node.mCodecs.size(); i++) {
+            if (!slots(node.mCodecs.get(i)).tryAcquire()) {
+                for (int j = 0; j < i; j++) {
+                    slots(node.mCodecs.get(j)).release();
+                }
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void releaseSlots(Node node) {
+        for (String codec : node.mCodecs) {
+            slots(codec).release();
+        }
+    }
+
+    private static CompletableFuture<?>[] futures(List<Node> nodes) {
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            futures[i] = nodes.get(i).mDone;
+        }
+        return futures;
+    }
+
+    private static void awaitAll(List<Node> nodes) {
+        if (nodes.isEmpty()) return;
+        try {
+            CompletableFuture.allOf(futures(nodes)).join();
+        } catch (CompletionException e) {
+            // Logged by the failing test, the rest of the suite still runs
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.facebook.encapp.utils;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per thread cpu use of the app, read from /proc/self/task/<tid>/stat and schedstat.
+ *
+ * Pipeline threads register with a name and the id of their test, other threads
+ * (codec callbacks, binder, ...) are reported with their kernel name. While a test
+ * runs the threads are sampled by the SamplingScheduler, so threads that end before
+ * the test does are still counted with their last values and name.
+ *
+ * Linux reuses thread ids, a registration only names its tid while the registering
+ * thread is alive and is dropped once it has ended.
+ *
+ * Usage:
+ *   Snapshot start = ThreadCpuSampler.getSampler().begin();
+ *   ...
+ *   Snapshot end = ThreadCpuSampler.getSampler().end();
+ *   ThreadCpuSampler.writeJSON(json, start, end);
+ */
+public class ThreadCpuSampler implements SamplingProbe {
+    protected static final String TAG = "encapp.threadcpu";
+    protected static final String TASK_DIR = "/proc/self/task/";
+    // USER_HZ is 100 on Android
+    static final int CLOCK_TICK_MS = 10;
+
+    // Values per thread
+    static final int CPU_TIME_NS = 0;
+    static final int WAIT_TIME_NS = 1;
+    static final int TIMESLICES = 2;
+    static final int USER_TICKS = 3;
+    static final int SYSTEM_TICKS = 4;
+    static final int VALUE_COUNT = 5;
+
+    private static ThreadCpuSampler me = null;
+    private static final ConcurrentHashMap<Integer, Registration> mRegistered = new ConcurrentHashMap<>();
+
+    private final HashMap<Integer, ThreadState> mThreads = new HashMap<>();
+    private int mUsers = 0;
+
+    private static class Registration {
+        final Thread mThread;
+        final String mName;
+        final String mTestId;
+
+        Registration(Thread thread, String name, String testId) {
+            mThread = thread;
+            mName = name;
+            mTestId = testId;
+        }
+    }
+
+    private static class ThreadState {
+        final int mTid;
+        // The kernel name until a registration is seen
+        String mName;
+        String mTestId = null;
+        SysfsNode mStat;
+        SysfsNode mSchedstat;
+        final long[] mValues = new long[VALUE_COUNT];
+
+        ThreadState(int tid, String kernelName) {
+            mTid = tid;
+            mName = kernelName;
+        }
+
+        void close() {
+            if (mStat != null) {
+                mStat.close();
+                mSchedstat.close();
+                mStat = null;
+                mSchedstat = null;
+            }
+        }
+    }
+
+    /**
+     * Values of all threads seen at one point in time.
+     */
+    public static class Snapshot {
+        final HashMap<Integer, long[]> mValues = new HashMap<>();
+        final HashMap<Integer, String> mNames = new HashMap<>();
+        final HashMap<Integer, String> mTestIds = new HashMap<>();
+    }
+
+    public static synchronized ThreadCpuSampler getSampler() {
+        if (me == null) {
+            me = new ThreadCpuSampler();
+        }
+        return me;
+    }
+
+    /**
+     * Names the calling thread in the report, testId can be null for threads
+     * shared by all tests.
+     */
+    public static void registerThread(String name, String testId) {
+        int tid = Process.myTid();
+        mRegistered.put(tid, new Registration(Thread.currentThread(), name, testId));
+        ThreadCpuSampler sampler;
+        synchronized (ThreadCpuSampler.class) {
+            sampler = me;
+        }
+        if (sampler != null) {
+            sampler.registered(tid);
+        }
+    }
+
+    /**
+     * Drops the name of the calling thread, threads that end are dropped on their own.
+     */
+    public static void unregisterThread() {
+        int tid = Process.myTid();
+        Registration registration = mRegistered.get(tid);
+        if (registration != null && registration.mThread == Thread.currentThread()) {
+            mRegistered.remove(tid, registration);
+        }
+    }
+
+    // Names the thread now in case it ends before the next sample
+    private synchronized void registered(int tid) {
+        if (mUsers == 0) {
+            return;
+        }
+        ThreadState state = mThreads.get(tid);
+        if (state == null) {
+            state = openThread(tid);
+            mThreads.put(tid, state);
+        }
+        if (state.mStat != null) {
+            resolveName(state);
+        }
+    }
+
+    private static void resolveName(ThreadState state) {
+        Registration registration = mRegistered.get(state.mTid);
+        if (registration != null && registration.mThread.isAlive()) {
+            state.mName = registration.mName;
+            state.mTestId = registration.mTestId;
+        }
+    }
+
+    /**
+     * Starts sampling if no other test does and returns the current values.
+     */
+    public synchronized Snapshot begin() {
+        if (mUsers++ == 0) {
+            SamplingScheduler.getScheduler().addProbe(this);
+        }
+        sampleThreads();
+        return snapshot();
+    }
+
+    /**
+     * Returns the current values and stops sampling when the last test is done.
+     */
+    public synchronized Snapshot end() {
+        sampleThreads();
+        Snapshot snapshot = snapshot();
+        // Ended threads, their tids may be reused
+        mRegistered.values().removeIf(registration -> !registration.mThread.isAlive());
+        if (--mUsers == 0) {
+            SamplingScheduler.getScheduler().removeProbe(this);
+            for (ThreadState state : mThreads.values()) {
+                state.close();
+            }
+            mThreads.clear();
+        }
+        return snapshot;
+    }
+
+    @Override
+    public String getName() {
+        return "thread_cpu";
+    }
+
+    @Override
+    public int getFrequencyHz() {
+        return 1;
+    }
+
+    @Override
+    public synchronized void sample(long tickNs) {
+        if (mUsers > 0) {
+            sampleThreads();
+        }
+    }
+
+    private void sampleThreads() {
+        String[] tids = new File(TASK_DIR).list();
+        if (tids == null) {
+            Log.e(TAG, "Failed to list " + TASK_DIR);
+            return;
+        }
+        for (String name : tids) {
+            int tid;
+            try {
+                tid = Integer.parseInt(name);
+            } catch (NumberFormatException e) {
+                continue;
+            }
+            if (!mThreads.containsKey(tid)) {
+                mThreads.put(tid, openThread(tid));
+            }
+        }
+        for (ThreadState state : mThreads.values()) {
+            // Threads that ended keep their last values
+            if (state.mStat == null) {
+                continue;
+            }
+            if (!state.mStat.read() || !state.mSchedstat.read()) {
+                state.close();
+                continue;
+            }
+            resolveName(state);
+            // "tid (name) state ppid pgrp session tty_nr tpgid flags minflt cminflt majflt cmajflt utime stime ..."
+            SysfsNode stat = state.mStat;
+            stat.skipPastLast(')');
+            for (int i = 0; i < 10; i++) {
+                stat.nextLong();
+            }
+            long utime = stat.nextLong();
+            long stime = stat.nextLong();
+            // "run time ns, run queue wait ns, timeslices"
+            SysfsNode schedstat = state.mSchedstat;
+            long cpuTime = schedstat.nextLong();
+            long waitTime = schedstat.nextLong();
+            long timeslices = schedstat.nextLong();
+            if (cpuTime < 0 || timeslices < 0) {
+                continue;
+            }
+            state.mValues[CPU_TIME_NS] = cpuTime;
+            state.mValues[WAIT_TIME_NS] = waitTime;
+            state.mValues[TIMESLICES] = timeslices;
+            state.mValues[USER_TICKS] = utime;
+            state.mValues[SYSTEM_TICKS] = stime;
+        }
+    }
+
+    private ThreadState openThread(int tid) {
+        String dir = TASK_DIR + tid + "/";
+        String kernelName = "";
+        try {
+            kernelName = new String(Files.readAllBytes(Paths.get(dir + "comm"))).trim();
+        } catch (IOException e) {
+            Log.w(TAG, "No name for thread " + tid);
+        }
+        ThreadState state = new ThreadState(tid, kernelName);
+        try {
+            state.mStat = new SysfsNode(dir + "stat");
+            state.mSchedstat = new SysfsNode(dir + "schedstat");
+        } catch (IOException e) {
+            // Ended already or no schedstat in this kernel
+            Log.w(TAG, "Cannot read thread " + tid + ": " + e.getMessage());
+            if (state.mStat != null) {
+                state.mStat.close();
+            }
+            state.mStat = null;
+        }
+        return state;
+    }
+
+    private Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (ThreadState state : mThreads.values()) {
+            snapshot.mValues.put(state.mTid, state.mValues.clone());
+            snapshot.mNames.put(state.mTid, state.mName);
+            if (state.mTestId != null) {
+                snapshot.mTestIds.put(state.mTid, state.mTestId);
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * Writes the cpu use between two snapshots as a "thread_cpu" array,
+     * busiest thread first. Threads that did not run are left out.
+     */
+    public static void writeJSON(JsonWriter json, Snapshot start, Snapshot end) throws IOException {
+        ArrayList<long[]> deltas = new ArrayList<>();
+        ArrayList<Integer> tids = new ArrayList<>();
+        for (int tid : end.mValues.keySet()) {
+            long[] last = end.mValues.get(tid);
+            long[] first = start.mValues.get(tid);
+            long[] delta = new long[VALUE_COUNT];
+            for (int i = 0; i < VALUE_COUNT; i++) {
+                delta[i] = last[i] - (first != null ? first[i] : 0);
+            }
+            if (delta[CPU_TIME_NS] <= 0) {
+                continue;
+            }
+            int pos = 0;
+            while (pos < deltas.size() && deltas.get(pos)[CPU_TIME_NS] >= delta[CPU_TIME_NS]) {
+                pos++;
+            }
+            deltas.add(pos, delta);
+            tids.add(pos, tid);
+        }
+
+        json.name("thread_cpu");
+        json.beginArray();
+        for (int i = 0; i < deltas.size(); i++) {
+            int tid = tids.get(i);
+            long[] delta = deltas.get(i);
+            json.beginObject();
+            json.name("tid").value(tid);
+            json.name("name").value(end.mNames.get(tid));
+            String testId = end.mTestIds.get(tid);
+            if (testId != null) {
+                json.name("test_id").value(testId);
+            }
+            json.name("cpu_time_ns").value(delta[CPU_TIME_NS]);
+            json.name("user_time_ms").value(delta[USER_TICKS] * CLOCK_TICK_MS);
+            json.name("system_time_ms").value(delta[SYSTEM_TICKS] * CLOCK_TICK_MS);
+            json.name("runqueue_wait_ns").value(delta[WAIT_TIME_NS]);
+            json.name("context_switches").value(delta[TIMESLICES]);
+            json.endObject();
+        }
+        json.endArray();
+    }
+}
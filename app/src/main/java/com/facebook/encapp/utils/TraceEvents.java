@@ -0,0 +1,179 @@
+package com.facebook.encapp.utils;
+
+import android.os.Process;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Records encapp's own trace events (read, queue, codec output, mux, render, sampling)
+ * when tracing is enabled (CliSettings.isTracingEnabled), and writes them as Chrome
+ * trace event json which can be opened in chrome://tracing or ui.perfetto.dev.
+ *
+ * Every thread writes to its own ring, so recording takes no locks and does not allocate
+ * after the first event on a thread. A full ring overwrites its oldest events. The ring
+ * of a thread that has ended is written once more and then reused by a new thread.
+ *
+ * Usage:
+ *   long start = TraceEvents.begin();
+ *   ...
+ *   TraceEvents.end(TraceEvents.QUEUE, start, ptsUsec);
+ */
+public class TraceEvents {
+    public static final String TRACE_EXTENSION = ".trace.json";
+    // Event names, the event argument is the pts in usec (sample number for SAMPLE)
+    public static final String READ = "read";
+    public static final String QUEUE = "queue";
+    public static final String CODEC_OUT = "codec_out";
+    public static final String MUX = "mux";
+    public static final String RENDER = "render";
+    public static final String SAMPLE = "sample";
+
+    static final int RING_SIZE = 1 << 14;
+    static final int RING_MASK = RING_SIZE - 1;
+    // Rings of ended threads kept for reuse, the rest are left to the gc
+    static final int MAX_FREE_RINGS = 4;
+
+    private static final ConcurrentLinkedQueue<Ring> mRings = new ConcurrentLinkedQueue<>();
+    private static final ArrayDeque<Ring> mFreeRings = new ArrayDeque<>();
+    private static final ThreadLocal<Ring> mThreadRing = new ThreadLocal<Ring>() {
+        @Override
+        protected Ring initialValue() {
+            Ring ring;
+            synchronized (mFreeRings) {
+                ring = mFreeRings.poll();
+            }
+            if (ring == null) {
+                ring = new Ring();
+            }
+            ring.reset(Thread.currentThread());
+            mRings.add(ring);
+            return ring;
+        }
+    };
+
+    static class Ring {
+        WeakReference<Thread> mThread;
+        long mTid;
+        String mThreadName;
+        final String[] mName = new String[RING_SIZE];
+        final long[] mStart = new long[RING_SIZE];
+        // -1 for instant events
+        final long[] mDuration = new long[RING_SIZE];
+        final long[] mArg = new long[RING_SIZE];
+        // Only written by the owning thread, volatile to publish the events to the reader
+        volatile long mCount = 0;
+
+        // Before the ring is published in mRings
+        void reset(Thread thread) {
+            mThread = new WeakReference<>(thread);
+            mTid = thread.getId();
+            mThreadName = thread.getName();
+            mCount = 0;
+        }
+
+        boolean hasEnded() {
+            Thread thread = mThread.get();
+            return thread == null || !thread.isAlive();
+        }
+
+        void add(String name, long start, long duration, long arg) {
+            long count = mCount;
+            int pos = (int) (count & RING_MASK);
+            mName[pos] = name;
+            mStart[pos] = start;
+            mDuration[pos] = duration;
+            mArg[pos] = arg;
+            mCount = count + 1;
+        }
+    }
+
+    /**
+     * Returns the start time for end(), 0 if tracing is disabled.
+     */
+    public static long begin() {
+        return CliSettings.isTracingEnabled() ? ClockTimes.currentTimeNs() : 0;
+    }
+
+    public static void end(String name, long startNs, long arg) {
+        if (startNs == 0) {
+            return;
+        }
+        mThreadRing.get().add(name, startNs, ClockTimes.currentTimeNs() - startNs, arg);
+    }
+
+    public static void instant(String name, long arg) {
+        if (!CliSettings.isTracingEnabled()) {
+            return;
+        }
+        mThreadRing.get().add(name, ClockTimes.currentTimeNs(), -1, arg);
+    }
+
+    /**
+     * Writes the events starting between fromNs and toNs as Chrome trace json.
+     * Threads still tracing can overwrite old events while they are written, so the
+     * window should have ended. Threads that have ended are not in later traces.
+     */
+    public static synchronized void writeChromeTrace(Writer writer, long fromNs, long toNs) throws IOException {
+        JsonWriter json = new JsonWriter(writer);
+        json.beginObject();
+        json.name("displayTimeUnit").value("ns");
+        json.name("traceEvents");
+        json.beginArray();
+        int pid = Process.myPid();
+        for (Ring ring : mRings) {
+            json.beginObject();
+            json.name("name").value("thread_name");
+            json.name("ph").value("M");
+            json.name("pid").value(pid);
+            json.name("tid").value(ring.mTid);
+            json.name("args");
+            json.beginObject();
+            json.name("name").value(ring.mThreadName);
+            json.endObject();
+            json.endObject();
+
+            long count = ring.mCount;
+            for (long i = Math.max(0, count - RING_SIZE); i < count; i++) {
+                int pos = (int) (i & RING_MASK);
+                long start = ring.mStart[pos];
+                if (start < fromNs || start > toNs) {
+                    continue;
+                }
+                long duration = ring.mDuration[pos];
+                json.beginObject();
+                json.name("name").value(ring.mName[pos]);
+                json.name("ph").value(duration < 0 ? "i" : "X");
+                json.name("ts").value(start / 1000.0);
+                if (duration < 0) {
+                    json.name("s").value("t");
+                } else {
+                    json.name("dur").value(duration / 1000.0);
+                }
+                json.name("pid").value(pid);
+                json.name("tid").value(ring.mTid);
+                json.name("args");
+                json.beginObject();
+                json.name("arg").value(ring.mArg[pos]);
+                json.endObject();
+                json.endObject();
+            }
+            if (ring.hasEnded()) {
+                mRings.remove(ring);
+                synchronized (mFreeRings) {
+                    if (mFreeRings.size() < MAX_FREE_RINGS) {
+                        mFreeRings.add(ring);
+                    }
+                }
+            }
+        }
+        json.endArray();
+        json.endObject();
+        json.flush();
+    }
+}
@@ -0,0 +1,19 @@
+package android.os;
+
+/**
+ * Build for the host JVM, the framework one reads system properties.
+ * Only what the benchmarked code uses.
+ */
+public final class Build {
+    public static final String MANUFACTURER = "host";
+    public static final String MODEL = "jvm";
+
+    public static class VERSION {
+        public static final int SDK_INT = 33;
+    }
+
+    public static class VERSION_CODES {
+        public static final int P = 28;
+        public static final int Q = 29;
+    }
+}
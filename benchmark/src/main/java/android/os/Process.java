@@ -0,0 +1,26 @@
+package android.os;
+
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Process ids for the host JVM, the framework ones are native. Linux only.
+ */
+public final class Process {
+    public static int myPid() {
+        return myId("/proc/self");
+    }
+
+    public static int myTid() {
+        return myId("/proc/thread-self");
+    }
+
+    private static int myId(String link) {
+        try {
+            String path = Files.readSymbolicLink(Paths.get(link)).toString();
+            return Integer.parseInt(path.substring(path.lastIndexOf('/') + 1));
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+}
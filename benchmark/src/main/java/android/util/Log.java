@@ -0,0 +1,42 @@
+package android.util;
+
+/**
+ * Log for the host JVM, the framework one is native. Debug and info output is
+ * dropped unless -Dencapp.log=true, it would dominate the benchmarks.
+ */
+public final class Log {
+    private static final boolean VERBOSE = Boolean.getBoolean("encapp.log");
+
+    public static int v(String tag, String msg) {
+        return VERBOSE ? print("V", tag, msg) : 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return VERBOSE ? print("D", tag, msg) : 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return VERBOSE ? print("I", tag, msg) : 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return print("W", tag, msg);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return print("W", tag, msg + ": " + tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return print("E", tag, msg);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return print("E", tag, msg + ": " + tr);
+    }
+
+    private static int print(String level, String tag, String msg) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        return 0;
+    }
+}
@@ -0,0 +1,108 @@
+package com.facebook.encapp.benchmark;
+
+import com.facebook.encapp.proto.PixFmt;
+import com.facebook.encapp.utils.FakeInputReader;
+import com.facebook.encapp.utils.FileReader;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Raw frame input, reading yuv from a file and generating fake input.
+ * The score is frames/s, the megabytes counter the data rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameIoBenchmark {
+    static final int FILE_FRAMES = 30;
+
+    @Param({"1080p", "4k"})
+    public String resolution;
+
+    // Codec input buffers are direct, heap buffers take a different path
+    @Param({"direct", "heap"})
+    public String buffer;
+
+    private int mFrameSize;
+    private File mYuvFile;
+    private FileReader mFileReader;
+    private FakeInputReader mFakeInputReader;
+    private ByteBuffer mBuffer;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        int width = SyntheticFrames.width(resolution);
+        int height = SyntheticFrames.height(resolution);
+        mFrameSize = width * height * 3 / 2;
+        byte[] frame = SyntheticFrames.yuvFrame(width, height, 1);
+        mYuvFile = File.createTempFile("encapp_input", ".yuv");
+        try (FileOutputStream out = new FileOutputStream(mYuvFile)) {
+            for (int i = 0; i < FILE_FRAMES; i++) {
+                out.write(frame);
+            }
+        }
+        mFileReader = new FileReader();
+        mFileReader.openFile(mYuvFile.getPath(), PixFmt.yuv420p);
+        mFakeInputReader = new FakeInputReader();
+        mFakeInputReader.openFile("fake_input", PixFmt.yuv420p, width, height);
+        mBuffer = "direct".equals(buffer) ? ByteBuffer.allocateDirect(mFrameSize) : ByteBuffer.allocate(mFrameSize);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mFileReader.closeFile();
+        mFakeInputReader.closeFile();
+        mYuvFile.delete();
+    }
+
+    @Benchmark
+    public int fileReader(Bytes bytes) {
+        mBuffer.clear();
+        int read = mFileReader.fillBuffer(mBuffer, mFrameSize);
+        if (read < mFrameSize) {
+            // Loop the file like a test does
+            mFileReader.closeFile();
+            mFileReader.openFile(mYuvFile.getPath(), PixFmt.yuv420p);
+        }
+        bytes.megabytes += read / 1e6;
+        return read;
+    }
+
+    @Benchmark
+    public int fakeInput(Bytes bytes) {
+        mBuffer.clear();
+        int read = mFakeInputReader.fillBuffer(mBuffer, mFrameSize);
+        bytes.megabytes += read / 1e6;
+        return read;
+    }
+}
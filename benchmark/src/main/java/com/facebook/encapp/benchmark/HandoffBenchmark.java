@@ -0,0 +1,151 @@
+package com.facebook.encapp.benchmark;
+
+import android.media.MediaCodec;
+
+import com.facebook.encapp.utils.FrameBuffer;
+import com.facebook.encapp.utils.OutputRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Handoff of codec output buffers from the callback thread to the writer thread,
+ * as a round trip: the benchmark thread hands a buffer to an echo thread, which
+ * hands it back the same way. A score is two handoffs including the wakeups.
+ *
+ * "queue" is what Encoder.DataWriter used before OutputRing: a holder object per
+ * buffer in a ConcurrentLinkedQueue and wait/notify. Spinning only pays off with
+ * a free core for each side.
+ */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HandoffBenchmark {
+    static final int BUFFERS = 64;
+    static final long WAIT_NS = 1000000000L;
+
+    @Param({"queue", "ring", "ring_spin"})
+    public String handoff;
+
+    private Handoff mToWriter;
+    private Handoff mBack;
+    private Thread mEcho;
+    private final MediaCodec.BufferInfo mInfo = new MediaCodec.BufferInfo();
+    private int mBufferId = 0;
+
+    interface Handoff {
+        void offer(int bufferId, MediaCodec.BufferInfo info);
+
+        int take();
+    }
+
+    static class QueueHandoff implements Handoff {
+        final ConcurrentLinkedQueue<FrameBuffer> mQueue = new ConcurrentLinkedQueue<>();
+
+        @Override
+        public void offer(int bufferId, MediaCodec.BufferInfo info) {
+            mQueue.add(new FrameBuffer(null, bufferId, info));
+            synchronized (mQueue) {
+                mQueue.notifyAll();
+            }
+        }
+
+        @Override
+        public int take() {
+            while (true) {
+                FrameBuffer frameBuffer = mQueue.poll();
+                if (frameBuffer != null) {
+                    return frameBuffer.mBufferId;
+                }
+                synchronized (mQueue) {
+                    if (mQueue.isEmpty()) {
+                        try {
+                            mQueue.wait(1000);
+                        } catch (InterruptedException e) {
+                            return -1;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    static class RingHandoff implements Handoff {
+        final OutputRing mRing;
+
+        RingHandoff(OutputRing.WaitStrategy waitStrategy) {
+            mRing = new OutputRing(BUFFERS, waitStrategy);
+        }
+
+        @Override
+        public void offer(int bufferId, MediaCodec.BufferInfo info) {
+            mRing.offer(bufferId, info.offset, info.size, info.presentationTimeUs, info.flags);
+        }
+
+        @Override
+        public int take() {
+            return mRing.poll(WAIT_NS);
+        }
+    }
+
+    private Handoff create() {
+        switch (handoff) {
+            case "queue":
+                return new QueueHandoff();
+            case "ring_spin":
+                return new RingHandoff(OutputRing.WaitStrategy.SPIN_THEN_PARK);
+            default:
+                return new RingHandoff(OutputRing.WaitStrategy.BLOCKING);
+        }
+    }
+
+    @Setup
+    public void setup() {
+        mToWriter = create();
+        mBack = create();
+        mInfo.set(0, 10000, 0, 0);
+        mEcho = new Thread(() -> {
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            while (true) {
+                int bufferId = mToWriter.take();
+                if (bufferId == BUFFERS) {
+                    return;
+                }
+                if (bufferId >= 0) {
+                    mBack.offer(bufferId, info);
+                }
+            }
+        }, "echo");
+        mEcho.start();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        mToWriter.offer(BUFFERS, mInfo);
+        mEcho.join();
+    }
+
+    @Benchmark
+    public int roundTrip() {
+        mBufferId = (mBufferId + 1) % BUFFERS;
+        mInfo.presentationTimeUs += 33333;
+        mToWriter.offer(mBufferId, mInfo);
+        return mBack.take();
+    }
+}
@@ -0,0 +1,117 @@
+package com.facebook.encapp.benchmark;
+
+import com.facebook.encapp.utils.Demuxer;
+import com.facebook.encapp.utils.Muxer;
+import com.facebook.encapp.utils.codec.CodecType;
+import com.facebook.encapp.utils.codec.CodecWriter;
+import com.facebook.encapp.utils.codec.CodecWriterFactory;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * MP4 muxing and demuxing of a 10 second clip, in frames per second, and the
+ * Annex B to length prefixed conversion done for every muxed frame, in MB/s.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class Mp4Benchmark {
+    static final int FRAMES = 300;
+
+    @Param({"1080p", "4k"})
+    public String resolution;
+
+    private byte[][] mFrames;
+    private File mMuxFile;
+    private File mDemuxFile;
+    private CodecWriter mCodecWriter;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        mFrames = SyntheticFrames.encodedFrames(FRAMES, SyntheticFrames.bitrate(resolution), 1);
+        mMuxFile = File.createTempFile("encapp_mux", ".mp4");
+        mDemuxFile = File.createTempFile("encapp_demux", ".mp4");
+        mux(mDemuxFile);
+        mCodecWriter = CodecWriterFactory.createWriter(CodecType.AVC);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mMuxFile.delete();
+        mDemuxFile.delete();
+    }
+
+    private void mux(File file) {
+        Muxer muxer = new Muxer(file.getPath(), SyntheticFrames.width(resolution), SyntheticFrames.height(resolution),
+                90000, SyntheticFrames.FRAMERATE);
+        muxer.initialize(SyntheticFrames.AVC_CSD, CodecType.AVC);
+        long frameTimeUs = 1000000 / SyntheticFrames.FRAMERATE;
+        for (int i = 0; i < mFrames.length; i++) {
+            muxer.addFrame(mFrames[i], i * frameTimeUs, SyntheticFrames.isKeyFrame(i));
+        }
+        muxer.finalizeMux();
+        muxer.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void mux() {
+        mux(mMuxFile);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void demux(Blackhole blackhole) {
+        Demuxer demuxer = new Demuxer(mDemuxFile.getPath());
+        demuxer.initialize();
+        Demuxer.Frame frame = new Demuxer.Frame();
+        while (demuxer.getNextFrame(frame)) {
+            blackhole.consume(frame.data);
+        }
+        demuxer.close();
+    }
+
+    /**
+     * The megabytes counter is the conversion rate, the primary score is frames/s.
+     */
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public void nalConversion(Bytes bytes, Blackhole blackhole) {
+        long size = 0;
+        for (byte[] frame : mFrames) {
+            blackhole.consume(mCodecWriter.convertFrameData(frame));
+            size += frame.length;
+        }
+        bytes.megabytes += size / 1e6;
+    }
+}
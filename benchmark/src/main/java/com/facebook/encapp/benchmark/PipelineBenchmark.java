@@ -0,0 +1,94 @@
+package com.facebook.encapp.benchmark;
+
+import com.facebook.encapp.AsyncBufferEncoder;
+import com.facebook.encapp.BufferEncoder;
+import com.facebook.encapp.Encoder;
+import com.facebook.encapp.proto.Common;
+import com.facebook.encapp.proto.Configure;
+import com.facebook.encapp.proto.Input;
+import com.facebook.encapp.proto.PixFmt;
+import com.facebook.encapp.proto.Test;
+import com.facebook.encapp.proto.TestSetup;
+import com.facebook.encapp.utils.SimulatedCodec;
+import com.facebook.encapp.utils.Statistics;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * AsyncBufferEncoder, or the BufferEncoder polling loop, encoding fake input on a
+ * SimulatedCodec that takes no time, the input feeder, codec callbacks and frame stats
+ * are the app's. Nothing is written.
+ * Scored in frames/s, what is left is the overhead of the Java side.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+    static final int FRAMES = 300;
+
+    @Param({"1080p", "4k"})
+    public String resolution;
+
+    @Param({"async", "sync"})
+    public String mode;
+
+    private Test mTest;
+    private SimulatedCodec mCodec;
+
+    @Setup
+    public void setup() {
+        int width = SyntheticFrames.width(resolution);
+        int height = SyntheticFrames.height(resolution);
+        mTest = Test.newBuilder()
+                .setCommon(Common.newBuilder().setId("pipeline_" + resolution))
+                .setInput(Input.newBuilder()
+                        .setFilepath("fake_input")
+                        .setResolution(width + "x" + height)
+                        .setPixFmt(PixFmt.yuv420p)
+                        .setFramerate(SyntheticFrames.FRAMERATE)
+                        .setPlayoutFrames(FRAMES)
+                        .setRealtime(false))
+                .setConfigure(Configure.newBuilder()
+                        .setCodec("simulated")
+                        .setMime("video/avc")
+                        .setBitrate(String.valueOf(SyntheticFrames.bitrate(resolution)))
+                        .setFramerate(SyntheticFrames.FRAMERATE)
+                        .setEncode(false))
+                .setTestSetup(TestSetup.newBuilder().setInternalMuxer(true))
+                .build();
+        mCodec = new SimulatedCodec("simulated");
+        mCodec.setLatency(0, 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mCodec.release();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public Statistics encode() {
+        Encoder encoder = mode.equals("sync") ?
+                new BufferEncoder(mTest, mCodec) : new AsyncBufferEncoder(mTest, mCodec);
+        // Nothing to start together with
+        encoder.signalStart();
+        String status = encoder.start();
+        if (status.length() > 0) {
+            throw new IllegalStateException(status);
+        }
+        return encoder.getStatistics();
+    }
+}
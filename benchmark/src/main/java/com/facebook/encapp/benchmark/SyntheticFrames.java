@@ -0,0 +1,85 @@
+package com.facebook.encapp.benchmark;
+
+import java.util.Random;
+
+/**
+ * Inputs generated on the fly, seeded so every run sees the same data.
+ */
+final class SyntheticFrames {
+    static final int FRAMERATE = 30;
+    static final int GOP = 30;
+    static final float KEY_FRAME_RATIO = 5f;
+
+    // 1080p high profile SPS and a PPS, as an encoder returns them in the codec config buffer
+    static final byte[] AVC_CSD = {
+            0, 0, 0, 1, 0x67, 0x64, 0x00, 0x28, (byte) 0xac, (byte) 0xd9, 0x40, 0x78, 0x02, 0x27,
+            (byte) 0xe5, (byte) 0xc0, 0x44, 0x00, 0x00, 0x03, 0x00, 0x04, 0x00, 0x00, 0x03, 0x00,
+            (byte) 0xf0, 0x3c, 0x60, (byte) 0xc6, 0x58,
+            0, 0, 0, 1, 0x68, (byte) 0xeb, (byte) 0xe3, (byte) 0xcb, 0x22, (byte) 0xc0};
+
+    private SyntheticFrames() {
+    }
+
+    static int width(String resolution) {
+        return "4k".equals(resolution) ? 3840 : 1920;
+    }
+
+    static int height(String resolution) {
+        return "4k".equals(resolution) ? 2160 : 1080;
+    }
+
+    /**
+     * Typical bitrate of a camera recording at the resolution.
+     */
+    static int bitrate(String resolution) {
+        return "4k".equals(resolution) ? 40000000 : 8000000;
+    }
+
+    /**
+     * Annex B access units at the bitrate, a key frame every GOP frames.
+     */
+    static byte[][] encodedFrames(int count, int bitrate, long seed) {
+        Random random = new Random(seed);
+        double averageSize = bitrate / 8.0 / FRAMERATE;
+        int pFrameSize = (int) (averageSize * GOP / (KEY_FRAME_RATIO + GOP - 1));
+        byte[][] frames = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            boolean key = isKeyFrame(i);
+            int size = (int) ((key ? pFrameSize * KEY_FRAME_RATIO : pFrameSize) * (0.9 + 0.2 * random.nextDouble()));
+            frames[i] = accessUnit(size, key, random);
+        }
+        return frames;
+    }
+
+    static boolean isKeyFrame(int frame) {
+        return frame % GOP == 0;
+    }
+
+    /**
+     * One slice nal, the payload has no zero bytes so it never contains a start code.
+     */
+    static byte[] accessUnit(int size, boolean key, Random random) {
+        byte[] data = new byte[Math.max(size, 6)];
+        random.nextBytes(data);
+        for (int i = 5; i < data.length; i++) {
+            if (data[i] == 0) {
+                data[i] = 1;
+            }
+        }
+        data[0] = 0;
+        data[1] = 0;
+        data[2] = 0;
+        data[3] = 1;
+        data[4] = (byte) (key ? 0x65 : 0x41);
+        return data;
+    }
+
+    /**
+     * A yuv420p frame of noise.
+     */
+    static byte[] yuvFrame(int width, int height, long seed) {
+        byte[] frame = new byte[width * height * 3 / 2];
+        new Random(seed).nextBytes(frame);
+        return frame;
+    }
+}
@@ -0,0 +1,63 @@
+package com.facebook.encapp.benchmark;
+
+import com.facebook.encapp.proto.PixFmt;
+import com.facebook.encapp.utils.YuvSplitter;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Splitting a frame into tiles for tiled image encoding. The score is frames/s,
+ * the megabytes counter the data rate.
+ */
+@BenchmarkMode(Mode.Throughput)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TileSplitBenchmark {
+    @Param({"1080p", "4k"})
+    public String resolution;
+
+    @Param({"256", "512"})
+    public int tileSize;
+
+    private byte[] mFrame;
+    private YuvSplitter mSplitter;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public double megabytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup
+    public void setup() {
+        int width = SyntheticFrames.width(resolution);
+        int height = SyntheticFrames.height(resolution);
+        mFrame = SyntheticFrames.yuvFrame(width, height, 1);
+        mSplitter = new YuvSplitter(width, height, tileSize, tileSize, PixFmt.yuv420p);
+    }
+
+    @Benchmark
+    public void split(Bytes bytes, Blackhole blackhole) {
+        blackhole.consume(mSplitter.splitFrame(mFrame));
+        bytes.megabytes += mFrame.length / 1e6;
+    }
+}
@@ -351,6 +351,92 @@ jint encode(JNIEnv *env, jobject thiz, jbyteArray input, jbyteArray output,
   return total_size;
 }
 
+// Output pts, dts and key frame flag for the direct buffer calls
+static void set_result(JNIEnv *env, jlongArray result, x264_picture_t *pic_out) {
+  jlong values[3] = {pic_out->i_pts, pic_out->i_dts, pic_out->b_keyframe};
+  env->SetLongArrayRegion(result, 0, 3, values);
+}
+
+// Same as encode() but reads and writes direct buffers in place, nothing is
+// copied or allocated per frame
+jint encode_direct(JNIEnv *env, jobject thiz, jobject input, jobject output,
+                   jlong pts, jlongArray result) {
+  if (!encoder) {
+    LOGI("Encoder is not initialized for encoding");
+    return -1;
+  }
+
+  int ySize = _width * _height;
+  int uvSize = ySize / 4;
+  int inputSize = ySize + uvSize * 2;
+
+  uint8_t *input_data = (uint8_t *)env->GetDirectBufferAddress(input);
+  jbyte *output_data = (jbyte *)env->GetDirectBufferAddress(output);
+  jlong output_size = env->GetDirectBufferCapacity(output);
+  if (!input_data || !output_data ||
+      env->GetDirectBufferCapacity(input) < inputSize) {
+    LOGE("Input or output is not a direct buffer of the frame size");
+    return -1;
+  }
+
+  x264_nal_t *nal;
+  int nnal;
+  x264_picture_t pic_in;
+  x264_picture_t pic_out = {0};
+
+  x264_picture_init(&pic_in);
+  pic_in.img.i_csp = _colorformat;
+  pic_in.img.i_plane = 3;
+  pic_in.i_pts = pts;
+  pic_in.img.plane[0] = input_data;
+  pic_in.img.plane[1] = input_data + ySize;
+  pic_in.img.plane[2] = input_data + ySize + uvSize;
+  pic_in.img.i_stride[0] = _width;
+  pic_in.img.i_stride[1] = _width / 2;
+  pic_in.img.i_stride[2] = _width / 2;
+
+  int frame_size = x264_encoder_encode(encoder, &nal, &nnal, &pic_in, &pic_out);
+
+  int total_size = 0;
+  if (frame_size > 0) {
+    total_size = copy_nal_to_output(nal, nnal, output_data, output_size);
+  } else if (frame_size < 0) {
+    LOGE("x264_encoder_encode failed with error: %d", frame_size);
+  }
+  set_result(env, result, &pic_out);
+  return total_size;
+}
+
+jint flush_encoder_direct(JNIEnv *env, jobject thiz, jobject output,
+                          jlongArray result) {
+  if (!encoder) {
+    LOGI("Encoder is not initialized for flushing");
+    return -1;
+  }
+
+  jbyte *output_data = (jbyte *)env->GetDirectBufferAddress(output);
+  if (!output_data) {
+    LOGE("Output is not a direct buffer");
+    return -1;
+  }
+
+  x264_nal_t *nal;
+  int nnal;
+  x264_picture_t pic_out = {0};
+
+  int frame_size = x264_encoder_encode(encoder, &nal, &nnal, NULL, &pic_out);
+
+  int total_size = 0;
+  if (frame_size > 0) {
+    total_size = copy_nal_to_output(nal, nnal, output_data,
+                                    env->GetDirectBufferCapacity(output));
+  } else if (frame_size < 0) {
+    LOGE("x264_encoder_encode (flush) failed with error: %d", frame_size);
+  }
+  set_result(env, result, &pic_out);
+  return total_size;
+}
+
 // Flush buffered frames. Call until returns 0.
 jint flush_encoder(JNIEnv *env, jobject thiz, jbyteArray output,
                    jobject frameInfo) {
@@ -582,6 +668,10 @@ static JNINativeMethod methods[] = {
     {"encode", "([B[BLcom/facebook/encapp/utils/FrameInfo;)I", (void *)&encode},
     {"flushEncoder", "([BLcom/facebook/encapp/utils/FrameInfo;)I",
      (void *)&flush_encoder},
+    {"encode", "(Ljava/nio/ByteBuffer;Ljava/nio/ByteBuffer;J[J)I",
+     (void *)&encode_direct},
+    {"flushEncoder", "(Ljava/nio/ByteBuffer;[J)I",
+     (void *)&flush_encoder_direct},
     {"getDelayedFrames", "()I", (void *)&get_delayed_frames},
     {"close", "()V", (void *)&close},
     {"getAllEncoderSettings", "()[Lcom/facebook/encapp/utils/StringParameter;",
@@ -21,6 +21,7 @@ import tempfile
 import time
 
 import encapp_quality
+import encapp_stats_binary
 
 import encapp_tool
 import encapp_tool.adb_cmds
@@ -43,6 +44,10 @@ import tests_pb2 as tests_definitions  # noqa: E402
 
 
 RD_RESULT_FILE_NAME = "rd_results.json"
+# written next to the results when tracing is enabled on the device
+TRACE_EXTENSION = ".trace.json"
+# written by tests with a capacity setting instead of the stats
+CAPACITY_EXTENSION = ".capacity.json"
 
 DEBUG = False
 QUIET = False
@@ -274,6 +279,16 @@ def run_encapp_test(protobuf_txt_filepath, serial, device_workdir, run_cmd="", d
         wait_for_exit(serial)
 
 
+def print_capacity_report(filename):
+    with open(filename) as f:
+        report = json.load(f)
+    bounded = f" (bounded by {report['bounded']})" if report["bounded"] else ""
+    print(
+        f"{report['id']}: capacity {report['capacity']} {report['dimension']}{bounded}, "
+        f"{len(report['probes'])} probes in {report['duration_sec']:.1f} sec"
+    )
+
+
 def collect_results(
     local_workdir, protobuf_txt_filepath, serial, device_workdir, debug
 ):
@@ -332,9 +347,23 @@ def collect_results(
             cmd = f"adb -s {serial} shell rm {device_workdir}/{file}"
             encapp_tool.adb_cmds.run_cmd(cmd, debug=debug)
         # append results file (json files) to final results
-        if file.endswith(".json"):
+        if file.endswith(TRACE_EXTENSION):
+            # chrome trace events, not a result
+            continue
+        elif file.endswith(CAPACITY_EXTENSION):
+            print_capacity_report(os.path.join(local_workdir, os.path.basename(file)))
+            continue
+        elif file.endswith(".json"):
             path, tmpname = os.path.split(file)
             result_json.append(os.path.join(local_workdir, tmpname))
+        elif file.endswith(encapp_stats_binary.BINARY_STATS_EXTENSION):
+            # binary stats are converted to the json result
+            path, tmpname = os.path.split(file)
+            result_json.append(
+                encapp_stats_binary.convert_to_json(
+                    os.path.join(local_workdir, tmpname), debug=debug
+                )
+            )
     # remove/process the test file
     encapp_tool.adb_cmds.remove_file(serial, protobuf_txt_filepath, debug)
     if debug > 0:
@@ -1574,6 +1603,8 @@ def update_codec_test(
         "decode_dump",
     )
     INPUT_BOOL_KEYS = ("show", "realtime")
+    COMMON_INT_KEYS = ("warmup_frames", "repeat")
+    COMMON_FLOAT_KEYS = ("warmup_sec", "cooldown_sec")
     TEST_SETUP_BOOL_KEYS = (
         "separate_sources",
         "first_frame_fast_read",
@@ -1628,9 +1659,13 @@ def update_codec_test(
 
                 else:
                     val = int(val)
+            if k1 == "common" and k2 in COMMON_INT_KEYS:
+                val = int(val)
             # process float keys
-            if (k1 == "configure" and k2 in CONFIGURE_FLOAT_KEYS) or (
-                k1 == "input" and k2 in INPUT_FLOAT_KEYS
+            if (
+                (k1 == "configure" and k2 in CONFIGURE_FLOAT_KEYS)
+                or (k1 == "input" and k2 in INPUT_FLOAT_KEYS)
+                or (k1 == "common" and k2 in COMMON_FLOAT_KEYS)
             ):
                 # force float value
                 val = float(val)
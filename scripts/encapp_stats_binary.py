@@ -0,0 +1,195 @@
+#!/usr/bin/env python3
+
+"""Convert binary encapp statistics to the json result format.
+
+Tests with `common.stats_format: binary` write a `.pbstats` file instead of
+the json result. The file is a sequence of length delimited StatsRecord
+messages (see proto/stats.proto). This script turns it into the same json
+as the app writes by default, so the rest of the tooling can be used as is.
+encapp_stats_to_csv.py reads `.pbstats` files directly.
+"""
+
+import argparse
+import json
+import os
+import sys
+
+SCRIPT_DIR = os.path.dirname(os.path.abspath(__file__))
+sys.path.append(os.path.join(SCRIPT_DIR, "proto"))
+import stats_pb2  # noqa: E402
+
+BINARY_STATS_EXTENSION = ".pbstats"
+# pipeline stage time fields and their json keys
+STAGE_FIELDS = (
+    ("read_delta", "readtime"),
+    ("queued_delta", "queuedtime"),
+    ("dequeued_delta", "dequeuedtime"),
+    ("muxed_delta", "muxedtime"),
+)
+
+
+def read_records(filename, debug=0):
+    with open(filename, "rb") as input_file:
+        data = input_file.read()
+    pos = 0
+    while pos < len(data):
+        # varint length prefix
+        length = 0
+        shift = 0
+        while True:
+            if pos >= len(data):
+                return
+            byte = data[pos]
+            pos += 1
+            length |= (byte & 0x7F) << shift
+            if not byte & 0x80:
+                break
+            shift += 7
+        if pos + length > len(data):
+            if debug > 0:
+                print(f"{filename}: truncated record at {pos}")
+            return
+        record = stats_pb2.StatsRecord()
+        record.ParseFromString(data[pos : pos + length])
+        pos += length
+        yield record
+
+
+def read_stats(filename, debug=0):
+    """Returns the statistics in the json result format"""
+    metadata = None
+    frames = []
+    decoded_frames = []
+    gpu_load = []
+    gpu_clock = []
+    cpu_time_in_state = []
+    pts = 0
+    start = 0
+    decoded_pts = 0
+    decoded_start = 0
+    for record in read_records(filename, debug):
+        kind = record.WhichOneof("record")
+        if kind == "frame":
+            frame = record.frame
+            pts += frame.pts_delta
+            start += frame.start_delta
+            stop = start + frame.stop_delta
+            entry = {
+                "frame": frame.frame,
+                "original_frame": frame.original_frame,
+                "iframe": 1 if frame.iframe else 0,
+                "size": frame.size,
+                "pts": pts,
+                "proctime": 0 if stop == 0 else stop - start,
+                "starttime": start,
+                "stoptime": stop,
+            }
+            for field, key in STAGE_FIELDS:
+                if frame.HasField(field):
+                    entry[key] = start + getattr(frame, field)
+            for extra in frame.extra:
+                entry[extra.key] = extra.value
+            frames.append(entry)
+        elif kind == "decoded_frame":
+            frame = record.decoded_frame
+            decoded_pts += frame.pts_delta
+            decoded_start += frame.start_delta
+            stop = decoded_start + frame.stop_delta
+            entry = {
+                "flags": frame.flags,
+                "size": frame.size,
+                "pts": decoded_pts,
+                "proctime": stop - decoded_start,
+                "starttime": decoded_start,
+                "stoptime": stop,
+            }
+            for extra in frame.extra:
+                entry[extra.key] = extra.value
+            decoded_frames.append(entry)
+        elif kind == "gpu_load":
+            gpu_load.append(
+                {
+                    "time_sec": record.gpu_load.time_sec,
+                    "load_percentage": record.gpu_load.load_percentage,
+                }
+            )
+        elif kind == "gpu_clock":
+            gpu_clock.append(
+                {
+                    "time_sec": record.gpu_clock.time_sec,
+                    "clock_MHz": record.gpu_clock.clock_mhz,
+                }
+            )
+        elif kind == "cpu_time_in_state":
+            sample = record.cpu_time_in_state
+            entry = {
+                "cpu": str(sample.cpu),
+                "timestamp_ns": str(sample.timestamp_ns),
+            }
+            for freq, time in zip(sample.freq, sample.time):
+                entry[str(freq)] = str(time)
+            cpu_time_in_state.append(entry)
+        elif kind == "metadata_json":
+            metadata = json.loads(record.metadata_json)
+
+    if metadata is None:
+        print(f"Warning: {filename} has no metadata, the test did not finish")
+        metadata = {}
+    stats = metadata
+    # Unfinished frames (-1) first, then in output order, as in the app
+    stats["frames"] = sorted(frames, key=lambda frame: frame["frame"])
+    if len(decoded_frames) > 0:
+        decoded_frames = sorted(decoded_frames, key=lambda frame: frame["pts"])
+        decoded_frames = [frame for frame in decoded_frames if frame["proctime"] > 0]
+        for counter, frame in enumerate(decoded_frames, start=1):
+            frame["frame"] = counter
+        stats["decoded_frames"] = decoded_frames
+    gpu_data = stats.setdefault("gpu_data", {})
+    gpu_data["gpu_load_percentage"] = gpu_load
+    gpu_data["gpu_clock_freq"] = gpu_clock
+    if len(cpu_time_in_state) > 0:
+        stats["cpu_time_in_state"] = cpu_time_in_state
+    return stats
+
+
+def convert_to_json(filename, output=None, debug=0):
+    if output is None:
+        output = filename[: -len(BINARY_STATS_EXTENSION)] + ".json"
+    stats = read_stats(filename, debug)
+    with open(output, "w") as output_file:
+        json.dump(stats, output_file, indent=2)
+    if debug > 0:
+        print(f"{filename} -> {output}")
+    return output
+
+
+def parse_args():
+    parser = argparse.ArgumentParser(description=__doc__)
+    parser.add_argument(
+        "--debug",
+        action="count",
+        dest="debug",
+        default=0,
+        help="Increase verbosity (use many times for more)",
+    )
+    parser.add_argument(
+        "-o",
+        "--output",
+        default=None,
+        help="Output json file (only with a single input file)",
+    )
+    parser.add_argument("files", nargs="+", help="binary stats files to convert")
+    options = parser.parse_args()
+    if options.output is not None and len(options.files) > 1:
+        parser.error("--output can only be used with a single input file")
+    return options
+
+
+def main():
+    options = parse_args()
+    for filename in options.files:
+        convert_to_json(filename, options.output, options.debug)
+
+
+if __name__ == "__main__":
+    main()
@@ -5,6 +5,7 @@ import argparse
 import pandas as pd
 import numpy as np
 import encapp as ep
+import encapp_stats_binary
 import os
 import re
 
@@ -376,7 +377,10 @@ def main():
                 else:
                     device_info = {}
 
-            alldata = json.load(json_file)
+            if filename.endswith(encapp_stats_binary.BINARY_STATS_EXTENSION):
+                alldata = encapp_stats_binary.read_stats(filename, options.debug)
+            else:
+                alldata = json.load(json_file)
             encoding_data = None
             decoding_data = None
             if "frames" in alldata and len(alldata["frames"]) > 0:
@@ -0,0 +1,42 @@
+# -*- coding: utf-8 -*-
+# Generated by the protocol buffer compiler.  DO NOT EDIT!
+# source: stats.proto
+"""Generated protocol buffer code."""
+from google.protobuf.internal import builder as _builder
+from google.protobuf import descriptor as _descriptor
+from google.protobuf import descriptor_pool as _descriptor_pool
+from google.protobuf import symbol_database as _symbol_database
+# @@protoc_insertion_point(imports)
+
+_sym_db = _symbol_database.Default()
+
+
+
+
+DESCRIPTOR = _descriptor_pool.Default().AddSerializedFile(b'\n\x0bstats.proto\"(\n\nFrameExtra\x12\x0b\n\x03key\x18\x01 \x01(\t\x12\r\n\x05value\x18\x02 \x01(\t\"\x88\x02\n\x12\x45ncodedFrameRecord\x12\r\n\x05\x66rame\x18\x01 \x01(\x05\x12\x16\n\x0eoriginal_frame\x18\x02 \x01(\x05\x12\x0e\n\x06iframe\x18\x03 \x01(\x08\x12\x0c\n\x04size\x18\x04 \x01(\x03\x12\x11\n\tpts_delta\x18\x05 \x01(\x12\x12\x13\n\x0bstart_delta\x18\x06 \x01(\x12\x12\x12\n\nstop_delta\x18\x07 \x01(\x12\x12\x1a\n\x05\x65xtra\x18\x08 \x03(\x0b\x32\x0b.FrameExtra\x12\x12\n\nread_delta\x18\t \x01(\x12\x12\x14\n\x0cqueued_delta\x18\n \x01(\x12\x12\x16\n\x0e\x64\x65queued_delta\x18\x0b \x01(\x12\x12\x13\n\x0bmuxed_delta\x18\x0c \x01(\x12\"\x89\x01\n\x12\x44\x65\x63odedFrameRecord\x12\r\n\x05\x66lags\x18\x01 \x01(\x05\x12\x0c\n\x04size\x18\x02 \x01(\x03\x12\x11\n\tpts_delta\x18\x03 \x01(\x12\x12\x13\n\x0bstart_delta\x18\x04 \x01(\x12\x12\x12\n\nstop_delta\x18\x05 \x01(\x12\x12\x1a\n\x05\x65xtra\x18\x06 \x03(\x0b\x32\x0b.FrameExtra\":\n\rGpuLoadSample\x12\x10\n\x08time_sec\x18\x01 \x01(\x01\x12\x17\n\x0fload_percentage\x18\x02 \x01(\x05\"5\n\x0eGpuClockSample\x12\x10\n\x08time_sec\x18\x01 \x01(\x01\x12\x11\n\tclock_mhz\x18\x02 \x01(\t\"]\n\x14\x43puTimeInStateSample\x12\x0b\n\x03\x63pu\x18\x01 \x01(\x05\x12\x14\n\x0ctimestamp_ns\x18\x02 \x01(\x03\x12\x10\n\x04\x66req\x18\x03 \x03(\x03\x42\x02\x10\x01\x12\x10\n\x04time\x18\x04 \x03(\x03\x42\x02\x10\x01\"\x82\x02\n\x0bStatsRecord\x12$\n\x05\x66rame\x18\x01 \x01(\x0b\x32\x13.EncodedFrameRecordH\x00\x12,\n\rdecoded_frame\x18\x02 \x01(\x0b\x32\x13.DecodedFrameRecordH\x00\x12\"\n\x08gpu_load\x18\x03 \x01(\x0b\x32\x0e.GpuLoadSampleH\x00\x12$\n\tgpu_clock\x18\x04 \x01(\x0b\x32\x0f.GpuClockSampleH\x00\x12\x32\n\x11\x63pu_time_in_state\x18\x05 \x01(\x0b\x32\x15.CpuTimeInStateSampleH\x00\x12\x17\n\rmetadata_json\x18\x06 \x01(\tH\x00\x42\x08\n\x06recordB.\n\x19\x63om.facebook.encapp.protoB\x0fStatsDefinitionP\x01')
+
+_builder.BuildMessageAndEnumDescriptors(DESCRIPTOR, globals())
+_builder.BuildTopDescriptorsAndMessages(DESCRIPTOR, 'stats_pb2', globals())
+if _descriptor._USE_C_DESCRIPTORS == False:
+
+  DESCRIPTOR._options = None
+  DESCRIPTOR._serialized_options = b'\n\031com.facebook.encapp.protoB\017StatsDefinitionP\001'
+  _CPUTIMEINSTATESAMPLE.fields_by_name['freq']._options = None
+  _CPUTIMEINSTATESAMPLE.fields_by_name['freq']._serialized_options = b'\020\001'
+  _CPUTIMEINSTATESAMPLE.fields_by_name['time']._options = None
+  _CPUTIMEINSTATESAMPLE.fields_by_name['time']._serialized_options = b'\020\001'
+  _FRAMEEXTRA._serialized_start=15
+  _FRAMEEXTRA._serialized_end=55
+  _ENCODEDFRAMERECORD._serialized_start=58
+  _ENCODEDFRAMERECORD._serialized_end=322
+  _DECODEDFRAMERECORD._serialized_start=325
+  _DECODEDFRAMERECORD._serialized_end=462
+  _GPULOADSAMPLE._serialized_start=464
+  _GPULOADSAMPLE._serialized_end=522
+  _GPUCLOCKSAMPLE._serialized_start=524
+  _GPUCLOCKSAMPLE._serialized_end=577
+  _CPUTIMEINSTATESAMPLE._serialized_start=579
+  _CPUTIMEINSTATESAMPLE._serialized_end=672
+  _STATSRECORD._serialized_start=675
+  _STATSRECORD._serialized_end=933
+# @@protoc_insertion_point(module_scope)
@@ -13,54 +13,59 @@ _sym_db = _symbol_database.Default()
 
 
 
-DESCRIPTOR = _descriptor_pool.Default().AddSerializedFile(b'\n\x0btests.proto\"C\n\x08ProxyVal\x12\n\n\x02id\x18\x01 \x01(\t\x12\x1c\n\x04type\x18\x02 \x01(\x0e\x32\x0e.DataValueType\x12\r\n\x05value\x18\x03 \x01(\t\"\xe5\x02\n\tTestSetup\x12\x16\n\x0e\x64\x65vice_workdir\x18\x01 \x01(\t\x12\x15\n\rlocal_workdir\x18\x02 \x01(\t\x12\x0e\n\x06serial\x18\x03 \x01(\t\x12\x12\n\ndevice_cmd\x18\x04 \x01(\t\x12\x0f\n\x07run_cmd\x18\x05 \x01(\t\x12\x18\n\x10separate_sources\x18\x06 \x01(\x08\x12\x12\n\nmediastore\x18\x07 \x01(\t\x12\x12\n\nsource_dir\x18\x08 \x01(\t\x12\x1d\n\x15\x66irst_frame_fast_read\x18\t \x01(\x08\x12\x1b\n\x13ignore_power_status\x18\n \x01(\x08\x12\x12\n\nuihold_sec\x18\x0b \x01(\x05\x12\x16\n\x0einternal_muxer\x18\x0e \x01(\x08\x12\x18\n\x10internal_demuxer\x18\x0c \x01(\x08\x12\x1c\n\tproxy_val\x18\r \x03(\x0b\x32\t.ProxyVal\x12\x12\n\nexpand_all\x18\x0f \x01(\x08\"d\n\x06\x43ommon\x12\n\n\x02id\x18\x01 \x01(\t\x12\x13\n\x0b\x64\x65scription\x18\x02 \x01(\t\x12\x11\n\toperation\x18\x03 \x01(\t\x12\r\n\x05start\x18\x04 \x01(\t\x12\x17\n\x0foutput_filename\x18\x05 \x01(\t\"W\n\tParameter\x12\x0b\n\x03key\x18\x01 \x01(\t\x12\x1c\n\x04type\x18\x02 \x01(\x0e\x32\x0e.DataValueType\x12\r\n\x05value\x18\x03 \x01(\t\x12\x10\n\x08\x66ramenum\x18\x04 \x01(\x03\"\xf4\x01\n\x05Input\x12\x10\n\x08\x66ilepath\x18\x01 \x01(\t\x12\x12\n\nresolution\x18\x02 \x01(\t\x12\x18\n\x07pix_fmt\x18\x03 \x01(\x0e\x32\x07.PixFmt\x12\x11\n\tframerate\x18\x04 \x01(\x02\x12\x16\n\x0eplayout_frames\x18\x05 \x01(\x05\x12\x0f\n\x07pursuit\x18\x06 \x01(\x05\x12\x10\n\x08realtime\x18\x07 \x01(\x08\x12\x14\n\x0cstoptime_sec\x18\x08 \x01(\x02\x12\x0c\n\x04show\x18\t \x01(\x08\x12\x15\n\rdevice_decode\x18\n \x01(\x08\x12\x11\n\tcrop_area\x18\x0b \x01(\t\x12\x0f\n\x07restamp\x18\x0c \x01(\x08\"\x88\x07\n\tConfigure\x12\x1d\n\tparameter\x18\x01 \x03(\x0b\x32\n.Parameter\x12\r\n\x05\x63odec\x18\x02 \x01(\t\x12\x0e\n\x06\x65ncode\x18\x03 \x01(\x08\x12\x0f\n\x07surface\x18\x04 \x01(\x08\x12\x0c\n\x04mime\x18\x05 \x01(\t\x12\x0f\n\x07\x62itrate\x18\x06 \x01(\t\x12,\n\x0c\x62itrate_mode\x18\x07 \x01(\x0e\x32\x16.Configure.BitrateMode\x12\x12\n\ndurationUs\x18\x08 \x01(\x04\x12\x12\n\nresolution\x18\t \x01(\t\x12\x14\n\x0c\x63olor_format\x18\n \x01(\x05\x12\x30\n\x0e\x63olor_standard\x18\x0b \x01(\x0e\x32\x18.Configure.ColorStandard\x12*\n\x0b\x63olor_range\x18\x0c \x01(\x0e\x32\x15.Configure.ColorRange\x12\x30\n\x0e\x63olor_transfer\x18\r \x01(\x0e\x32\x18.Configure.ColorTransfer\x12\x1e\n\x16\x63olor_transfer_request\x18\x0e \x01(\t\x12\x11\n\tframerate\x18\x0f \x01(\x02\x12\x18\n\x10i_frame_interval\x18\x10 \x01(\x05\x12\x1c\n\x14intra_refresh_period\x18\x11 \x01(\x05\x12\x0f\n\x07latency\x18\x12 \x01(\x05\x12#\n\x1brepeat_previous_frame_after\x18\x13 \x01(\x03\x12\x11\n\tts_schema\x18\x14 \x01(\t\x12\x0f\n\x07quality\x18\x15 \x01(\x05\x12\x12\n\ncomplexity\x18\x16 \x01(\x05\x12\x1a\n\x0b\x64\x65\x63ode_dump\x18\x17 \x01(\x08:\x05\x66\x61lse\x12\x12\n\ntile_width\x18\x18 \x01(\x05\x12\x13\n\x0btile_height\x18\x19 \x01(\x05\x12\x11\n\tcrop_area\x18\x1a \x01(\t\"3\n\x0b\x42itrateMode\x12\x06\n\x02\x63q\x10\x00\x12\x07\n\x03vbr\x10\x01\x12\x07\n\x03\x63\x62r\x10\x02\x12\n\n\x06\x63\x62r_fd\x10\x03\"E\n\rColorStandard\x12\r\n\tbt601_pal\x10\x02\x12\x0e\n\nbt601_ntsc\x10\x04\x12\t\n\x05\x62t709\x10\x01\x12\n\n\x06\x62t2020\x10\x06\"#\n\nColorRange\x12\x08\n\x04\x66ull\x10\x01\x12\x0b\n\x07limited\x10\x02\"?\n\rColorTransfer\x12\n\n\x06linear\x10\x01\x12\r\n\tsdr_video\x10\x03\x12\n\n\x06st2084\x10\x06\x12\x07\n\x03hlg\x10\x07\"\xc0\x02\n\x07Runtime\x12\x1d\n\tparameter\x18\x01 \x03(\x0b\x32\n.Parameter\x12\x35\n\rvideo_bitrate\x18\x02 \x03(\x0b\x32\x1e.Runtime.VideoBitrateParameter\x12\x0c\n\x04\x64rop\x18\x03 \x03(\x03\x12=\n\x11\x64ynamic_framerate\x18\x04 \x03(\x0b\x32\".Runtime.DynamicFramerateParameter\x12\x14\n\x0crequest_sync\x18\x05 \x03(\x03\x1a:\n\x15VideoBitrateParameter\x12\x10\n\x08\x66ramenum\x18\x01 \x01(\x03\x12\x0f\n\x07\x62itrate\x18\x02 \x01(\t\x1a@\n\x19\x44ynamicFramerateParameter\x12\x10\n\x08\x66ramenum\x18\x01 \x01(\x03\x12\x11\n\tframerate\x18\x02 \x01(\x02\"@\n\x10\x44\x65\x63oderConfigure\x12\x1d\n\tparameter\x18\x01 \x03(\x0b\x32\n.Parameter\x12\r\n\x05\x63odec\x18\x02 \x01(\t\"/\n\x0e\x44\x65\x63oderRuntime\x12\x1d\n\tparameter\x18\x01 \x03(\x0b\x32\n.Parameter\"\x1f\n\x08Parallel\x12\x13\n\x04test\x18\x01 \x03(\x0b\x32\x05.Test\"\x1d\n\x06Serial\x12\x13\n\x04test\x18\x01 \x03(\x0b\x32\x05.Test\"\x85\x02\n\x04Test\x12\x17\n\x06\x63ommon\x18\x01 \x01(\x0b\x32\x07.Common\x12\x15\n\x05input\x18\x02 \x01(\x0b\x32\x06.Input\x12\x1d\n\tconfigure\x18\x03 \x01(\x0b\x32\n.Configure\x12\x19\n\x07runtime\x18\x04 \x01(\x0b\x32\x08.Runtime\x12,\n\x11\x64\x65\x63oder_configure\x18\x05 \x01(\x0b\x32\x11.DecoderConfigure\x12(\n\x0f\x64\x65\x63oder_runtime\x18\x06 \x01(\x0b\x32\x0f.DecoderRuntime\x12\x1b\n\x08parallel\x18\x07 \x01(\x0b\x32\t.Parallel\x12\x1e\n\ntest_setup\x18\x08 \x01(\x0b\x32\n.TestSetup\" \n\tTestSuite\x12\x13\n\x04test\x18\x01 \x03(\x0b\x32\x05.Test*I\n\rDataValueType\x12\x0e\n\nstringType\x10\x00\x12\x0b\n\x07intType\x10\x01\x12\r\n\tfloatType\x10\x02\x12\x0c\n\x08longType\x10\x03*L\n\x06PixFmt\x12\x0b\n\x07yuv420p\x10\x00\x12\x0b\n\x07yvu420p\x10\x01\x12\x08\n\x04nv12\x10\x02\x12\x08\n\x04nv21\x10\x03\x12\x08\n\x04rgba\x10\x04\x12\n\n\x06p010le\x10\x36\x42-\n\x19\x63om.facebook.encapp.protoB\x0eTestDefinitionP\x01')
+DESCRIPTOR = _descriptor_pool.Default().AddSerializedFile(b'\n\x0btests.proto\"C\n\x08ProxyVal\x12\n\n\x02id\x18\x01 \x01(\t\x12\x1c\n\x04type\x18\x02 \x01(\x0e\x32\x0e.DataValueType\x12\r\n\x05value\x18\x03 \x01(\t\"\xe5\x02\n\tTestSetup\x12\x16\n\x0e\x64\x65vice_workdir\x18\x01 \x01(\t\x12\x15\n\rlocal_workdir\x18\x02 \x01(\t\x12\x0e\n\x06serial\x18\x03 \x01(\t\x12\x12\n\ndevice_cmd\x18\x04 \x01(\t\x12\x0f\n\x07run_cmd\x18\x05 \x01(\t\x12\x18\n\x10separate_sources\x18\x06 \x01(\x08\x12\x12\n\nmediastore\x18\x07 \x01(\t\x12\x12\n\nsource_dir\x18\x08 \x01(\t\x12\x1d\n\x15\x66irst_frame_fast_read\x18\t \x01(\x08\x12\x1b\n\x13ignore_power_status\x18\n \x01(\x08\x12\x12\n\nuihold_sec\x18\x0b \x01(\x05\x12\x16\n\x0einternal_muxer\x18\x0e \x01(\x08\x12\x18\n\x10internal_demuxer\x18\x0c \x01(\x08\x12\x1c\n\tproxy_val\x18\r \x03(\x0b\x32\t.ProxyVal\x12\x12\n\nexpand_all\x18\x0f \x01(\x08\"\xd7\x02\n\x06\x43ommon\x12\n\n\x02id\x18\x01 \x01(\t\x12\x13\n\x0b\x64\x65scription\x18\x02 \x01(\t\x12\x11\n\toperation\x18\x03 \x01(\t\x12\r\n\x05start\x18\x04 \x01(\t\x12\x17\n\x0foutput_filename\x18\x05 \x01(\t\x12)\n\x0cstats_format\x18\x06 \x01(\x0e\x32\x13.Common.StatsFormat\x12\x1a\n\x12stats_flush_frames\x18\x07 \x01(\x05\x12\x17\n\x0fstats_flush_sec\x18\x08 \x01(\x02\x12\x15\n\rwarmup_frames\x18\t \x01(\x05\x12\x12\n\nwarmup_sec\x18\n \x01(\x02\x12\x0e\n\x06repeat\x18\x0b \x01(\x05\x12\x14\n\x0c\x63ooldown_sec\x18\x0c \x01(\x02\x12\x1b\n\x13\x63\x61pture_system_load\x18\r \x01(\x08\"#\n\x0bStatsFormat\x12\x08\n\x04json\x10\x00\x12\n\n\x06\x62inary\x10\x01\"W\n\tParameter\x12\x0b\n\x03key\x18\x01 \x01(\t\x12\x1c\n\x04type\x18\x02 \x01(\x0e\x32\x0e.DataValueType\x12\r\n\x05value\x18\x03 \x01(\t\x12\x10\n\x08\x66ramenum\x18\x04 \x01(\x03\"\xf4\x01\n\x05Input\x12\x10\n\x08\x66ilepath\x18\x01 \x01(\t\x12\x12\n\nresolution\x18\x02 \x01(\t\x12\x18\n\x07pix_fmt\x18\x03 \x01(\x0e\x32\x07.PixFmt\x12\x11\n\tframerate\x18\x04 \x01(\x02\x12\x16\n\x0eplayout_frames\x18\x05 \x01(\x05\x12\x0f\n\x07pursuit\x18\x06 \x01(\x05\x12\x10\n\x08realtime\x18\x07 \x01(\x08\x12\x14\n\x0cstoptime_sec\x18\x08 \x01(\x02\x12\x0c\n\x04show\x18\t \x01(\x08\x12\x15\n\rdevice_decode\x18\n \x01(\x08\x12\x11\n\tcrop_area\x18\x0b \x01(\t\x12\x0f\n\x07restamp\x18\x0c \x01(\x08\"\x88\x07\n\tConfigure\x12\x1d\n\tparameter\x18\x01 \x03(\x0b\x32\n.Parameter\x12\r\n\x05\x63odec\x18\x02 \x01(\t\x12\x0e\n\x06\x65ncode\x18\x03 \x01(\x08\x12\x0f\n\x07surface\x18\x04 \x01(\x08\x12\x0c\n\x04mime\x18\x05 \x01(\t\x12\x0f\n\x07\x62itrate\x18\x06 \x01(\t\x12,\n\x0c\x62itrate_mode\x18\x07 \x01(\x0e\x32\x16.Configure.BitrateMode\x12\x12\n\ndurationUs\x18\x08 \x01(\x04\x12\x12\n\nresolution\x18\t \x01(\t\x12\x14\n\x0c\x63olor_format\x18\n \x01(\x05\x12\x30\n\x0e\x63olor_standard\x18\x0b \x01(\x0e\x32\x18.Configure.ColorStandard\x12*\n\x0b\x63olor_range\x18\x0c \x01(\x0e\x32\x15.Configure.ColorRange\x12\x30\n\x0e\x63olor_transfer\x18\r \x01(\x0e\x32\x18.Configure.ColorTransfer\x12\x1e\n\x16\x63olor_transfer_request\x18\x0e \x01(\t\x12\x11\n\tframerate\x18\x0f \x01(\x02\x12\x18\n\x10i_frame_interval\x18\x10 \x01(\x05\x12\x1c\n\x14intra_refresh_period\x18\x11 \x01(\x05\x12\x0f\n\x07latency\x18\x12 \x01(\x05\x12#\n\x1brepeat_previous_frame_after\x18\x13 \x01(\x03\x12\x11\n\tts_schema\x18\x14 \x01(\t\x12\x0f\n\x07quality\x18\x15 \x01(\x05\x12\x12\n\ncomplexity\x18\x16 \x01(\x05\x12\x1a\n\x0b\x64\x65\x63ode_dump\x18\x17 \x01(\x08:\x05\x66\x61lse\x12\x12\n\ntile_width\x18\x18 \x01(\x05\x12\x13\n\x0btile_height\x18\x19 \x01(\x05\x12\x11\n\tcrop_area\x18\x1a \x01(\t\"3\n\x0b\x42itrateMode\x12\x06\n\x02\x63q\x10\x00\x12\x07\n\x03vbr\x10\x01\x12\x07\n\x03\x63\x62r\x10\x02\x12\n\n\x06\x63\x62r_fd\x10\x03\"E\n\rColorStandard\x12\r\n\tbt601_pal\x10\x02\x12\x0e\n\nbt601_ntsc\x10\x04\x12\t\n\x05\x62t709\x10\x01\x12\n\n\x06\x62t2020\x10\x06\"#\n\nColorRange\x12\x08\n\x04\x66ull\x10\x01\x12\x0b\n\x07limited\x10\x02\"?\n\rColorTransfer\x12\n\n\x06linear\x10\x01\x12\r\n\tsdr_video\x10\x03\x12\n\n\x06st2084\x10\x06\x12\x07\n\x03hlg\x10\x07\"\xc0\x02\n\x07Runtime\x12\x1d\n\tparameter\x18\x01 \x03(\x0b\x32\n.Parameter\x12\x35\n\rvideo_bitrate\x18\x02 \x03(\x0b\x32\x1e.Runtime.VideoBitrateParameter\x12\x0c\n\x04\x64rop\x18\x03 \x03(\x03\x12=\n\x11\x64ynamic_framerate\x18\x04 \x03(\x0b\x32\".Runtime.DynamicFramerateParameter\x12\x14\n\x0crequest_sync\x18\x05 \x03(\x03\x1a:\n\x15VideoBitrateParameter\x12\x10\n\x08\x66ramenum\x18\x01 \x01(\x03\x12\x0f\n\x07\x62itrate\x18\x02 \x01(\t\x1a@\n\x19\x44ynamicFramerateParameter\x12\x10\n\x08\x66ramenum\x18\x01 \x01(\x03\x12\x11\n\tframerate\x18\x02 \x01(\x02\"@\n\x10\x44\x65\x63oderConfigure\x12\x1d\n\tparameter\x18\x01 \x03(\x0b\x32\n.Parameter\x12\r\n\x05\x63odec\x18\x02 \x01(\t\"/\n\x0e\x44\x65\x63oderRuntime\x12\x1d\n\tparameter\x18\x01 \x03(\x0b\x32\n.Parameter\"\x1f\n\x08Parallel\x12\x13\n\x04test\x18\x01 \x03(\x0b\x32\x05.Test\"\x1d\n\x06Serial\x12\x13\n\x04test\x18\x01 \x03(\x0b\x32\x05.Test\"\xe5\x01\n\x08\x43\x61pacity\x12&\n\tdimension\x18\x01 \x01(\x0e\x32\x13.Capacity.Dimension\x12\x0b\n\x03min\x18\x02 \x01(\x05\x12\x0b\n\x03max\x18\x03 \x01(\x05\x12\x0c\n\x04step\x18\x04 \x01(\x05\x12\x12\n\nfps_margin\x18\x05 \x01(\x02\x12\x16\n\x0emax_latency_ms\x18\x06 \x01(\x02\x12\x12\n\nwarmup_sec\x18\x07 \x01(\x02\x12\x12\n\nwindow_sec\x18\x08 \x01(\x02\"5\n\tDimension\x12\r\n\tinstances\x10\x00\x12\r\n\tframerate\x10\x01\x12\n\n\x06height\x10\x02\"\xbe\x02\n\x04Test\x12\x17\n\x06\x63ommon\x18\x01 \x01(\x0b\x32\x07.Common\x12\x15\n\x05input\x18\x02 \x01(\x0b\x32\x06.Input\x12\x1d\n\tconfigure\x18\x03 \x01(\x0b\x32\n.Configure\x12\x19\n\x07runtime\x18\x04 \x01(\x0b\x32\x08.Runtime\x12,\n\x11\x64\x65\x63oder_configure\x18\x05 \x01(\x0b\x32\x11.DecoderConfigure\x12(\n\x0f\x64\x65\x63oder_runtime\x18\x06 \x01(\x0b\x32\x0f.DecoderRuntime\x12\x1b\n\x08parallel\x18\x07 \x01(\x0b\x32\t.Parallel\x12\x1e\n\ntest_setup\x18\x08 \x01(\x0b\x32\n.TestSetup\x12\x1b\n\x08\x63\x61pacity\x18\t \x01(\x0b\x32\t.Capacity\x12\x1a\n\x06ladder\x18\n \x03(\x0b\x32\n.Configure\" \n\tTestSuite\x12\x13\n\x04test\x18\x01 \x03(\x0b\x32\x05.Test*I\n\rDataValueType\x12\x0e\n\nstringType\x10\x00\x12\x0b\n\x07intType\x10\x01\x12\r\n\tfloatType\x10\x02\x12\x0c\n\x08longType\x10\x03*L\n\x06PixFmt\x12\x0b\n\x07yuv420p\x10\x00\x12\x0b\n\x07yvu420p\x10\x01\x12\x08\n\x04nv12\x10\x02\x12\x08\n\x04nv21\x10\x03\x12\x08\n\x04rgba\x10\x04\x12\n\n\x06p010le\x10\x36\x42-\n\x19\x63om.facebook.encapp.protoB\x0eTestDefinitionP\x01')
 
 _builder.BuildMessageAndEnumDescriptors(DESCRIPTOR, globals())
 _builder.BuildTopDescriptorsAndMessages(DESCRIPTOR, 'tests_pb2', globals())
 if _descriptor._USE_C_DESCRIPTORS == False:
-
   DESCRIPTOR._options = None
   DESCRIPTOR._serialized_options = b'\n\031com.facebook.encapp.protoB\016TestDefinitionP\001'
-  _DATAVALUETYPE._serialized_start=2589
-  _DATAVALUETYPE._serialized_end=2662
-  _PIXFMT._serialized_start=2664
-  _PIXFMT._serialized_end=2740
+  _DATAVALUETYPE._serialized_start=3122
+  _DATAVALUETYPE._serialized_end=3195
+  _PIXFMT._serialized_start=3197
+  _PIXFMT._serialized_end=3273
   _PROXYVAL._serialized_start=15
   _PROXYVAL._serialized_end=82
   _TESTSETUP._serialized_start=85
   _TESTSETUP._serialized_end=442
-  _COMMON._serialized_start=444
-  _COMMON._serialized_end=544
-  _PARAMETER._serialized_start=546
-  _PARAMETER._serialized_end=633
-  _INPUT._serialized_start=636
-  _INPUT._serialized_end=880
-  _CONFIGURE._serialized_start=883
-  _CONFIGURE._serialized_end=1787
-  _CONFIGURE_BITRATEMODE._serialized_start=1563
-  _CONFIGURE_BITRATEMODE._serialized_end=1614
-  _CONFIGURE_COLORSTANDARD._serialized_start=1616
-  _CONFIGURE_COLORSTANDARD._serialized_end=1685
-  _CONFIGURE_COLORRANGE._serialized_start=1687
-  _CONFIGURE_COLORRANGE._serialized_end=1722
-  _CONFIGURE_COLORTRANSFER._serialized_start=1724
-  _CONFIGURE_COLORTRANSFER._serialized_end=1787
-  _RUNTIME._serialized_start=1790
-  _RUNTIME._serialized_end=2110
-  _RUNTIME_VIDEOBITRATEPARAMETER._serialized_start=1986
-  _RUNTIME_VIDEOBITRATEPARAMETER._serialized_end=2044
-  _RUNTIME_DYNAMICFRAMERATEPARAMETER._serialized_start=2046
-  _RUNTIME_DYNAMICFRAMERATEPARAMETER._serialized_end=2110
-  _DECODERCONFIGURE._serialized_start=2112
-  _DECODERCONFIGURE._serialized_end=2176
-  _DECODERRUNTIME._serialized_start=2178
-  _DECODERRUNTIME._serialized_end=2225
-  _PARALLEL._serialized_start=2227
-  _PARALLEL._serialized_end=2258
-  _SERIAL._serialized_start=2260
-  _SERIAL._serialized_end=2289
-  _TEST._serialized_start=2292
-  _TEST._serialized_end=2553
-  _TESTSUITE._serialized_start=2555
-  _TESTSUITE._serialized_end=2587
+  _COMMON._serialized_start=445
+  _COMMON._serialized_end=788
+  _COMMON_STATSFORMAT._serialized_start=753
+  _COMMON_STATSFORMAT._serialized_end=788
+  _PARAMETER._serialized_start=790
+  _PARAMETER._serialized_end=877
+  _INPUT._serialized_start=880
+  _INPUT._serialized_end=1124
+  _CONFIGURE._serialized_start=1127
+  _CONFIGURE._serialized_end=2031
+  _CONFIGURE_BITRATEMODE._serialized_start=1807
+  _CONFIGURE_BITRATEMODE._serialized_end=1858
+  _CONFIGURE_COLORSTANDARD._serialized_start=1860
+  _CONFIGURE_COLORSTANDARD._serialized_end=1929
+  _CONFIGURE_COLORRANGE._serialized_start=1931
+  _CONFIGURE_COLORRANGE._serialized_end=1966
+  _CONFIGURE_COLORTRANSFER._serialized_start=1968
+  _CONFIGURE_COLORTRANSFER._serialized_end=2031
+  _RUNTIME._serialized_start=2034
+  _RUNTIME._serialized_end=2354
+  _RUNTIME_VIDEOBITRATEPARAMETER._serialized_start=2230
+  _RUNTIME_VIDEOBITRATEPARAMETER._serialized_end=2288
+  _RUNTIME_DYNAMICFRAMERATEPARAMETER._serialized_start=2290
+  _RUNTIME_DYNAMICFRAMERATEPARAMETER._serialized_end=2354
+  _DECODERCONFIGURE._serialized_start=2356
+  _DECODERCONFIGURE._serialized_end=2420
+  _DECODERRUNTIME._serialized_start=2422
+  _DECODERRUNTIME._serialized_end=2469
+  _PARALLEL._serialized_start=2471
+  _PARALLEL._serialized_end=2502
+  _SERIAL._serialized_start=2504
+  _SERIAL._serialized_end=2533
+  _CAPACITY._serialized_start=2536
+  _CAPACITY._serialized_end=2765
+  _CAPACITY_DIMENSION._serialized_start=2712
+  _CAPACITY_DIMENSION._serialized_end=2765
+  _TEST._serialized_start=2768
+  _TEST._serialized_end=3086
+  _TESTSUITE._serialized_start=3088
+  _TESTSUITE._serialized_end=3120
 # @@protoc_insertion_point(module_scope)
@@ -0,0 +1,189 @@
+#!/usr/bin/env python3
+
+import json
+import os
+import sys
+import tempfile
+import unittest
+
+MODULE_PATH = os.path.dirname(__file__)
+ENCAPP_SCRIPTS_ROOT_DIR = os.path.join(MODULE_PATH, os.pardir, os.pardir)
+sys.path.append(ENCAPP_SCRIPTS_ROOT_DIR)
+
+import encapp_stats_binary  # noqa: E402
+from encapp_stats_binary import stats_pb2  # noqa: E402
+
+METADATA = {
+    "id": "binary_test",
+    "description": "round trip of the binary stats",
+    "test": {"common": {"id": "binary_test", "stats_format": "binary"}},
+    "gpu_data": {"gpu_model": "test gpu"},
+}
+
+
+def write_records(filename, records, truncate=0):
+    """Writes length delimited records as the app does"""
+    data = bytearray()
+    for record in records:
+        message = record.SerializeToString()
+        length = len(message)
+        while length > 0x7F:
+            data.append((length & 0x7F) | 0x80)
+            length >>= 7
+        data.append(length)
+        data += message
+    with open(filename, "wb") as output_file:
+        output_file.write(bytes(data[: len(data) - truncate]))
+
+
+def encoded_frame(
+    frame, pts_delta, start_delta, stop_delta, size, iframe=False, read_delta=None
+):
+    record = stats_pb2.StatsRecord()
+    record.frame.frame = frame
+    record.frame.original_frame = frame
+    record.frame.iframe = iframe
+    record.frame.size = size
+    record.frame.pts_delta = pts_delta
+    record.frame.start_delta = start_delta
+    record.frame.stop_delta = stop_delta
+    if read_delta is not None:
+        record.frame.read_delta = read_delta
+    return record
+
+
+def decoded_frame(pts_delta, start_delta, stop_delta, size):
+    record = stats_pb2.StatsRecord()
+    record.decoded_frame.flags = 0
+    record.decoded_frame.size = size
+    record.decoded_frame.pts_delta = pts_delta
+    record.decoded_frame.start_delta = start_delta
+    record.decoded_frame.stop_delta = stop_delta
+    return record
+
+
+def stats_records():
+    records = []
+    # the frames are written in output order, the first one is still in flight
+    records.append(encoded_frame(1, 33333, 1000, -1000, 0))
+    records.append(encoded_frame(0, -33333, 500, 700, 4000, True, 100))
+    extra = records[-1].frame.extra.add()
+    extra.key = "qp"
+    extra.value = "30"
+    records.append(encoded_frame(2, 66666, 1000, 600, 1200))
+    records.append(decoded_frame(0, 200, 300, 1500))
+    records.append(decoded_frame(33333, 100, 250, 1400))
+    record = stats_pb2.StatsRecord()
+    record.gpu_load.time_sec = 0.1
+    record.gpu_load.load_percentage = 42
+    records.append(record)
+    record = stats_pb2.StatsRecord()
+    record.gpu_clock.time_sec = 0.0
+    record.gpu_clock.clock_mhz = "585"
+    records.append(record)
+    record = stats_pb2.StatsRecord()
+    record.cpu_time_in_state.cpu = 4
+    record.cpu_time_in_state.timestamp_ns = 123456789
+    record.cpu_time_in_state.freq.extend([300000, 1800000])
+    record.cpu_time_in_state.time.extend([10, 20])
+    records.append(record)
+    return records
+
+
+def metadata_record():
+    record = stats_pb2.StatsRecord()
+    # longer than 127 bytes, a two byte length prefix
+    record.metadata_json = json.dumps(METADATA)
+    return record
+
+
+class TestEncappStatsBinary(unittest.TestCase):
+    def setUp(self):
+        self.tmp_dir = tempfile.TemporaryDirectory()
+        self.filename = os.path.join(self.tmp_dir.name, "test.pbstats")
+
+    def tearDown(self):
+        self.tmp_dir.cleanup()
+
+    def test_read_stats_shall_restore_the_json_result(self):
+        write_records(self.filename, stats_records() + [metadata_record()])
+        stats = encapp_stats_binary.read_stats(self.filename)
+
+        self.assertEqual(stats["id"], METADATA["id"])
+        self.assertEqual(stats["test"], METADATA["test"])
+        self.assertEqual(stats["gpu_data"]["gpu_model"], "test gpu")
+
+        frames = stats["frames"]
+        self.assertEqual([frame["frame"] for frame in frames], [0, 1, 2])
+        self.assertEqual(
+            frames[0],
+            {
+                "frame": 0,
+                "original_frame": 0,
+                "iframe": 1,
+                "size": 4000,
+                "pts": 0,
+                "proctime": 700,
+                "starttime": 1500,
+                "stoptime": 2200,
+                "readtime": 1600,
+                "qp": "30",
+            },
+        )
+        # not encoded yet
+        self.assertEqual(frames[1]["pts"], 33333)
+        self.assertEqual(frames[1]["starttime"], 1000)
+        self.assertEqual(frames[1]["stoptime"], 0)
+        self.assertEqual(frames[1]["proctime"], 0)
+        self.assertEqual(frames[2]["pts"], 66666)
+        self.assertEqual(frames[2]["starttime"], 2500)
+        self.assertEqual(frames[2]["stoptime"], 3100)
+        self.assertNotIn("readtime", frames[2])
+
+        decoded = stats["decoded_frames"]
+        self.assertEqual([frame["frame"] for frame in decoded], [1, 2])
+        self.assertEqual([frame["pts"] for frame in decoded], [0, 33333])
+        self.assertEqual([frame["starttime"] for frame in decoded], [200, 300])
+        self.assertEqual([frame["proctime"] for frame in decoded], [300, 250])
+
+        self.assertEqual(
+            stats["gpu_data"]["gpu_load_percentage"],
+            [{"time_sec": 0.1, "load_percentage": 42}],
+        )
+        self.assertEqual(
+            stats["gpu_data"]["gpu_clock_freq"], [{"time_sec": 0.0, "clock_MHz": "585"}]
+        )
+        self.assertEqual(
+            stats["cpu_time_in_state"],
+            [
+                {
+                    "cpu": "4",
+                    "timestamp_ns": "123456789",
+                    "300000": "10",
+                    "1800000": "20",
+                }
+            ],
+        )
+
+    def test_read_stats_shall_skip_a_truncated_last_record(self):
+        write_records(self.filename, stats_records() + [metadata_record()], truncate=5)
+        stats = encapp_stats_binary.read_stats(self.filename)
+
+        # an unfinished test has no metadata
+        self.assertNotIn("id", stats)
+        self.assertEqual(len(stats["frames"]), 3)
+        self.assertEqual(len(stats["decoded_frames"]), 2)
+        self.assertEqual(len(stats["cpu_time_in_state"]), 1)
+
+    def test_convert_to_json_shall_write_next_to_the_binary_file(self):
+        write_records(self.filename, stats_records() + [metadata_record()])
+        output = encapp_stats_binary.convert_to_json(self.filename)
+
+        self.assertEqual(output, os.path.join(self.tmp_dir.name, "test.json"))
+        with open(output) as input_file:
+            stats = json.load(input_file)
+        self.assertEqual(stats, encapp_stats_binary.read_stats(self.filename))
+
+
+if __name__ == "__main__":
+    unittest.main()